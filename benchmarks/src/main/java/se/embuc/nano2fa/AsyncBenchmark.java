@@ -0,0 +1,83 @@
+package se.embuc.nano2fa;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link AsyncValidator} with batches of validations which are all submitted before waiting for them,
+ * on its default platform thread pool, on a plain fixed pool and on virtual threads, which set up the per-thread state of
+ * the validation for every task. <code>virtual</code> needs Java 21 or newer and fails on older JDKs.
+ *
+ * @author Emir Bucalovic
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AsyncBenchmark {
+
+	private static final int BATCH = 1000;
+
+	@Param({ "default", "platform", "virtual" })
+	public String executor;
+
+	private ExecutorService executorService;
+	private AsyncValidator asyncValidator;
+	private String secret;
+	private final CompletableFuture<?>[] futures = new CompletableFuture<?>[BATCH];
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		switch (executor) {
+			case "default":
+				asyncValidator = new AsyncValidator(BATCH);
+				break;
+			case "platform":
+				executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+				asyncValidator = new AsyncValidator(executorService, BATCH);
+				break;
+			default:
+				// reflection keeps the benchmarks compiling for Java 8
+				executorService = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+				asyncValidator = new AsyncValidator(executorService, BATCH);
+				break;
+		}
+		secret = TimeBasedOneTimePasswordUtil.generateBase32Secret();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		asyncValidator.close();
+		if (executorService != null) {
+			executorService.shutdown();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void validateCurrentNumber() {
+		for (int i = 0; i < BATCH; i++) {
+			futures[i] = asyncValidator.validateCurrentNumber(secret, i);
+		}
+		CompletableFuture.allOf(futures).join();
+	}
+}
@@ -0,0 +1,90 @@
+package se.embuc.nano2fa;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What auditing adds to a validation: {@link AuditLog} registered as the {@link AuditSink}, which only stores the event
+ * in its ring buffer, against no sink, writing a line to the file on the validating thread, and recording an event on
+ * its own.
+ *
+ * @author Emir Bucalovic
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AuditLogBenchmark {
+
+	private final String secret = "NY4A5CPJZ46LXZCP";
+	private final long timeMillis = 1_700_000_000_000L;
+	private final UsedCodeRegistry registry = new ReplayGuard();
+	@Param({ "false", "true" })
+	public boolean audited;
+	private Path dir;
+	private AuditLog auditLog;
+	private Writer writer;
+	private long accountId;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("audit");
+		auditLog = new AuditLog(dir.resolve("audit.log"));
+		TimeBasedOneTimePasswordUtil.setAuditSink(audited ? auditLog : null);
+		writer = Files.newBufferedWriter(dir.resolve("sync.log"), StandardCharsets.US_ASCII, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		TimeBasedOneTimePasswordUtil.setAuditSink(null);
+		auditLog.close();
+		writer.close();
+		try (Stream<Path> files = Files.list(dir)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(dir);
+	}
+
+	@Benchmark
+	public boolean validate() {
+		return TimeBasedOneTimePasswordUtil.validateCurrentNumber(registry, accountId++, secret, -1, 0, timeMillis,
+				TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+
+	@Benchmark
+	public boolean validateSynchronousLog() throws IOException {
+		boolean valid = TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, -1, 0, timeMillis, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS,
+				TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+		writer.write(timeMillis + "," + accountId++ + "," + (valid ? "ACCEPTED,0" : "MISMATCH,") + "\n");
+		writer.flush();
+		return valid;
+	}
+
+	@Benchmark
+	public boolean record() {
+		return auditLog.recordRejected(accountId++, timeMillis, MetricsListener.RejectReason.MISMATCH);
+	}
+}
@@ -0,0 +1,60 @@
+package se.embuc.nano2fa;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base32;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Base32 decoding of secrets as done on every validation of a string secret, against commons-codec which was used
+ * before.
+ *
+ * @author Emir Bucalovic
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Base32Benchmark {
+
+	@Param({ "16", "20", "32" })
+	public int secretLength;
+
+	private String secret;
+	private byte[] buffer;
+	private Base32 base32;
+
+	@Setup
+	public void setup() {
+		secret = TimeBasedOneTimePasswordUtil.generateBase32Secret(secretLength);
+		buffer = new byte[64];
+		base32 = new Base32();
+	}
+
+	@Benchmark
+	public byte[] decode() {
+		return Base32Codec.decode(secret);
+	}
+
+	@Benchmark
+	public int decodeIntoBuffer() {
+		return Base32Codec.decode(secret, buffer, 0);
+	}
+
+	@Benchmark
+	public byte[] decodeCommonsCodec() {
+		return base32.decode(secret);
+	}
+}
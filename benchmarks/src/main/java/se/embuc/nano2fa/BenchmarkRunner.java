@@ -0,0 +1,51 @@
+package se.embuc.nano2fa;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all benchmarks with the GC profiler so the allocation rate is reported next to the timings, then runs
+ * {@link ThreadScalingBenchmark} with 1, 2, 4 ... threads up to the number of processors.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar
+ * </pre>
+ *
+ * <p>
+ * Any arguments are passed to JMH instead, for example <code>java -jar target/benchmarks.jar ValidateBenchmark -prof gc</code>.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0) {
+			new Runner(new CommandLineOptions(args)).run();
+			return;
+		}
+		Options options = new OptionsBuilder()
+				.exclude(ThreadScalingBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+
+		int processors = Runtime.getRuntime().availableProcessors();
+		for (int threads = 1; threads < processors * 2; threads *= 2) {
+			runThreadScaling(Math.min(threads, processors));
+		}
+	}
+
+	private static void runThreadScaling(int threads) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(ThreadScalingBenchmark.class.getSimpleName())
+				.threads(threads)
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
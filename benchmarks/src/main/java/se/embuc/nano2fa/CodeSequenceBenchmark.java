@@ -0,0 +1,49 @@
+package se.embuc.nano2fa;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The numbers of one secret for a day of 30 second time-steps, with {@link CodeSequences} against a loop over
+ * {@link TimeBasedOneTimePasswordUtil#generateNumberString(String, long, int, int)} which decodes and keys every step.
+ *
+ * @author Emir Bucalovic
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodeSequenceBenchmark {
+
+	private static final int STEPS = 2880;
+
+	private final String secret = "NY4A5CPJZ46LXZCP";
+	private final long startValue = 56_666_666;
+	private final int[] numbers = new int[STEPS];
+
+	@Benchmark
+	public int[] codeSequences() {
+		CodeSequences.generateNumbers(secret, startValue, startValue + STEPS, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH, numbers, 0);
+		return numbers;
+	}
+
+	@Benchmark
+	public int[] generateNumberLoop() {
+		for (int i = 0; i < STEPS; i++) {
+			numbers[i] = TimeBasedOneTimePasswordUtil.generateNumber(secret, (startValue + i) * 30_000, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS,
+					TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+		}
+		return numbers;
+	}
+}
@@ -0,0 +1,56 @@
+package se.embuc.nano2fa;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Successful validation of a phone which runs one time-step ahead, with and without {@link DriftTracker}, using a 30
+ * second window of three time-steps. Without the tracker all three are computed.
+ *
+ * @author Emir Bucalovic
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DriftBenchmark {
+
+	private static final long WINDOW_MILLIS = 30_000;
+
+	private String secret;
+	private int authNumber;
+	private long timeMillis;
+	private DriftTracker driftTracker;
+
+	@Setup
+	public void setup() {
+		secret = TimeBasedOneTimePasswordUtil.generateBase32Secret();
+		timeMillis = 1_700_000_000_000L;
+		authNumber = TimeBasedOneTimePasswordUtil.generateNumber(secret, timeMillis + 30_000, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS);
+		driftTracker = new DriftTracker();
+	}
+
+	@Benchmark
+	public boolean validateCurrentNumber() {
+		return TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, authNumber, WINDOW_MILLIS, timeMillis,
+				TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+
+	@Benchmark
+	public boolean validateCurrentNumberDriftTracker() {
+		return driftTracker.validateCurrentNumber(42, secret, authNumber, WINDOW_MILLIS, timeMillis,
+				TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+}
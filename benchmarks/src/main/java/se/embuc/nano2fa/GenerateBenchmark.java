@@ -0,0 +1,65 @@
+package se.embuc.nano2fa;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Generation of numbers, secrets and recovery codes.
+ *
+ * @author Emir Bucalovic
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GenerateBenchmark {
+
+	private String secret;
+	private byte[] key;
+	private long timeMillis;
+
+	@Setup
+	public void setup() {
+		secret = TimeBasedOneTimePasswordUtil.generateBase32Secret();
+		key = TimeBasedOneTimePasswordUtil.decodeBase32(secret);
+		timeMillis = 1_700_000_000_000L;
+	}
+
+	@Benchmark
+	public int generateNumber() {
+		return TimeBasedOneTimePasswordUtil.generateNumber(secret, timeMillis, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS);
+	}
+
+	@Benchmark
+	public String generateNumberString() {
+		return TimeBasedOneTimePasswordUtil.generateNumberString(secret, timeMillis, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS,
+				TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+
+	@Benchmark
+	public String generateBase32Secret() {
+		return TimeBasedOneTimePasswordUtil.generateBase32Secret();
+	}
+
+	@Benchmark
+	public String generateFormattedRecoveryCode() {
+		return TimeBasedOneTimePasswordUtil.generateFormattedRecoveryCode();
+	}
+
+	@Benchmark
+	public int generateNumberFromKeyValue() {
+		return TimeBasedOneTimePasswordUtil.generateNumberFromKeyValue(key, timeMillis / 30_000, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+}
@@ -0,0 +1,50 @@
+package se.embuc.nano2fa;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HOTP validation of a number which does not match, so the whole look-ahead is generated. Compared against keying a
+ * new {@link javax.crypto.Mac} for every counter value as the time-based wrappers did.
+ *
+ * @author Emir Bucalovic
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HotpBenchmark {
+
+	@Param({ "10", "100" })
+	public int lookAhead;
+
+	private final String secret = "NY4A5CPJZ46LXZCP";
+	private final byte[] key = TimeBasedOneTimePasswordUtil.decodeBase32(secret);
+
+	@Benchmark
+	public long validateNumber() {
+		return CounterBasedOneTimePasswordUtil.validateNumber(secret, 1000, -1, lookAhead, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+
+	@Benchmark
+	public long macPerCounter() {
+		for (long counter = 1000; counter <= 1000 + lookAhead; counter++) {
+			if (TimeBasedOneTimePasswordUtil.generateNumberFromKeyValue(key, counter, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH) == -1) {
+				return counter + 1;
+			}
+		}
+		return CounterBasedOneTimePasswordUtil.NO_MATCH;
+	}
+}
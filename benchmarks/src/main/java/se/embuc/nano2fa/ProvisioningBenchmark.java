@@ -0,0 +1,66 @@
+package se.embuc.nano2fa;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One provisioning record streamed by {@link ProvisioningWriter} to a writer which discards it, against building the
+ * URI string per account.
+ *
+ * @author Emir Bucalovic
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProvisioningBenchmark {
+
+	private final String secret = "NY4A5CPJZ46LXZCP";
+	private final ProvisioningWriter csv = new ProvisioningWriter(new NullWriter(), ProvisioningWriter.Format.CSV, "Example Corp");
+	private final ProvisioningWriter jsonLines = new ProvisioningWriter(new NullWriter(), ProvisioningWriter.Format.JSON_LINES, "Example Corp");
+
+	@Benchmark
+	public long writeCsv() throws IOException {
+		csv.write("alice.smith@example.com", secret);
+		return csv.getCount();
+	}
+
+	@Benchmark
+	public long writeJsonLines() throws IOException {
+		jsonLines.write("alice.smith@example.com", secret);
+		return jsonLines.getCount();
+	}
+
+	@Benchmark
+	public String generateOtpAuthUri() {
+		return TimeBasedOneTimePasswordUtil.generateOtpAuthUri("alice.smith@example.com", secret);
+	}
+
+	private static final class NullWriter extends Writer {
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
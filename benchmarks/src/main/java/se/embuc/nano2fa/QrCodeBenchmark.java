@@ -0,0 +1,52 @@
+package se.embuc.nano2fa;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering of the enrollment QR code in process: encoding alone, as PNG data URI and as SVG.
+ *
+ * @author Emir Bucalovic
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QrCodeBenchmark {
+
+	private String uri;
+	private QrCode qrCode;
+
+	@Setup
+	public void setup() {
+		uri = TimeBasedOneTimePasswordUtil.generateOtpAuthUri("user%40example.com", TimeBasedOneTimePasswordUtil.generateBase32Secret());
+		qrCode = QrCode.encode(uri);
+	}
+
+	@Benchmark
+	public QrCode encode() {
+		return QrCode.encode(uri);
+	}
+
+	@Benchmark
+	public String pngDataUri() {
+		return qrCode.toPngDataUri(4, QrCode.DEFAULT_BORDER);
+	}
+
+	@Benchmark
+	public String svg() {
+		return qrCode.toSvg(QrCode.DEFAULT_BORDER);
+	}
+}
@@ -0,0 +1,54 @@
+package se.embuc.nano2fa;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Verification of a recovery code against the codes of a random account of a {@link RecoveryCodeStore}. The code never
+ * matches so nothing is consumed, the cost is the same as for a matching code.
+ *
+ * @author Emir Bucalovic
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecoveryCodeBenchmark {
+
+	@Param({ "100000" })
+	public int accounts;
+
+	private RecoveryCodeStore store;
+	private String code;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		byte[] pepper = new byte[32];
+		ThreadLocalRandom.current().nextBytes(pepper);
+		store = new RecoveryCodeStore(pepper);
+		for (int account = 0; account < accounts; account++) {
+			store.generate(account);
+		}
+		code = SecretGenerator.generateFormattedRecoveryCode();
+	}
+
+	@Benchmark
+	public boolean consume() {
+		return store.consume(ThreadLocalRandom.current().nextInt(accounts), code);
+	}
+}
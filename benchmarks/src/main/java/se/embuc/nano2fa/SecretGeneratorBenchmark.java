@@ -0,0 +1,86 @@
+package se.embuc.nano2fa;
+
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Bulk generation of secrets and recovery codes against the previous approach of a new {@link SecureRandom} per secret
+ * and one <code>nextInt(32)</code> per character.
+ *
+ * @author Emir Bucalovic
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SecretGeneratorBenchmark {
+
+	private static final int BATCH = 1000;
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void generateBase32Secrets(Blackhole blackhole) {
+		SecretGenerator.generateBase32Secrets(BATCH, 20, blackhole::consume);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void generateBase32SecretsLegacy(Blackhole blackhole) {
+		for (int i = 0; i < BATCH; i++) {
+			blackhole.consume(legacyBase32Secret(20));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void generateFormattedRecoveryCodes(Blackhole blackhole) {
+		SecretGenerator.generateFormattedRecoveryCodes(BATCH, blackhole::consume);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void generateFormattedRecoveryCodesLegacy(Blackhole blackhole) {
+		for (int i = 0; i < BATCH; i++) {
+			StringBuilder builder = new StringBuilder();
+			for (int chunk = 0; chunk < 5; chunk++) {
+				if (chunk > 0) {
+					builder.append('-');
+				}
+				builder.append(legacyBase32Secret(4));
+			}
+			blackhole.consume(builder.toString());
+		}
+	}
+
+	/**
+	 * The implementation of generateBase32Secret(int) up to version 1.11.
+	 */
+	private static String legacyBase32Secret(int numberOfDigits) {
+		StringBuilder sb = new StringBuilder(numberOfDigits);
+		Random random = new SecureRandom();
+		for (int i = 0; i < numberOfDigits; i++) {
+			int val = random.nextInt(32);
+			if (val < 26) {
+				sb.append((char) ('A' + val));
+			} else {
+				sb.append((char) ('2' + (val - 26)));
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,72 @@
+package se.embuc.nano2fa;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Normalization of 100 000 records of 16 and 32 character secrets with {@link SecretMigration} on the common fork-join
+ * pool against the same migration on the calling thread. The throughput per core is the same, the pool scales it with
+ * the cores.
+ *
+ * @author Emir Bucalovic
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SecretMigrationBenchmark {
+
+	private static final int RECORDS = 100_000;
+
+	private final OutputStream nullOutputStream = new OutputStream() {
+
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+	private byte[] input;
+	private SecretMigration parallel;
+	private SecretMigration callingThread;
+
+	@Setup
+	public void setup() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < RECORDS; i++) {
+			sb.append(i).append(',').append(TimeBasedOneTimePasswordUtil.generateBase32Secret(i % 2 == 0 ? 16 : 32)).append('\n');
+		}
+		input = sb.toString().getBytes(StandardCharsets.UTF_8);
+		parallel = new SecretMigration(SecretMigration.NORMALIZE);
+		callingThread = new SecretMigration(SecretMigration.NORMALIZE, Runnable::run, 1, SecretMigration.DEFAULT_CHUNK_SIZE,
+				SecretMigration.DEFAULT_MIN_KEY_BYTES);
+	}
+
+	@Benchmark
+	public SecretMigration.Result parallel() throws IOException {
+		return parallel.migrate(new ByteArrayInputStream(input), nullOutputStream);
+	}
+
+	@Benchmark
+	public SecretMigration.Result callingThread() throws IOException {
+		return callingThread.migrate(new ByteArrayInputStream(input), nullOutputStream);
+	}
+}
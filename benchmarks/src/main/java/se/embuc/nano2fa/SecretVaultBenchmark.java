@@ -0,0 +1,67 @@
+package se.embuc.nano2fa;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Validation of random accounts from a {@link SecretVault} with the default window. The number never matches so the
+ * whole window is scanned.
+ *
+ * @author Emir Bucalovic
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SecretVaultBenchmark {
+
+	@Param({ "1000000" })
+	public int accounts;
+
+	private Path file;
+	private SecretVault vault;
+	private long timeMillis;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		file = Files.createTempFile("nano2fa", ".vault");
+		vault = new SecretVault(file, accounts);
+		byte[] key = new byte[TimeBasedOneTimePasswordUtil.DEFAULT_PRIVATE_KEY_LENGTH];
+		for (int account = 0; account < accounts; account++) {
+			ThreadLocalRandom.current().nextBytes(key);
+			vault.put(account, key);
+		}
+		timeMillis = 1_700_000_000_000L;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		vault.close();
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public boolean validateCurrentNumber() {
+		return vault.validateCurrentNumber(ThreadLocalRandom.current().nextInt(accounts), -1, TimeBasedOneTimePasswordUtil.DEFAULT_VALIDATION_WINDOW_MILLIS,
+				timeMillis, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+}
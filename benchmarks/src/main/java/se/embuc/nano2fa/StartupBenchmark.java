@@ -0,0 +1,67 @@
+package se.embuc.nano2fa;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to the first validation and the first secret in a fresh JVM, the latency the first user after a restart sees.
+ * Every fork measures a single call, with and without {@link WarmUp} in the setup, which is not part of the time.
+ * {@link #warmUp()} is what the warm-up itself adds to the startup.
+ *
+ * @author Emir Bucalovic
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class StartupBenchmark {
+
+	/** not generated, that would already seed the SecureRandom and load the codec */
+	private static final String SECRET = "NY4A5CPJZ46LXZCP";
+
+	@State(Scope.Thread)
+	public static class WarmedUp {
+
+		@Setup(Level.Trial)
+		public void warmUp() {
+			WarmUp.warmUp();
+		}
+	}
+
+	@Benchmark
+	public boolean firstValidation() {
+		return TimeBasedOneTimePasswordUtil.validateCurrentNumber(SECRET, 123456);
+	}
+
+	@Benchmark
+	public boolean firstValidationAfterWarmUp(WarmedUp warmedUp) {
+		return TimeBasedOneTimePasswordUtil.validateCurrentNumber(SECRET, 123456);
+	}
+
+	@Benchmark
+	public String firstSecret() {
+		return TimeBasedOneTimePasswordUtil.generateBase32Secret();
+	}
+
+	@Benchmark
+	public String firstSecretAfterWarmUp(WarmedUp warmedUp) {
+		return TimeBasedOneTimePasswordUtil.generateBase32Secret();
+	}
+
+	@Benchmark
+	public long warmUp() {
+		return WarmUp.warmUp();
+	}
+}
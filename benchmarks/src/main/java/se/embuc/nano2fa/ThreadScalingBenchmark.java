@@ -0,0 +1,66 @@
+package se.embuc.nano2fa;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Validation throughput from many threads against a shared set of accounts. {@link BenchmarkRunner} runs it with 1, 2,
+ * 4 ... up to the number of processors, or use <code>-t</code> on the command line.
+ *
+ * @author Emir Bucalovic
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThreadScalingBenchmark {
+
+	private static final int ACCOUNTS = 10_000;
+
+	@State(Scope.Benchmark)
+	public static class Accounts {
+		String[] secrets;
+		int[] numbers;
+		long timeMillis;
+		HmacCache hmacCache;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			secrets = new String[ACCOUNTS];
+			numbers = new int[ACCOUNTS];
+			timeMillis = 1_700_000_000_000L;
+			hmacCache = new HmacCache(ACCOUNTS, 0);
+			for (int i = 0; i < ACCOUNTS; i++) {
+				secrets[i] = TimeBasedOneTimePasswordUtil.generateBase32Secret();
+				numbers[i] = TimeBasedOneTimePasswordUtil.generateNumber(secrets[i], timeMillis, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS);
+			}
+		}
+	}
+
+	@Benchmark
+	public boolean validateCurrentNumber(Accounts accounts) {
+		int i = ThreadLocalRandom.current().nextInt(ACCOUNTS);
+		return TimeBasedOneTimePasswordUtil.validateCurrentNumber(accounts.secrets[i], accounts.numbers[i], 10_000, accounts.timeMillis,
+				TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+
+	@Benchmark
+	public boolean validateCurrentNumberHmacCache(Accounts accounts) {
+		int i = ThreadLocalRandom.current().nextInt(ACCOUNTS);
+		return TimeBasedOneTimePasswordUtil.validateCurrentNumber(accounts.hmacCache, accounts.secrets[i], accounts.numbers[i], 10_000,
+				accounts.timeMillis, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+}
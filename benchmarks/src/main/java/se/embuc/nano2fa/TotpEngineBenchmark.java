@@ -0,0 +1,69 @@
+package se.embuc.nano2fa;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Validation of a number which never matches in the default 10 second window with a {@link TotpEngine} per algorithm,
+ * against looking up and keying a new JCA {@link Mac} of the algorithm per call.
+ *
+ * @author Emir Bucalovic
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TotpEngineBenchmark {
+
+	@Param({ "SHA1", "SHA256", "SHA512" })
+	public TotpEngine.Algorithm algorithm;
+
+	private TotpEngine engine;
+	private String secret;
+	private long timeMillis;
+
+	@Setup
+	public void setup() {
+		engine = TotpEngine.builder().setAlgorithm(algorithm).build();
+		secret = TimeBasedOneTimePasswordUtil.generateBase32Secret(32);
+		timeMillis = 1_700_000_000_000L;
+	}
+
+	@Benchmark
+	public boolean engine() {
+		return engine.validateNumber(secret, -1, timeMillis);
+	}
+
+	@Benchmark
+	public boolean newMacPerCall() throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("Hmac" + algorithm.name());
+		mac.init(new SecretKeySpec(TimeBasedOneTimePasswordUtil.decodeBase32(secret), mac.getAlgorithm()));
+		long window = TimeBasedOneTimePasswordUtil.DEFAULT_VALIDATION_WINDOW_MILLIS;
+		boolean matched = false;
+		for (long value = (timeMillis - window) / 30_000; value <= (timeMillis + window) / 30_000; value++) {
+			byte[] data = new byte[8];
+			for (int i = 7, v = (int) value; i >= 4; i--, v >>= 8) {
+				data[i] = (byte) v;
+			}
+			matched |= TimeBasedOneTimePasswordUtil.truncate(mac.doFinal(data), 6) == -1;
+		}
+		return matched;
+	}
+}
@@ -0,0 +1,88 @@
+package se.embuc.nano2fa;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What recording a used number costs in each {@link UsedCodeRegistry}: the heap of one JVM with {@link ReplayGuard}, the
+ * memory-mapped file of {@link MappedUsedCodeRegistry} and a round trip over loopback with {@link UsedCodeClient}, alone
+ * and with eight threads sharing the connection.
+ *
+ * @author Emir Bucalovic
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UsedCodeRegistryBenchmark {
+
+	/** accounts recorded per time-step before moving on, well below the capacity */
+	private static final int ACCOUNTS_PER_STEP_SHIFT = 16;
+
+	private final AtomicLong accountIds = new AtomicLong();
+	private Path file;
+	private ReplayGuard replayGuard;
+	private MappedUsedCodeRegistry mapped;
+	private UsedCodeServer server;
+	private UsedCodeClient client;
+
+	@Setup
+	public void setup() throws IOException {
+		file = Files.createTempFile("used-codes", "");
+		replayGuard = new ReplayGuard();
+		mapped = new MappedUsedCodeRegistry(file);
+		server = new UsedCodeServer(0);
+		client = new UsedCodeClient(server.getAddress());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		client.close();
+		server.close();
+		mapped.close();
+		Files.delete(file);
+	}
+
+	@Benchmark
+	public boolean replayGuard() {
+		long accountId = accountIds.getAndIncrement();
+		return replayGuard.markUsed(accountId, accountId >>> ACCOUNTS_PER_STEP_SHIFT);
+	}
+
+	@Benchmark
+	public boolean mapped() {
+		long accountId = accountIds.getAndIncrement();
+		return mapped.markUsed(accountId, accountId >>> ACCOUNTS_PER_STEP_SHIFT);
+	}
+
+	@Benchmark
+	public boolean client() {
+		long accountId = accountIds.getAndIncrement();
+		return client.markUsed(accountId, accountId >>> ACCOUNTS_PER_STEP_SHIFT);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public boolean clientPipelined() {
+		long accountId = accountIds.getAndIncrement();
+		return client.markUsed(accountId, accountId >>> ACCOUNTS_PER_STEP_SHIFT);
+	}
+}
@@ -0,0 +1,76 @@
+package se.embuc.nano2fa;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Validation with windows of 0, 10 and 60 seconds. The number never matches so the whole window is scanned, which is
+ * the worst case and what a brute force attempt costs.
+ *
+ * @author Emir Bucalovic
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ValidateBenchmark {
+
+	@Param({ "0", "10000", "60000" })
+	public long windowMillis;
+
+	private String secret;
+	private byte[] key;
+	private int authNumber;
+	private long timeMillis;
+	private HmacCache hmacCache;
+	private HmacSha1 hmacSha1;
+	private String authCode;
+
+	@Setup
+	public void setup() {
+		secret = TimeBasedOneTimePasswordUtil.generateBase32Secret();
+		key = TimeBasedOneTimePasswordUtil.decodeBase32(secret);
+		timeMillis = 1_700_000_000_000L;
+		authNumber = -1;
+		hmacCache = new HmacCache();
+		hmacSha1 = new HmacSha1(key);
+		authCode = "000000";
+	}
+
+	@Benchmark
+	public boolean validateCurrentNumber() {
+		return TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, authNumber, windowMillis, timeMillis,
+				TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+
+	@Benchmark
+	public boolean validateCurrentNumberHmacCache() {
+		return TimeBasedOneTimePasswordUtil.validateCurrentNumber(hmacCache, secret, authNumber, windowMillis, timeMillis,
+				TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+
+	@Benchmark
+	public boolean validateCurrentNumberHmacSha1() {
+		return hmacSha1.validateCurrentNumber(authNumber, windowMillis, timeMillis, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS,
+				TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+
+	@Benchmark
+	public boolean validateCurrentNumberCharSequence() {
+		return TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, authCode, windowMillis, timeMillis,
+				TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+}
@@ -0,0 +1,56 @@
+package se.embuc.nano2fa;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Formatting of numbers with leading zeros.
+ *
+ * @author Emir Bucalovic
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ZeroPrependBenchmark {
+
+	@Param({ "0", "123", "123456" })
+	public int number;
+
+	private final char[] buffer = new char[TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH];
+
+	@Benchmark
+	public String zeroPrepend() {
+		return TimeBasedOneTimePasswordUtil.zeroPrepend(number, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+
+	/**
+	 * Baseline for the "10x faster than String.format" claim of {@link TimeBasedOneTimePasswordUtil#zeroPrepend(int, int)}.
+	 */
+	@Benchmark
+	public String stringFormat() {
+		return String.format("%06d", number);
+	}
+
+	/**
+	 * Digits written into a reused buffer as {@link TimeBasedOneTimePasswordUtil#generateCurrentNumber(String, char[], int)}
+	 * does.
+	 */
+	@Benchmark
+	public char[] codeDigits() {
+		CodeDigits.write(number, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH, buffer, 0);
+		return buffer;
+	}
+}
@@ -0,0 +1,53 @@
+package se.embuc.nano2fa;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Lock-free latency histogram with the log-linear buckets of {@link MetricsRecorder}, for latencies measured by the
+ * load test itself (from the scheduled arrival, so queueing behind a storm is included).
+ *
+ * @author Emir Bucalovic
+ */
+final class LatencyHistogram {
+
+	private final AtomicLongArray counts = new AtomicLongArray(MetricsRecorder.BUCKET_COUNT);
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	void record(long nanos) {
+		counts.incrementAndGet(MetricsRecorder.bucketOf(nanos));
+		max.accumulate(nanos);
+	}
+
+	long count() {
+		long total = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			total += counts.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * @param percentile Between 0 and 100.
+	 * @return the lowest value of the bucket holding the percentile, 0 if nothing was recorded
+	 */
+	long valueAt(double percentile) {
+		long total = count();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int bucket = 0; bucket < counts.length(); bucket++) {
+			seen += counts.get(bucket);
+			if (seen >= rank) {
+				return MetricsRecorder.lowestValueOf(bucket);
+			}
+		}
+		return max.get();
+	}
+
+	long max() {
+		return max.get();
+	}
+}
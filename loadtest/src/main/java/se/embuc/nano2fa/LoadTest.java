@@ -0,0 +1,266 @@
+package se.embuc.nano2fa;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays login storms against the library: N synthetic accounts, attempts spread over a simulated timeline with most
+ * of them right after the time-step boundaries, validated from many threads. Runs offline on one machine:
+ *
+ * <pre>
+ * java -jar target/loadtest.jar --accounts=100000 --threads=8 --pattern=boundary --speedup=10
+ * </pre>
+ *
+ * <p>
+ * Every attempt is validated at its simulated arrival time, which is passed to the library instead of the system
+ * clock, so the numbers match as they would in production. With a speedup the attempts are also started at their
+ * arrival time scaled to the wall clock, and the latency is measured from that scheduled start, so attempts which
+ * queue up behind a storm count with their waiting time. With <code>--speedup=0</code> the attempts run back to back
+ * and only throughput and service time are meaningful.
+ * </p>
+ * <p>
+ * The report has the throughput, latency percentiles from the scheduled start (storm and rest), the service time,
+ * accepted/rejected counts and HMACs per validation from a {@link MetricsRecorder}, the bytes allocated per attempt by
+ * the worker threads and the GC collections during the run.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ */
+public class LoadTest {
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	/**
+	 * The library call under load.
+	 */
+	enum Target {
+		/** {@link TimeBasedOneTimePasswordUtil#validateCurrentNumber(String, int, long)} */
+		UTIL,
+		/** the same with an {@link HmacCache} */
+		HMAC_CACHE,
+		/** {@link TimeBasedOneTimePasswordUtil#validateCurrentNumber(String, CharSequence, long)} */
+		TEXT,
+		/** {@link DriftTracker} */
+		DRIFT,
+		/** {@link AttemptLimiter} */
+		LIMITER;
+
+		Validation create() {
+			int step = TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS;
+			int digits = TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH;
+			switch (this) {
+				case HMAC_CACHE:
+					HmacCache hmacCache = new HmacCache();
+					return (schedule, secrets, i, window) -> TimeBasedOneTimePasswordUtil.validateCurrentNumber(hmacCache, secrets[schedule.accounts[i]],
+							schedule.authNumbers[i], window, schedule.timeMillis[i], step, digits);
+				case TEXT:
+					return (schedule, secrets, i, window) -> TimeBasedOneTimePasswordUtil.validateCurrentNumber(secrets[schedule.accounts[i]],
+							schedule.authCodes[i], window, schedule.timeMillis[i], step, digits);
+				case DRIFT:
+					DriftTracker driftTracker = new DriftTracker();
+					return (schedule, secrets, i, window) -> driftTracker.validateCurrentNumber(schedule.accounts[i], secrets[schedule.accounts[i]],
+							schedule.authNumbers[i], window, schedule.timeMillis[i], step, digits);
+				case LIMITER:
+					AttemptLimiter attemptLimiter = new AttemptLimiter();
+					return (schedule, secrets, i, window) -> attemptLimiter.validateCurrentNumber(schedule.accounts[i], secrets[schedule.accounts[i]],
+							schedule.authNumbers[i], window, schedule.timeMillis[i], step, digits);
+				default:
+					return (schedule, secrets, i, window) -> TimeBasedOneTimePasswordUtil.validateCurrentNumber(secrets[schedule.accounts[i]],
+							schedule.authNumbers[i], window, schedule.timeMillis[i], step, digits);
+			}
+		}
+	}
+
+	interface Validation {
+		boolean validate(LoginSchedule schedule, String[] secrets, int i, long windowMillis);
+	}
+
+	private final Map<String, String> options;
+	private final int threads;
+	private final long windowMillis;
+	private final double speedup;
+	private final Target target;
+	private final String[] secrets;
+	private final LoginSchedule schedule;
+
+	LoadTest(Map<String, String> options) {
+		this.options = options;
+		this.threads = intOption("threads", Runtime.getRuntime().availableProcessors());
+		this.windowMillis = longOption("window-millis", TimeBasedOneTimePasswordUtil.DEFAULT_VALIDATION_WINDOW_MILLIS);
+		this.speedup = doubleOption("speedup", 10);
+		this.target = Target.valueOf(option("target", "util").toUpperCase(Locale.ROOT).replace('-', '_'));
+		this.secrets = new String[intOption("accounts", 100_000)];
+		for (int i = 0; i < secrets.length; i++) {
+			secrets[i] = TimeBasedOneTimePasswordUtil.generateBase32Secret();
+		}
+		LoginSchedule.Pattern pattern = LoginSchedule.Pattern.valueOf(option("pattern", "boundary").toUpperCase(Locale.ROOT));
+		this.schedule = new LoginSchedule(secrets, pattern, intOption("steps", 4), intOption("rate", 2000), intOption("storm-seconds", 3),
+				doubleOption("storm-share", 0.8), longOption("skew-millis", 5_000), doubleOption("failure-share", 0.05), target == Target.TEXT,
+				longOption("seed", 42));
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		Map<String, String> options = new LinkedHashMap<>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (!arg.startsWith("--") || equals < 0) {
+				System.err.println("Options are --name=value, see the LoadTest class or the Load test section of the top-level README: " + arg);
+				System.exit(1);
+			}
+			options.put(arg.substring(2, equals), arg.substring(equals + 1));
+		}
+		new LoadTest(options).run();
+	}
+
+	void run() throws InterruptedException {
+		System.out.printf(Locale.ROOT, "target=%s accounts=%d threads=%d attempts=%d window=%dms speedup=%s %s%n", target.name().toLowerCase(Locale.ROOT),
+				secrets.length, threads, schedule.size(), windowMillis, speedup == 0 ? "max" : String.valueOf(speedup), options);
+
+		// warm up the JIT unpaced on a copy of the target, then measure on a fresh one
+		runOnce(target.create(), 0, Math.min(schedule.size(), intOption("warmup", 200_000)), new LatencyHistogram(), new LatencyHistogram());
+
+		MetricsRecorder recorder = new MetricsRecorder();
+		TimeBasedOneTimePasswordUtil.setMetricsListener(recorder);
+		LatencyHistogram storm = new LatencyHistogram();
+		LatencyHistogram rest = new LatencyHistogram();
+		long gcCount = gcCount();
+		long gcMillis = gcMillis();
+		long startNanos = System.nanoTime();
+		long allocated = runOnce(target.create(), speedup, schedule.size(), storm, rest);
+		long elapsedNanos = System.nanoTime() - startNanos;
+		gcCount = gcCount() - gcCount;
+		gcMillis = gcMillis() - gcMillis;
+		TimeBasedOneTimePasswordUtil.setMetricsListener(null);
+		MetricsSnapshot snapshot = recorder.snapshot();
+
+		int size = schedule.size();
+		System.out.printf(Locale.ROOT, "throughput         %d attempts in %.2f s = %.0f /s%n", size, elapsedNanos / 1e9, size * 1e9 / elapsedNanos);
+		printLatency("latency storm (us)", storm);
+		printLatency("latency rest (us) ", rest);
+		System.out.printf(Locale.ROOT, "service time (us)  p50 %.1f  p99 %.1f  p99.9 %.1f%n", snapshot.getValidationLatency(50) / 1e3,
+				snapshot.getValidationLatency(99) / 1e3, snapshot.getValidationLatency(99.9) / 1e3);
+		System.out.printf(Locale.ROOT, "validated          %d accepted, %d rejected %s%n", snapshot.getValidated(), snapshot.getRejected(), rejectReasons(snapshot));
+		System.out.printf(Locale.ROOT, "HMACs/validation   %.2f%n", snapshot.getHmacsPerValidation());
+		System.out.printf(Locale.ROOT, "allocated          %s%n", allocated < 0 ? "n/a" : String.format(Locale.ROOT, "%.0f B/attempt", (double) allocated / size));
+		System.out.printf(Locale.ROOT, "GC                 %d collections, %d ms%n", gcCount, gcMillis);
+	}
+
+	/**
+	 * Validate the first <code>count</code> attempts of the schedule over the worker threads.
+	 *
+	 * @return bytes allocated by the workers, -1 if the JVM can not tell
+	 */
+	private long runOnce(Validation validation, double speedup, int count, LatencyHistogram storm, LatencyHistogram rest) throws InterruptedException {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocationBean = threadBean instanceof com.sun.management.ThreadMXBean
+				? (com.sun.management.ThreadMXBean) threadBean
+				: null;
+		LongAdder allocated = new LongAdder();
+		CountDownLatch ready = new CountDownLatch(threads);
+		CountDownLatch start = new CountDownLatch(1);
+		long[] startNanos = new long[1];
+		List<Thread> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			int first = t;
+			Thread worker = new Thread(() -> {
+				long threadId = Thread.currentThread().getId();
+				long allocatedBefore = allocationBean == null ? 0 : allocationBean.getThreadAllocatedBytes(threadId);
+				ready.countDown();
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				long origin = startNanos[0];
+				for (int i = first; i < count; i += threads) {
+					long scheduled = System.nanoTime();
+					if (speedup > 0) {
+						scheduled = origin + (long) ((schedule.timeMillis[i] - schedule.startMillis) * 1e6 / speedup);
+						long wait;
+						while ((wait = scheduled - System.nanoTime()) > 0) {
+							LockSupport.parkNanos(wait);
+						}
+					}
+					validation.validate(schedule, secrets, i, windowMillis);
+					(schedule.inStorm(i) ? storm : rest).record(System.nanoTime() - scheduled);
+				}
+				if (allocationBean != null) {
+					allocated.add(allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore);
+				}
+			}, "loadtest-" + t);
+			workers.add(worker);
+			worker.start();
+		}
+		ready.await();
+		startNanos[0] = System.nanoTime();
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		return allocationBean == null ? -1 : allocated.sum();
+	}
+
+	private static void printLatency(String label, LatencyHistogram histogram) {
+		StringBuilder sb = new StringBuilder(label).append(' ');
+		for (double percentile : PERCENTILES) {
+			sb.append(String.format(Locale.ROOT, " p%s %.1f", percentile == (long) percentile ? String.valueOf((long) percentile) : String.valueOf(percentile),
+					histogram.valueAt(percentile) / 1e3));
+		}
+		sb.append(String.format(Locale.ROOT, "  max %.1f  (%d attempts)", histogram.max() / 1e3, histogram.count()));
+		System.out.println(sb);
+	}
+
+	private static String rejectReasons(MetricsSnapshot snapshot) {
+		StringBuilder sb = new StringBuilder("(");
+		for (MetricsListener.RejectReason reason : MetricsListener.RejectReason.values()) {
+			if (sb.length() > 1) {
+				sb.append(", ");
+			}
+			sb.append(reason.name().toLowerCase(Locale.ROOT)).append(' ').append(snapshot.getRejected(reason));
+		}
+		return sb.append(')').toString();
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, bean.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, bean.getCollectionTime());
+		}
+		return millis;
+	}
+
+	private String option(String name, String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	private int intOption(String name, int defaultValue) {
+		return Integer.parseInt(option(name, String.valueOf(defaultValue)).replace("_", ""));
+	}
+
+	private long longOption(String name, long defaultValue) {
+		return Long.parseLong(option(name, String.valueOf(defaultValue)).replace("_", ""));
+	}
+
+	private double doubleOption(String name, double defaultValue) {
+		return Double.parseDouble(option(name, String.valueOf(defaultValue)));
+	}
+}
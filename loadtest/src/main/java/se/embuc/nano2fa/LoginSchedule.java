@@ -0,0 +1,107 @@
+package se.embuc.nano2fa;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Login attempts on a simulated timeline: when each attempt arrives, which account it is for and the number the user
+ * typed. Everything is generated up front so the load test itself only validates.
+ *
+ * <p>
+ * The users' phones are off by up to <code>skewMillis</code> from the server and a share of the attempts carries a
+ * wrong number, so the validation sees matches in all parts of the window as well as misses.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ */
+final class LoginSchedule {
+
+	/**
+	 * How the attempts are spread over each time-step.
+	 */
+	enum Pattern {
+		/** evenly over the whole time-step */
+		STEADY,
+		/** <code>stormShare</code> of the attempts in the first <code>stormSeconds</code> after the time-step boundary */
+		BOUNDARY;
+
+		long offsetInStep(Random random, long stepMillis, long stormMillis, double stormShare) {
+			if (this == BOUNDARY && random.nextDouble() < stormShare) {
+				return (long) (random.nextDouble() * stormMillis);
+			}
+			long from = this == BOUNDARY ? stormMillis : 0;
+			return from + (long) (random.nextDouble() * (stepMillis - from));
+		}
+	}
+
+	final long startMillis;
+	final long stepMillis;
+	final long stormMillis;
+	/** simulated arrival times, ascending */
+	final long[] timeMillis;
+	final int[] accounts;
+	final int[] authNumbers;
+	/** the numbers as typed, only for the targets which take text */
+	final String[] authCodes;
+
+	/**
+	 * @param secrets Secrets of the accounts.
+	 * @param pattern How the attempts are spread over each time-step.
+	 * @param steps Number of time-steps the schedule covers.
+	 * @param loginsPerSecond Average number of attempts per simulated second.
+	 * @param stormSeconds Length of the storm after each boundary.
+	 * @param stormShare Share of the attempts which arrive in the storm.
+	 * @param skewMillis Largest difference between the phone clocks and the server clock.
+	 * @param failureShare Share of the attempts with a wrong number.
+	 * @param withCodes Whether the numbers are also needed as text.
+	 * @param seed Seed of the random choices, the same seed gives the same schedule.
+	 */
+	LoginSchedule(String[] secrets, Pattern pattern, int steps, int loginsPerSecond, int stormSeconds, double stormShare, long skewMillis,
+			double failureShare, boolean withCodes, long seed) {
+		Random random = new Random(seed);
+		int timeStepSeconds = TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS;
+		this.stepMillis = timeStepSeconds * 1000L;
+		this.stormMillis = Math.min(stepMillis, stormSeconds * 1000L);
+		// start at a boundary so every step of the schedule has its storm
+		this.startMillis = System.currentTimeMillis() / stepMillis * stepMillis;
+		long count = (long) loginsPerSecond * timeStepSeconds * steps;
+		if (count > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Too many logins: " + count);
+		}
+		int size = (int) count;
+		timeMillis = new long[size];
+		for (int i = 0; i < size; i++) {
+			timeMillis[i] = startMillis + random.nextInt(steps) * stepMillis + pattern.offsetInStep(random, stepMillis, stormMillis, stormShare);
+		}
+		Arrays.sort(timeMillis);
+		accounts = new int[size];
+		authNumbers = new int[size];
+		authCodes = withCodes ? new String[size] : null;
+		int numDigits = TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH;
+		int modulus = (int) Math.pow(10, numDigits);
+		for (int i = 0; i < size; i++) {
+			int account = random.nextInt(secrets.length);
+			long phoneMillis = timeMillis[i] + (long) ((random.nextDouble() * 2 - 1) * skewMillis);
+			int number = TimeBasedOneTimePasswordUtil.generateNumber(secrets[account], phoneMillis, timeStepSeconds, numDigits);
+			if (random.nextDouble() < failureShare) {
+				number = (number + 1 + random.nextInt(modulus - 1)) % modulus;
+			}
+			accounts[i] = account;
+			authNumbers[i] = number;
+			if (withCodes) {
+				authCodes[i] = TimeBasedOneTimePasswordUtil.zeroPrepend(number, numDigits);
+			}
+		}
+	}
+
+	int size() {
+		return timeMillis.length;
+	}
+
+	/**
+	 * @return true if the attempt arrives in the storm after a time-step boundary
+	 */
+	boolean inStorm(int i) {
+		return (timeMillis[i] - startMillis) % stepMillis < stormMillis;
+	}
+}
@@ -0,0 +1,185 @@
+package se.embuc.nano2fa;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking facade of the validation and generation for event-loop based callers, every call returns a
+ * {@link CompletableFuture} right away and the work runs on an executor:
+ *
+ * <pre>
+ * AsyncValidator asyncValidator = new AsyncValidator();
+ * asyncValidator.validateCurrentNumber(base32Secret, authNumber).thenAccept(valid -&gt; ...);
+ * </pre>
+ *
+ * <p>
+ * At most <code>maxPending</code> tasks are queued or running. Beyond that calls do not block, the returned future
+ * fails with a {@link RejectedExecutionException} so the caller can shed load. Without an executor of its own the
+ * validator uses one which it shuts down on {@link #close()}: a fixed pool of one daemon platform thread per processor,
+ * on every Java version. The tasks are short and bound by the CPU, and the threads are reused, so the per-thread key
+ * buffers, HMAC scratch state and {@link java.security.SecureRandom} are set up once per thread and not once per task as
+ * they would be on a virtual thread per task.
+ * </p>
+ * <p>
+ * Any other work, for example validation with a {@link HmacCache}, {@link ReplayGuard} or {@link SecretVault}, can use
+ * the same bound with {@link #submit(Supplier)}.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public class AsyncValidator implements AutoCloseable {
+
+	/** default maximum number of queued and running tasks */
+	public static final int DEFAULT_MAX_PENDING = 10_000;
+
+	private final Executor executor;
+	/** the executor if it was created here and has to be shut down */
+	private final ExecutorService ownExecutor;
+	private final int maxPending;
+	private final Semaphore permits;
+
+	/**
+	 * Create a validator with the default executor and {@link #DEFAULT_MAX_PENDING}.
+	 */
+	public AsyncValidator() {
+		this(DEFAULT_MAX_PENDING);
+	}
+
+	/**
+	 * Create a validator with the default executor.
+	 *
+	 * @param maxPending Maximum number of queued and running tasks.
+	 */
+	public AsyncValidator(int maxPending) {
+		this(newDefaultExecutor(), maxPending, true);
+	}
+
+	/**
+	 * Create a validator which runs the tasks on the given executor. The executor is not shut down by {@link #close()}.
+	 *
+	 * @param executor Executor of the tasks.
+	 * @param maxPending Maximum number of queued and running tasks.
+	 */
+	public AsyncValidator(Executor executor, int maxPending) {
+		this(executor, maxPending, false);
+	}
+
+	private AsyncValidator(Executor executor, int maxPending, boolean ownExecutor) {
+		if (maxPending <= 0) {
+			throw new IllegalArgumentException("maxPending must be positive: " + maxPending);
+		}
+		this.executor = executor;
+		this.ownExecutor = ownExecutor ? (ExecutorService) executor : null;
+		this.maxPending = maxPending;
+		this.permits = new Semaphore(maxPending);
+	}
+
+	/**
+	 * Same as {@link TimeBasedOneTimePasswordUtil#validateCurrentNumber(String, int)}.
+	 *
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @param authNumber Time based number provided by the user from their authenticator application.
+	 * @return future which completes with true if the authNumber matched within the default window
+	 */
+	public CompletableFuture<Boolean> validateCurrentNumber(String base32Secret, int authNumber) {
+		return submit(() -> TimeBasedOneTimePasswordUtil.validateCurrentNumber(base32Secret, authNumber));
+	}
+
+	/**
+	 * Same as {@link TimeBasedOneTimePasswordUtil#validateCurrentNumber(String, int, long)}. The time is taken when the
+	 * task runs.
+	 *
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @param authNumber Time based number provided by the user from their authenticator application.
+	 * @param windowMillis Number of milliseconds that they are allowed to be off and still match. Set to 0 for no window.
+	 * @return future which completes with true if the authNumber matched within the window
+	 */
+	public CompletableFuture<Boolean> validateCurrentNumber(String base32Secret, int authNumber, long windowMillis) {
+		return submit(() -> TimeBasedOneTimePasswordUtil.validateCurrentNumber(base32Secret, authNumber, windowMillis));
+	}
+
+	/**
+	 * Same as {@link TimeBasedOneTimePasswordUtil#generateCurrentNumberString(String)}.
+	 *
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @return future which completes with the number as a string with possible leading zeros
+	 */
+	public CompletableFuture<String> generateCurrentNumberString(String base32Secret) {
+		return submit(() -> TimeBasedOneTimePasswordUtil.generateCurrentNumberString(base32Secret));
+	}
+
+	/**
+	 * Run the task on the executor within the bound of pending tasks.
+	 *
+	 * @param task Work to do.
+	 * @return future which completes with the result of the task, or exceptionally with what the task threw or a
+	 * {@link RejectedExecutionException} if too many tasks are pending
+	 */
+	public <T> CompletableFuture<T> submit(Supplier<T> task) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		if (!permits.tryAcquire()) {
+			future.completeExceptionally(new RejectedExecutionException("Too many pending tasks"));
+			return future;
+		}
+		try {
+			executor.execute(() -> run(task, future));
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * @return number of tasks which are queued or running
+	 */
+	public int getPending() {
+		return maxPending - permits.availablePermits();
+	}
+
+	/**
+	 * Shut down the executor if it was created by this validator, queued tasks still run. A given executor is left
+	 * alone.
+	 */
+	@Override
+	public void close() {
+		if (ownExecutor != null) {
+			ownExecutor.shutdown();
+		}
+	}
+
+	private <T> void run(Supplier<T> task, CompletableFuture<T> future) {
+		T result;
+		try {
+			result = task.get();
+		} catch (Throwable t) {
+			// the permit is free before dependent stages run
+			permits.release();
+			future.completeExceptionally(t);
+			return;
+		}
+		permits.release();
+		future.complete(result);
+	}
+
+	private static ExecutorService newDefaultExecutor() {
+		AtomicInteger threadCount = new AtomicInteger();
+		ThreadFactory threadFactory = runnable -> {
+			Thread thread = new Thread(runnable, "nano2fa-async-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), threadFactory);
+	}
+}
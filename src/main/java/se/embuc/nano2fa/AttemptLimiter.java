@@ -0,0 +1,380 @@
+package se.embuc.nano2fa;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Throttles brute force attempts per account in front of the validation. Once an account has collected too many failed
+ * attempts it is locked out for a while, and attempts are rejected before any HMAC is computed:
+ *
+ * <pre>
+ * AttemptLimiter attemptLimiter = new AttemptLimiter();
+ * boolean valid = attemptLimiter.validateCurrentNumber(accountId, base32Secret, authNumber);
+ * </pre>
+ *
+ * <p>
+ * Every failed attempt adds one to the counter of the account and the counter goes down by one every
+ * <code>decayMillis</code>, which works like a sliding window of <code>maxAttempts</code> failures. When the counter
+ * reaches <code>maxAttempts</code> the account is locked for <code>lockoutMillis</code>. A successful validation resets
+ * the counter.
+ * </p>
+ * <p>
+ * Counters live in an open addressing table of primitive account ids and packed states (time, lock flag and count in
+ * one long) which is updated with compare-and-set only, so there is no lock and different accounts do not contend.
+ * Only accounts with recent failures occupy slots, slots of accounts whose counter decayed to zero are reused. A
+ * rejected attempt costs a hash, a few array reads and a clock read. When no slot is left within reach of an account,
+ * because the slots around it belong to accounts which are locked or still have failures to decay, its failures cannot
+ * be counted and the account is treated as locked until one of those slots frees up, see {@link #getUntracked()}. The
+ * limiter fails closed, so size the capacity for the accounts which fail within the decay time.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public class AttemptLimiter {
+
+	/** default number of accounts with failed attempts which can be tracked */
+	public static final int DEFAULT_CAPACITY = 1 << 20;
+	/** default number of failures which lock an account */
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+	/** default time after which one failure is forgotten (one minute) */
+	public static final long DEFAULT_DECAY_MILLIS = 60_000;
+	/** default time an account stays locked (five minutes) */
+	public static final long DEFAULT_LOCKOUT_MILLIS = 5 * 60_000;
+
+	/** account id which marks a free slot and cannot be used */
+	private static final long EMPTY = Long.MIN_VALUE;
+	/** state of a slot which is being handed over to another account */
+	private static final long RESERVED = -1;
+	/** slot lookup result: the account has no slot and there is none free within reach */
+	private static final int FULL = -2;
+	/** slot lookup result: a slot was taken by another thread meanwhile, look again */
+	private static final int RETRY = -1;
+	private static final int MAX_PROBES = 16;
+	private static final int COUNT_BITS = 22;
+	private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+	private static final long LOCKED = 1L << COUNT_BITS;
+	private static final int TIME_SHIFT = COUNT_BITS + 1;
+
+	private final AtomicLongArray accountIds;
+	/** time since baseMillis, lock flag and failure count of the account in the same slot */
+	private final AtomicLongArray states;
+	private final int mask;
+	private final int maxAttempts;
+	private final long decayMillis;
+	private final long lockoutMillis;
+	private final LongSupplier clock;
+	private final long baseMillis;
+	private final LongAdder throttled = new LongAdder();
+	private final LongAdder untracked = new LongAdder();
+
+	/**
+	 * Create a limiter with {@link #DEFAULT_CAPACITY}, {@link #DEFAULT_MAX_ATTEMPTS}, {@link #DEFAULT_DECAY_MILLIS} and
+	 * {@link #DEFAULT_LOCKOUT_MILLIS}.
+	 */
+	public AttemptLimiter() {
+		this(DEFAULT_CAPACITY, DEFAULT_MAX_ATTEMPTS, DEFAULT_DECAY_MILLIS, DEFAULT_LOCKOUT_MILLIS);
+	}
+
+	/**
+	 * @param capacity Number of accounts with failed attempts which can be tracked, rounded up to a power of two.
+	 * @param maxAttempts Number of failures within the decay which lock the account.
+	 * @param decayMillis Time after which one failure is forgotten.
+	 * @param lockoutMillis Time the account stays locked.
+	 */
+	public AttemptLimiter(int capacity, int maxAttempts, long decayMillis, long lockoutMillis) {
+		this(capacity, maxAttempts, decayMillis, lockoutMillis, System::currentTimeMillis);
+	}
+
+	AttemptLimiter(int capacity, int maxAttempts, long decayMillis, long lockoutMillis, LongSupplier clock) {
+		if (capacity <= 0 || capacity > 1 << 29) {
+			throw new IllegalArgumentException("capacity must be between 1 and 2^29: " + capacity);
+		}
+		if (maxAttempts <= 0 || maxAttempts > COUNT_MASK) {
+			throw new IllegalArgumentException("Invalid maxAttempts: " + maxAttempts);
+		}
+		if (decayMillis <= 0 || lockoutMillis < 0) {
+			throw new IllegalArgumentException("Invalid decayMillis " + decayMillis + " or lockoutMillis " + lockoutMillis);
+		}
+		// keep the load factor at or below 0.5 so probe sequences stay short
+		int size = Integer.highestOneBit(capacity * 2 - 1) << 1;
+		this.accountIds = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			accountIds.set(i, EMPTY);
+		}
+		this.states = new AtomicLongArray(size);
+		this.mask = size - 1;
+		this.maxAttempts = maxAttempts;
+		this.decayMillis = decayMillis;
+		this.lockoutMillis = lockoutMillis;
+		this.clock = clock;
+		// times are stored relative to the creation in 40 bits, which lasts for decades
+		this.baseMillis = clock.getAsLong();
+	}
+
+	/**
+	 * Validate with the default 10 second window unless the account is locked out, and count the result.
+	 *
+	 * @param accountId Id of the account the secret belongs to.
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @param authNumber Time based number provided by the user from their authenticator application.
+	 * @return True if the account is not locked and the authNumber matched within the window.
+	 */
+	public boolean validateCurrentNumber(long accountId, String base32Secret, int authNumber) {
+		return validateCurrentNumber(accountId, base32Secret, authNumber, TimeBasedOneTimePasswordUtil.DEFAULT_VALIDATION_WINDOW_MILLIS);
+	}
+
+	/**
+	 * Same as {@link #validateCurrentNumber(long, String, int)} with a window in milliseconds.
+	 *
+	 * @param accountId Id of the account the secret belongs to.
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @param authNumber Time based number provided by the user from their authenticator application.
+	 * @param windowMillis Number of milliseconds that they are allowed to be off and still match. Set to 0 for no window.
+	 * @return True if the account is not locked and the authNumber matched within the window.
+	 */
+	public boolean validateCurrentNumber(long accountId, String base32Secret, int authNumber, long windowMillis) {
+		return validateCurrentNumber(accountId, base32Secret, authNumber, windowMillis, System.currentTimeMillis(),
+				TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+
+	/**
+	 * Similar to {@link #validateCurrentNumber(long, String, int, long)} except exposes other parameters. Mostly for
+	 * testing.
+	 */
+	protected boolean validateCurrentNumber(long accountId, String base32Secret, int authNumber, long windowMillis, long timeMillis,
+			int timeStepSeconds, int numDigits) {
+		MetricsListener listener = TimeBasedOneTimePasswordUtil.metricsListener();
+		AuditSink sink = TimeBasedOneTimePasswordUtil.auditSink();
+		long startNanos = listener == MetricsListener.NOOP ? 0 : System.nanoTime();
+		if (isBlocked(accountId)) {
+			if (listener != MetricsListener.NOOP) {
+				listener.rejected(MetricsListener.RejectReason.THROTTLED, 0, System.nanoTime() - startNanos);
+			}
+			if (sink != AuditSink.NOOP) {
+				sink.rejected(accountId, timeMillis, MetricsListener.RejectReason.THROTTLED);
+			}
+			return false;
+		}
+		long value;
+		try {
+			value = TimeBasedOneTimePasswordUtil.validatedValue(null, base32Secret, authNumber, windowMillis, timeMillis, timeStepSeconds, numDigits);
+		} catch (IllegalArgumentException e) {
+			if (sink != AuditSink.NOOP) {
+				sink.rejected(accountId, timeMillis, MetricsListener.RejectReason.INVALID_SECRET);
+			}
+			throw e;
+		}
+		boolean valid = value != TimeBasedOneTimePasswordUtil.NO_MATCH;
+		if (sink != AuditSink.NOOP) {
+			TimeBasedOneTimePasswordUtil.reportAudit(sink, accountId, value, valid, timeMillis, timeStepSeconds);
+		}
+		if (valid) {
+			recordSuccess(accountId);
+		} else {
+			recordFailure(accountId);
+		}
+		return valid;
+	}
+
+	/**
+	 * Return whether attempts of the account are rejected right now. For callers which validate on their own, together
+	 * with {@link #recordFailure(long)} and {@link #recordSuccess(long)}. An account without a slot is blocked as long as
+	 * there is no slot within its reach to count its failures.
+	 *
+	 * @param accountId Id of the account, any value but {@link Long#MIN_VALUE}.
+	 * @return true if the account is locked out
+	 */
+	public boolean isBlocked(long accountId) {
+		long now = now();
+		int slot = find(accountId, now);
+		if (slot == FULL) {
+			untracked.increment();
+			throttled.increment();
+			return true;
+		}
+		if (slot < 0) {
+			return false;
+		}
+		long state = states.get(slot);
+		if (state != RESERVED && (state & LOCKED) != 0 && now < time(state)) {
+			throttled.increment();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Count a failed attempt of the account.
+	 *
+	 * @param accountId Id of the account, any value but {@link Long#MIN_VALUE}.
+	 * @return true if the account is locked out now, which includes accounts whose failure could not be counted
+	 */
+	public boolean recordFailure(long accountId) {
+		checkAccountId(accountId);
+		long now = now();
+		while (true) {
+			int slot = findOrClaim(accountId, now);
+			if (slot == FULL) {
+				untracked.increment();
+				return true;
+			}
+			if (slot == RETRY) {
+				continue;
+			}
+			long state = states.get(slot);
+			if (state == RESERVED || accountIds.get(slot) != accountId) {
+				// the slot was handed over meanwhile, look again
+				continue;
+			}
+			long next;
+			if ((state & LOCKED) != 0 && now < time(state)) {
+				return true;
+			} else if ((state & LOCKED) != 0) {
+				// the lockout is over, this is the first failure after it
+				next = state(now, false, 1);
+			} else {
+				long elapsed = Math.max(0, now - time(state));
+				long decayed = elapsed / decayMillis;
+				long count = Math.max(0, (state & COUNT_MASK) - decayed) + 1;
+				if (count >= maxAttempts) {
+					next = state(now + lockoutMillis, true, 0);
+				} else {
+					// the remainder of the decay interval keeps counting down
+					next = state(decayed >= (state & COUNT_MASK) ? now : time(state) + decayed * decayMillis, false, count);
+				}
+			}
+			if (states.compareAndSet(slot, state, next)) {
+				return (next & LOCKED) != 0;
+			}
+		}
+	}
+
+	/**
+	 * Reset the failures of the account after a successful attempt. A lockout stays in place.
+	 *
+	 * @param accountId Id of the account, any value but {@link Long#MIN_VALUE}.
+	 */
+	public void recordSuccess(long accountId) {
+		int slot = find(accountId, Long.MAX_VALUE);
+		if (slot < 0) {
+			return;
+		}
+		long state = states.get(slot);
+		if (state != RESERVED && (state & LOCKED) == 0 && (state & COUNT_MASK) != 0) {
+			states.compareAndSet(slot, state, state(now(), false, 0));
+		}
+	}
+
+	/**
+	 * @return number of attempts rejected because the account was locked out
+	 */
+	public long getThrottled() {
+		return throttled.sum();
+	}
+
+	/**
+	 * @return number of failures and attempts of accounts without a slot which were treated as locked because the table
+	 * was full around the account
+	 */
+	public long getUntracked() {
+		return untracked.sum();
+	}
+
+	/**
+	 * Return the slot of the account, -1 if it has none, or {@link #FULL} if it has none and no slot within reach is free
+	 * or stale at <code>now</code>. Slots are never emptied again, so the account cannot be behind an empty slot.
+	 */
+	private int find(long accountId, long now) {
+		int index = (int) ReplayGuard.mix(accountId) & mask;
+		boolean room = false;
+		for (int probe = 0; probe < MAX_PROBES; probe++) {
+			long current = accountIds.get(index);
+			if (current == accountId) {
+				return index;
+			}
+			if (current == EMPTY) {
+				return -1;
+			}
+			room = room || isStale(states.get(index), now);
+			index = (index + 1) & mask;
+		}
+		return room ? -1 : FULL;
+	}
+
+	/**
+	 * Return the slot of the account, taking the first free slot or the first slot whose account has nothing left to
+	 * count. Returns {@link #FULL} if there is none within reach and {@link #RETRY} if another thread took it first.
+	 */
+	private int findOrClaim(long accountId, long now) {
+		int index = (int) ReplayGuard.mix(accountId) & mask;
+		int candidate = -1;
+		long candidateState = 0;
+		for (int probe = 0; probe < MAX_PROBES; probe++) {
+			long current = accountIds.get(index);
+			if (current == accountId) {
+				return index;
+			}
+			if (current == EMPTY) {
+				if (candidate >= 0) {
+					break;
+				}
+				if (accountIds.compareAndSet(index, EMPTY, accountId) || accountIds.get(index) == accountId) {
+					return index;
+				}
+				// somebody else took it, the account may still come later
+			} else if (candidate < 0) {
+				long state = states.get(index);
+				if (isStale(state, now)) {
+					candidate = index;
+					candidateState = state;
+				}
+			}
+			index = (index + 1) & mask;
+		}
+		if (candidate < 0) {
+			return FULL;
+		}
+		if (states.compareAndSet(candidate, candidateState, RESERVED)) {
+			accountIds.set(candidate, accountId);
+			states.set(candidate, state(now, false, 0));
+			return candidate;
+		}
+		return RETRY;
+	}
+
+	/**
+	 * Whether the slot has nothing left to count: no lockout and the failures decayed.
+	 */
+	private boolean isStale(long state, long now) {
+		if (state == RESERVED) {
+			return false;
+		}
+		if ((state & LOCKED) != 0) {
+			return now >= time(state);
+		}
+		return Math.max(0, now - time(state)) / decayMillis >= (state & COUNT_MASK);
+	}
+
+	private long now() {
+		// a clock which goes back before the creation counts as the creation
+		return Math.max(0, clock.getAsLong() - baseMillis);
+	}
+
+	private static long state(long time, boolean locked, long count) {
+		return time << TIME_SHIFT | (locked ? LOCKED : 0) | count;
+	}
+
+	private static long time(long state) {
+		return state >>> TIME_SHIFT;
+	}
+
+	private static void checkAccountId(long accountId) {
+		if (accountId == EMPTY) {
+			throw new IllegalArgumentException("Account id " + accountId + " is reserved");
+		}
+	}
+}
@@ -0,0 +1,438 @@
+package se.embuc.nano2fa;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Append-only audit log of validation outcomes, written in the background so the validating thread only stores the
+ * event in memory. It is the {@link AuditSink} of the validations which know their account:
+ *
+ * <pre>
+ * try (AuditLog auditLog = new AuditLog(Paths.get("/var/log/app/2fa-audit.log"))) {
+ * 	TimeBasedOneTimePasswordUtil.setAuditSink(auditLog);
+ * 	boolean valid = replayGuard.validateCurrentNumber(accountId, base32Secret, authNumber);
+ * 	...
+ * }
+ * </pre>
+ *
+ * <p>
+ * Events go into a ring buffer of parallel arrays which is allocated once. A validating thread claims a slot with one
+ * compare-and-set, fills it and publishes it with an ordered write, without locks or allocation. A single writer thread
+ * drains the published events in batches into a direct buffer and appends them to the file through a
+ * {@link FileChannel}, and sleeps while there is nothing to drain until a validating thread wakes it. The file is synced
+ * to disk at most every <code>fsyncIntervalMillis</code> and when the log is closed, and it is rotated once it has grown
+ * to <code>maxFileBytes</code>: it is renamed to <code>&lt;name&gt;.&lt;epoch millis&gt;</code> and a new file is
+ * started.
+ * </p>
+ * <p>
+ * Every event is one line of <code>timeMillis,accountId,result,offset</code>, where result is <code>ACCEPTED</code> or
+ * the {@link MetricsListener.RejectReason} and offset is the time-step the number matched relative to the current one,
+ * empty for rejections.
+ * </p>
+ * <p>
+ * When the ring is full the {@link OverflowPolicy} decides: {@link OverflowPolicy#DROP} counts the event as dropped and
+ * returns at once, {@link OverflowPolicy#BLOCK} waits for the writer to make room. Events recorded while the log is
+ * being closed may be lost.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public class AuditLog implements AuditSink, Closeable {
+
+	/** default number of events the ring buffer holds */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+	/** default time between syncs of the file to disk */
+	public static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 1000;
+	/** default size after which the file is rotated (64 MB) */
+	public static final long DEFAULT_MAX_FILE_BYTES = 64L << 20;
+
+	/**
+	 * What happens to an event when the ring buffer is full.
+	 */
+	public enum OverflowPolicy {
+		/** the event is counted as dropped and the validating thread goes on */
+		DROP,
+		/** the validating thread waits until the writer has made room */
+		BLOCK
+	}
+
+	private static final int BATCH_BYTES = 64 * 1024;
+	/** longest line: two longs, the longest result, an int offset and the separators */
+	private static final int MAX_LINE_BYTES;
+	/** longest sleep of the idle writer, for a wake-up lost to a racing event */
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	private static final int ACCEPTED = 0;
+	private static final byte[][] RESULTS;
+
+	static {
+		MetricsListener.RejectReason[] reasons = MetricsListener.RejectReason.values();
+		RESULTS = new byte[reasons.length + 1][];
+		RESULTS[ACCEPTED] = "ACCEPTED".getBytes(StandardCharsets.US_ASCII);
+		int longestResult = RESULTS[ACCEPTED].length;
+		for (MetricsListener.RejectReason reason : reasons) {
+			RESULTS[reason.ordinal() + 1] = reason.name().getBytes(StandardCharsets.US_ASCII);
+			longestResult = Math.max(longestResult, RESULTS[reason.ordinal() + 1].length);
+		}
+		MAX_LINE_BYTES = 20 + 1 + 20 + 1 + longestResult + 1 + 11 + 1;
+	}
+
+	private final Path file;
+	private final OverflowPolicy overflowPolicy;
+	private final long fsyncIntervalNanos;
+	private final long maxFileBytes;
+	private final int mask;
+	private final long[] accountIds;
+	private final long[] timesMillis;
+	/** matched offset in the upper 32 bits, result in the lower */
+	private final long[] results;
+	/** sequence + 1 of the event in each slot once it is published */
+	private final AtomicLongArray published;
+	/** next sequence to claim */
+	private final AtomicLong tail = new AtomicLong();
+	/** next sequence the writer drains, slots before it can be reused */
+	private final AtomicLong head = new AtomicLong();
+	private final LongAdder dropped = new LongAdder();
+	private final AtomicLong written = new AtomicLong();
+	private final Thread writer;
+	private volatile boolean closed;
+	/** set by the writer thread when it ends */
+	private volatile boolean stopped;
+	/** set by the writer thread while it waits for events */
+	private volatile boolean idle;
+	private volatile IOException failure;
+
+	// state of the writer thread
+	private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BYTES);
+	private final byte[] digits = new byte[20];
+	private FileChannel channel;
+	private long fileBytes;
+	private long lastSyncNanos;
+	private boolean unsynced;
+
+	/**
+	 * Create a log with {@link #DEFAULT_CAPACITY}, {@link OverflowPolicy#DROP}, {@link #DEFAULT_FSYNC_INTERVAL_MILLIS} and
+	 * {@link #DEFAULT_MAX_FILE_BYTES}.
+	 *
+	 * @param file File the events are appended to.
+	 * @throws IOException if the file cannot be opened
+	 */
+	public AuditLog(Path file) throws IOException {
+		this(file, DEFAULT_CAPACITY, OverflowPolicy.DROP, DEFAULT_FSYNC_INTERVAL_MILLIS, DEFAULT_MAX_FILE_BYTES);
+	}
+
+	/**
+	 * @param file File the events are appended to.
+	 * @param capacity Number of events the ring buffer holds, rounded up to a power of two.
+	 * @param overflowPolicy What happens to an event when the ring buffer is full.
+	 * @param fsyncIntervalMillis Longest time written events may stay unsynced, 0 to sync after every batch.
+	 * @param maxFileBytes Size after which the file is rotated.
+	 * @throws IOException if the file cannot be opened
+	 */
+	public AuditLog(Path file, int capacity, OverflowPolicy overflowPolicy, long fsyncIntervalMillis, long maxFileBytes) throws IOException {
+		if (capacity <= 0 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("capacity must be between 1 and 2^30: " + capacity);
+		}
+		if (overflowPolicy == null) {
+			throw new IllegalArgumentException("No overflow policy");
+		}
+		if (fsyncIntervalMillis < 0) {
+			throw new IllegalArgumentException("fsyncIntervalMillis must not be negative: " + fsyncIntervalMillis);
+		}
+		if (maxFileBytes < MAX_LINE_BYTES) {
+			throw new IllegalArgumentException("maxFileBytes must be at least " + MAX_LINE_BYTES + ": " + maxFileBytes);
+		}
+		this.file = file;
+		this.overflowPolicy = overflowPolicy;
+		this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+		this.maxFileBytes = maxFileBytes;
+		int size = Integer.highestOneBit(capacity * 2 - 1);
+		this.mask = size - 1;
+		this.accountIds = new long[size];
+		this.timesMillis = new long[size];
+		this.results = new long[size];
+		this.published = new AtomicLongArray(size);
+		openFile();
+		this.writer = new Thread(this::drain, "nano2fa-audit-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Record an accepted number, called by the validations while this log is the registered sink.
+	 */
+	@Override
+	public void accepted(long accountId, long timeMillis, int matchedOffset) {
+		recordAccepted(accountId, timeMillis, matchedOffset);
+	}
+
+	/**
+	 * Record a rejected number, called by the validations while this log is the registered sink.
+	 */
+	@Override
+	public void rejected(long accountId, long timeMillis, MetricsListener.RejectReason reason) {
+		recordRejected(accountId, timeMillis, reason);
+	}
+
+	/**
+	 * Record an accepted number, for callers which validate on their own.
+	 *
+	 * @param accountId Id of the account.
+	 * @param timeMillis Time of the validation in milliseconds.
+	 * @param matchedOffset Time-step the number matched relative to the current one, -1 is the previous time-step.
+	 * @return True if the event was recorded, false if it was dropped.
+	 */
+	public boolean recordAccepted(long accountId, long timeMillis, int matchedOffset) {
+		return record(accountId, timeMillis, (long) matchedOffset << 32 | ACCEPTED);
+	}
+
+	/**
+	 * Record a rejected number, for callers which validate on their own.
+	 *
+	 * @param accountId Id of the account.
+	 * @param timeMillis Time of the validation in milliseconds.
+	 * @param reason Why the number was rejected.
+	 * @return True if the event was recorded, false if it was dropped.
+	 */
+	public boolean recordRejected(long accountId, long timeMillis, MetricsListener.RejectReason reason) {
+		return record(accountId, timeMillis, reason.ordinal() + 1);
+	}
+
+	/**
+	 * @return number of events appended to the file so far
+	 */
+	public long getWritten() {
+		return written.get();
+	}
+
+	/**
+	 * @return number of events which did not fit into the ring buffer or came after the writer failed
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Write the remaining events, sync the file and stop the writer.
+	 *
+	 * @throws IOException if writing the events failed at any time
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		LockSupport.unpark(writer);
+		boolean interrupted = false;
+		while (writer.isAlive()) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private boolean record(long accountId, long timeMillis, long result) {
+		if (closed || failure != null) {
+			dropped.increment();
+			return false;
+		}
+		long sequence;
+		if (overflowPolicy == OverflowPolicy.DROP) {
+			do {
+				sequence = tail.get();
+				if (sequence - head.get() > mask) {
+					dropped.increment();
+					return false;
+				}
+			} while (!tail.compareAndSet(sequence, sequence + 1));
+		} else {
+			sequence = tail.getAndIncrement();
+			while (sequence - head.get() > mask) {
+				if (stopped) {
+					// the writer is gone, the slot would never be drained
+					dropped.increment();
+					return false;
+				}
+				LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+			}
+		}
+		int slot = (int) sequence & mask;
+		accountIds[slot] = accountId;
+		timesMillis[slot] = timeMillis;
+		results[slot] = result;
+		// the ordered write makes the fields visible to the writer before the slot is
+		published.lazySet(slot, sequence + 1);
+		if (idle) {
+			LockSupport.unpark(writer);
+		}
+		return true;
+	}
+
+	/**
+	 * Loop of the writer thread.
+	 */
+	private void drain() {
+		try {
+			lastSyncNanos = System.nanoTime();
+			while (true) {
+				// read before draining so everything recorded before close is written
+				boolean closing = closed;
+				if (writeBatch() == 0) {
+					if (closing) {
+						break;
+					}
+					if (unsynced && System.nanoTime() - lastSyncNanos >= fsyncIntervalNanos) {
+						sync();
+					}
+					awaitEvents();
+				}
+			}
+			sync();
+		} catch (IOException e) {
+			failure = e;
+		} catch (RuntimeException e) {
+			// a bug in the writer, fail like an I/O error instead of leaving the producers filling a dead ring
+			failure = new IOException("Audit log writer failed", e);
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+			stopped = true;
+		}
+	}
+
+	/**
+	 * Sleep until a validating thread publishes an event, the log is closed or the unsynced events are due.
+	 */
+	private void awaitEvents() {
+		long parkNanos = IDLE_PARK_NANOS;
+		if (unsynced) {
+			parkNanos = Math.min(parkNanos, lastSyncNanos + fsyncIntervalNanos - System.nanoTime());
+		}
+		idle = true;
+		// an event published before the flag was seen does not wake the writer, look once more
+		long sequence = head.get();
+		if (!closed && published.get((int) sequence & mask) != sequence + 1) {
+			LockSupport.parkNanos(this, parkNanos);
+		}
+		idle = false;
+	}
+
+	/**
+	 * Append the published events which fit into one batch.
+	 *
+	 * @return number of events written
+	 */
+	private int writeBatch() throws IOException {
+		long sequence = head.get();
+		int count = 0;
+		batch.clear();
+		while (batch.remaining() >= MAX_LINE_BYTES) {
+			int slot = (int) (sequence + count) & mask;
+			if (published.get(slot) != sequence + count + 1) {
+				break;
+			}
+			putLine(accountIds[slot], timesMillis[slot], results[slot]);
+			count++;
+		}
+		if (count == 0) {
+			return 0;
+		}
+		// the slots are read, the producers may reuse them
+		head.lazySet(sequence + count);
+		batch.flip();
+		fileBytes += batch.remaining();
+		while (batch.hasRemaining()) {
+			channel.write(batch);
+		}
+		written.addAndGet(count);
+		unsynced = true;
+		if (fsyncIntervalNanos == 0 || System.nanoTime() - lastSyncNanos >= fsyncIntervalNanos) {
+			sync();
+		}
+		if (fileBytes >= maxFileBytes) {
+			rotate();
+		}
+		return count;
+	}
+
+	private void putLine(long accountId, long timeMillis, long result) {
+		putLong(timeMillis);
+		batch.put((byte) ',');
+		putLong(accountId);
+		batch.put((byte) ',');
+		int code = (int) result;
+		batch.put(RESULTS[code]);
+		batch.put((byte) ',');
+		if (code == ACCEPTED) {
+			putLong(result >> 32);
+		}
+		batch.put((byte) '\n');
+	}
+
+	private void putLong(long value) {
+		// negative values are worked on as they are, positive ones are negated, so Long.MIN_VALUE needs no special case
+		if (value < 0) {
+			batch.put((byte) '-');
+		} else {
+			value = -value;
+		}
+		int count = 0;
+		do {
+			digits[count++] = (byte) ('0' - value % 10);
+			value /= 10;
+		} while (value != 0);
+		while (count > 0) {
+			batch.put(digits[--count]);
+		}
+	}
+
+	private void sync() throws IOException {
+		if (unsynced) {
+			channel.force(false);
+			unsynced = false;
+		}
+		lastSyncNanos = System.nanoTime();
+	}
+
+	private void rotate() throws IOException {
+		sync();
+		channel.close();
+		String name = file.getFileName().toString();
+		for (long stamp = System.currentTimeMillis();; stamp++) {
+			Path rotated = file.resolveSibling(name + "." + stamp);
+			if (!Files.exists(rotated)) {
+				Files.move(file, rotated);
+				break;
+			}
+		}
+		openFile();
+	}
+
+	private void openFile() throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		fileBytes = channel.size();
+	}
+}
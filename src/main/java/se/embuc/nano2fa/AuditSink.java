@@ -0,0 +1,49 @@
+package se.embuc.nano2fa;
+
+/**
+ * Receives the outcome of every validation which knows its account. Register one with
+ * {@link TimeBasedOneTimePasswordUtil#setAuditSink(AuditSink)}:
+ *
+ * <pre>
+ * try (AuditLog auditLog = new AuditLog(Paths.get("/var/log/app/2fa-audit.log"))) {
+ * 	TimeBasedOneTimePasswordUtil.setAuditSink(auditLog);
+ * 	...
+ * }
+ * </pre>
+ *
+ * <p>
+ * It is told by {@link TimeBasedOneTimePasswordUtil#validateCurrentNumber(UsedCodeRegistry, long, String, int)},
+ * {@link ReplayGuard}, {@link AttemptLimiter}, {@link DriftTracker} and {@link SecretVault}. The methods are called on the thread which
+ * validated, so implementations must be thread safe and must not block, {@link AuditLog} only stores the event in memory.
+ * While {@link #NOOP} is registered, which is the default, nothing is computed for it.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public interface AuditSink {
+
+	/** sink which ignores everything, the default */
+	AuditSink NOOP = new AuditSink() {
+	};
+
+	/**
+	 * Called when a number of the account was accepted.
+	 *
+	 * @param accountId Id of the account.
+	 * @param timeMillis Time of the validation in milliseconds.
+	 * @param matchedOffset Time-step the number matched relative to the current one, -1 is the previous time-step.
+	 */
+	default void accepted(long accountId, long timeMillis, int matchedOffset) {
+	}
+
+	/**
+	 * Called when a number of the account was not accepted.
+	 *
+	 * @param accountId Id of the account.
+	 * @param timeMillis Time of the validation in milliseconds.
+	 * @param reason Why it was rejected.
+	 */
+	default void rejected(long accountId, long timeMillis, MetricsListener.RejectReason reason) {
+	}
+}
@@ -0,0 +1,236 @@
+package se.embuc.nano2fa;
+
+import java.util.Arrays;
+
+/**
+ * RFC 4648 Base32 decoding and encoding of secrets through a lookup table. Decodes from a {@link CharSequence} or <code>char[]</code>
+ * straight into a caller supplied byte buffer so the validation path does not allocate. The decoding is the same as the
+ * lenient decoding of commons-codec which was used before:
+ *
+ * <ul>
+ * <li>upper and lower case letters are accepted</li>
+ * <li>characters outside of the alphabet (spaces, dashes, ...) are skipped</li>
+ * <li>decoding stops at the first padding character '='</li>
+ * <li>trailing bits which do not fill a whole byte are dropped, except that a single trailing character (a character
+ * count of 8n+1) still yields one more byte as commons-codec does, so existing secrets keep their keys</li>
+ * </ul>
+ *
+ * <p>
+ * All methods are stateless and safe to use from many threads.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public final class Base32Codec {
+
+	/** the RFC 4648 alphabet, the value of a character is its index */
+	static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567".toCharArray();
+
+	private static final char PAD = '=';
+	/** marks characters which are not part of the alphabet */
+	private static final byte SKIP = -1;
+	private static final byte[] DECODE_TABLE = new byte[128];
+
+	static {
+		Arrays.fill(DECODE_TABLE, SKIP);
+		for (int i = 0; i < ALPHABET.length; i++) {
+			DECODE_TABLE[ALPHABET[i]] = (byte) i;
+			DECODE_TABLE[Character.toLowerCase(ALPHABET[i])] = (byte) i;
+		}
+	}
+
+	private Base32Codec() {
+		/** This is an utility class and it is not supposed to be instantiated. */
+	}
+
+	/**
+	 * Decode to a new byte array.
+	 *
+	 * @param base32 Base32 encoded characters.
+	 * @return the decoded bytes
+	 */
+	public static byte[] decode(CharSequence base32) {
+		byte[] bytes = new byte[decodedLength(base32)];
+		decode(base32, bytes, 0);
+		return bytes;
+	}
+
+	/**
+	 * Return the number of bytes that {@link #decode(CharSequence, byte[], int)} writes.
+	 *
+	 * @param base32 Base32 encoded characters.
+	 * @return number of decoded bytes
+	 */
+	public static int decodedLength(CharSequence base32) {
+		int count = 0;
+		for (int i = 0; i < base32.length(); i++) {
+			char c = base32.charAt(i);
+			if (c == PAD) {
+				break;
+			}
+			if (valueOf(c) != SKIP) {
+				count++;
+			}
+		}
+		return decodedLength(count);
+	}
+
+	/**
+	 * Same as {@link #decodedLength(CharSequence)} for a range of a char array.
+	 *
+	 * @param base32 Buffer of Base32 encoded characters.
+	 * @param from Index of the first character.
+	 * @param to Index after the last character.
+	 * @return number of decoded bytes
+	 */
+	public static int decodedLength(char[] base32, int from, int to) {
+		int count = 0;
+		for (int i = from; i < to; i++) {
+			char c = base32[i];
+			if (c == PAD) {
+				break;
+			}
+			if (valueOf(c) != SKIP) {
+				count++;
+			}
+		}
+		return decodedLength(count);
+	}
+
+	/**
+	 * Decode into the given buffer.
+	 *
+	 * @param base32 Base32 encoded characters.
+	 * @param bytes Buffer for the decoded bytes.
+	 * @param offset Where the first decoded byte is written.
+	 * @return number of bytes written
+	 * @throws IllegalArgumentException if the buffer is too small
+	 */
+	public static int decode(CharSequence base32, byte[] bytes, int offset) {
+		long buffer = 0;
+		int bits = 0;
+		int count = 0;
+		int position = offset;
+		for (int i = 0; i < base32.length(); i++) {
+			char c = base32.charAt(i);
+			if (c == PAD) {
+				break;
+			}
+			int value = valueOf(c);
+			if (value == SKIP) {
+				continue;
+			}
+			buffer = (buffer << 5) | value;
+			bits += 5;
+			if (bits >= 8) {
+				bits -= 8;
+				position = put(bytes, position, (byte) (buffer >>> bits));
+			}
+			count++;
+		}
+		if ((count & 7) == 1) {
+			position = put(bytes, position, (byte) (buffer >>> 2));
+		}
+		return position - offset;
+	}
+
+	/**
+	 * Same as {@link #decode(CharSequence, byte[], int)} for a range of a char array.
+	 *
+	 * @param base32 Buffer of Base32 encoded characters.
+	 * @param from Index of the first character.
+	 * @param to Index after the last character.
+	 * @param bytes Buffer for the decoded bytes.
+	 * @param offset Where the first decoded byte is written.
+	 * @return number of bytes written
+	 * @throws IllegalArgumentException if the buffer is too small
+	 */
+	public static int decode(char[] base32, int from, int to, byte[] bytes, int offset) {
+		long buffer = 0;
+		int bits = 0;
+		int count = 0;
+		int position = offset;
+		for (int i = from; i < to; i++) {
+			char c = base32[i];
+			if (c == PAD) {
+				break;
+			}
+			int value = valueOf(c);
+			if (value == SKIP) {
+				continue;
+			}
+			buffer = (buffer << 5) | value;
+			bits += 5;
+			if (bits >= 8) {
+				bits -= 8;
+				position = put(bytes, position, (byte) (buffer >>> bits));
+			}
+			count++;
+		}
+		if ((count & 7) == 1) {
+			position = put(bytes, position, (byte) (buffer >>> 2));
+		}
+		return position - offset;
+	}
+
+	/**
+	 * Return the number of characters that {@link #encode(byte[], int, int, char[], int)} writes.
+	 *
+	 * @param length Number of bytes.
+	 * @return number of characters, without padding
+	 */
+	public static int encodedLength(int length) {
+		return (length * 8 + 4) / 5;
+	}
+
+	/**
+	 * Encode upper case and without padding into the given buffer, the canonical form of a secret.
+	 *
+	 * @param bytes Buffer holding the bytes.
+	 * @param offset Index of the first byte.
+	 * @param length Number of bytes.
+	 * @param chars Buffer for the characters.
+	 * @param charOffset Where the first character is written.
+	 * @return number of characters written
+	 * @throws IllegalArgumentException if the buffer is too small
+	 */
+	public static int encode(byte[] bytes, int offset, int length, char[] chars, int charOffset) {
+		int count = encodedLength(length);
+		if (charOffset < 0 || charOffset + count > chars.length) {
+			throw new IllegalArgumentException("Buffer of " + chars.length + " characters is too small for " + count + " at " + charOffset);
+		}
+		int position = charOffset;
+		long buffer = 0;
+		int bits = 0;
+		for (int i = offset; i < offset + length; i++) {
+			buffer = (buffer << 8) | (bytes[i] & 0xFF);
+			bits += 8;
+			while (bits >= 5) {
+				bits -= 5;
+				chars[position++] = ALPHABET[(int) (buffer >>> bits) & 0x1F];
+			}
+		}
+		if (bits > 0) {
+			// the last character is padded with zero bits
+			chars[position++] = ALPHABET[(int) (buffer << (5 - bits)) & 0x1F];
+		}
+		return count;
+	}
+
+	private static int decodedLength(int count) {
+		return count * 5 / 8 + ((count & 7) == 1 ? 1 : 0);
+	}
+
+	private static int valueOf(char c) {
+		return c < DECODE_TABLE.length ? DECODE_TABLE[c] : SKIP;
+	}
+
+	private static int put(byte[] bytes, int position, byte b) {
+		if (position >= bytes.length) {
+			throw new IllegalArgumentException("Buffer of " + bytes.length + " bytes is too small for the decoded secret");
+		}
+		bytes[position] = b;
+		return position + 1;
+	}
+}
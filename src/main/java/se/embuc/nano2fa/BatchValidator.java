@@ -0,0 +1,171 @@
+package se.embuc.nano2fa;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Validates many (secret, number) pairs against one shared timestamp, for example login attempts collected into micro
+ * batches by a gateway. The time-step window is computed once per batch and the HMAC work is done with {@link HmacSha1}.
+ * Batches above {@link #DEFAULT_PARALLEL_THRESHOLD} pairs are spread over a {@link ForkJoinPool}.
+ *
+ * <pre>
+ * BitSet valid = BatchValidator.validateCurrentNumbers(base32Secrets, authNumbers);
+ * if (valid.get(i)) {
+ * 	// pair i is allowed to log in
+ * }
+ * </pre>
+ *
+ * <p>
+ * Unlike the single pair methods a secret which cannot be used as a key (null or empty) does not throw, its bit is simply
+ * left cleared so one bad record does not fail the whole batch.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public final class BatchValidator {
+
+	/** batches with fewer pairs than this are validated on the calling thread */
+	public static final int DEFAULT_PARALLEL_THRESHOLD = 256;
+	/** pairs per fork-join leaf task, a multiple of 64 so that leaves never share a word of the result */
+	private static final int LEAF_SIZE = 128;
+
+	private BatchValidator() {
+		/** This is an utility class and it is not supposed to be instantiated. */
+	}
+
+	/**
+	 * Validate the pairs <code>(base32Secrets[i], authNumbers[i])</code> against the current time with the default 10
+	 * second window.
+	 *
+	 * @param base32Secrets Secret strings encoded using base-32.
+	 * @param authNumbers Numbers provided by the users, same length as the secrets.
+	 * @return Bit i is set if pair i matched.
+	 */
+	public static BitSet validateCurrentNumbers(String[] base32Secrets, int[] authNumbers) {
+		return validateCurrentNumbers(base32Secrets, authNumbers, TimeBasedOneTimePasswordUtil.DEFAULT_VALIDATION_WINDOW_MILLIS,
+				System.currentTimeMillis());
+	}
+
+	/**
+	 * Validate the pairs <code>(base32Secrets[i], authNumbers[i])</code> against a shared timestamp.
+	 *
+	 * @param base32Secrets Secret strings encoded using base-32.
+	 * @param authNumbers Numbers provided by the users, same length as the secrets.
+	 * @param windowMillis Number of milliseconds that they are allowed to be off and still match. Set to 0 for no window.
+	 * @param timeMillis Shared time of the batch, usually {@link System#currentTimeMillis()}.
+	 * @return Bit i is set if pair i matched.
+	 */
+	public static BitSet validateCurrentNumbers(String[] base32Secrets, int[] authNumbers, long windowMillis, long timeMillis) {
+		byte[][] keys = new byte[base32Secrets.length][];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = base32Secrets[i] == null ? null : TimeBasedOneTimePasswordUtil.decodeBase32(base32Secrets[i]);
+		}
+		return validateCurrentNumbers(keys, authNumbers, windowMillis, timeMillis, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS,
+				TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Same as {@link #validateCurrentNumbers(String[], int[], long, long)} for a collection of secrets. The bits follow the
+	 * iteration order of the collection.
+	 *
+	 * @param base32Secrets Secret strings encoded using base-32.
+	 * @param authNumbers Numbers provided by the users, same length as the secrets.
+	 * @param windowMillis Number of milliseconds that they are allowed to be off and still match. Set to 0 for no window.
+	 * @param timeMillis Shared time of the batch, usually {@link System#currentTimeMillis()}.
+	 * @return Bit i is set if pair i matched.
+	 */
+	public static BitSet validateCurrentNumbers(Collection<String> base32Secrets, int[] authNumbers, long windowMillis, long timeMillis) {
+		return validateCurrentNumbers(base32Secrets.toArray(new String[0]), authNumbers, windowMillis, timeMillis);
+	}
+
+	/**
+	 * Validate the pairs <code>(keys[i], authNumbers[i])</code> of decoded secrets. Exposes all parameters including the
+	 * pool the work is spread over.
+	 *
+	 * @param keys Decoded secrets.
+	 * @param authNumbers Numbers provided by the users, same length as the keys.
+	 * @param windowMillis Number of milliseconds that they are allowed to be off and still match. Set to 0 for no window.
+	 * @param timeMillis Shared time of the batch.
+	 * @param timeStepSeconds Time-step in seconds.
+	 * @param numDigits Number of digits of the numbers.
+	 * @param pool Pool used for batches above {@link #DEFAULT_PARALLEL_THRESHOLD} pairs.
+	 * @return Bit i is set if pair i matched.
+	 */
+	public static BitSet validateCurrentNumbers(byte[][] keys, int[] authNumbers, long windowMillis, long timeMillis, int timeStepSeconds,
+			int numDigits, ForkJoinPool pool) {
+		if (keys.length != authNumbers.length) {
+			throw new IllegalArgumentException("Got " + keys.length + " secrets but " + authNumbers.length + " numbers");
+		}
+		if (windowMillis < 0) {
+			windowMillis = 0;
+		}
+		long startValue = TimeBasedOneTimePasswordUtil.generateValue(timeMillis - windowMillis, timeStepSeconds);
+		long endValue = TimeBasedOneTimePasswordUtil.generateValue(timeMillis + windowMillis, timeStepSeconds);
+		long[] words = new long[(keys.length + 63) >>> 6];
+		ValidateTask task = new ValidateTask(keys, authNumbers, startValue, endValue, numDigits, words, 0, keys.length);
+		if (keys.length < DEFAULT_PARALLEL_THRESHOLD) {
+			task.compute();
+		} else {
+			pool.invoke(task);
+		}
+		return BitSet.valueOf(words);
+	}
+
+	private static final class ValidateTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final byte[][] keys;
+		private final int[] authNumbers;
+		private final long startValue;
+		private final long endValue;
+		private final int numDigits;
+		private final long[] words;
+		private final int from;
+		private final int to;
+
+		ValidateTask(byte[][] keys, int[] authNumbers, long startValue, long endValue, int numDigits, long[] words, int from, int to) {
+			this.keys = keys;
+			this.authNumbers = authNumbers;
+			this.startValue = startValue;
+			this.endValue = endValue;
+			this.numDigits = numDigits;
+			this.words = words;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= LEAF_SIZE) {
+				validateRange();
+				return;
+			}
+			// split on a 64 pair boundary so each leaf owns its words of the result
+			int middle = ((from + (to - from) / 2) + 63) & ~63;
+			invokeAll(new ValidateTask(keys, authNumbers, startValue, endValue, numDigits, words, from, middle),
+					new ValidateTask(keys, authNumbers, startValue, endValue, numDigits, words, middle, to));
+		}
+
+		private void validateRange() {
+			HmacSha1.Scratch scratch = new HmacSha1.Scratch();
+			int[] keyState = new int[10];
+			for (int i = from; i < to; i++) {
+				byte[] key = keys[i];
+				if (key == null || key.length == 0) {
+					continue;
+				}
+				HmacSha1.initKeyState(key, 0, key.length, keyState, scratch);
+				for (long value = startValue; value <= endValue; value++) {
+					if (HmacSha1.generateNumber(keyState, value, numDigits, scratch) == authNumbers[i]) {
+						words[i >>> 6] |= 1L << i;
+						break;
+					}
+				}
+			}
+		}
+	}
+}
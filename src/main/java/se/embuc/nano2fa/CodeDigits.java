@@ -0,0 +1,150 @@
+package se.embuc.nano2fa;
+
+/**
+ * Conversion between numbers and their fixed length digit form without going through {@link String}, so codes can be
+ * read from and written to request buffers directly:
+ *
+ * <pre>
+ * int length = CodeDigits.write(number, 6, buffer, offset); // "012345"
+ * long number = CodeDigits.parse(requestBytes, offset, length, 6);
+ * </pre>
+ *
+ * <p>
+ * Parsing keeps the length information which <code>Integer.parseInt</code> loses: the input must have exactly
+ * <code>numDigits</code> digits, leading zeros included. Every character is looked at and the result is assembled
+ * without branching on the digit values, so the time only depends on the length of the input.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public final class CodeDigits {
+
+	/** returned by the parse methods for input which is not a code */
+	public static final long INVALID = -1;
+	/** most digits a code can have, the truncated HMAC has 31 bits */
+	public static final int MAX_DIGITS = 10;
+
+	private CodeDigits() {
+		/** This is an utility class and it is not supposed to be instantiated. */
+	}
+
+	/**
+	 * Write the number as <code>numDigits</code> digits with leading zeros into the buffer.
+	 *
+	 * @param number Non-negative number with at most numDigits digits.
+	 * @param numDigits Number of digits to write.
+	 * @param buffer Buffer for the digits.
+	 * @param offset Where the first digit is written.
+	 * @return numDigits
+	 */
+	public static int write(int number, int numDigits, char[] buffer, int offset) {
+		for (int i = offset + numDigits - 1; i >= offset; i--) {
+			buffer[i] = (char) ('0' + number % 10);
+			number /= 10;
+		}
+		return numDigits;
+	}
+
+	/**
+	 * Same as {@link #write(int, int, char[], int)} with ASCII digits into a byte buffer.
+	 *
+	 * @param number Non-negative number with at most numDigits digits.
+	 * @param numDigits Number of digits to write.
+	 * @param buffer Buffer for the digits.
+	 * @param offset Where the first digit is written.
+	 * @return numDigits
+	 */
+	public static int write(int number, int numDigits, byte[] buffer, int offset) {
+		for (int i = offset + numDigits - 1; i >= offset; i--) {
+			buffer[i] = (byte) ('0' + number % 10);
+			number /= 10;
+		}
+		return numDigits;
+	}
+
+	/**
+	 * Parse a code of exactly <code>numDigits</code> digits.
+	 *
+	 * @param code Code provided by the user.
+	 * @param numDigits Number of digits the code must have, at most {@link #MAX_DIGITS}.
+	 * @return the number or {@link #INVALID} if the code has another length or a character which is not a digit
+	 */
+	public static long parse(CharSequence code, int numDigits) {
+		if (code == null || code.length() != numDigits || numDigits > MAX_DIGITS) {
+			return INVALID;
+		}
+		long number = 0;
+		int invalid = 0;
+		for (int i = 0; i < numDigits; i++) {
+			int digit = code.charAt(i) - '0';
+			// negative if the character is outside of '0'..'9'
+			invalid |= digit | (9 - digit);
+			number = number * 10 + digit;
+		}
+		return select(invalid, number);
+	}
+
+	/**
+	 * Same as {@link #parse(CharSequence, int)} for a range of a char array.
+	 *
+	 * @param code Buffer holding the code.
+	 * @param offset Index of the first character.
+	 * @param length Number of characters.
+	 * @param numDigits Number of digits the code must have, at most {@link #MAX_DIGITS}.
+	 * @return the number or {@link #INVALID} if the code has another length or a character which is not a digit
+	 */
+	public static long parse(char[] code, int offset, int length, int numDigits) {
+		if (code == null || length != numDigits || numDigits > MAX_DIGITS) {
+			return INVALID;
+		}
+		long number = 0;
+		int invalid = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int digit = code[i] - '0';
+			invalid |= digit | (9 - digit);
+			number = number * 10 + digit;
+		}
+		return select(invalid, number);
+	}
+
+	/**
+	 * Same as {@link #parse(CharSequence, int)} for a range of ASCII bytes, for example straight from a request body.
+	 *
+	 * @param code Buffer holding the code.
+	 * @param offset Index of the first byte.
+	 * @param length Number of bytes.
+	 * @param numDigits Number of digits the code must have, at most {@link #MAX_DIGITS}.
+	 * @return the number or {@link #INVALID} if the code has another length or a byte which is not a digit
+	 */
+	public static long parse(byte[] code, int offset, int length, int numDigits) {
+		if (code == null || length != numDigits || numDigits > MAX_DIGITS) {
+			return INVALID;
+		}
+		long number = 0;
+		int invalid = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int digit = (code[i] & 0xFF) - '0';
+			invalid |= digit | (9 - digit);
+			number = number * 10 + digit;
+		}
+		return select(invalid, number);
+	}
+
+	/**
+	 * Return 1 if the numbers are equal and 0 otherwise, without a branch on their values.
+	 */
+	static int equal(long a, long b) {
+		long diff = a ^ b;
+		return (int) (((diff | -diff) >>> 63) ^ 1);
+	}
+
+	/**
+	 * Return the number if the sign bit of invalid is clear, {@link #INVALID} otherwise.
+	 */
+	private static long select(int invalid, long number) {
+		// all ones if invalid is negative
+		long mask = invalid >> 31;
+		return (mask & INVALID) | (~mask & number);
+	}
+}
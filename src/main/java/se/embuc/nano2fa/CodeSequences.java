@@ -0,0 +1,214 @@
+package se.embuc.nano2fa;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Precomputes the numbers of secrets over a range of time-steps, for example for offline verification kiosks, exports
+ * of expected numbers for audits or test clients:
+ *
+ * <pre>
+ * long start = CodeSequences.timeStep(System.currentTimeMillis(), 30);
+ * int[] numbers = CodeSequences.generateNumbers(base32Secret, start, start + 2880, 6); // the next 24 hours
+ * </pre>
+ *
+ * <p>
+ * The secret is decoded and keyed once into {@link HmacSha1} state which is reused for every time-step of the range, so
+ * each number costs two SHA-1 compressions. The ranges are half open, <code>[startValue, endValue)</code>, in time-step
+ * counter values as returned by {@link #timeStep(long, int)}; the number of <code>startValue + i</code> is at index
+ * <code>i</code>. Many secrets are spread over a {@link ForkJoinPool}.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public final class CodeSequences {
+
+	/** batches with fewer numbers than this are generated on the calling thread */
+	public static final int DEFAULT_PARALLEL_THRESHOLD = 4096;
+
+	private CodeSequences() {
+		/** This is an utility class and it is not supposed to be instantiated. */
+	}
+
+	/**
+	 * Receives generated numbers one by one.
+	 */
+	@FunctionalInterface
+	public interface NumberSink {
+
+		/**
+		 * @param value Time-step counter value.
+		 * @param number Number of the time-step.
+		 */
+		void accept(long value, int number);
+	}
+
+	/**
+	 * Return the time-step counter value of the time.
+	 *
+	 * @param timeMillis Time in milliseconds.
+	 * @param timeStepSeconds Time-step in seconds.
+	 * @return the counter value
+	 */
+	public static long timeStep(long timeMillis, int timeStepSeconds) {
+		return TimeBasedOneTimePasswordUtil.generateValue(timeMillis, timeStepSeconds);
+	}
+
+	/**
+	 * Generate the numbers of the secret for the time-steps <code>[startValue, endValue)</code>.
+	 *
+	 * @param base32Secret Secret string encoded using base-32.
+	 * @param startValue First time-step counter value.
+	 * @param endValue Time-step counter value after the last one.
+	 * @param numDigits Number of digits of the numbers.
+	 * @return the numbers, the one of startValue first
+	 */
+	public static int[] generateNumbers(String base32Secret, long startValue, long endValue, int numDigits) {
+		int[] numbers = new int[length(startValue, endValue)];
+		generateNumbers(base32Secret, startValue, endValue, numDigits, numbers, 0);
+		return numbers;
+	}
+
+	/**
+	 * Same as {@link #generateNumbers(String, long, long, int)} into a caller buffer.
+	 *
+	 * @param base32Secret Secret string encoded using base-32.
+	 * @param startValue First time-step counter value.
+	 * @param endValue Time-step counter value after the last one.
+	 * @param numDigits Number of digits of the numbers.
+	 * @param numbers Buffer for the numbers.
+	 * @param offset Index the number of startValue is written to.
+	 */
+	public static void generateNumbers(String base32Secret, long startValue, long endValue, int numDigits, int[] numbers, int offset) {
+		int length = length(startValue, endValue);
+		if (offset < 0 || offset + length > numbers.length || offset + length < 0) {
+			throw new IllegalArgumentException("Buffer of " + numbers.length + " numbers is too small for " + length + " at " + offset);
+		}
+		ThreadKeyState state = ThreadKeyState.keyed(base32Secret);
+		try {
+			for (int i = 0; i < length; i++) {
+				numbers[offset + i] = state.generateNumber(startValue + i, numDigits);
+			}
+		} finally {
+			state.clear();
+		}
+	}
+
+	/**
+	 * Same as {@link #generateNumbers(String, long, long, int)} but hands the numbers to the sink instead of keeping
+	 * them, so ranges of any length can be streamed. The sink may generate or validate numbers itself.
+	 *
+	 * @param base32Secret Secret string encoded using base-32.
+	 * @param startValue First time-step counter value.
+	 * @param endValue Time-step counter value after the last one.
+	 * @param numDigits Number of digits of the numbers.
+	 * @param sink Receives the numbers in order.
+	 */
+	public static void generateNumbers(String base32Secret, long startValue, long endValue, int numDigits, NumberSink sink) {
+		if (startValue < 0 || endValue < startValue) {
+			throw new IllegalArgumentException("Invalid range [" + startValue + ", " + endValue + ")");
+		}
+		ThreadKeyState state = ThreadKeyState.keyed(base32Secret);
+		// the sink may use the state of this thread itself, so generate from a copy of the key state
+		int[] keyState = state.keyState.clone();
+		state.clear();
+		try {
+			for (long value = startValue; value < endValue; value++) {
+				sink.accept(value, HmacSha1.generateNumber(keyState, value, numDigits, state.scratch));
+			}
+		} finally {
+			Arrays.fill(keyState, 0);
+		}
+	}
+
+	/**
+	 * Generate the numbers of many secrets for the time-steps <code>[startValue, endValue)</code> on the common fork-join
+	 * pool.
+	 *
+	 * @param base32Secrets Secret strings encoded using base-32.
+	 * @param startValue First time-step counter value.
+	 * @param endValue Time-step counter value after the last one.
+	 * @param numDigits Number of digits of the numbers.
+	 * @return the numbers, secret by secret: the number of secret s and <code>startValue + i</code> is at index
+	 * <code>s * (endValue - startValue) + i</code>
+	 */
+	public static int[] generateNumbers(String[] base32Secrets, long startValue, long endValue, int numDigits) {
+		return generateNumbers(base32Secrets, startValue, endValue, numDigits, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Same as {@link #generateNumbers(String[], long, long, int)} on the given pool.
+	 *
+	 * @param base32Secrets Secret strings encoded using base-32.
+	 * @param startValue First time-step counter value.
+	 * @param endValue Time-step counter value after the last one.
+	 * @param numDigits Number of digits of the numbers.
+	 * @param pool Pool used when there are more than {@link #DEFAULT_PARALLEL_THRESHOLD} numbers.
+	 * @return the numbers, secret by secret
+	 */
+	public static int[] generateNumbers(String[] base32Secrets, long startValue, long endValue, int numDigits, ForkJoinPool pool) {
+		int length = length(startValue, endValue);
+		long total = (long) base32Secrets.length * length;
+		if (total > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Too many numbers: " + total);
+		}
+		int[] numbers = new int[(int) total];
+		GenerateTask task = new GenerateTask(base32Secrets, startValue, endValue, numDigits, numbers, 0, base32Secrets.length,
+				Math.max(1, DEFAULT_PARALLEL_THRESHOLD / Math.max(1, length)));
+		if (total < DEFAULT_PARALLEL_THRESHOLD) {
+			task.compute();
+		} else {
+			pool.invoke(task);
+		}
+		return numbers;
+	}
+
+	private static int length(long startValue, long endValue) {
+		if (startValue < 0 || endValue < startValue || endValue - startValue > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Invalid range [" + startValue + ", " + endValue + ")");
+		}
+		return (int) (endValue - startValue);
+	}
+
+	private static final class GenerateTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String[] base32Secrets;
+		private final long startValue;
+		private final long endValue;
+		private final int numDigits;
+		private final int[] numbers;
+		private final int from;
+		private final int to;
+		/** secrets per leaf, so a leaf generates about DEFAULT_PARALLEL_THRESHOLD numbers */
+		private final int leafSize;
+
+		GenerateTask(String[] base32Secrets, long startValue, long endValue, int numDigits, int[] numbers, int from, int to, int leafSize) {
+			this.base32Secrets = base32Secrets;
+			this.startValue = startValue;
+			this.endValue = endValue;
+			this.numDigits = numDigits;
+			this.numbers = numbers;
+			this.from = from;
+			this.to = to;
+			this.leafSize = leafSize;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= leafSize) {
+				int length = (int) (endValue - startValue);
+				for (int s = from; s < to; s++) {
+					generateNumbers(base32Secrets[s], startValue, endValue, numDigits, numbers, s * length);
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new GenerateTask(base32Secrets, startValue, endValue, numDigits, numbers, from, middle, leafSize),
+					new GenerateTask(base32Secrets, startValue, endValue, numDigits, numbers, middle, to, leafSize));
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package se.embuc.nano2fa;
+
+/**
+ * Counter based one-time passwords (HOTP, RFC 4226) for hardware tokens and other authenticators which count button
+ * presses instead of time-steps:
+ *
+ * <pre>
+ * long nextCounter = CounterBasedOneTimePasswordUtil.validateNumber(base32Secret, storedCounter, authNumber);
+ * if (nextCounter != CounterBasedOneTimePasswordUtil.NO_MATCH) {
+ * 	// store nextCounter, the number and all before it can not be used again
+ * }
+ * </pre>
+ *
+ * <p>
+ * A token which was pressed without logging in runs ahead of the server, so validation looks ahead a number of counter
+ * values. The secret is decoded and keyed once per call into per-thread {@link HmacSha1} state, every counter in the
+ * look-ahead then costs two SHA-1 compressions without allocating, which keeps look-ahead windows of 50-100 cheap. A
+ * token which got too far ahead is resynchronized from two consecutive numbers with
+ * {@link #resynchronize(String, long, int, int)}.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public final class CounterBasedOneTimePasswordUtil {
+
+	/** returned when a number did not match */
+	public static final long NO_MATCH = -1;
+	/** default number of counter values checked after the expected one */
+	public static final int DEFAULT_LOOK_AHEAD = 10;
+	/** default number of counter values searched when resynchronizing */
+	public static final int DEFAULT_RESYNC_LOOK_AHEAD = 100;
+
+	private CounterBasedOneTimePasswordUtil() {
+		/** This is an utility class and it is not supposed to be instantiated. */
+	}
+
+	/**
+	 * Generate the number for the counter value with the default number of digits.
+	 *
+	 * @param base32Secret Secret string encoded using base-32.
+	 * @param counter Counter value.
+	 * @return the number
+	 */
+	public static int generateNumber(String base32Secret, long counter) {
+		return generateNumber(base32Secret, counter, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+
+	/**
+	 * Generate the number for the counter value.
+	 *
+	 * @param base32Secret Secret string encoded using base-32.
+	 * @param counter Counter value.
+	 * @param numDigits Number of digits of the number.
+	 * @return the number
+	 */
+	public static int generateNumber(String base32Secret, long counter, int numDigits) {
+		checkCounter(counter, 0);
+		ThreadKeyState state = ThreadKeyState.keyed(base32Secret);
+		try {
+			return state.generateNumber(counter, numDigits);
+		} finally {
+			state.clear();
+		}
+	}
+
+	/**
+	 * Same as {@link #generateNumber(String, long, int)} with leading zeros.
+	 *
+	 * @param base32Secret Secret string encoded using base-32.
+	 * @param counter Counter value.
+	 * @param numDigits Number of digits of the number.
+	 * @return the number as a string of numDigits characters
+	 */
+	public static String generateNumberString(String base32Secret, long counter, int numDigits) {
+		return TimeBasedOneTimePasswordUtil.zeroPrepend(generateNumber(base32Secret, counter, numDigits), numDigits);
+	}
+
+	/**
+	 * Validate the number against the counter and the {@link #DEFAULT_LOOK_AHEAD} values after it.
+	 *
+	 * @param base32Secret Secret string encoded using base-32.
+	 * @param counter Counter value the next number is expected for, as returned by the last successful validation.
+	 * @param authNumber Number provided by the user from their token.
+	 * @return the counter value after the matched one which has to be stored, or {@link #NO_MATCH}
+	 */
+	public static long validateNumber(String base32Secret, long counter, int authNumber) {
+		return validateNumber(base32Secret, counter, authNumber, DEFAULT_LOOK_AHEAD, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+
+	/**
+	 * Validate the number against the counter and the <code>lookAhead</code> values after it.
+	 *
+	 * @param base32Secret Secret string encoded using base-32.
+	 * @param counter Counter value the next number is expected for, as returned by the last successful validation.
+	 * @param authNumber Number provided by the user from their token.
+	 * @param lookAhead Number of counter values after the expected one which are accepted as well. Set to 0 for none.
+	 * @param numDigits Number of digits of the number.
+	 * @return the counter value after the matched one which has to be stored, or {@link #NO_MATCH}
+	 */
+	public static long validateNumber(String base32Secret, long counter, int authNumber, int lookAhead, int numDigits) {
+		checkCounter(counter, lookAhead);
+		MetricsListener listener = TimeBasedOneTimePasswordUtil.metricsListener();
+		long startNanos = listener == MetricsListener.NOOP ? 0 : System.nanoTime();
+		ThreadKeyState state;
+		try {
+			state = ThreadKeyState.keyed(base32Secret);
+		} catch (IllegalArgumentException e) {
+			if (listener != MetricsListener.NOOP) {
+				listener.rejected(MetricsListener.RejectReason.INVALID_SECRET, 0, System.nanoTime() - startNanos);
+			}
+			throw e;
+		}
+		return validateNumber(state, counter, authNumber, lookAhead, numDigits, listener, startNanos);
+	}
+
+	/**
+	 * Same as {@link #validateNumber(String, long, int, int, int)} for a decoded secret.
+	 *
+	 * @param key Decoded secret.
+	 * @param counter Counter value the next number is expected for, as returned by the last successful validation.
+	 * @param authNumber Number provided by the user from their token.
+	 * @param lookAhead Number of counter values after the expected one which are accepted as well. Set to 0 for none.
+	 * @param numDigits Number of digits of the number.
+	 * @return the counter value after the matched one which has to be stored, or {@link #NO_MATCH}
+	 */
+	public static long validateNumber(byte[] key, long counter, int authNumber, int lookAhead, int numDigits) {
+		checkCounter(counter, lookAhead);
+		MetricsListener listener = TimeBasedOneTimePasswordUtil.metricsListener();
+		long startNanos = listener == MetricsListener.NOOP ? 0 : System.nanoTime();
+		ThreadKeyState state;
+		try {
+			state = ThreadKeyState.keyed(key);
+		} catch (IllegalArgumentException e) {
+			if (listener != MetricsListener.NOOP) {
+				listener.rejected(MetricsListener.RejectReason.INVALID_SECRET, 0, System.nanoTime() - startNanos);
+			}
+			throw e;
+		}
+		return validateNumber(state, counter, authNumber, lookAhead, numDigits, listener, startNanos);
+	}
+
+	/**
+	 * Resynchronize a token which ran further ahead than the look-ahead of the validation with two consecutive numbers
+	 * and the {@link #DEFAULT_RESYNC_LOOK_AHEAD}.
+	 *
+	 * @param base32Secret Secret string encoded using base-32.
+	 * @param counter Counter value stored for the token.
+	 * @param authNumber1 First number provided by the user.
+	 * @param authNumber2 Number the token showed right after the first one.
+	 * @return the counter value after the second number which has to be stored, or {@link #NO_MATCH}
+	 */
+	public static long resynchronize(String base32Secret, long counter, int authNumber1, int authNumber2) {
+		return resynchronize(base32Secret, counter, authNumber1, authNumber2, DEFAULT_RESYNC_LOOK_AHEAD, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+
+	/**
+	 * Resynchronize a token from two consecutive numbers. The first number may match the counter or up to
+	 * <code>lookAhead</code> values after it, the second number must match the value right after the first one.
+	 *
+	 * @param base32Secret Secret string encoded using base-32.
+	 * @param counter Counter value stored for the token.
+	 * @param authNumber1 First number provided by the user.
+	 * @param authNumber2 Number the token showed right after the first one.
+	 * @param lookAhead Number of counter values after the stored one searched for the first number.
+	 * @param numDigits Number of digits of the numbers.
+	 * @return the counter value after the second number which has to be stored, or {@link #NO_MATCH}
+	 */
+	public static long resynchronize(String base32Secret, long counter, int authNumber1, int authNumber2, int lookAhead, int numDigits) {
+		checkCounter(counter, lookAhead + 1);
+		ThreadKeyState state = ThreadKeyState.keyed(base32Secret);
+		try {
+			boolean previousMatched = false;
+			// every value is generated once and compared against both numbers
+			for (long value = counter; value <= counter + lookAhead + 1; value++) {
+				int number = state.generateNumber(value, numDigits);
+				if (previousMatched && number == authNumber2) {
+					return value + 1;
+				}
+				previousMatched = number == authNumber1;
+			}
+			return NO_MATCH;
+		} finally {
+			state.clear();
+		}
+	}
+
+	private static long validateNumber(ThreadKeyState state, long counter, int authNumber, int lookAhead, int numDigits, MetricsListener listener,
+			long startNanos) {
+		long matched = NO_MATCH;
+		long value = counter;
+		try {
+			for (; value <= counter + lookAhead; value++) {
+				if (state.generateNumber(value, numDigits) == authNumber) {
+					matched = value;
+					break;
+				}
+			}
+		} finally {
+			state.clear();
+		}
+		if (listener != MetricsListener.NOOP) {
+			long elapsedNanos = System.nanoTime() - startNanos;
+			if (matched == NO_MATCH) {
+				listener.rejected(MetricsListener.RejectReason.MISMATCH, lookAhead + 1L, elapsedNanos);
+			} else {
+				listener.validated(matched - counter + 1, (int) Math.min(Integer.MAX_VALUE, matched - counter), elapsedNanos);
+			}
+		}
+		return matched == NO_MATCH ? NO_MATCH : matched + 1;
+	}
+
+	private static void checkCounter(long counter, int lookAhead) {
+		if (counter < 0 || lookAhead < 0 || counter + lookAhead < 0) {
+			throw new IllegalArgumentException("Invalid counter " + counter + " or look-ahead " + lookAhead);
+		}
+	}
+}
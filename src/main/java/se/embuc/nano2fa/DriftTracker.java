@@ -0,0 +1,173 @@
+package se.embuc.nano2fa;
+
+import javax.crypto.Mac;
+
+/**
+ * Validates like {@link TimeBasedOneTimePasswordUtil#validateCurrentNumber(String, int, long)} but learns the
+ * time-step offset of every account from its successful logins and checks the predicted time-step first:
+ *
+ * <pre>
+ * DriftTracker driftTracker = new DriftTracker();
+ * boolean valid = driftTracker.validateCurrentNumber(accountId, base32Secret, authNumber);
+ * </pre>
+ *
+ * <p>
+ * Phones are usually off by the same amount every time, so after the first login most validations need a single HMAC
+ * instead of one per time-step in the window. Only when the predicted time-step does not match are the other
+ * time-steps of the window checked. Exactly the same numbers are accepted as without the tracker, the learned offset
+ * only changes the order in which the window is checked and is never used outside of it.
+ * </p>
+ * <p>
+ * The offsets are kept in a fixed array of one byte per slot and accounts are hashed to the slots without storing the
+ * account id. When two accounts share a slot the prediction of one of them may be wrong, which costs an extra HMAC but
+ * never changes the result. Updates are plain byte writes, racing threads at worst overwrite each other's prediction.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public class DriftTracker {
+
+	/** default number of slots, one megabyte */
+	public static final int DEFAULT_CAPACITY = 1 << 20;
+
+	private final byte[] offsets;
+	private final int mask;
+
+	/**
+	 * Create a tracker with {@link #DEFAULT_CAPACITY} slots.
+	 */
+	public DriftTracker() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity Number of slots, rounded up to a power of two. About the number of accounts keeps collisions low.
+	 */
+	public DriftTracker(int capacity) {
+		if (capacity <= 0 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("capacity must be between 1 and 2^30: " + capacity);
+		}
+		this.offsets = new byte[Integer.highestOneBit(capacity * 2 - 1)];
+		this.mask = offsets.length - 1;
+	}
+
+	/**
+	 * Validate with the default 10 second window, checking the time-step the account matched last time first.
+	 *
+	 * @param accountId Id of the account the secret belongs to.
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @param authNumber Time based number provided by the user from their authenticator application.
+	 * @return True if the authNumber matched the calculated number within the window.
+	 */
+	public boolean validateCurrentNumber(long accountId, String base32Secret, int authNumber) {
+		return validateCurrentNumber(accountId, base32Secret, authNumber, TimeBasedOneTimePasswordUtil.DEFAULT_VALIDATION_WINDOW_MILLIS);
+	}
+
+	/**
+	 * Same as {@link #validateCurrentNumber(long, String, int)} with a window in milliseconds.
+	 *
+	 * @param accountId Id of the account the secret belongs to.
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @param authNumber Time based number provided by the user from their authenticator application.
+	 * @param windowMillis Number of milliseconds that they are allowed to be off and still match. Set to 0 for no window.
+	 * @return True if the authNumber matched the calculated number within the window.
+	 */
+	public boolean validateCurrentNumber(long accountId, String base32Secret, int authNumber, long windowMillis) {
+		return validateCurrentNumber(accountId, base32Secret, authNumber, windowMillis, System.currentTimeMillis(),
+				TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+
+	/**
+	 * Similar to {@link #validateCurrentNumber(long, String, int, long)} except exposes other parameters. Mostly for
+	 * testing.
+	 */
+	protected boolean validateCurrentNumber(long accountId, String base32Secret, int authNumber, long windowMillis, long timeMillis,
+			int timeStepSeconds, int numDigits) {
+		MetricsListener listener = TimeBasedOneTimePasswordUtil.metricsListener();
+		AuditSink sink = TimeBasedOneTimePasswordUtil.auditSink();
+		long startNanos = listener == MetricsListener.NOOP ? 0 : System.nanoTime();
+		Mac mac;
+		try {
+			mac = TimeBasedOneTimePasswordUtil.newMac(null, base32Secret);
+		} catch (IllegalArgumentException e) {
+			if (listener != MetricsListener.NOOP) {
+				listener.rejected(MetricsListener.RejectReason.INVALID_SECRET, 0, System.nanoTime() - startNanos);
+			}
+			if (sink != AuditSink.NOOP) {
+				sink.rejected(accountId, timeMillis, MetricsListener.RejectReason.INVALID_SECRET);
+			}
+			throw e;
+		}
+		long currentValue = TimeBasedOneTimePasswordUtil.generateValue(timeMillis, timeStepSeconds);
+		long startValue = currentValue;
+		long endValue = currentValue;
+		if (windowMillis > 0) {
+			startValue = TimeBasedOneTimePasswordUtil.generateValue(timeMillis - windowMillis, timeStepSeconds);
+			endValue = TimeBasedOneTimePasswordUtil.generateValue(timeMillis + windowMillis, timeStepSeconds);
+		}
+		int slot = slotOf(accountId);
+		long predictedValue = currentValue + offsets[slot];
+		long hmacCount = 0;
+		long matchedValue = TimeBasedOneTimePasswordUtil.NO_MATCH;
+		if (predictedValue >= startValue && predictedValue <= endValue) {
+			hmacCount++;
+			if (TimeBasedOneTimePasswordUtil.generateNumberFromMac(mac, predictedValue, numDigits) == authNumber) {
+				matchedValue = predictedValue;
+			}
+		}
+		for (long value = startValue; matchedValue == TimeBasedOneTimePasswordUtil.NO_MATCH && value <= endValue; value++) {
+			if (value == predictedValue) {
+				continue;
+			}
+			hmacCount++;
+			if (TimeBasedOneTimePasswordUtil.generateNumberFromMac(mac, value, numDigits) == authNumber) {
+				matchedValue = value;
+			}
+		}
+		if (matchedValue == TimeBasedOneTimePasswordUtil.NO_MATCH) {
+			if (listener != MetricsListener.NOOP) {
+				listener.rejected(MetricsListener.RejectReason.MISMATCH, hmacCount, System.nanoTime() - startNanos);
+			}
+			if (sink != AuditSink.NOOP) {
+				sink.rejected(accountId, timeMillis, MetricsListener.RejectReason.MISMATCH);
+			}
+			return false;
+		}
+		long offset = matchedValue - currentValue;
+		offsets[slot] = (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, offset));
+		if (listener != MetricsListener.NOOP) {
+			listener.validated(hmacCount, (int) offset, System.nanoTime() - startNanos);
+		}
+		if (sink != AuditSink.NOOP) {
+			sink.accepted(accountId, timeMillis, (int) offset);
+		}
+		return true;
+	}
+
+	/**
+	 * Return the time-step offset learned for the account, 0 if it has not logged in yet. Positive offsets mean that the
+	 * clock of the authenticator is ahead.
+	 *
+	 * @param accountId Id of the account.
+	 * @return the offset in time-steps
+	 */
+	public int getOffset(long accountId) {
+		return offsets[slotOf(accountId)];
+	}
+
+	/**
+	 * Forget the learned offset of the account, for example after the user enrolled a new device.
+	 *
+	 * @param accountId Id of the account.
+	 */
+	public void reset(long accountId) {
+		offsets[slotOf(accountId)] = 0;
+	}
+
+	private int slotOf(long accountId) {
+		return (int) ReplayGuard.mix(accountId) & mask;
+	}
+}
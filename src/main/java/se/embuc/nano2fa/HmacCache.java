@@ -0,0 +1,228 @@
+package se.embuc.nano2fa;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.crypto.Mac;
+
+/**
+ * Bounded, thread-safe cache of keyed HMAC-SHA1 state, keyed by the secret. Looking up a {@link Mac} and running its key
+ * schedule costs far more than hashing the 8 bytes of a time-step, so repeated validations for the same user should
+ * reuse the prepared state:
+ *
+ * <pre>
+ * HmacCache cache = new HmacCache(100_000, 10 * 60 * 1000L);
+ * boolean valid = TimeBasedOneTimePasswordUtil.validateCurrentNumber(cache, base32Secret, authNumber);
+ * </pre>
+ *
+ * <p>
+ * The cache keeps one initialized prototype per secret and hands out clones of it, since a {@link Mac} is not thread
+ * safe. Entries are evicted in least-recently-used order once the maximum size is reached and after they have not been
+ * accessed for the configured time. The cache is split into segments to keep lock contention low, each segment has its
+ * own LRU order so the eviction order is approximate across the whole cache.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public class HmacCache {
+
+	/** default maximum number of cached secrets */
+	public static final int DEFAULT_MAXIMUM_SIZE = 10_000;
+	/** default time after last access before an entry expires (10 minutes) */
+	public static final long DEFAULT_EXPIRE_AFTER_ACCESS_MILLIS = 10 * 60 * 1000L;
+
+	private static final int SEGMENT_COUNT = 16;
+
+	private final Segment[] segments;
+	private final long expireAfterAccessNanos;
+	private final LongSupplier ticker;
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder evictionCount = new LongAdder();
+
+	/**
+	 * Create a cache with {@link #DEFAULT_MAXIMUM_SIZE} and {@link #DEFAULT_EXPIRE_AFTER_ACCESS_MILLIS}.
+	 */
+	public HmacCache() {
+		this(DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRE_AFTER_ACCESS_MILLIS);
+	}
+
+	/**
+	 * @param maximumSize Maximum number of secrets to keep prepared state for.
+	 * @param expireAfterAccessMillis Milliseconds after the last access when an entry is dropped. Set to 0 or less to
+	 * disable time based eviction.
+	 */
+	public HmacCache(int maximumSize, long expireAfterAccessMillis) {
+		this(maximumSize, expireAfterAccessMillis, System::nanoTime);
+	}
+
+	HmacCache(int maximumSize, long expireAfterAccessMillis, LongSupplier ticker) {
+		if (maximumSize <= 0) {
+			throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+		}
+		int segmentCount = Math.min(SEGMENT_COUNT, Integer.highestOneBit(maximumSize));
+		int segmentSize = (maximumSize + segmentCount - 1) / segmentCount;
+		this.segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment(segmentSize);
+		}
+		this.expireAfterAccessNanos = expireAfterAccessMillis <= 0 ? 0 : expireAfterAccessMillis * 1_000_000L;
+		this.ticker = ticker;
+	}
+
+	/**
+	 * Return a {@link Mac} initialized with the given key. The returned instance is owned by the caller and must not be
+	 * shared between threads.
+	 *
+	 * @param key Decoded secret.
+	 * @return keyed mac ready for use
+	 */
+	public Mac getMac(byte[] key) {
+		if (key == null) {
+			// let the mac report the invalid key as the uncached path does
+			return TimeBasedOneTimePasswordUtil.newMac(key);
+		}
+		return getMac(key, 0, key.length);
+	}
+
+	/**
+	 * Same as {@link #getMac(byte[])} for a secret in a range of a buffer, which is copied when it is cached.
+	 *
+	 * @param key Buffer holding the decoded secret.
+	 * @param offset Offset of the secret in the buffer.
+	 * @param length Length of the secret.
+	 * @return keyed mac ready for use
+	 */
+	public Mac getMac(byte[] key, int offset, int length) {
+		ByteBuffer lookup = ByteBuffer.wrap(key, offset, length);
+		Segment segment = segmentFor(lookup);
+		long now = ticker.getAsLong();
+		Prepared entry;
+		synchronized (segment) {
+			entry = segment.get(lookup);
+			if (entry != null && isExpired(entry, now)) {
+				segment.remove(lookup);
+				evictionCount.increment();
+				entry = null;
+			}
+			if (entry != null) {
+				entry.lastAccessNanos = now;
+			}
+		}
+		if (entry != null) {
+			hitCount.increment();
+			return entry.newMac();
+		}
+		missCount.increment();
+		// key setup happens outside of the lock, two threads may race to prepare the same secret which is harmless
+		byte[] keyCopy = Arrays.copyOfRange(key, offset, offset + length);
+		Mac prototype = TimeBasedOneTimePasswordUtil.newMac(keyCopy);
+		entry = new Prepared(keyCopy, prototype, now);
+		synchronized (segment) {
+			segment.put(ByteBuffer.wrap(keyCopy), entry);
+		}
+		return entry.newMac();
+	}
+
+	/**
+	 * @return number of lookups that found prepared state
+	 */
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	/**
+	 * @return number of lookups that had to prepare new state
+	 */
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	/**
+	 * @return number of entries dropped because of size or expiry
+	 */
+	public long getEvictionCount() {
+		return evictionCount.sum();
+	}
+
+	/**
+	 * @return current number of cached secrets
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Drop all cached state, for example after secrets were rotated.
+	 */
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	private Segment segmentFor(ByteBuffer key) {
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return segments[hash & (segments.length - 1)];
+	}
+
+	private boolean isExpired(Prepared entry, long now) {
+		return expireAfterAccessNanos > 0 && now - entry.lastAccessNanos >= expireAfterAccessNanos;
+	}
+
+	private static final class Prepared {
+		private final byte[] key;
+		private final Mac prototype;
+		private long lastAccessNanos;
+
+		Prepared(byte[] key, Mac prototype, long lastAccessNanos) {
+			this.key = key;
+			this.prototype = prototype;
+			this.lastAccessNanos = lastAccessNanos;
+		}
+
+		Mac newMac() {
+			try {
+				// the prototype is never updated after init so concurrent clones only read its state
+				return (Mac) prototype.clone();
+			} catch (CloneNotSupportedException e) {
+				// provider without clone support, fall back to a fresh instance with the same key
+				return TimeBasedOneTimePasswordUtil.newMac(key);
+			}
+		}
+	}
+
+	private final class Segment extends LinkedHashMap<ByteBuffer, Prepared> {
+
+		private static final long serialVersionUID = 1L;
+		private final int maximumSize;
+
+		Segment(int maximumSize) {
+			super(16, 0.75f, true);
+			this.maximumSize = maximumSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Prepared> eldest) {
+			if (size() > maximumSize || isExpired(eldest.getValue(), ticker.getAsLong())) {
+				evictionCount.increment();
+				return true;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package se.embuc.nano2fa;
+
+/**
+ * Allocation free HMAC-SHA1 one-time password engine. The key is processed once when the instance is created, which
+ * leaves the SHA-1 state after the inner and outer key blocks. Each code then only costs two SHA-1 compressions on int
+ * words held in a {@link Scratch}, so nothing is allocated per code:
+ *
+ * <pre>
+ * HmacSha1 hmac = new HmacSha1(key);
+ * int number = hmac.generateNumber(counter, 6);
+ * </pre>
+ *
+ * <p>
+ * Instances are immutable and can be shared between threads. The methods without a {@link Scratch} argument use one
+ * scratch per thread, callers that manage their own threads can pass their own scratch instead. The output is the same
+ * as {@link TimeBasedOneTimePasswordUtil#generateNumberFromKeyValue(byte[], long, int)} which uses the JCA
+ * {@link javax.crypto.Mac}.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public final class HmacSha1 {
+
+	private static final int BLOCK_SIZE = 64;
+	private static final int IPAD = 0x36363636;
+	private static final int OPAD = 0x5c5c5c5c;
+	/** bit length of the inner message: key block plus the 8 byte counter */
+	private static final int INNER_BIT_LENGTH = (BLOCK_SIZE + 8) * 8;
+	/** bit length of the outer message: key block plus the 20 byte inner digest */
+	private static final int OUTER_BIT_LENGTH = (BLOCK_SIZE + 20) * 8;
+	/** 10^n for the number of digits which can be cut from the 31 bit truncated hash */
+	private static final int[] POWERS_OF_TEN = { 1, 10, 100, 1_000, 10_000, 100_000, 1_000_000, 10_000_000, 100_000_000, 1_000_000_000 };
+
+	private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+	/** SHA-1 state after the inner key block (0-4) and after the outer key block (5-9) */
+	private final int[] keyState = new int[10];
+
+	/**
+	 * @param key Decoded secret.
+	 */
+	public HmacSha1(byte[] key) {
+		this(key, 0, key == null ? 0 : key.length);
+	}
+
+	/**
+	 * @param key Buffer holding the decoded secret.
+	 * @param offset Offset of the secret in the buffer.
+	 * @param length Length of the secret.
+	 */
+	public HmacSha1(byte[] key, int offset, int length) {
+		initKeyState(key, offset, length, keyState, SCRATCH.get());
+	}
+
+	/**
+	 * Generate the HOTP number for the given counter value, for TOTP the value is the time-step counter.
+	 *
+	 * @param value Counter value.
+	 * @param numDigits Number of digits of the number.
+	 * @return the number
+	 */
+	public int generateNumber(long value, int numDigits) {
+		return generateNumber(keyState, value, numDigits, SCRATCH.get());
+	}
+
+	/**
+	 * Same as {@link #generateNumber(long, int)} with caller owned scratch state.
+	 *
+	 * @param value Counter value.
+	 * @param numDigits Number of digits of the number.
+	 * @param scratch Scratch state which must not be used by another thread at the same time.
+	 * @return the number
+	 */
+	public int generateNumber(long value, int numDigits, Scratch scratch) {
+		return generateNumber(keyState, value, numDigits, scratch);
+	}
+
+	/**
+	 * Validate a number the same way as {@link TimeBasedOneTimePasswordUtil#validateCurrentNumber(String, int, long)}
+	 * does, without allocating.
+	 *
+	 * @param authNumber Time based number provided by the user from their authenticator application.
+	 * @param windowMillis Number of milliseconds that they are allowed to be off and still match. Set to 0 for no window.
+	 * @param timeMillis Time in milliseconds to validate against, usually {@link System#currentTimeMillis()}.
+	 * @param timeStepSeconds Time-step in seconds.
+	 * @param numDigits Number of digits of the number.
+	 * @return True if the authNumber matched the calculated number within the specified window.
+	 */
+	public boolean validateCurrentNumber(int authNumber, long windowMillis, long timeMillis, int timeStepSeconds, int numDigits) {
+		Scratch scratch = SCRATCH.get();
+		if (windowMillis <= 0) {
+			windowMillis = 0;
+		}
+		long startValue = TimeBasedOneTimePasswordUtil.generateValue(timeMillis - windowMillis, timeStepSeconds);
+		long endValue = TimeBasedOneTimePasswordUtil.generateValue(timeMillis + windowMillis, timeStepSeconds);
+		for (long value = startValue; value <= endValue; value++) {
+			if (generateNumber(keyState, value, numDigits, scratch) == authNumber) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Compute the SHA-1 state after the inner and outer key blocks into <code>keyState[0..9]</code>.
+	 */
+	static void initKeyState(byte[] key, int offset, int length, int[] keyState, Scratch scratch) {
+		if (key == null || length <= 0) {
+			// same as the JCA path which refuses empty keys
+			throw new IllegalArgumentException("Empty key");
+		}
+		if (length > BLOCK_SIZE) {
+			// keys longer than the block size are replaced by their digest
+			key = sha1(key, offset, length);
+			offset = 0;
+			length = key.length;
+		}
+		int[] w = scratch.w;
+		loadKeyBlock(key, offset, length, w, IPAD);
+		initialState(keyState, 0);
+		compress(keyState, 0, w);
+		loadKeyBlock(key, offset, length, w, OPAD);
+		initialState(keyState, 5);
+		compress(keyState, 5, w);
+	}
+
+	/**
+	 * HOTP for a key state prepared by {@link #initKeyState(byte[], int, int, int[], Scratch)}.
+	 */
+	static int generateNumber(int[] keyState, long value, int numDigits, Scratch scratch) {
+		hmac(keyState, value, scratch);
+		return truncate(scratch.digest, numDigits);
+	}
+
+	/**
+	 * Leave the HMAC of the 8 byte big-endian value in <code>scratch.digest</code>.
+	 */
+	static void hmac(int[] keyState, long value, Scratch scratch) {
+		int[] w = scratch.w;
+		int[] digest = scratch.digest;
+
+		// inner hash: counter, padding and length in a single block after the key block
+		w[0] = (int) (value >>> 32);
+		w[1] = (int) value;
+		w[2] = 0x80000000;
+		for (int i = 3; i < 15; i++) {
+			w[i] = 0;
+		}
+		w[15] = INNER_BIT_LENGTH;
+		System.arraycopy(keyState, 0, digest, 0, 5);
+		compress(digest, 0, w);
+
+		// outer hash: inner digest, padding and length in a single block after the key block
+		System.arraycopy(digest, 0, w, 0, 5);
+		w[5] = 0x80000000;
+		for (int i = 6; i < 15; i++) {
+			w[i] = 0;
+		}
+		w[15] = OUTER_BIT_LENGTH;
+		System.arraycopy(keyState, 5, digest, 0, 5);
+		compress(digest, 0, w);
+	}
+
+	/**
+	 * Dynamic truncation as in {@link TimeBasedOneTimePasswordUtil#truncate(byte[], int)} but on the digest words.
+	 */
+	static int truncate(int[] digest, int numDigits) {
+		/* the 4 least significant bits of the last byte are the offset */
+		int offset = digest[4] & 0xF;
+		int shift = (offset & 3) << 3;
+		int word = offset >>> 2;
+		int truncatedHash = digest[word];
+		if (shift != 0) {
+			truncatedHash = (truncatedHash << shift) | (digest[word + 1] >>> (32 - shift));
+		}
+		// cut off the top bit
+		truncatedHash &= 0x7FFFFFFF;
+		if (numDigits < POWERS_OF_TEN.length) {
+			truncatedHash %= POWERS_OF_TEN[numDigits];
+		}
+		return truncatedHash;
+	}
+
+	private static void loadKeyBlock(byte[] key, int offset, int length, int[] w, int pad) {
+		for (int i = 0; i < 16; i++) {
+			int word = 0;
+			for (int j = 0; j < 4; j++) {
+				int index = (i << 2) + j;
+				word = (word << 8) | (index < length ? key[offset + index] & 0xFF : 0);
+			}
+			w[i] = word ^ pad;
+		}
+	}
+
+	private static void initialState(int[] h, int offset) {
+		h[offset] = 0x67452301;
+		h[offset + 1] = 0xEFCDAB89;
+		h[offset + 2] = 0x98BADCFE;
+		h[offset + 3] = 0x10325476;
+		h[offset + 4] = 0xC3D2E1F0;
+	}
+
+	/**
+	 * SHA-1 compression of the block in <code>w[0..15]</code> into <code>h[offset..offset+4]</code>. Uses
+	 * <code>w[16..79]</code> for the message schedule.
+	 */
+	private static void compress(int[] h, int offset, int[] w) {
+		for (int i = 16; i < 80; i++) {
+			w[i] = Integer.rotateLeft(w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16], 1);
+		}
+		int a = h[offset];
+		int b = h[offset + 1];
+		int c = h[offset + 2];
+		int d = h[offset + 3];
+		int e = h[offset + 4];
+		int i = 0;
+		for (; i < 20; i++) {
+			int t = Integer.rotateLeft(a, 5) + ((b & c) | (~b & d)) + e + 0x5A827999 + w[i];
+			e = d;
+			d = c;
+			c = Integer.rotateLeft(b, 30);
+			b = a;
+			a = t;
+		}
+		for (; i < 40; i++) {
+			int t = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + 0x6ED9EBA1 + w[i];
+			e = d;
+			d = c;
+			c = Integer.rotateLeft(b, 30);
+			b = a;
+			a = t;
+		}
+		for (; i < 60; i++) {
+			int t = Integer.rotateLeft(a, 5) + ((b & c) | (b & d) | (c & d)) + e + 0x8F1BBCDC + w[i];
+			e = d;
+			d = c;
+			c = Integer.rotateLeft(b, 30);
+			b = a;
+			a = t;
+		}
+		for (; i < 80; i++) {
+			int t = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + 0xCA62C1D6 + w[i];
+			e = d;
+			d = c;
+			c = Integer.rotateLeft(b, 30);
+			b = a;
+			a = t;
+		}
+		h[offset] += a;
+		h[offset + 1] += b;
+		h[offset + 2] += c;
+		h[offset + 3] += d;
+		h[offset + 4] += e;
+	}
+
+	/**
+	 * Plain SHA-1 of a byte range, only used for keys which are longer than the block size.
+	 */
+	private static byte[] sha1(byte[] data, int offset, int length) {
+		int[] h = new int[5];
+		initialState(h, 0);
+		int[] w = new int[80];
+		long bitLength = (long) length << 3;
+		// message, the 0x80 marker and the 8 byte length rounded up to whole blocks
+		int paddedLength = ((length + 8) / BLOCK_SIZE + 1) * BLOCK_SIZE;
+		for (int block = 0; block < paddedLength; block += BLOCK_SIZE) {
+			for (int i = 0; i < 16; i++) {
+				int word = 0;
+				for (int j = 0; j < 4; j++) {
+					int index = block + (i << 2) + j;
+					int b;
+					if (index < length) {
+						b = data[offset + index] & 0xFF;
+					} else if (index == length) {
+						b = 0x80;
+					} else if (index >= paddedLength - 8) {
+						b = (int) (bitLength >>> ((paddedLength - 1 - index) << 3)) & 0xFF;
+					} else {
+						b = 0;
+					}
+					word = (word << 8) | b;
+				}
+				w[i] = word;
+			}
+			compress(h, 0, w);
+		}
+		byte[] digest = new byte[20];
+		for (int i = 0; i < 20; i++) {
+			digest[i] = (byte) (h[i >>> 2] >>> (24 - ((i & 3) << 3)));
+		}
+		return digest;
+	}
+
+	/**
+	 * Scratch state for one thread. Holds the SHA-1 message schedule and the digest words.
+	 */
+	public static final class Scratch {
+		final int[] w = new int[80];
+		final int[] digest = new int[5];
+	}
+}
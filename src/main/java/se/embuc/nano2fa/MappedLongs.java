@@ -0,0 +1,74 @@
+package se.embuc.nano2fa;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+/**
+ * Atomic access to the longs of a memory-mapped file shared between processes, for {@link MappedUsedCodeRegistry}. This
+ * is the Java 8 version which has no atomic operations on mapped memory: a compare-and-set takes a lock on the 8 bytes
+ * of the file, so it costs two system calls. The multi-release jar replaces it with a lock-free compare-and-set on Java
+ * 21 and newer, see <code>src/main/java21</code>.
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+final class MappedLongs {
+
+	/** the longs are changed under file locks */
+	static final int LOCKING = 1;
+	/** the longs are changed with compare-and-set instructions */
+	static final int LOCK_FREE = 2;
+
+	private static final int STRIPES = 64;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	/** file locks belong to the whole process, the threads of it are kept apart by these */
+	private final Object[] stripes = new Object[STRIPES];
+
+	MappedLongs(FileChannel channel, MappedByteBuffer buffer) {
+		this.channel = channel;
+		this.buffer = buffer;
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Object();
+		}
+	}
+
+	/**
+	 * Return how this version changes the longs, every process sharing a file must do it the same way. A method and not a
+	 * constant, which would be compiled into the callers from the Java 8 version.
+	 */
+	static int mode() {
+		return LOCKING;
+	}
+
+	/**
+	 * Read the long at the offset. The value may be stale, a following {@link #compareAndSet(int, long, long)} tells.
+	 */
+	long get(int offset) {
+		return buffer.getLong(offset);
+	}
+
+	/**
+	 * Set the long at the offset to the value if it is the expected one.
+	 *
+	 * @return True if the value was set.
+	 * @throws IOException if the file cannot be locked
+	 */
+	boolean compareAndSet(int offset, long expected, long value) throws IOException {
+		synchronized (stripes[(offset >>> 3) & (STRIPES - 1)]) {
+			FileLock lock = channel.lock(offset, Long.BYTES, false);
+			try {
+				if (buffer.getLong(offset) != expected) {
+					return false;
+				}
+				buffer.putLong(offset, value);
+				return true;
+			} finally {
+				lock.release();
+			}
+		}
+	}
+}
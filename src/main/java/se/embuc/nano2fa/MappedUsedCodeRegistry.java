@@ -0,0 +1,249 @@
+package se.embuc.nano2fa;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link UsedCodeRegistry} shared by the processes of one host through a memory-mapped file, for example several
+ * application servers behind a local load balancer:
+ *
+ * <pre>
+ * try (MappedUsedCodeRegistry registry = new MappedUsedCodeRegistry(Paths.get("/dev/shm/nano2fa-used-codes"))) {
+ * 	boolean valid = TimeBasedOneTimePasswordUtil.validateCurrentNumber(registry, accountId, base32Secret, authNumber);
+ * 	...
+ * }
+ * </pre>
+ *
+ * <p>
+ * The file holds the same ring of tables as {@link ReplayGuard}, one open addressing table per time-step, but in shared
+ * memory. A table starts with the newest time-step recorded in it and a 24 bit tag counting the time-steps it has
+ * held, every entry is the account id hashed to 40 bits with the tag of its time-step. Entries of older tags count as
+ * free and are overwritten where a probe finds them, so a time-step is evicted as a whole once a newer one takes over
+ * its table, at the cost of one more compare-and-set on the table header and without visiting the old entries. A tag
+ * only comes round again after 2^24 time-steps of one table, decades even for one second time-steps, and a leftover
+ * mistaken for the current time-step then only reports its slot as taken. Recording a pair is one compare-and-set on
+ * the shared page and is only done for numbers which matched. On Java 21 and newer it is a single instruction, on Java
+ * 8 it takes a lock on the 8 bytes of the file.
+ * </p>
+ * <p>
+ * The registry fails closed like {@link ReplayGuard}: a full table, an evicted time-step, a failing file lock and a
+ * closed registry all report the number as used, and so do two accounts whose hashes collide in the same time-step
+ * and time-step values of 2^40 - 1 and above.
+ * Every process must open the file with the same capacity and window steps and on the same side of Java 21, opening a
+ * file created otherwise fails. Open it once per process and share the instance between the threads. A file on a
+ * memory file system such as <code>/dev/shm</code> is never written to disk.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public class MappedUsedCodeRegistry implements UsedCodeRegistry, Closeable {
+
+	/** default number of accepted logins which can be recorded per time-step */
+	public static final int DEFAULT_CAPACITY_PER_STEP = ReplayGuard.DEFAULT_CAPACITY_PER_STEP;
+	/** default number of time-steps before and after now that validations may use, enough for the 10 second window */
+	public static final int DEFAULT_WINDOW_STEPS = ReplayGuard.DEFAULT_WINDOW_STEPS;
+
+	/** "N2FU" */
+	private static final int MAGIC = 0x4E324655;
+	private static final int FORMAT_VERSION = 3;
+	/** file header and table header, a cache line each */
+	private static final int HEADER_SIZE = 64;
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int MODE_OFFSET = 8;
+	private static final int TABLE_SIZE_OFFSET = 12;
+	private static final int TABLE_COUNT_OFFSET = 16;
+	private static final long EMPTY = 0;
+	private static final int TAG_SHIFT = 40;
+	private static final long HASH_MASK = (1L << TAG_SHIFT) - 1;
+	private static final int TAG_MASK = (1 << 24) - 1;
+	private static final long MAX_VALUE = HASH_MASK - 1;
+
+	private final FileChannel channel;
+	private final MappedLongs longs;
+	private final int tableSize;
+	private final int tableCount;
+	private final int tableBytes;
+	private volatile boolean closed;
+
+	/**
+	 * Open or create a registry with {@link #DEFAULT_CAPACITY_PER_STEP} and {@link #DEFAULT_WINDOW_STEPS}.
+	 *
+	 * @param file File shared by the processes.
+	 * @throws IOException if the file cannot be opened or was created with other settings
+	 */
+	public MappedUsedCodeRegistry(Path file) throws IOException {
+		this(file, DEFAULT_CAPACITY_PER_STEP, DEFAULT_WINDOW_STEPS);
+	}
+
+	/**
+	 * @param file File shared by the processes.
+	 * @param capacityPerStep Maximum number of accounts which can be accepted per time-step.
+	 * @param windowSteps Largest validation window in whole time-steps, the accepted pairs are kept for that many
+	 * time-steps.
+	 * @throws IOException if the file cannot be opened or was created with other settings
+	 */
+	public MappedUsedCodeRegistry(Path file, int capacityPerStep, int windowSteps) throws IOException {
+		if (capacityPerStep <= 0 || capacityPerStep > 1 << 26) {
+			throw new IllegalArgumentException("capacityPerStep must be between 1 and 2^26: " + capacityPerStep);
+		}
+		if (windowSteps < 0) {
+			throw new IllegalArgumentException("windowSteps must not be negative: " + windowSteps);
+		}
+		// the same sizing as the guard: load factor at or below 0.5 and a table per time-step which can be validated
+		this.tableSize = Integer.highestOneBit(capacityPerStep * 2 - 1) << 1;
+		this.tableCount = 2 * windowSteps + 2;
+		this.tableBytes = HEADER_SIZE + tableSize * Long.BYTES;
+		long fileSize = HEADER_SIZE + (long) tableCount * tableBytes;
+		if (fileSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("The registry of " + capacityPerStep + " per step and " + windowSteps + " window steps does not fit 2 GB");
+		}
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			MappedByteBuffer buffer;
+			// processes opening the file at the same time wait here until the first has written the header
+			FileLock lock = channel.lock(0, HEADER_SIZE, false);
+			try {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				channel.read(header, 0);
+				if (header.getInt(MAGIC_OFFSET) == MAGIC) {
+					checkHeader(file, header);
+					buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+				} else {
+					buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+					buffer.putInt(VERSION_OFFSET, FORMAT_VERSION);
+					buffer.putInt(MODE_OFFSET, MappedLongs.mode());
+					buffer.putInt(TABLE_SIZE_OFFSET, tableSize);
+					buffer.putInt(TABLE_COUNT_OFFSET, tableCount);
+					// the magic last, a file without it is initialized again
+					buffer.putInt(MAGIC_OFFSET, MAGIC);
+					buffer.force();
+				}
+			} finally {
+				lock.release();
+			}
+			this.longs = new MappedLongs(channel, buffer);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Record that the number of the time-step was accepted for the account. For callers which validate on their own.
+	 *
+	 * @param accountId Id of the account.
+	 * @param value Time-step counter value the number matched.
+	 * @return True if the pair was recorded now, false if it was used before or cannot be recorded.
+	 */
+	@Override
+	public boolean markUsed(long accountId, long value) {
+		if (closed || value < 0 || value > MAX_VALUE) {
+			return false;
+		}
+		try {
+			int table = HEADER_SIZE + (int) (value % tableCount) * tableBytes;
+			int tag = advanceTo(table, value);
+			if (tag < 0) {
+				return false;
+			}
+			long hash = ReplayGuard.mix(accountId) & HASH_MASK;
+			// the entry is never EMPTY
+			long entry = (long) tag << TAG_SHIFT | (hash == EMPTY ? 1 : hash);
+			int mask = tableSize - 1;
+			int index = (int) hash & mask;
+			for (int probe = 0; probe <= mask; probe++) {
+				int offset = table + HEADER_SIZE + index * Long.BYTES;
+				long current = longs.get(offset);
+				while (true) {
+					if (current == entry) {
+						return false;
+					}
+					int age = age(current, tag);
+					if (current != EMPTY && age == 0) {
+						// another account of the same time-step
+						break;
+					}
+					if (current != EMPTY && age == TAG_MASK) {
+						// the next time-step of the table took over while this one was probing
+						return false;
+					}
+					// free or left over from an evicted time-step
+					if (longs.compareAndSet(offset, current, entry)) {
+						return true;
+					}
+					current = longs.get(offset);
+				}
+				index = (index + 1) & mask;
+			}
+			// full, fail closed
+			return false;
+		} catch (IOException | RuntimeException e) {
+			// the file cannot be locked or is no longer mapped, fail closed
+			return false;
+		}
+	}
+
+	/**
+	 * Close the file in this process, the other processes keep using it. Numbers are reported as used afterwards. The
+	 * mapping itself is released once the registry is garbage collected, as Java has no way to unmap a file earlier.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		channel.close();
+	}
+
+	/**
+	 * Raise the newest time-step of the table to the value. The table header holds the tag above the newest value + 1,
+	 * so a fresh table reads as none.
+	 *
+	 * @return The tag of the value, or -1 if the table already holds a newer time-step and the value has been evicted.
+	 */
+	private int advanceTo(int table, long value) throws IOException {
+		while (true) {
+			long header = longs.get(table);
+			int tag = (int) (header >>> TAG_SHIFT);
+			long newest = (header & HASH_MASK) - 1;
+			if (header != EMPTY && newest >= value) {
+				return newest == value ? tag : -1;
+			}
+			int next = (tag + 1) & TAG_MASK;
+			long raised = (long) next << TAG_SHIFT | (value + 1);
+			if (longs.compareAndSet(table, header, raised)) {
+				return next;
+			}
+		}
+	}
+
+	/**
+	 * Return how many tags the entry is older than the tag, {@link #TAG_MASK} if it is of the next one.
+	 */
+	private static int age(long entry, int tag) {
+		return (tag - (int) (entry >>> TAG_SHIFT)) & TAG_MASK;
+	}
+
+	private void checkHeader(Path file, ByteBuffer header) throws IOException {
+		int version = header.getInt(VERSION_OFFSET);
+		int mode = header.getInt(MODE_OFFSET);
+		int size = header.getInt(TABLE_SIZE_OFFSET);
+		int count = header.getInt(TABLE_COUNT_OFFSET);
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Registry " + file + " has format version " + version + ", expected " + FORMAT_VERSION);
+		}
+		if (mode != MappedLongs.mode()) {
+			throw new IOException("Registry " + file + " is shared " + (mode == MappedLongs.LOCKING ? "with file locks by Java 8 to 20"
+					: "lock-free by Java 21 or newer") + ", all processes must run on the same side of Java 21");
+		}
+		if (size != tableSize || count != tableCount) {
+			throw new IOException("Registry " + file + " has " + count + " tables of " + size + " entries, expected " + tableCount + " of " + tableSize);
+		}
+	}
+}
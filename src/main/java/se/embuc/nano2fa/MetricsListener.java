@@ -0,0 +1,70 @@
+package se.embuc.nano2fa;
+
+/**
+ * Receives what generation and validation did. Register one with
+ * {@link TimeBasedOneTimePasswordUtil#setMetricsListener(MetricsListener)}:
+ *
+ * <pre>
+ * MetricsRecorder recorder = new MetricsRecorder();
+ * TimeBasedOneTimePasswordUtil.setMetricsListener(recorder);
+ * ...
+ * MetricsSnapshot snapshot = recorder.snapshot();
+ * </pre>
+ *
+ * <p>
+ * The methods are called on the thread which validated, right on the hot path, so implementations must be thread safe,
+ * must not block and should not allocate. {@link MetricsRecorder} is such an implementation. While {@link #NOOP} is
+ * registered, which is the default, not even the clock is read.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public interface MetricsListener {
+
+	/** listener which ignores everything, the default */
+	MetricsListener NOOP = new MetricsListener() {
+	};
+
+	/**
+	 * Why a validation did not accept the number.
+	 */
+	enum RejectReason {
+		/** no time-step in the window generated the number */
+		MISMATCH,
+		/** the secret could not be decoded into a key */
+		INVALID_SECRET,
+		/** the number matched but was already used, see {@link ReplayGuard} */
+		REPLAYED,
+		/** the account was locked out after too many failures, no HMAC was computed, see {@link AttemptLimiter} */
+		THROTTLED
+	}
+
+	/**
+	 * Called when a number was accepted.
+	 *
+	 * @param hmacCount Number of HMACs computed until the match.
+	 * @param matchedOffset Time-step the number matched relative to the current one, -1 is the previous time-step.
+	 * @param elapsedNanos Time spent validating.
+	 */
+	default void validated(long hmacCount, int matchedOffset, long elapsedNanos) {
+	}
+
+	/**
+	 * Called when a number was not accepted.
+	 *
+	 * @param reason Why it was rejected.
+	 * @param hmacCount Number of HMACs computed.
+	 * @param elapsedNanos Time spent validating.
+	 */
+	default void rejected(RejectReason reason, long hmacCount, long elapsedNanos) {
+	}
+
+	/**
+	 * Called when a number was generated.
+	 *
+	 * @param elapsedNanos Time spent generating.
+	 */
+	default void generated(long elapsedNanos) {
+	}
+}
@@ -0,0 +1,116 @@
+package se.embuc.nano2fa;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free {@link MetricsListener} which counts validations, rejections per reason, HMACs and matched window offsets
+ * and keeps histograms of the validation and generation latency. {@link #snapshot()} returns a copy which can be
+ * exported.
+ *
+ * <p>
+ * Counters are {@link LongAdder}s so many threads can record without contending on one cache line. The latency
+ * histograms are log-linear like HdrHistogram: every power of two is split into {@value #SUB_BUCKETS} linear buckets,
+ * which keeps percentiles within about 6% of the real value from nanoseconds up to hours in a fixed array of counters.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public class MetricsRecorder implements MetricsListener {
+
+	/** matched offsets from -MAX_OFFSET to +MAX_OFFSET are counted separately, larger ones go to the outermost counters */
+	static final int MAX_OFFSET = 8;
+	static final int SUB_BUCKET_BITS = 4;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** enough buckets for every positive long */
+	static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final LongAdder validated = new LongAdder();
+	private final LongAdder[] rejected = new LongAdder[RejectReason.values().length];
+	private final LongAdder generated = new LongAdder();
+	private final LongAdder hmacs = new LongAdder();
+	private final LongAdder[] offsets = new LongAdder[2 * MAX_OFFSET + 1];
+	private final AtomicLongArray validationLatency = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLongArray generationLatency = new AtomicLongArray(BUCKET_COUNT);
+
+	public MetricsRecorder() {
+		for (int i = 0; i < rejected.length; i++) {
+			rejected[i] = new LongAdder();
+		}
+		for (int i = 0; i < offsets.length; i++) {
+			offsets[i] = new LongAdder();
+		}
+	}
+
+	@Override
+	public void validated(long hmacCount, int matchedOffset, long elapsedNanos) {
+		validated.increment();
+		hmacs.add(hmacCount);
+		offsets[Math.max(-MAX_OFFSET, Math.min(MAX_OFFSET, matchedOffset)) + MAX_OFFSET].increment();
+		validationLatency.incrementAndGet(bucketOf(elapsedNanos));
+	}
+
+	@Override
+	public void rejected(RejectReason reason, long hmacCount, long elapsedNanos) {
+		rejected[reason.ordinal()].increment();
+		hmacs.add(hmacCount);
+		validationLatency.incrementAndGet(bucketOf(elapsedNanos));
+	}
+
+	@Override
+	public void generated(long elapsedNanos) {
+		generated.increment();
+		generationLatency.incrementAndGet(bucketOf(elapsedNanos));
+	}
+
+	/**
+	 * Return a copy of the current values. Recording continues while the copy is taken, so the values of a busy
+	 * recorder may be off by the calls which happened meanwhile.
+	 */
+	public MetricsSnapshot snapshot() {
+		long[] rejectedCounts = new long[rejected.length];
+		for (int i = 0; i < rejected.length; i++) {
+			rejectedCounts[i] = rejected[i].sum();
+		}
+		long[] offsetCounts = new long[offsets.length];
+		for (int i = 0; i < offsets.length; i++) {
+			offsetCounts[i] = offsets[i].sum();
+		}
+		return new MetricsSnapshot(validated.sum(), rejectedCounts, generated.sum(), hmacs.sum(), offsetCounts, copy(validationLatency),
+				copy(generationLatency));
+	}
+
+	/**
+	 * Values below {@link #SUB_BUCKETS} have their own bucket, above that every power of two is split into
+	 * {@link #SUB_BUCKETS} buckets.
+	 */
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return value < 0 ? 0 : (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Smallest value which is counted in the bucket.
+	 */
+	static long lowestValueOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+	}
+
+	private static long[] copy(AtomicLongArray array) {
+		long[] counts = new long[array.length()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = array.get(i);
+		}
+		return counts;
+	}
+}
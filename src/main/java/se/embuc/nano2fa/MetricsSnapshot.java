@@ -0,0 +1,174 @@
+package se.embuc.nano2fa;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import se.embuc.nano2fa.MetricsListener.RejectReason;
+
+/**
+ * Immutable copy of the values of a {@link MetricsRecorder}. Use {@link #asMap()} to hand them to a metrics system.
+ * Latencies are in nanoseconds.
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public final class MetricsSnapshot {
+
+	private static final double[] EXPORTED_PERCENTILES = { 50, 90, 99, 99.9 };
+
+	private final long validated;
+	private final long[] rejected;
+	private final long generated;
+	private final long hmacs;
+	private final long[] offsets;
+	private final long[] validationLatency;
+	private final long[] generationLatency;
+
+	MetricsSnapshot(long validated, long[] rejected, long generated, long hmacs, long[] offsets, long[] validationLatency,
+			long[] generationLatency) {
+		this.validated = validated;
+		this.rejected = rejected;
+		this.generated = generated;
+		this.hmacs = hmacs;
+		this.offsets = offsets;
+		this.validationLatency = validationLatency;
+		this.generationLatency = generationLatency;
+	}
+
+	/**
+	 * @return number of accepted numbers
+	 */
+	public long getValidated() {
+		return validated;
+	}
+
+	/**
+	 * @return number of numbers rejected for the reason
+	 */
+	public long getRejected(RejectReason reason) {
+		return rejected[reason.ordinal()];
+	}
+
+	/**
+	 * @return number of rejected numbers for all reasons
+	 */
+	public long getRejected() {
+		long sum = 0;
+		for (long count : rejected) {
+			sum += count;
+		}
+		return sum;
+	}
+
+	/**
+	 * @return number of generated numbers
+	 */
+	public long getGenerated() {
+		return generated;
+	}
+
+	/**
+	 * @return number of HMACs computed by all validations
+	 */
+	public long getHmacCount() {
+		return hmacs;
+	}
+
+	/**
+	 * @return average number of HMACs per validation, 0 if there were none
+	 */
+	public double getHmacsPerValidation() {
+		long validations = validated + getRejected();
+		return validations == 0 ? 0 : (double) hmacs / validations;
+	}
+
+	/**
+	 * Return how many numbers matched the given time-step relative to the current one. Offsets beyond +/-
+	 * {@value MetricsRecorder#MAX_OFFSET} are counted with the outermost offset. A growing share of non-zero offsets
+	 * points to clocks drifting apart.
+	 *
+	 * @param offset Time-step offset, -1 is the previous time-step.
+	 * @return number of accepted numbers which matched at the offset
+	 */
+	public long getMatchedOffset(int offset) {
+		if (offset < -MetricsRecorder.MAX_OFFSET || offset > MetricsRecorder.MAX_OFFSET) {
+			return 0;
+		}
+		return offsets[offset + MetricsRecorder.MAX_OFFSET];
+	}
+
+	/**
+	 * @param percentile Between 0 and 100, for example 99 for p99.
+	 * @return the validation latency in nanoseconds below which the percentile of validations finished, 0 if there
+	 * were none
+	 */
+	public long getValidationLatency(double percentile) {
+		return valueAt(validationLatency, percentile);
+	}
+
+	/**
+	 * @param percentile Between 0 and 100, for example 99 for p99.
+	 * @return the generation latency in nanoseconds below which the percentile of generations finished, 0 if there
+	 * were none
+	 */
+	public long getGenerationLatency(double percentile) {
+		return valueAt(generationLatency, percentile);
+	}
+
+	/**
+	 * Return all values by name, suitable for export. Names are dot separated, for example
+	 * <code>validation.latency.p99</code>.
+	 */
+	public Map<String, Number> asMap() {
+		Map<String, Number> map = new LinkedHashMap<>();
+		map.put("validated", validated);
+		for (RejectReason reason : RejectReason.values()) {
+			map.put("rejected." + reason.name().toLowerCase(), getRejected(reason));
+		}
+		map.put("generated", generated);
+		map.put("hmacs", hmacs);
+		map.put("hmacs.per.validation", getHmacsPerValidation());
+		for (int offset = -MetricsRecorder.MAX_OFFSET; offset <= MetricsRecorder.MAX_OFFSET; offset++) {
+			long count = getMatchedOffset(offset);
+			// only the offsets which occurred, most of them never do
+			if (count > 0 || offset == 0) {
+				map.put("offset." + offset, count);
+			}
+		}
+		for (double percentile : EXPORTED_PERCENTILES) {
+			map.put("validation.latency.p" + formatPercentile(percentile), getValidationLatency(percentile));
+		}
+		for (double percentile : EXPORTED_PERCENTILES) {
+			map.put("generation.latency.p" + formatPercentile(percentile), getGenerationLatency(percentile));
+		}
+		return map;
+	}
+
+	@Override
+	public String toString() {
+		return asMap().toString();
+	}
+
+	private static long valueAt(long[] counts, double percentile) {
+		long total = 0;
+		for (long count : counts) {
+			total += count;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+		long seen = 0;
+		for (int bucket = 0; bucket < counts.length; bucket++) {
+			seen += counts[bucket];
+			if (seen >= rank) {
+				return MetricsRecorder.lowestValueOf(bucket);
+			}
+		}
+		return MetricsRecorder.lowestValueOf(counts.length - 1);
+	}
+
+	private static String formatPercentile(double percentile) {
+		return percentile == (long) percentile ? Long.toString((long) percentile) : Double.toString(percentile);
+	}
+}
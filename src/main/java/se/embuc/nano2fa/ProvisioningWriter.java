@@ -0,0 +1,326 @@
+package se.embuc.nano2fa;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Streams provisioning records (account, secret, <code>otpauth://</code> URI and optionally the QR code as PNG data
+ * URI) as CSV or JSON lines, for enrolling or re-enrolling large sets of accounts:
+ *
+ * <pre>
+ * try (ProvisioningWriter writer = new ProvisioningWriter(out, ProvisioningWriter.Format.CSV, "Example Corp")) {
+ * 	for (Account account : accounts) {
+ * 		writer.write(account.getEmail(), account.getSecret());
+ * 	}
+ * }
+ * </pre>
+ *
+ * <p>
+ * Every record is assembled in one reused buffer and written out right away, so memory stays the same however many
+ * accounts are written. The URIs follow the Key Uri Format of authenticator applications: the label is
+ * <code>issuer:account</code> and every parameter (<code>secret</code>, <code>issuer</code>, <code>algorithm</code>,
+ * <code>digits</code>, <code>period</code>) is included. Issuer and account are percent-encoded as UTF-8, only the RFC
+ * 3986 unreserved characters are left as they are.
+ * </p>
+ * <p>
+ * Instances are not thread safe. Change the settings before the first record.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public class ProvisioningWriter implements Closeable, Flushable {
+
+	/** default algorithm in the URIs */
+	public static final String DEFAULT_ALGORITHM = "SHA1";
+	/** default width and height of a QR code module in pixels */
+	public static final int DEFAULT_QR_SCALE = 4;
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	/**
+	 * Layout of the records.
+	 */
+	public enum Format {
+		/** RFC 4180 comma separated values with a header line */
+		CSV,
+		/** one JSON object per line */
+		JSON_LINES
+	}
+
+	private final Writer out;
+	private final Format format;
+	private final String issuer;
+	private final StringBuilder record = new StringBuilder(256);
+	private final StringBuilder uri = new StringBuilder(128);
+	private final ByteArrayOutputStream png = new ByteArrayOutputStream(2048);
+	private char[] chars = new char[256];
+	private String algorithm = DEFAULT_ALGORITHM;
+	private int digits = TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH;
+	private int periodSeconds = TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS;
+	private int qrScale;
+	private long count;
+
+	/**
+	 * @param out Stream the records are written to as UTF-8. Closed by {@link #close()}.
+	 * @param format Layout of the records.
+	 * @param issuer Provider or service the accounts belong to, shown by authenticator applications. May be null.
+	 */
+	public ProvisioningWriter(OutputStream out, Format format, String issuer) {
+		this(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)), format, issuer);
+	}
+
+	/**
+	 * @param out Writer the records are written to. Closed by {@link #close()}.
+	 * @param format Layout of the records.
+	 * @param issuer Provider or service the accounts belong to, shown by authenticator applications. May be null.
+	 */
+	public ProvisioningWriter(Writer out, Format format, String issuer) {
+		this.out = out;
+		this.format = format;
+		this.issuer = issuer;
+	}
+
+	/**
+	 * @param algorithm HMAC algorithm of the accounts: SHA1, SHA256 or SHA512.
+	 * @return this writer
+	 */
+	public ProvisioningWriter setAlgorithm(String algorithm) {
+		if (!"SHA1".equals(algorithm) && !"SHA256".equals(algorithm) && !"SHA512".equals(algorithm)) {
+			throw new IllegalArgumentException("Unsupported algorithm: " + algorithm);
+		}
+		this.algorithm = algorithm;
+		return this;
+	}
+
+	/**
+	 * @param digits Number of digits of the numbers.
+	 * @return this writer
+	 */
+	public ProvisioningWriter setDigits(int digits) {
+		if (digits <= 0 || digits > CodeDigits.MAX_DIGITS) {
+			throw new IllegalArgumentException("Invalid digits: " + digits);
+		}
+		this.digits = digits;
+		return this;
+	}
+
+	/**
+	 * @param periodSeconds Time-step in seconds.
+	 * @return this writer
+	 */
+	public ProvisioningWriter setPeriod(int periodSeconds) {
+		if (periodSeconds <= 0) {
+			throw new IllegalArgumentException("Invalid period: " + periodSeconds);
+		}
+		this.periodSeconds = periodSeconds;
+		return this;
+	}
+
+	/**
+	 * Add the QR code of the URI to every record as PNG data URI, see {@link QrCode#toPngDataUri(int, int)}.
+	 *
+	 * @param scale Width and height of a module in pixels, for example {@link #DEFAULT_QR_SCALE}. 0 for no QR codes.
+	 * @return this writer
+	 */
+	public ProvisioningWriter setQrScale(int scale) {
+		if (scale < 0) {
+			throw new IllegalArgumentException("Invalid scale: " + scale);
+		}
+		this.qrScale = scale;
+		return this;
+	}
+
+	/**
+	 * Write the record of one account.
+	 *
+	 * @param accountName Name of the account shown by authenticator applications, for example the email address.
+	 * @param base32Secret Secret string encoded using base-32.
+	 * @throws IOException if writing fails
+	 */
+	public void write(String accountName, String base32Secret) throws IOException {
+		uri.setLength(0);
+		appendOtpAuthUri(uri, issuer, accountName, base32Secret, algorithm, digits, periodSeconds);
+		record.setLength(0);
+		if (format == Format.CSV) {
+			if (count == 0) {
+				record.append(qrScale > 0 ? "account,secret,uri,qr\r\n" : "account,secret,uri\r\n");
+			}
+			appendCsv(record, accountName);
+			record.append(',');
+			appendCsv(record, base32Secret);
+			// percent-encoding leaves nothing which needs quoting
+			record.append(',').append(uri);
+			if (qrScale > 0) {
+				record.append(',');
+				appendQrCode(record);
+			}
+			record.append("\r\n");
+		} else {
+			record.append("{\"account\":");
+			appendJson(record, accountName);
+			record.append(",\"secret\":");
+			appendJson(record, base32Secret);
+			record.append(",\"uri\":\"").append(uri).append('"');
+			if (qrScale > 0) {
+				record.append(",\"qr\":\"");
+				appendQrCode(record);
+				record.append('"');
+			}
+			record.append("}\n");
+		}
+		// Writer.append(CharSequence) would copy the record into a new String first
+		if (chars.length < record.length()) {
+			chars = new char[record.length() * 2];
+		}
+		record.getChars(0, record.length(), chars, 0);
+		out.write(chars, 0, record.length());
+		count++;
+	}
+
+	/**
+	 * @return number of records written
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+	/**
+	 * Return the <code>otpauth://totp/</code> URI with every parameter, percent-encoded as the writer does.
+	 *
+	 * @param issuer Provider or service the account belongs to. May be null.
+	 * @param accountName Name of the account shown by authenticator applications.
+	 * @param base32Secret Secret string encoded using base-32.
+	 * @param algorithm HMAC algorithm: SHA1, SHA256 or SHA512.
+	 * @param digits Number of digits of the numbers.
+	 * @param periodSeconds Time-step in seconds.
+	 * @return the URI
+	 */
+	public static String otpAuthUri(String issuer, String accountName, String base32Secret, String algorithm, int digits, int periodSeconds) {
+		StringBuilder sb = new StringBuilder(128);
+		appendOtpAuthUri(sb, issuer, accountName, base32Secret, algorithm, digits, periodSeconds);
+		return sb.toString();
+	}
+
+	static void appendOtpAuthUri(StringBuilder sb, String issuer, String accountName, String base32Secret, String algorithm, int digits,
+			int periodSeconds) {
+		sb.append("otpauth://totp/");
+		if (issuer != null) {
+			appendPercentEncoded(sb, issuer);
+			sb.append(':');
+		}
+		appendPercentEncoded(sb, accountName);
+		sb.append("?secret=");
+		appendPercentEncoded(sb, base32Secret);
+		if (issuer != null) {
+			sb.append("&issuer=");
+			appendPercentEncoded(sb, issuer);
+		}
+		sb.append("&algorithm=").append(algorithm);
+		sb.append("&digits=").append(digits);
+		sb.append("&period=").append(periodSeconds);
+	}
+
+	/**
+	 * Append the UTF-8 bytes of the text, everything but the RFC 3986 unreserved characters as <code>%XX</code>.
+	 */
+	static void appendPercentEncoded(StringBuilder sb, CharSequence text) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '-' || c == '.' || c == '_' || c == '~') {
+				sb.append(c);
+				continue;
+			}
+			int codePoint = c;
+			if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+				codePoint = Character.toCodePoint(c, text.charAt(++i));
+			} else if (Character.isSurrogate(c)) {
+				// an unpaired surrogate is not a character, encode the replacement character as String.getBytes does
+				codePoint = 0xFFFD;
+			}
+			if (codePoint < 0x80) {
+				appendEscaped(sb, codePoint);
+			} else if (codePoint < 0x800) {
+				appendEscaped(sb, 0xC0 | (codePoint >> 6));
+				appendEscaped(sb, 0x80 | (codePoint & 0x3F));
+			} else if (codePoint < 0x10000) {
+				appendEscaped(sb, 0xE0 | (codePoint >> 12));
+				appendEscaped(sb, 0x80 | ((codePoint >> 6) & 0x3F));
+				appendEscaped(sb, 0x80 | (codePoint & 0x3F));
+			} else {
+				appendEscaped(sb, 0xF0 | (codePoint >> 18));
+				appendEscaped(sb, 0x80 | ((codePoint >> 12) & 0x3F));
+				appendEscaped(sb, 0x80 | ((codePoint >> 6) & 0x3F));
+				appendEscaped(sb, 0x80 | (codePoint & 0x3F));
+			}
+		}
+	}
+
+	private static void appendEscaped(StringBuilder sb, int b) {
+		sb.append('%').append(HEX[b >> 4]).append(HEX[b & 0xF]);
+	}
+
+	private static void appendCsv(StringBuilder sb, String value) {
+		boolean quote = false;
+		for (int i = 0; i < value.length() && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+		}
+		if (!quote) {
+			sb.append(value);
+			return;
+		}
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"') {
+				sb.append('"');
+			}
+			sb.append(c);
+		}
+		sb.append('"');
+	}
+
+	private static void appendJson(StringBuilder sb, String value) {
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+			} else {
+				sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+	private void appendQrCode(StringBuilder sb) throws IOException {
+		png.reset();
+		QrCode.encode(uri.toString()).writePng(png, qrScale, QrCode.DEFAULT_BORDER);
+		sb.append("data:image/png;base64,");
+		byte[] base64 = Base64.getEncoder().encode(png.toByteArray());
+		for (byte b : base64) {
+			sb.append((char) b);
+		}
+	}
+}
@@ -0,0 +1,765 @@
+package se.embuc.nano2fa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * QR code (ISO/IEC 18004) encoder which renders the <code>otpauth://</code> URI in process, as PNG or SVG, so the
+ * enrollment page does not need a third party image server:
+ *
+ * <pre>
+ * QrCode qrCode = QrCode.encode(TimeBasedOneTimePasswordUtil.generateOtpAuthUri(keyId, secret));
+ * qrCode.writePng(outputStream, 4, 4);
+ * String dataUri = qrCode.toPngDataUri(4, 4);
+ * String svg = qrCode.toSvg(4);
+ * </pre>
+ *
+ * <p>
+ * Data is always encoded in byte mode, which is what URIs need, with the smallest version (size) which fits. The Galois
+ * field tables, the Reed-Solomon generator polynomials and the function patterns of every version (finder, timing and
+ * alignment patterns, version information) are built once and shared, so encoding only places the codewords and picks
+ * the mask with the lowest penalty. Instances are immutable.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public final class QrCode {
+
+	/**
+	 * Error correction level, the share of the codewords which can be restored.
+	 */
+	public enum ErrorCorrection {
+		/** about 7% */
+		LOW(1),
+		/** about 15% */
+		MEDIUM(0),
+		/** about 25% */
+		QUARTILE(3),
+		/** about 30% */
+		HIGH(2);
+
+		/** the two bits in the format information */
+		final int formatBits;
+
+		private ErrorCorrection(int formatBits) {
+			this.formatBits = formatBits;
+		}
+	}
+
+	/** quiet zone in modules around the code which the specification asks for */
+	public static final int DEFAULT_BORDER = 4;
+
+	private static final int MAX_VERSION = 40;
+	private static final int PENALTY_N1 = 3;
+	private static final int PENALTY_N2 = 3;
+	private static final int PENALTY_N3 = 40;
+	private static final int PENALTY_N4 = 10;
+	/** dark-light-dark-dark-dark-light-dark like a finder pattern, with four light modules before or after it */
+	private static final int FINDER_LIGHT_BEFORE = 0b00001011101;
+	private static final int FINDER_LIGHT_AFTER = 0b10111010000;
+
+	/** error correction codewords per block, by error correction ordinal and version */
+	private static final byte[][] ECC_CODEWORDS_PER_BLOCK = {
+			{ -1, 7, 10, 15, 20, 26, 18, 20, 24, 30, 18, 20, 24, 26, 30, 22, 24, 28, 30, 28, 28, 28, 28, 30, 30, 26, 28, 30, 30, 30, 30, 30, 30, 30,
+					30, 30, 30, 30, 30, 30, 30 },
+			{ -1, 10, 16, 26, 18, 24, 16, 18, 22, 22, 26, 30, 22, 22, 24, 24, 28, 28, 26, 26, 26, 26, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+					28, 28, 28, 28, 28, 28, 28 },
+			{ -1, 13, 22, 18, 26, 18, 24, 18, 22, 20, 24, 28, 26, 24, 20, 30, 24, 28, 28, 26, 30, 28, 30, 30, 30, 30, 28, 30, 30, 30, 30, 30, 30, 30,
+					30, 30, 30, 30, 30, 30, 30 },
+			{ -1, 17, 28, 22, 16, 22, 28, 26, 26, 24, 28, 24, 28, 22, 24, 24, 30, 28, 28, 26, 28, 30, 24, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 30,
+					30, 30, 30, 30, 30, 30, 30 } };
+
+	/** number of error correction blocks, by error correction ordinal and version */
+	private static final byte[][] NUM_ERROR_CORRECTION_BLOCKS = {
+			{ -1, 1, 1, 1, 1, 1, 2, 2, 2, 2, 4, 4, 4, 4, 4, 6, 6, 6, 6, 7, 8, 8, 9, 9, 10, 12, 12, 12, 13, 14, 15, 16, 17, 18, 19, 19, 20, 21, 22, 24,
+					25 },
+			{ -1, 1, 1, 1, 2, 2, 4, 4, 4, 5, 5, 5, 8, 9, 9, 10, 10, 11, 13, 14, 16, 17, 17, 18, 20, 21, 23, 25, 26, 28, 29, 31, 33, 35, 37, 38, 40, 43,
+					45, 47, 49 },
+			{ -1, 1, 1, 2, 2, 4, 4, 6, 6, 8, 8, 8, 10, 12, 16, 12, 17, 16, 18, 21, 20, 23, 23, 25, 27, 29, 34, 34, 35, 38, 40, 43, 45, 48, 51, 53, 56,
+					59, 62, 65, 68 },
+			{ -1, 1, 1, 2, 4, 4, 4, 5, 6, 8, 8, 11, 11, 16, 16, 18, 16, 19, 21, 25, 25, 25, 34, 30, 32, 35, 37, 40, 42, 45, 48, 51, 54, 57, 60, 63, 66,
+					70, 74, 77, 81 } };
+
+	private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+	/** antilogarithms of GF(2^8) with the polynomial 0x11D, twice the period so sums of logarithms need no modulo */
+	private static final int[] EXP = new int[510];
+	private static final int[] LOG = new int[256];
+	/** Reed-Solomon generator polynomials by degree, without the leading 1 */
+	private static final byte[][] GENERATORS = new byte[31][];
+	/** function patterns by version, built on first use */
+	private static final AtomicReferenceArray<Template> TEMPLATES = new AtomicReferenceArray<>(MAX_VERSION + 1);
+
+	static {
+		int value = 1;
+		for (int i = 0; i < 255; i++) {
+			EXP[i] = value;
+			EXP[i + 255] = value;
+			LOG[value] = i;
+			value <<= 1;
+			if (value >= 256) {
+				value ^= 0x11D;
+			}
+		}
+		for (int degree = 1; degree < GENERATORS.length; degree++) {
+			GENERATORS[degree] = generator(degree);
+		}
+	}
+
+	private final int version;
+	private final int size;
+	private final ErrorCorrection errorCorrection;
+	private final int mask;
+	/** row by row, true is dark */
+	private final boolean[] modules;
+
+	private QrCode(int version, ErrorCorrection errorCorrection, int mask, boolean[] modules) {
+		this.version = version;
+		this.size = version * 4 + 17;
+		this.errorCorrection = errorCorrection;
+		this.mask = mask;
+		this.modules = modules;
+	}
+
+	/**
+	 * Encode the text as UTF-8 with {@link ErrorCorrection#MEDIUM}.
+	 *
+	 * @param text Text to encode, for example an <code>otpauth://</code> URI.
+	 * @return the QR code
+	 * @throws IllegalArgumentException if the text does not fit into the largest QR code
+	 */
+	public static QrCode encode(String text) {
+		return encode(text.getBytes(StandardCharsets.UTF_8), ErrorCorrection.MEDIUM);
+	}
+
+	/**
+	 * Encode the bytes in byte mode into the smallest QR code which holds them.
+	 *
+	 * @param data Bytes to encode.
+	 * @param errorCorrection Error correction level.
+	 * @return the QR code
+	 * @throws IllegalArgumentException if the data does not fit into the largest QR code
+	 */
+	public static QrCode encode(byte[] data, ErrorCorrection errorCorrection) {
+		int version = 1;
+		while (true) {
+			int usedBits = 4 + (version < 10 ? 8 : 16) + data.length * 8;
+			if (usedBits <= numDataCodewords(version, errorCorrection) * 8) {
+				break;
+			}
+			if (version == MAX_VERSION) {
+				throw new IllegalArgumentException("Data of " + data.length + " bytes is too long for a QR code");
+			}
+			version++;
+		}
+		byte[] codewords = addErrorCorrection(dataCodewords(data, version, errorCorrection), version, errorCorrection);
+
+		Template template = template(version);
+		int size = template.size;
+		boolean[] modules = template.modules.clone();
+		drawCodewords(codewords, modules, template.function, size);
+		int bestMask = 0;
+		int bestPenalty = Integer.MAX_VALUE;
+		for (int mask = 0; mask < 8; mask++) {
+			applyMask(template.masks[mask], modules);
+			drawFormatBits(errorCorrection, mask, modules, size);
+			int penalty = penalty(modules, size);
+			if (penalty < bestPenalty) {
+				bestMask = mask;
+				bestPenalty = penalty;
+			}
+			// masking twice undoes it
+			applyMask(template.masks[mask], modules);
+		}
+		applyMask(template.masks[bestMask], modules);
+		drawFormatBits(errorCorrection, bestMask, modules, size);
+		return new QrCode(version, errorCorrection, bestMask, modules);
+	}
+
+	/**
+	 * @return version between 1 and 40
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return width and height in modules, without border
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the error correction level
+	 */
+	public ErrorCorrection getErrorCorrection() {
+		return errorCorrection;
+	}
+
+	/**
+	 * @return the mask pattern between 0 and 7
+	 */
+	public int getMask() {
+		return mask;
+	}
+
+	/**
+	 * @param x Column, 0 is left.
+	 * @param y Row, 0 is top.
+	 * @return true if the module is dark, false if light or outside of the code
+	 */
+	public boolean isDark(int x, int y) {
+		return x >= 0 && x < size && y >= 0 && y < size && modules[y * size + x];
+	}
+
+	/**
+	 * Write a black and white PNG image. The stream is not closed.
+	 *
+	 * @param out Stream to write to.
+	 * @param scale Width and height of a module in pixels.
+	 * @param border Width of the light border in modules, see {@link #DEFAULT_BORDER}.
+	 * @throws IOException if writing fails
+	 */
+	public void writePng(OutputStream out, int scale, int border) throws IOException {
+		if (scale <= 0 || border < 0) {
+			throw new IllegalArgumentException("Invalid scale " + scale + " or border " + border);
+		}
+		int dimension = (size + 2 * border) * scale;
+		ByteArrayOutputStream imageData = new ByteArrayOutputStream(dimension * dimension / 64 + 64);
+		Deflater deflater = new Deflater();
+		try (DeflaterOutputStream deflaterOut = new DeflaterOutputStream(imageData, deflater, 4096)) {
+			// filter type 0 followed by one bit per pixel, a set bit is white
+			byte[] line = new byte[1 + (dimension + 7) / 8];
+			for (int y = -border; y < size + border; y++) {
+				Arrays.fill(line, (byte) 0);
+				for (int pixel = 0; pixel < dimension; pixel++) {
+					if (!isDark(pixel / scale - border, y)) {
+						line[1 + (pixel >>> 3)] |= 0x80 >>> (pixel & 7);
+					}
+				}
+				for (int i = 0; i < scale; i++) {
+					deflaterOut.write(line);
+				}
+			}
+		} finally {
+			deflater.end();
+		}
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+		DataOutputStream headerOut = new DataOutputStream(header);
+		headerOut.writeInt(dimension);
+		headerOut.writeInt(dimension);
+		// bit depth 1, grayscale, deflate, adaptive filtering, no interlace
+		headerOut.write(new byte[] { 1, 0, 0, 0, 0 });
+
+		out.write(PNG_SIGNATURE);
+		writeChunk(out, "IHDR", header.toByteArray());
+		writeChunk(out, "IDAT", imageData.toByteArray());
+		writeChunk(out, "IEND", new byte[0]);
+	}
+
+	/**
+	 * Return the PNG image of {@link #writePng(OutputStream, int, int)} as <code>data:</code> URI which can be used as
+	 * the source of an image tag.
+	 *
+	 * @param scale Width and height of a module in pixels.
+	 * @param border Width of the light border in modules, see {@link #DEFAULT_BORDER}.
+	 * @return the data URI
+	 */
+	public String toPngDataUri(int scale, int border) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+		try {
+			writePng(out, scale, border);
+		} catch (IOException e) {
+			// ByteArrayOutputStream does not throw
+			throw new IllegalStateException(e);
+		}
+		return "data:image/png;base64," + Base64.getEncoder().encodeToString(out.toByteArray());
+	}
+
+	/**
+	 * Write an SVG image with one module per user unit, it scales to any size. The stream is not closed.
+	 *
+	 * @param out Stream to write to, the image is UTF-8 (plain ASCII).
+	 * @param border Width of the light border in modules, see {@link #DEFAULT_BORDER}.
+	 * @throws IOException if writing fails
+	 */
+	public void writeSvg(OutputStream out, int border) throws IOException {
+		Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		appendSvg(writer, border);
+		writer.flush();
+	}
+
+	/**
+	 * Return the SVG image of {@link #writeSvg(OutputStream, int)} as string.
+	 *
+	 * @param border Width of the light border in modules, see {@link #DEFAULT_BORDER}.
+	 * @return the SVG document
+	 */
+	public String toSvg(int border) {
+		StringBuilder sb = new StringBuilder(size * size * 4);
+		try {
+			appendSvg(sb, border);
+		} catch (IOException e) {
+			// StringBuilder does not throw
+			throw new IllegalStateException(e);
+		}
+		return sb.toString();
+	}
+
+	private void appendSvg(Appendable out, int border) throws IOException {
+		if (border < 0) {
+			throw new IllegalArgumentException("Invalid border " + border);
+		}
+		int dimension = size + 2 * border;
+		out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		out.append("<svg xmlns=\"http://www.w3.org/2000/svg\" version=\"1.1\" viewBox=\"0 0 ").append(Integer.toString(dimension)).append(' ')
+				.append(Integer.toString(dimension)).append("\" stroke=\"none\">\n");
+		out.append("<rect width=\"100%\" height=\"100%\" fill=\"#FFFFFF\"/>\n");
+		out.append("<path fill=\"#000000\" d=\"");
+		for (int y = 0; y < size; y++) {
+			int x = 0;
+			while (x < size) {
+				if (!modules[y * size + x]) {
+					x++;
+					continue;
+				}
+				// one rectangle per horizontal run of dark modules
+				int run = 1;
+				while (x + run < size && modules[y * size + x + run]) {
+					run++;
+				}
+				out.append('M').append(Integer.toString(x + border)).append(',').append(Integer.toString(y + border)).append('h')
+						.append(Integer.toString(run)).append("v1h-").append(Integer.toString(run)).append('z');
+				x += run;
+			}
+		}
+		out.append("\"/>\n</svg>\n");
+	}
+
+	/**
+	 * Return the data bits of byte mode followed by terminator and padding, as codewords.
+	 */
+	private static byte[] dataCodewords(byte[] data, int version, ErrorCorrection errorCorrection) {
+		byte[] codewords = new byte[numDataCodewords(version, errorCorrection)];
+		int countBits = version < 10 ? 8 : 16;
+		// mode indicator 0100 for bytes
+		int bitPosition = putBits(codewords, 0, 0x4, 4);
+		bitPosition = putBits(codewords, bitPosition, data.length, countBits);
+		for (byte b : data) {
+			bitPosition = putBits(codewords, bitPosition, b & 0xFF, 8);
+		}
+		// the terminator and the rest of the byte are zero bits which are already there
+		int position = (Math.min(bitPosition + 4, codewords.length * 8) + 7) >>> 3;
+		for (int pad = 0xEC; position < codewords.length; position++, pad ^= 0xEC ^ 0x11) {
+			codewords[position] = (byte) pad;
+		}
+		return codewords;
+	}
+
+	private static int putBits(byte[] bytes, int bitPosition, int value, int count) {
+		for (int i = count - 1; i >= 0; i--, bitPosition++) {
+			if (((value >>> i) & 1) != 0) {
+				bytes[bitPosition >>> 3] |= 0x80 >>> (bitPosition & 7);
+			}
+		}
+		return bitPosition;
+	}
+
+	/**
+	 * Split the data into blocks, append the error correction codewords to every block and interleave the blocks.
+	 */
+	private static byte[] addErrorCorrection(byte[] data, int version, ErrorCorrection errorCorrection) {
+		int numBlocks = NUM_ERROR_CORRECTION_BLOCKS[errorCorrection.ordinal()][version];
+		int blockEccLength = ECC_CODEWORDS_PER_BLOCK[errorCorrection.ordinal()][version];
+		int rawCodewords = numRawDataModules(version) / 8;
+		int numShortBlocks = numBlocks - rawCodewords % numBlocks;
+		int shortBlockLength = rawCodewords / numBlocks;
+		byte[] generator = GENERATORS[blockEccLength];
+
+		byte[] result = new byte[rawCodewords];
+		byte[] remainder = new byte[blockEccLength];
+		for (int block = 0, offset = 0; block < numBlocks; block++) {
+			int dataLength = shortBlockLength - blockEccLength + (block < numShortBlocks ? 0 : 1);
+			// data codewords go column by column over the blocks, the short blocks have no last column
+			for (int i = 0; i < dataLength; i++) {
+				int column = i < shortBlockLength - blockEccLength ? i * numBlocks + block
+						: (shortBlockLength - blockEccLength) * numBlocks + block - numShortBlocks;
+				result[column] = data[offset + i];
+			}
+			remainder(data, offset, dataLength, generator, remainder);
+			int eccStart = data.length;
+			for (int i = 0; i < blockEccLength; i++) {
+				result[eccStart + i * numBlocks + block] = remainder[i];
+			}
+			offset += dataLength;
+		}
+		return result;
+	}
+
+	/**
+	 * Reed-Solomon remainder of the data divided by the generator polynomial.
+	 */
+	private static void remainder(byte[] data, int offset, int length, byte[] generator, byte[] result) {
+		Arrays.fill(result, (byte) 0);
+		for (int i = offset; i < offset + length; i++) {
+			int factor = (data[i] ^ result[0]) & 0xFF;
+			System.arraycopy(result, 1, result, 0, result.length - 1);
+			result[result.length - 1] = 0;
+			if (factor != 0) {
+				int logFactor = LOG[factor];
+				for (int j = 0; j < result.length; j++) {
+					int coefficient = generator[j] & 0xFF;
+					if (coefficient != 0) {
+						result[j] ^= EXP[LOG[coefficient] + logFactor];
+					}
+				}
+			}
+		}
+	}
+
+	private static byte[] generator(int degree) {
+		byte[] result = new byte[degree];
+		result[degree - 1] = 1;
+		int root = 1;
+		for (int i = 0; i < degree; i++) {
+			// multiply by (x - root)
+			for (int j = 0; j < result.length; j++) {
+				result[j] = (byte) multiply(result[j] & 0xFF, root);
+				if (j + 1 < result.length) {
+					result[j] ^= result[j + 1];
+				}
+			}
+			root = multiply(root, 0x02);
+		}
+		return result;
+	}
+
+	private static int multiply(int a, int b) {
+		return a == 0 || b == 0 ? 0 : EXP[LOG[a] + LOG[b]];
+	}
+
+	/**
+	 * Place the codewords in the zig-zag of two module wide columns from the bottom right, skipping function modules.
+	 */
+	private static void drawCodewords(byte[] codewords, boolean[] modules, boolean[] function, int size) {
+		int bit = 0;
+		int bitCount = codewords.length * 8;
+		for (int right = size - 1; right >= 1; right -= 2) {
+			if (right == 6) {
+				// the vertical timing pattern
+				right = 5;
+			}
+			boolean upward = ((right + 1) & 2) == 0;
+			for (int vertical = 0; vertical < size; vertical++) {
+				int y = upward ? size - 1 - vertical : vertical;
+				for (int j = 0; j < 2; j++) {
+					int index = y * size + right - j;
+					if (!function[index] && bit < bitCount) {
+						modules[index] = ((codewords[bit >>> 3] >>> (7 - (bit & 7))) & 1) != 0;
+						bit++;
+					}
+				}
+			}
+		}
+	}
+
+	private static void applyMask(boolean[] mask, boolean[] modules) {
+		for (int i = 0; i < modules.length; i++) {
+			modules[i] ^= mask[i];
+		}
+	}
+
+	/**
+	 * Return which modules the mask inverts, function modules are never inverted.
+	 */
+	private static boolean[] mask(int mask, boolean[] function, int size) {
+		boolean[] result = new boolean[size * size];
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				boolean invert;
+				switch (mask) {
+					case 0:
+						invert = (x + y) % 2 == 0;
+						break;
+					case 1:
+						invert = y % 2 == 0;
+						break;
+					case 2:
+						invert = x % 3 == 0;
+						break;
+					case 3:
+						invert = (x + y) % 3 == 0;
+						break;
+					case 4:
+						invert = (x / 3 + y / 2) % 2 == 0;
+						break;
+					case 5:
+						invert = x * y % 2 + x * y % 3 == 0;
+						break;
+					case 6:
+						invert = (x * y % 2 + x * y % 3) % 2 == 0;
+						break;
+					default:
+						invert = ((x + y) % 2 + x * y % 3) % 2 == 0;
+						break;
+				}
+				int index = y * size + x;
+				result[index] = invert && !function[index];
+			}
+		}
+		return result;
+	}
+
+	private static void drawFormatBits(ErrorCorrection errorCorrection, int mask, boolean[] modules, int size) {
+		int data = errorCorrection.formatBits << 3 | mask;
+		int remainder = data;
+		for (int i = 0; i < 10; i++) {
+			remainder = (remainder << 1) ^ ((remainder >>> 9) * 0x537);
+		}
+		int bits = (data << 10 | remainder) ^ 0x5412;
+		// around the top left finder pattern
+		for (int i = 0; i <= 5; i++) {
+			modules[i * size + 8] = bit(bits, i);
+		}
+		modules[7 * size + 8] = bit(bits, 6);
+		modules[8 * size + 8] = bit(bits, 7);
+		modules[8 * size + 7] = bit(bits, 8);
+		for (int i = 9; i < 15; i++) {
+			modules[8 * size + 14 - i] = bit(bits, i);
+		}
+		// the copy split between the other two finder patterns
+		for (int i = 0; i < 8; i++) {
+			modules[8 * size + size - 1 - i] = bit(bits, i);
+		}
+		for (int i = 8; i < 15; i++) {
+			modules[(size - 15 + i) * size + 8] = bit(bits, i);
+		}
+		// the module which is always dark
+		modules[(size - 8) * size + 8] = true;
+	}
+
+	private static boolean bit(int value, int index) {
+		return ((value >>> index) & 1) != 0;
+	}
+
+	/**
+	 * Penalty of the masked symbol as the specification defines it, the mask with the lowest penalty is used.
+	 */
+	static int penalty(boolean[] modules, int size) {
+		int result = 0;
+		for (int horizontal = 0; horizontal < 2; horizontal++) {
+			int lineStep = horizontal == 0 ? size : 1;
+			int moduleStep = horizontal == 0 ? 1 : size;
+			for (int line = 0; line < size; line++) {
+				int run = 0;
+				boolean runColor = false;
+				// the last 15 modules, one bit each, outside of the symbol counts as light
+				int history = 0;
+				for (int i = 0; i < size + 4; i++) {
+					boolean color = i < size && modules[line * lineStep + i * moduleStep];
+					if (i < size) {
+						if (i > 0 && color == runColor) {
+							run++;
+						} else {
+							if (run >= 5) {
+								result += PENALTY_N1 + run - 5;
+							}
+							runColor = color;
+							run = 1;
+						}
+					}
+					history = (history << 1 | (color ? 1 : 0)) & 0x7FFF;
+					int window = history & 0x7FF;
+					// with light modules on both sides the pattern was already counted when its end was reached
+					if (window == FINDER_LIGHT_BEFORE || window == FINDER_LIGHT_AFTER && (history >>> 11) != 0) {
+						result += PENALTY_N3;
+					}
+				}
+				if (run >= 5) {
+					result += PENALTY_N1 + run - 5;
+				}
+			}
+		}
+		int dark = 0;
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				boolean color = modules[y * size + x];
+				if (color) {
+					dark++;
+				}
+				if (x + 1 < size && y + 1 < size && color == modules[y * size + x + 1] && color == modules[(y + 1) * size + x]
+						&& color == modules[(y + 1) * size + x + 1]) {
+					result += PENALTY_N2;
+				}
+			}
+		}
+		int total = size * size;
+		int k = (Math.abs(dark * 20 - total * 10) + total - 1) / total - 1;
+		result += k * PENALTY_N4;
+		return result;
+	}
+
+	private static int numRawDataModules(int version) {
+		int result = (16 * version + 128) * version + 64;
+		if (version >= 2) {
+			int numAlign = version / 7 + 2;
+			result -= (25 * numAlign - 10) * numAlign - 55;
+			if (version >= 7) {
+				result -= 36;
+			}
+		}
+		return result;
+	}
+
+	private static int numDataCodewords(int version, ErrorCorrection errorCorrection) {
+		return numRawDataModules(version) / 8
+				- ECC_CODEWORDS_PER_BLOCK[errorCorrection.ordinal()][version] * NUM_ERROR_CORRECTION_BLOCKS[errorCorrection.ordinal()][version];
+	}
+
+	private static Template template(int version) {
+		Template template = TEMPLATES.get(version);
+		if (template == null) {
+			// racing threads build equal templates, which one wins does not matter
+			template = new Template(version);
+			TEMPLATES.set(version, template);
+		}
+		return template;
+	}
+
+	/**
+	 * Function patterns and masks of a version. The format information area is reserved but left light.
+	 */
+	private static final class Template {
+		final int size;
+		final boolean[] modules;
+		final boolean[] function;
+		final boolean[][] masks = new boolean[8][];
+
+		Template(int version) {
+			size = version * 4 + 17;
+			modules = new boolean[size * size];
+			function = new boolean[size * size];
+			// timing patterns
+			for (int i = 0; i < size; i++) {
+				set(6, i, i % 2 == 0);
+				set(i, 6, i % 2 == 0);
+			}
+			// finder patterns with their separators
+			drawFinderPattern(3, 3);
+			drawFinderPattern(size - 4, 3);
+			drawFinderPattern(3, size - 4);
+			// alignment patterns except where they would overlap the finder patterns
+			int[] positions = alignmentPatternPositions(version, size);
+			int last = positions.length - 1;
+			for (int i = 0; i < positions.length; i++) {
+				for (int j = 0; j < positions.length; j++) {
+					if (!(i == 0 && j == 0 || i == 0 && j == last || i == last && j == 0)) {
+						drawAlignmentPattern(positions[i], positions[j]);
+					}
+				}
+			}
+			// format information
+			for (int i = 0; i < 9; i++) {
+				set(8, i, false);
+				set(i, 8, false);
+			}
+			for (int i = 0; i < 8; i++) {
+				set(size - 1 - i, 8, false);
+				set(8, size - 1 - i, false);
+			}
+			if (version >= 7) {
+				drawVersion(version);
+			}
+			for (int mask = 0; mask < masks.length; mask++) {
+				masks[mask] = mask(mask, function, size);
+			}
+		}
+
+		private void drawFinderPattern(int centerX, int centerY) {
+			for (int dy = -4; dy <= 4; dy++) {
+				for (int dx = -4; dx <= 4; dx++) {
+					int distance = Math.max(Math.abs(dx), Math.abs(dy));
+					int x = centerX + dx;
+					int y = centerY + dy;
+					if (x >= 0 && x < size && y >= 0 && y < size) {
+						set(x, y, distance != 2 && distance != 4);
+					}
+				}
+			}
+		}
+
+		private void drawAlignmentPattern(int centerX, int centerY) {
+			for (int dy = -2; dy <= 2; dy++) {
+				for (int dx = -2; dx <= 2; dx++) {
+					set(centerX + dx, centerY + dy, Math.max(Math.abs(dx), Math.abs(dy)) != 1);
+				}
+			}
+		}
+
+		private void drawVersion(int version) {
+			int remainder = version;
+			for (int i = 0; i < 12; i++) {
+				remainder = (remainder << 1) ^ ((remainder >>> 11) * 0x1F25);
+			}
+			int bits = version << 12 | remainder;
+			for (int i = 0; i < 18; i++) {
+				boolean dark = bit(bits, i);
+				int a = size - 11 + i % 3;
+				int b = i / 3;
+				set(a, b, dark);
+				set(b, a, dark);
+			}
+		}
+
+		private void set(int x, int y, boolean dark) {
+			modules[y * size + x] = dark;
+			function[y * size + x] = true;
+		}
+
+		private static int[] alignmentPatternPositions(int version, int size) {
+			if (version == 1) {
+				return new int[0];
+			}
+			int numAlign = version / 7 + 2;
+			int step = (version * 8 + numAlign * 3 + 5) / (numAlign * 4 - 4) * 2;
+			int[] result = new int[numAlign];
+			result[0] = 6;
+			for (int i = numAlign - 1, position = size - 7; i >= 1; i--, position -= step) {
+				result[i] = position;
+			}
+			return result;
+		}
+	}
+
+	private static void writeChunk(OutputStream out, String type, byte[] data) throws IOException {
+		byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data);
+		writeInt(out, data.length);
+		out.write(typeBytes);
+		out.write(data);
+		writeInt(out, (int) crc.getValue());
+	}
+
+	private static void writeInt(OutputStream out, int value) throws IOException {
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+}
@@ -0,0 +1,304 @@
+package se.embuc.nano2fa;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.ObjLongConsumer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Generates sets of recovery codes per account, keeps them only as keyed hashes and consumes a code once:
+ *
+ * <pre>
+ * RecoveryCodeStore recoveryCodes = new RecoveryCodeStore(pepper);
+ * String[] codes = recoveryCodes.generate(accountId); // shown to the user once
+ * boolean valid = recoveryCodes.consume(accountId, code);
+ * </pre>
+ *
+ * <p>
+ * A code is hashed with HMAC-SHA256 keyed by a server side pepper over the account id and the code, and the first 64 bits
+ * are kept. The codes are random (100 bits) so a fast keyed hash is enough, a slow password hash would only make every
+ * verification expensive. Without the pepper the stored hashes are worthless, so keep it apart from them.
+ * </p>
+ * <p>
+ * Every account holds one <code>long</code> per code. Verification hashes the input once and compares it against all
+ * codes of the account without an early exit, so the time does not depend on which code (if any) matched. The match is
+ * consumed with compare-and-set, so of concurrent attempts with the same code exactly one succeeds. Codes are compared
+ * after removing dashes and whitespace and upper casing, so <code>abcd efgh ...</code> is the same as
+ * <code>ABCD-EFGH-...</code>.
+ * </p>
+ * <p>
+ * The hashes can be read with {@link #getHashes(long)} to persist them and put back with {@link #load(long, long[])}.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public class RecoveryCodeStore {
+
+	/** default number of codes generated per account */
+	public static final int DEFAULT_CODE_COUNT = 10;
+	/** minimum length of the pepper in bytes */
+	public static final int MIN_PEPPER_LENGTH = 16;
+
+	/** hash of a code which was consumed, no code hashes to it */
+	static final long CONSUMED = 0;
+	private static final String HMAC_SHA256 = "HmacSHA256";
+	/** longest code accepted after removing separators, anything longer cannot be a code */
+	private static final int MAX_CODE_LENGTH = 64;
+	/** accounts per fork-join leaf task of the bulk generation */
+	private static final int LEAF_SIZE = 256;
+
+	private final SecretKeySpec pepper;
+	private final int codeCount;
+	private final ConcurrentHashMap<Long, AtomicLongArray> accounts = new ConcurrentHashMap<>();
+	private final ThreadLocal<HashState> hashStates = ThreadLocal.withInitial(this::newHashState);
+
+	/**
+	 * Create a store generating {@link #DEFAULT_CODE_COUNT} codes per account.
+	 *
+	 * @param pepper Secret key of the hashes, at least {@link #MIN_PEPPER_LENGTH} random bytes.
+	 */
+	public RecoveryCodeStore(byte[] pepper) {
+		this(pepper, DEFAULT_CODE_COUNT);
+	}
+
+	/**
+	 * @param pepper Secret key of the hashes, at least {@link #MIN_PEPPER_LENGTH} random bytes.
+	 * @param codeCount Number of codes generated per account.
+	 */
+	public RecoveryCodeStore(byte[] pepper, int codeCount) {
+		if (pepper == null || pepper.length < MIN_PEPPER_LENGTH) {
+			throw new IllegalArgumentException("pepper must be at least " + MIN_PEPPER_LENGTH + " bytes");
+		}
+		if (codeCount <= 0) {
+			throw new IllegalArgumentException("Invalid codeCount: " + codeCount);
+		}
+		this.pepper = new SecretKeySpec(pepper, HMAC_SHA256);
+		this.codeCount = codeCount;
+	}
+
+	/**
+	 * Generate a new set of codes for the account, replacing any previous set.
+	 *
+	 * @param accountId Id of the account.
+	 * @return the codes, formatted as {@link TimeBasedOneTimePasswordUtil#generateFormattedRecoveryCode()}. They are not
+	 * kept and have to be shown to the user now.
+	 */
+	public String[] generate(long accountId) {
+		String[] codes = new String[codeCount];
+		long[] hashes = new long[codeCount];
+		HashState hashState = hashStates.get();
+		for (int i = 0; i < codeCount; i++) {
+			codes[i] = SecretGenerator.generateFormattedRecoveryCode();
+			hashes[i] = hash(hashState, accountId, codes[i]);
+		}
+		accounts.put(accountId, new AtomicLongArray(hashes));
+		return codes;
+	}
+
+	/**
+	 * Generate new sets of codes for many accounts, spread over the common fork-join pool.
+	 *
+	 * @param accountIds Ids of the accounts.
+	 * @param consumer Receives the codes and the account id, called from many threads at once so it must be thread
+	 * safe.
+	 */
+	public void generate(long[] accountIds, ObjLongConsumer<String[]> consumer) {
+		generate(accountIds, consumer, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Same as {@link #generate(long[], ObjLongConsumer)} on the given pool.
+	 *
+	 * @param accountIds Ids of the accounts.
+	 * @param consumer Receives the codes and the account id, called from many threads at once so it must be thread
+	 * safe.
+	 * @param pool Pool the work is spread over.
+	 */
+	public void generate(long[] accountIds, ObjLongConsumer<String[]> consumer, ForkJoinPool pool) {
+		GenerateTask task = new GenerateTask(accountIds, consumer, 0, accountIds.length);
+		if (accountIds.length <= LEAF_SIZE) {
+			task.compute();
+		} else {
+			pool.invoke(task);
+		}
+	}
+
+	/**
+	 * Check the code against the codes of the account and consume it if it matches.
+	 *
+	 * @param accountId Id of the account.
+	 * @param code Code provided by the user.
+	 * @return True if the code belonged to the account and was not used before.
+	 */
+	public boolean consume(long accountId, CharSequence code) {
+		AtomicLongArray hashes = accounts.get(accountId);
+		if (hashes == null || code == null) {
+			return false;
+		}
+		long hash = hash(hashStates.get(), accountId, code);
+		if (hash == CONSUMED) {
+			// not shaped like a code at all
+			return false;
+		}
+		int found = -1;
+		for (int i = 0; i < hashes.length(); i++) {
+			long diff = hashes.get(i) ^ hash;
+			// all ones if diff is zero, selected without a branch on the stored hashes
+			int equal = (int) ~((diff | -diff) >> 63);
+			found = (equal & i) | (~equal & found);
+		}
+		return found >= 0 && hashes.compareAndSet(found, hash, CONSUMED);
+	}
+
+	/**
+	 * @param accountId Id of the account.
+	 * @return Number of codes of the account which were not consumed yet.
+	 */
+	public int getRemaining(long accountId) {
+		AtomicLongArray hashes = accounts.get(accountId);
+		int remaining = 0;
+		if (hashes != null) {
+			for (int i = 0; i < hashes.length(); i++) {
+				if (hashes.get(i) != CONSUMED) {
+					remaining++;
+				}
+			}
+		}
+		return remaining;
+	}
+
+	/**
+	 * Return the hashes of the account to persist them. Consumed codes are 0.
+	 *
+	 * @param accountId Id of the account.
+	 * @return the hashes or null if the account has no codes
+	 */
+	public long[] getHashes(long accountId) {
+		AtomicLongArray hashes = accounts.get(accountId);
+		if (hashes == null) {
+			return null;
+		}
+		long[] copy = new long[hashes.length()];
+		for (int i = 0; i < copy.length; i++) {
+			copy[i] = hashes.get(i);
+		}
+		return copy;
+	}
+
+	/**
+	 * Put back hashes returned by {@link #getHashes(long)}, for example from a store created with the same pepper at
+	 * startup.
+	 *
+	 * @param accountId Id of the account.
+	 * @param hashes Hashes of the codes.
+	 */
+	public void load(long accountId, long[] hashes) {
+		accounts.put(accountId, new AtomicLongArray(hashes));
+	}
+
+	/**
+	 * Remove all codes of the account.
+	 *
+	 * @param accountId Id of the account.
+	 */
+	public void remove(long accountId) {
+		accounts.remove(accountId);
+	}
+
+	/**
+	 * Return the keyed hash of the code, or {@link #CONSUMED} if it cannot be a code.
+	 */
+	private static long hash(HashState hashState, long accountId, CharSequence code) {
+		byte[] message = hashState.message;
+		int length = 0;
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			message[length++] = (byte) (accountId >>> shift);
+		}
+		for (int i = 0; i < code.length(); i++) {
+			char c = code.charAt(i);
+			if (c == '-' || Character.isWhitespace(c)) {
+				continue;
+			}
+			if (c >= 'a' && c <= 'z') {
+				c -= 'a' - 'A';
+			}
+			if (!(c >= 'A' && c <= 'Z' || c >= '2' && c <= '7') || length == message.length) {
+				return CONSUMED;
+			}
+			message[length++] = (byte) c;
+		}
+		Mac mac = hashState.mac;
+		mac.update(message, 0, length);
+		byte[] digest = hashState.digest;
+		try {
+			mac.doFinal(digest, 0);
+		} catch (GeneralSecurityException e) {
+			// the buffer always fits the digest
+			throw new IllegalStateException(e);
+		}
+		long hash = 0;
+		for (int i = 0; i < 8; i++) {
+			hash = (hash << 8) | (digest[i] & 0xFF);
+		}
+		return hash == CONSUMED ? 1 : hash;
+	}
+
+	private HashState newHashState() {
+		try {
+			Mac mac = Mac.getInstance(HMAC_SHA256);
+			mac.init(pepper);
+			return new HashState(mac);
+		} catch (GeneralSecurityException e) {
+			// every implementation of the Java platform is required to support HmacSHA256
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Per-thread keyed {@link Mac} and buffers of a store.
+	 */
+	private static final class HashState {
+		private final Mac mac;
+		private final byte[] message = new byte[8 + MAX_CODE_LENGTH];
+		private final byte[] digest = new byte[32];
+
+		HashState(Mac mac) {
+			this.mac = mac;
+		}
+	}
+
+	private final class GenerateTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long[] accountIds;
+		private final ObjLongConsumer<String[]> consumer;
+		private final int from;
+		private final int to;
+
+		GenerateTask(long[] accountIds, ObjLongConsumer<String[]> consumer, int from, int to) {
+			this.accountIds = accountIds;
+			this.consumer = consumer;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= LEAF_SIZE) {
+				for (int i = from; i < to; i++) {
+					consumer.accept(generate(accountIds[i]), accountIds[i]);
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new GenerateTask(accountIds, consumer, from, middle), new GenerateTask(accountIds, consumer, middle, to));
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package se.embuc.nano2fa;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.crypto.Mac;
+
+/**
+ * Rejects numbers which were already accepted. Without it the same number is valid again and again for the whole
+ * validation window:
+ *
+ * <pre>
+ * ReplayGuard replayGuard = new ReplayGuard();
+ * boolean valid = replayGuard.validateCurrentNumber(accountId, base32Secret, authNumber);
+ * </pre>
+ *
+ * <p>
+ * The accepted (account, time-step) pairs are recorded without any lock. There is one open addressing table of account
+ * ids per time-step, inserted into with compare-and-set. Time-steps map to a small ring of tables and a table is
+ * replaced as a whole as soon as a newer time-step needs its slot, which drops all entries of a time-step at once when
+ * it leaves the window. Memory is bounded by the capacity per time-step times the number of slots.
+ * </p>
+ * <p>
+ * The guard fails closed: when the table of a time-step is full, or the time-step has already been evicted, the number
+ * is rejected. It is the {@link UsedCodeRegistry} of a single JVM, see {@link MappedUsedCodeRegistry} and
+ * {@link UsedCodeClient} for several.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public class ReplayGuard implements UsedCodeRegistry {
+
+	/** default number of accepted logins which can be recorded per time-step */
+	public static final int DEFAULT_CAPACITY_PER_STEP = 1 << 18;
+	/** default number of time-steps before and after now that validations may use, enough for the 10 second window */
+	public static final int DEFAULT_WINDOW_STEPS = 1;
+
+	private static final long EMPTY = 0;
+
+	private final AtomicReferenceArray<StepTable> tables;
+	private final int tableSize;
+	private final int windowSteps;
+
+	/**
+	 * Create a guard with {@link #DEFAULT_CAPACITY_PER_STEP} and {@link #DEFAULT_WINDOW_STEPS}.
+	 */
+	public ReplayGuard() {
+		this(DEFAULT_CAPACITY_PER_STEP, DEFAULT_WINDOW_STEPS);
+	}
+
+	/**
+	 * @param capacityPerStep Maximum number of accounts which can be accepted per time-step.
+	 * @param windowSteps Largest validation window in whole time-steps, the accepted pairs are kept for that many
+	 * time-steps.
+	 */
+	public ReplayGuard(int capacityPerStep, int windowSteps) {
+		if (capacityPerStep <= 0 || capacityPerStep > 1 << 29) {
+			throw new IllegalArgumentException("capacityPerStep must be between 1 and 2^29: " + capacityPerStep);
+		}
+		if (windowSteps < 0) {
+			throw new IllegalArgumentException("windowSteps must not be negative: " + windowSteps);
+		}
+		// keep the load factor at or below 0.5 so probe sequences stay short
+		this.tableSize = Integer.highestOneBit(capacityPerStep * 2 - 1) << 1;
+		this.windowSteps = windowSteps;
+		// every time-step which can still be validated needs its own slot, plus the one being rolled into
+		this.tables = new AtomicReferenceArray<>(2 * windowSteps + 2);
+	}
+
+	/**
+	 * Validate with the default 10 second window and record the accepted time-step so the same number is rejected for
+	 * the account afterwards.
+	 *
+	 * @param accountId Id of the account the secret belongs to.
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @param authNumber Time based number provided by the user from their authenticator application.
+	 * @return True if the authNumber matched within the window and was not used before.
+	 */
+	public boolean validateCurrentNumber(long accountId, String base32Secret, int authNumber) {
+		return validateCurrentNumber(accountId, base32Secret, authNumber, TimeBasedOneTimePasswordUtil.DEFAULT_VALIDATION_WINDOW_MILLIS);
+	}
+
+	/**
+	 * Same as {@link #validateCurrentNumber(long, String, int)} with a window in milliseconds.
+	 *
+	 * @param accountId Id of the account the secret belongs to.
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @param authNumber Time based number provided by the user from their authenticator application.
+	 * @param windowMillis Number of milliseconds that they are allowed to be off and still match. Must not be larger than
+	 * the window steps of this guard.
+	 * @return True if the authNumber matched within the window and was not used before.
+	 */
+	public boolean validateCurrentNumber(long accountId, String base32Secret, int authNumber, long windowMillis) {
+		return validateCurrentNumber(accountId, TimeBasedOneTimePasswordUtil.decodeBase32(base32Secret), authNumber, windowMillis,
+				System.currentTimeMillis(), TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+
+	/**
+	 * Similar to {@link #validateCurrentNumber(long, String, int, long)} except exposes other parameters. Mostly for
+	 * testing.
+	 */
+	protected boolean validateCurrentNumber(long accountId, byte[] key, int authNumber, long windowMillis, long timeMillis, int timeStepSeconds,
+			int numDigits) {
+		long stepMillis = timeStepSeconds * 1000L;
+		if (windowMillis > windowSteps * stepMillis) {
+			throw new IllegalArgumentException("Window of " + windowMillis + "ms is larger than the " + windowSteps + " time-steps of the guard");
+		}
+		MetricsListener listener = TimeBasedOneTimePasswordUtil.metricsListener();
+		AuditSink sink = TimeBasedOneTimePasswordUtil.auditSink();
+		long startNanos = listener == MetricsListener.NOOP ? 0 : System.nanoTime();
+		Mac mac;
+		try {
+			mac = TimeBasedOneTimePasswordUtil.newMac(key);
+		} catch (IllegalArgumentException e) {
+			if (listener != MetricsListener.NOOP) {
+				listener.rejected(MetricsListener.RejectReason.INVALID_SECRET, 0, System.nanoTime() - startNanos);
+			}
+			if (sink != AuditSink.NOOP) {
+				sink.rejected(accountId, timeMillis, MetricsListener.RejectReason.INVALID_SECRET);
+			}
+			throw e;
+		}
+		long value = TimeBasedOneTimePasswordUtil.matchingValue(mac, authNumber, windowMillis, timeMillis, timeStepSeconds, numDigits);
+		boolean accepted = value != TimeBasedOneTimePasswordUtil.NO_MATCH && markUsed(accountId, value);
+		if (listener != MetricsListener.NOOP) {
+			TimeBasedOneTimePasswordUtil.reportValidation(listener, startNanos, value, accepted, windowMillis, timeMillis, timeStepSeconds);
+		}
+		if (sink != AuditSink.NOOP) {
+			TimeBasedOneTimePasswordUtil.reportAudit(sink, accountId, value, accepted, timeMillis, timeStepSeconds);
+		}
+		return accepted;
+	}
+
+	/**
+	 * Record that the number of the time-step was accepted for the account. For callers which validate on their own.
+	 *
+	 * @param accountId Id of the account.
+	 * @param value Time-step counter value the number matched.
+	 * @return True if the pair was recorded now, false if it was used before or cannot be recorded.
+	 */
+	@Override
+	public boolean markUsed(long accountId, long value) {
+		StepTable table = tableFor(value);
+		return table != null && table.add(accountId);
+	}
+
+	private StepTable tableFor(long value) {
+		int slot = (int) Math.floorMod(value, (long) tables.length());
+		while (true) {
+			StepTable table = tables.get(slot);
+			if (table != null && table.value == value) {
+				return table;
+			}
+			if (table != null && table.value > value) {
+				// the time-step has already left the window and its entries are gone
+				return null;
+			}
+			// replacing the table drops every entry of the older time-step in one go
+			StepTable newTable = new StepTable(value, tableSize);
+			if (tables.compareAndSet(slot, table, newTable)) {
+				return newTable;
+			}
+		}
+	}
+
+	/**
+	 * Open addressing set of account ids for one time-step.
+	 */
+	private static final class StepTable {
+		private final long value;
+		private final AtomicLongArray accountIds;
+		/** {@link #EMPTY} marks a free slot so account id 0 is tracked separately */
+		private final AtomicBoolean emptyIdUsed = new AtomicBoolean();
+
+		StepTable(long value, int size) {
+			this.value = value;
+			this.accountIds = new AtomicLongArray(size);
+		}
+
+		boolean add(long accountId) {
+			if (accountId == EMPTY) {
+				return emptyIdUsed.compareAndSet(false, true);
+			}
+			int mask = accountIds.length() - 1;
+			int index = (int) mix(accountId) & mask;
+			for (int probe = 0; probe <= mask; probe++) {
+				long current = accountIds.get(index);
+				if (current == accountId) {
+					return false;
+				}
+				if (current == EMPTY) {
+					if (accountIds.compareAndSet(index, EMPTY, accountId)) {
+						return true;
+					}
+					// somebody else took the slot, look at it again
+					if (accountIds.get(index) == accountId) {
+						return false;
+					}
+				}
+				index = (index + 1) & mask;
+			}
+			// full, fail closed
+			return false;
+		}
+	}
+
+	/**
+	 * Finalizer of MurmurHash3 which spreads sequential ids over the table.
+	 */
+	static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+}
@@ -0,0 +1,145 @@
+package se.embuc.nano2fa;
+
+import java.security.SecureRandom;
+import java.util.function.Consumer;
+
+/**
+ * Generation of Base32 secrets and recovery codes in bulk, for example when enrolling millions of accounts:
+ *
+ * <pre>
+ * SecretGenerator.generateBase32Secrets(1_000_000, 20, secret -&gt; writer.println(secret));
+ * SecretGenerator.generateFormattedRecoveryCodes(10, code -&gt; codes.add(code));
+ * </pre>
+ *
+ * <p>
+ * Every thread has its own {@link SecureRandom} which is seeded once and then reused. Random bytes are pulled from it in
+ * blocks and every character takes 5 of the bits, so 5 random bytes give 8 characters. The results are handed to a
+ * consumer one by one so nothing but the current secret is held in memory.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public final class SecretGenerator {
+
+	/** number of random bytes pulled from the generator at a time */
+	private static final int BLOCK_SIZE = 640;
+	private static final int RECOVERY_CODE_CHUNKS = 5;
+	private static final int RECOVERY_CODE_CHUNK_LENGTH = 4;
+	private static final int RECOVERY_CODE_LENGTH = RECOVERY_CODE_CHUNKS * (RECOVERY_CODE_CHUNK_LENGTH + 1) - 1;
+
+	private static final ThreadLocal<RandomBits> RANDOM_BITS = ThreadLocal.withInitial(RandomBits::new);
+
+	private SecretGenerator() {
+		/** This is an utility class and it is not supposed to be instantiated. */
+	}
+
+	/**
+	 * Generate a secret in base32 format (A-Z2-7).
+	 *
+	 * @param length number of characters to generate
+	 * @return generated String
+	 */
+	public static String generateBase32Secret(int length) {
+		char[] chars = new char[length];
+		nextBase32(chars, 0, length);
+		return new String(chars);
+	}
+
+	/**
+	 * Generate many secrets in base32 format (A-Z2-7) and hand them to the consumer.
+	 *
+	 * @param count number of secrets
+	 * @param length number of characters of each secret
+	 * @param consumer receives the secrets
+	 */
+	public static void generateBase32Secrets(long count, int length, Consumer<String> consumer) {
+		char[] chars = new char[length];
+		RandomBits randomBits = RANDOM_BITS.get();
+		for (long i = 0; i < count; i++) {
+			randomBits.nextBase32(chars, 0, length);
+			consumer.accept(new String(chars));
+		}
+	}
+
+	/**
+	 * Fill a range of the buffer with random base32 characters (A-Z2-7).
+	 *
+	 * @param chars buffer
+	 * @param offset first character to fill
+	 * @param length number of characters to fill
+	 */
+	public static void nextBase32(char[] chars, int offset, int length) {
+		RANDOM_BITS.get().nextBase32(chars, offset, length);
+	}
+
+	/**
+	 * Generate a recovery code as {@link TimeBasedOneTimePasswordUtil#generateFormattedRecoveryCode()} does: 20 base32
+	 * characters in five (5) chunks of four (4) separated by dash.
+	 *
+	 * @return the string
+	 */
+	public static String generateFormattedRecoveryCode() {
+		char[] chars = new char[RECOVERY_CODE_LENGTH];
+		nextFormattedRecoveryCode(RANDOM_BITS.get(), chars);
+		return new String(chars);
+	}
+
+	/**
+	 * Generate many recovery codes, see {@link #generateFormattedRecoveryCode()}, and hand them to the consumer.
+	 *
+	 * @param count number of recovery codes
+	 * @param consumer receives the recovery codes
+	 */
+	public static void generateFormattedRecoveryCodes(long count, Consumer<String> consumer) {
+		char[] chars = new char[RECOVERY_CODE_LENGTH];
+		RandomBits randomBits = RANDOM_BITS.get();
+		for (long i = 0; i < count; i++) {
+			nextFormattedRecoveryCode(randomBits, chars);
+			consumer.accept(new String(chars));
+		}
+	}
+
+	private static void nextFormattedRecoveryCode(RandomBits randomBits, char[] chars) {
+		for (int chunk = 0; chunk < RECOVERY_CODE_CHUNKS; chunk++) {
+			int offset = chunk * (RECOVERY_CODE_CHUNK_LENGTH + 1);
+			if (chunk > 0) {
+				chars[offset - 1] = '-';
+			}
+			randomBits.nextBase32(chars, offset, RECOVERY_CODE_CHUNK_LENGTH);
+		}
+	}
+
+	/**
+	 * Per-thread generator with a block of random bytes and the bits left over from the last character.
+	 */
+	private static final class RandomBits {
+		private final SecureRandom random = new SecureRandom();
+		private final byte[] block = new byte[BLOCK_SIZE];
+		private int position = BLOCK_SIZE;
+		private int bits;
+		private int bitCount;
+
+		void nextBase32(char[] chars, int offset, int length) {
+			for (int i = offset; i < offset + length; i++) {
+				if (bitCount < 5) {
+					bits = (bits << 8) | nextByte();
+					bitCount += 8;
+				}
+				bitCount -= 5;
+				chars[i] = Base32Codec.ALPHABET[(bits >>> bitCount) & 0x1F];
+			}
+		}
+
+		private int nextByte() {
+			if (position == BLOCK_SIZE) {
+				random.nextBytes(block);
+				position = 0;
+			}
+			// consumed bytes are cleared so the block never holds bits of secrets already handed out
+			int b = block[position] & 0xFF;
+			block[position++] = 0;
+			return b;
+		}
+	}
+}
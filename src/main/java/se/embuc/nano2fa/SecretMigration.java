@@ -0,0 +1,340 @@
+package se.embuc.nano2fa;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Streams stored secrets through a transformation, for example re-encryption under a new key or normalization to the
+ * canonical Base32 form, from one export to another:
+ *
+ * <pre>
+ * SecretMigration migration = new SecretMigration((key, length, out) -&gt; out.append(encrypt(key, length)));
+ * SecretMigration.Result result = migration.migrate(in, out);
+ * </pre>
+ *
+ * <p>
+ * Every line of the input is a record whose last comma separated field is the Base32 secret. The secret is checked
+ * strictly: only the Base32 alphabet in either case, spaces, dashes and trailing padding are allowed and it must
+ * decode to at least <code>minKeyBytes</code>. It is then decoded with {@link Base32Codec} into a per-thread buffer,
+ * handed to the {@link SecretTransform} and cleared. The output line is the unchanged fields before the secret followed
+ * by what the transformation appended. Records which fail the check are counted and copied as they are to the rejects
+ * writer, if there is one.
+ * </p>
+ * <p>
+ * The lines are read in chunks on the calling thread, the chunks are transformed on the executor and written in input
+ * order. At most <code>maxChunksInFlight</code> chunks are read ahead of the writer, so memory does not grow with the
+ * size of the input.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public class SecretMigration {
+
+	/** default number of lines transformed as one task */
+	public static final int DEFAULT_CHUNK_SIZE = 4096;
+	/** default smallest decoded secret, 16 characters of Base32 */
+	public static final int DEFAULT_MIN_KEY_BYTES = 10;
+
+	/** writes the canonical form of the secret: upper case Base32 without padding and separators */
+	public static final SecretTransform NORMALIZE = (key, length, out) -> {
+		char[] chars = new char[Base32Codec.encodedLength(length)];
+		Base32Codec.encode(key, 0, length, chars, 0);
+		out.append(chars);
+		Arrays.fill(chars, '\0');
+	};
+
+	private static final char SEPARATOR = ',';
+	private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+	/**
+	 * The new form of a secret.
+	 */
+	@FunctionalInterface
+	public interface SecretTransform {
+
+		/**
+		 * Append the new form of the secret, on one line.
+		 *
+		 * @param key Buffer holding the decoded secret, cleared after the call.
+		 * @param length Length of the secret.
+		 * @param out Receives the new form.
+		 * @throws GeneralSecurityException if the transformation fails, this ends the migration
+		 */
+		void transform(byte[] key, int length, StringBuilder out) throws GeneralSecurityException;
+	}
+
+	/**
+	 * Counts of a finished migration.
+	 */
+	public static final class Result {
+
+		private final long migrated;
+		private final long rejected;
+
+		Result(long migrated, long rejected) {
+			this.migrated = migrated;
+			this.rejected = rejected;
+		}
+
+		/**
+		 * @return number of records written to the output
+		 */
+		public long getMigrated() {
+			return migrated;
+		}
+
+		/**
+		 * @return number of records whose secret failed the check
+		 */
+		public long getRejected() {
+			return rejected;
+		}
+
+		@Override
+		public String toString() {
+			return "migrated " + migrated + ", rejected " + rejected;
+		}
+	}
+
+	private final SecretTransform transform;
+	private final Executor executor;
+	private final int maxChunksInFlight;
+	private final int chunkSize;
+	private final int minKeyBytes;
+
+	/**
+	 * Create a migration on the common fork-join pool with {@link #DEFAULT_CHUNK_SIZE} and
+	 * {@link #DEFAULT_MIN_KEY_BYTES}.
+	 *
+	 * @param transform Transformation of the decoded secrets, called from many threads at once.
+	 */
+	public SecretMigration(SecretTransform transform) {
+		this(transform, ForkJoinPool.commonPool(), 2 * ForkJoinPool.getCommonPoolParallelism() + 1, DEFAULT_CHUNK_SIZE, DEFAULT_MIN_KEY_BYTES);
+	}
+
+	/**
+	 * @param transform Transformation of the decoded secrets, called from many threads at once.
+	 * @param executor Executor of the chunks.
+	 * @param maxChunksInFlight Most chunks read but not yet written, bounds the memory and the parallelism.
+	 * @param chunkSize Number of lines transformed as one task.
+	 * @param minKeyBytes Smallest decoded secret which is migrated.
+	 */
+	public SecretMigration(SecretTransform transform, Executor executor, int maxChunksInFlight, int chunkSize, int minKeyBytes) {
+		if (transform == null || executor == null) {
+			throw new IllegalArgumentException("No transform or executor");
+		}
+		if (maxChunksInFlight <= 0 || chunkSize <= 0 || minKeyBytes <= 0) {
+			throw new IllegalArgumentException("maxChunksInFlight, chunkSize and minKeyBytes must be positive: " + maxChunksInFlight + ", " + chunkSize
+					+ ", " + minKeyBytes);
+		}
+		this.transform = transform;
+		this.executor = executor;
+		this.maxChunksInFlight = maxChunksInFlight;
+		this.chunkSize = chunkSize;
+		this.minKeyBytes = minKeyBytes;
+	}
+
+	/**
+	 * Migrate the UTF-8 lines of the input to the output, dropping rejected records. Neither stream is closed.
+	 *
+	 * @param in Records to migrate.
+	 * @param out Receives the migrated records.
+	 * @return the counts
+	 * @throws IOException if reading or writing fails, or the transformation fails
+	 */
+	public Result migrate(InputStream in, OutputStream out) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+		Result result = migrate(new InputStreamReader(in, StandardCharsets.UTF_8), writer, null);
+		writer.flush();
+		return result;
+	}
+
+	/**
+	 * Migrate the lines of the reader to the writer. Neither is closed.
+	 *
+	 * @param in Records to migrate.
+	 * @param out Receives the migrated records.
+	 * @param rejects Receives the rejected records as they were read, may be null.
+	 * @return the counts
+	 * @throws IOException if reading or writing fails, or the transformation fails
+	 */
+	public Result migrate(Reader in, Writer out, Writer rejects) throws IOException {
+		BufferedReader reader = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+		ArrayDeque<CompletableFuture<Chunk>> inFlight = new ArrayDeque<>(maxChunksInFlight);
+		long migrated = 0;
+		long rejected = 0;
+		long firstLine = 1;
+		try {
+			while (true) {
+				List<String> lines = new ArrayList<>(chunkSize);
+				String line;
+				while (lines.size() < chunkSize && (line = reader.readLine()) != null) {
+					lines.add(line);
+				}
+				if (lines.isEmpty()) {
+					break;
+				}
+				if (inFlight.size() == maxChunksInFlight) {
+					Chunk chunk = join(inFlight.poll());
+					chunk.writeTo(out, rejects);
+					migrated += chunk.migrated;
+					rejected += chunk.rejected;
+				}
+				long chunkFirstLine = firstLine;
+				inFlight.add(CompletableFuture.supplyAsync(() -> transform(lines, chunkFirstLine), executor));
+				firstLine += lines.size();
+			}
+			while (!inFlight.isEmpty()) {
+				Chunk chunk = join(inFlight.poll());
+				chunk.writeTo(out, rejects);
+				migrated += chunk.migrated;
+				rejected += chunk.rejected;
+			}
+		} finally {
+			for (CompletableFuture<Chunk> future : inFlight) {
+				future.cancel(false);
+			}
+		}
+		return new Result(migrated, rejected);
+	}
+
+	/**
+	 * Transform one chunk, on a thread of the executor.
+	 */
+	private Chunk transform(List<String> lines, long firstLine) {
+		Buffers buffers = BUFFERS.get();
+		Chunk chunk = new Chunk(lines.size());
+		for (int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i);
+			int start = line.lastIndexOf(SEPARATOR) + 1;
+			int end = line.length();
+			char[] chars = buffers.chars(end - start);
+			line.getChars(start, end, chars, 0);
+			int charCount = end - start;
+			byte[] key = buffers.key(charCount);
+			int length = 0;
+			try {
+				if (isStrictBase32(chars, charCount)) {
+					length = Base32Codec.decode(chars, 0, charCount, key, 0);
+				}
+				if (length < minKeyBytes) {
+					chunk.reject(line);
+					continue;
+				}
+				chunk.output.append(line, 0, start);
+				transform.transform(key, length, chunk.output);
+				chunk.output.append('\n');
+				chunk.migrated++;
+			} catch (GeneralSecurityException e) {
+				throw new CompletionException(new IOException("Transformation failed on line " + (firstLine + i), e));
+			} finally {
+				Arrays.fill(chars, 0, charCount, '\0');
+				Arrays.fill(key, 0, length, (byte) 0);
+			}
+		}
+		return chunk;
+	}
+
+	/**
+	 * Return true if the characters are Base32 in either case with spaces and dashes, optionally padded at the end. The
+	 * decoder skips everything else, which in a stored secret means it was damaged.
+	 */
+	static boolean isStrictBase32(char[] chars, int length) {
+		boolean padding = false;
+		for (int i = 0; i < length; i++) {
+			char c = chars[i];
+			if (c == '=') {
+				padding = true;
+				continue;
+			}
+			boolean valid = c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '2' && c <= '7' || c == ' ' || c == '-';
+			if (!valid || padding) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Chunk join(CompletableFuture<Chunk> future) throws IOException {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Output of one chunk, kept until the chunks before it are written.
+	 */
+	private static final class Chunk {
+
+		final StringBuilder output;
+		StringBuilder rejects;
+		int migrated;
+		int rejected;
+
+		Chunk(int lineCount) {
+			this.output = new StringBuilder(lineCount * 64);
+		}
+
+		void reject(String line) {
+			if (rejects == null) {
+				rejects = new StringBuilder();
+			}
+			rejects.append(line).append('\n');
+			rejected++;
+		}
+
+		void writeTo(Writer out, Writer rejectsOut) throws IOException {
+			out.append(output);
+			if (rejects != null && rejectsOut != null) {
+				rejectsOut.append(rejects);
+			}
+		}
+	}
+
+	/**
+	 * Per-thread buffers for the characters and the decoded bytes of a secret.
+	 */
+	private static final class Buffers {
+
+		private char[] chars = new char[128];
+		private byte[] key = new byte[128];
+
+		char[] chars(int length) {
+			if (chars.length < length) {
+				chars = new char[length];
+			}
+			return chars;
+		}
+
+		byte[] key(int charCount) {
+			// a secret never decodes to more bytes than it has characters
+			if (key.length < charCount) {
+				key = new byte[charCount];
+			}
+			return key;
+		}
+	}
+}
@@ -0,0 +1,364 @@
+package se.embuc.nano2fa;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Store of decoded secrets in a memory-mapped file, so validation by account id needs neither a database read nor Base32
+ * decoding:
+ *
+ * <pre>
+ * try (SecretVault vault = new SecretVault(Paths.get("secrets.vault"), 50_000_000)) {
+ * 	vault.put(accountId, base32Secret); // at enrollment
+ * 	boolean valid = vault.validateCurrentNumber(accountId, authNumber); // at login
+ * }
+ * </pre>
+ *
+ * <p>
+ * Account ids are compact, from 0 up to the capacity, and are the index of a fixed {@value #SLOT_SIZE} byte slot which
+ * holds the key length and up to {@value #MAX_KEY_LENGTH} key bytes. The file is mapped in segments of
+ * {@value #SEGMENT_SLOTS} slots and created sparse, so only the slots which were written take disk space and the heap
+ * holds nothing per account. Validation copies the key bytes straight from the mapping into per-thread scratch, keys
+ * {@link HmacSha1} with them and clears the copy again.
+ * </p>
+ * <p>
+ * Slot updates are atomic for readers in the same process: writers take the write lock of one of
+ * {@value #LOCK_STRIPES} {@link StampedLock} stripes and readers use optimistic reads which are retried under the read
+ * lock when a write got in between. Changes are in the page cache right away and survive a crash of the JVM,
+ * {@link #flush()} forces them to disk. Opening an existing file keeps its slots, a larger capacity grows the file.
+ * </p>
+ * <p>
+ * WARNING: The file holds the secrets in the clear, protect it like the database column it replaces.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public class SecretVault implements Closeable {
+
+	/** bytes per account */
+	public static final int SLOT_SIZE = 64;
+	/** longest key which fits into a slot, 96 Base32 characters */
+	public static final int MAX_KEY_LENGTH = SLOT_SIZE - 4;
+
+	static final int SEGMENT_SLOTS = 1 << 20;
+	static final int LOCK_STRIPES = 1024;
+	private static final int HEADER_SIZE = 64;
+	/** "N2FV" */
+	private static final int MAGIC = 0x4E324656;
+	private static final int FORMAT_VERSION = 1;
+
+	private static final ThreadLocal<ValidationState> VALIDATION_STATE = ThreadLocal.withInitial(ValidationState::new);
+
+	private final FileChannel channel;
+	private final MappedByteBuffer[] segments;
+	private final StampedLock[] locks = new StampedLock[LOCK_STRIPES];
+	private final long capacity;
+
+	/**
+	 * Open the vault in the file, creating it if it does not exist.
+	 *
+	 * @param file File of the vault.
+	 * @param capacity Number of accounts, ids go from 0 to capacity - 1. An existing larger file keeps its capacity.
+	 * @throws IOException if the file cannot be opened or is not a vault
+	 */
+	public SecretVault(Path file, long capacity) throws IOException {
+		if (capacity <= 0 || capacity > (long) SEGMENT_SLOTS * Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.SPARSE);
+		try {
+			this.capacity = Math.max(capacity, readHeader());
+			writeHeader();
+			int segmentCount = (int) ((this.capacity + SEGMENT_SLOTS - 1) / SEGMENT_SLOTS);
+			this.segments = new MappedByteBuffer[segmentCount];
+			for (int i = 0; i < segmentCount; i++) {
+				long slots = Math.min(SEGMENT_SLOTS, this.capacity - (long) i * SEGMENT_SLOTS);
+				segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + (long) i * SEGMENT_SLOTS * SLOT_SIZE, slots * SLOT_SIZE);
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new StampedLock();
+		}
+	}
+
+	/**
+	 * Store the secret of the account, replacing the previous one.
+	 *
+	 * @param accountId Id of the account, from 0 to {@link #getCapacity()} - 1.
+	 * @param base32Secret Secret string encoded using base-32.
+	 */
+	public void put(long accountId, String base32Secret) {
+		byte[] key = Base32Codec.decode(base32Secret);
+		try {
+			put(accountId, key);
+		} finally {
+			Arrays.fill(key, (byte) 0);
+		}
+	}
+
+	/**
+	 * Store the decoded secret of the account, replacing the previous one.
+	 *
+	 * @param accountId Id of the account, from 0 to {@link #getCapacity()} - 1.
+	 * @param key Decoded secret of 1 to {@link #MAX_KEY_LENGTH} bytes.
+	 */
+	public void put(long accountId, byte[] key) {
+		if (key == null || key.length == 0 || key.length > MAX_KEY_LENGTH) {
+			throw new IllegalArgumentException("Key must have 1 to " + MAX_KEY_LENGTH + " bytes");
+		}
+		write(accountId, key, key.length);
+	}
+
+	/**
+	 * Remove the secret of the account, its numbers no longer validate.
+	 *
+	 * @param accountId Id of the account, from 0 to {@link #getCapacity()} - 1.
+	 */
+	public void remove(long accountId) {
+		write(accountId, null, 0);
+	}
+
+	/**
+	 * @param accountId Id of the account, from 0 to {@link #getCapacity()} - 1.
+	 * @return true if a secret is stored for the account
+	 */
+	public boolean contains(long accountId) {
+		ByteBuffer segment = segmentOf(accountId);
+		int position = positionOf(accountId);
+		StampedLock lock = lockOf(accountId);
+		long stamp = lock.tryOptimisticRead();
+		int length = segment.getInt(position);
+		if (!lock.validate(stamp)) {
+			stamp = lock.readLock();
+			try {
+				length = segment.getInt(position);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		return length > 0;
+	}
+
+	/**
+	 * Validate with the default 10 second window against the stored secret of the account.
+	 *
+	 * @param accountId Id of the account, from 0 to {@link #getCapacity()} - 1.
+	 * @param authNumber Time based number provided by the user from their authenticator application.
+	 * @return True if a secret is stored and the authNumber matched within the window.
+	 */
+	public boolean validateCurrentNumber(long accountId, int authNumber) {
+		return validateCurrentNumber(accountId, authNumber, TimeBasedOneTimePasswordUtil.DEFAULT_VALIDATION_WINDOW_MILLIS);
+	}
+
+	/**
+	 * Same as {@link #validateCurrentNumber(long, int)} with a window in milliseconds.
+	 *
+	 * @param accountId Id of the account, from 0 to {@link #getCapacity()} - 1.
+	 * @param authNumber Time based number provided by the user from their authenticator application.
+	 * @param windowMillis Number of milliseconds that they are allowed to be off and still match. Set to 0 for no window.
+	 * @return True if a secret is stored and the authNumber matched within the window.
+	 */
+	public boolean validateCurrentNumber(long accountId, int authNumber, long windowMillis) {
+		return validateCurrentNumber(accountId, authNumber, windowMillis, System.currentTimeMillis(), TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS,
+				TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+
+	/**
+	 * Similar to {@link #validateCurrentNumber(long, int, long)} except exposes other parameters. Mostly for testing.
+	 */
+	protected boolean validateCurrentNumber(long accountId, int authNumber, long windowMillis, long timeMillis, int timeStepSeconds, int numDigits) {
+		MetricsListener listener = TimeBasedOneTimePasswordUtil.metricsListener();
+		AuditSink sink = TimeBasedOneTimePasswordUtil.auditSink();
+		long startNanos = listener == MetricsListener.NOOP ? 0 : System.nanoTime();
+		ValidationState state = VALIDATION_STATE.get();
+		int length = read(accountId, state.key);
+		if (length == 0) {
+			if (listener != MetricsListener.NOOP) {
+				listener.rejected(MetricsListener.RejectReason.INVALID_SECRET, 0, System.nanoTime() - startNanos);
+			}
+			if (sink != AuditSink.NOOP) {
+				sink.rejected(accountId, timeMillis, MetricsListener.RejectReason.INVALID_SECRET);
+			}
+			return false;
+		}
+		try {
+			HmacSha1.initKeyState(state.key, 0, length, state.keyState, state.scratch);
+		} finally {
+			Arrays.fill(state.key, 0, length, (byte) 0);
+		}
+		long value;
+		try {
+			value = matchingValue(state, authNumber, windowMillis, timeMillis, timeStepSeconds, numDigits);
+		} finally {
+			Arrays.fill(state.keyState, 0);
+		}
+		if (listener != MetricsListener.NOOP) {
+			TimeBasedOneTimePasswordUtil.reportValidation(listener, startNanos, value, true, windowMillis, timeMillis, timeStepSeconds);
+		}
+		if (sink != AuditSink.NOOP) {
+			TimeBasedOneTimePasswordUtil.reportAudit(sink, accountId, value, true, timeMillis, timeStepSeconds);
+		}
+		return value != TimeBasedOneTimePasswordUtil.NO_MATCH;
+	}
+
+	/**
+	 * Copy the stored key of the account into the buffer.
+	 *
+	 * @param accountId Id of the account, from 0 to {@link #getCapacity()} - 1.
+	 * @param key Buffer of at least {@link #MAX_KEY_LENGTH} bytes.
+	 * @return the key length, 0 if no secret is stored
+	 */
+	public int read(long accountId, byte[] key) {
+		ByteBuffer segment = segmentOf(accountId);
+		int position = positionOf(accountId);
+		StampedLock lock = lockOf(accountId);
+		long stamp = lock.tryOptimisticRead();
+		int length = copy(segment, position, key);
+		if (!lock.validate(stamp)) {
+			// a writer got in between, the copy may be torn
+			stamp = lock.readLock();
+			try {
+				length = copy(segment, position, key);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * @return number of accounts the vault holds
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Force all changes to disk.
+	 *
+	 * @throws IOException if writing fails
+	 */
+	public void flush() throws IOException {
+		for (MappedByteBuffer segment : segments) {
+			segment.force();
+		}
+		channel.force(true);
+	}
+
+	/**
+	 * Flush and close the file. The mappings are released by the garbage collector, the vault must not be used
+	 * afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static long matchingValue(ValidationState state, int authNumber, long windowMillis, long timeMillis, int timeStepSeconds, int numDigits) {
+		if (windowMillis <= 0) {
+			windowMillis = 0;
+		}
+		long startValue = TimeBasedOneTimePasswordUtil.generateValue(timeMillis - windowMillis, timeStepSeconds);
+		long endValue = TimeBasedOneTimePasswordUtil.generateValue(timeMillis + windowMillis, timeStepSeconds);
+		for (long value = startValue; value <= endValue; value++) {
+			if (HmacSha1.generateNumber(state.keyState, value, numDigits, state.scratch) == authNumber) {
+				return value;
+			}
+		}
+		return TimeBasedOneTimePasswordUtil.NO_MATCH;
+	}
+
+	private void write(long accountId, byte[] key, int length) {
+		ByteBuffer segment = segmentOf(accountId);
+		int position = positionOf(accountId);
+		StampedLock lock = lockOf(accountId);
+		long stamp = lock.writeLock();
+		try {
+			for (int i = 0; i < MAX_KEY_LENGTH; i++) {
+				segment.put(position + 4 + i, i < length ? key[i] : 0);
+			}
+			segment.putInt(position, length);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	private static int copy(ByteBuffer segment, int position, byte[] key) {
+		// a torn read may see any length, keep it in the slot
+		int length = Math.max(0, Math.min(MAX_KEY_LENGTH, segment.getInt(position)));
+		for (int i = 0; i < length; i++) {
+			key[i] = segment.get(position + 4 + i);
+		}
+		return length;
+	}
+
+	private ByteBuffer segmentOf(long accountId) {
+		if (accountId < 0 || accountId >= capacity) {
+			throw new IllegalArgumentException("Account id " + accountId + " is outside of the vault capacity " + capacity);
+		}
+		return segments[(int) (accountId / SEGMENT_SLOTS)];
+	}
+
+	private static int positionOf(long accountId) {
+		return (int) (accountId % SEGMENT_SLOTS) * SLOT_SIZE;
+	}
+
+	private StampedLock lockOf(long accountId) {
+		return locks[(int) (accountId & (LOCK_STRIPES - 1))];
+	}
+
+	/**
+	 * Return the capacity stored in the header of an existing file, 0 for a new file.
+	 */
+	private long readHeader() throws IOException {
+		if (channel.size() == 0) {
+			return 0;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+			// read the whole header
+		}
+		header.flip();
+		if (header.remaining() < 20 || header.getInt(0) != MAGIC) {
+			throw new IOException("Not a secret vault");
+		}
+		if (header.getInt(4) != FORMAT_VERSION || header.getInt(8) != SLOT_SIZE) {
+			throw new IOException("Unsupported secret vault format " + header.getInt(4) + " with slots of " + header.getInt(8) + " bytes");
+		}
+		return header.getLong(12);
+	}
+
+	private void writeHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(SLOT_SIZE).putLong(capacity);
+		header.clear();
+		while (header.hasRemaining()) {
+			channel.write(header, header.position());
+		}
+	}
+
+	/**
+	 * Per-thread scratch of the validation. Key bytes and key state are cleared after every validation.
+	 */
+	private static final class ValidationState {
+		final byte[] key = new byte[MAX_KEY_LENGTH];
+		final int[] keyState = new int[10];
+		final HmacSha1.Scratch scratch = new HmacSha1.Scratch();
+	}
+}
@@ -0,0 +1,65 @@
+package se.embuc.nano2fa;
+
+import java.util.Arrays;
+
+/**
+ * Per-thread decoded key buffer, {@link HmacSha1} key state and scratch, so a secret can be decoded and keyed for a
+ * single call without allocating. The key bytes are cleared right after keying and {@link #clear()} wipes the key
+ * state once the call is done.
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+final class ThreadKeyState {
+
+	private static final ThreadLocal<ThreadKeyState> STATE = ThreadLocal.withInitial(ThreadKeyState::new);
+
+	private byte[] key = new byte[64];
+	final int[] keyState = new int[10];
+	final HmacSha1.Scratch scratch = new HmacSha1.Scratch();
+
+	private ThreadKeyState() {
+	}
+
+	/**
+	 * Return the state of this thread keyed with the secret.
+	 *
+	 * @throws IllegalArgumentException if the secret is null or decodes to nothing
+	 */
+	static ThreadKeyState keyed(String base32Secret) {
+		if (base32Secret == null) {
+			throw new IllegalArgumentException("Empty key");
+		}
+		ThreadKeyState state = STATE.get();
+		if (state.key.length < base32Secret.length()) {
+			// a secret never decodes to more bytes than it has characters
+			state.key = new byte[base32Secret.length()];
+		}
+		int length = Base32Codec.decode(base32Secret, state.key, 0);
+		try {
+			HmacSha1.initKeyState(state.key, 0, length, state.keyState, state.scratch);
+		} finally {
+			Arrays.fill(state.key, 0, length, (byte) 0);
+		}
+		return state;
+	}
+
+	/**
+	 * Return the state of this thread keyed with the decoded secret.
+	 *
+	 * @throws IllegalArgumentException if the key is null or empty
+	 */
+	static ThreadKeyState keyed(byte[] key) {
+		ThreadKeyState state = STATE.get();
+		HmacSha1.initKeyState(key, 0, key == null ? 0 : key.length, state.keyState, state.scratch);
+		return state;
+	}
+
+	int generateNumber(long value, int numDigits) {
+		return HmacSha1.generateNumber(keyState, value, numDigits, scratch);
+	}
+
+	void clear() {
+		Arrays.fill(keyState, 0);
+	}
+}
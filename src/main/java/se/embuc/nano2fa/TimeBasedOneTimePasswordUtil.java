@@ -3,20 +3,17 @@ package se.embuc.nano2fa;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.util.Arrays;
-import java.util.Random;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 
-import org.apache.commons.codec.binary.Base32;
-
 /**
  * Implementation of the Time-based One-Time Password (TOTP) two factor authentication algorithm. You need to:
  *
  * <ol>
  * <li>Use generateBase32Secret() to generate a secret key for a user.</li>
  * <li>Store the secret key in the database associated with the user account.</li>
- * <li>Display the QR image URL returned by qrImageUrl(...) to the user.</li>
+ * <li>Display the QR image data URI returned by qrImageDataUri(...), or the QR image URL returned by qrImageUrl(...), to the user.</li>
  * <li>User uses the image to load the secret key into his authenticator application.</li>
  * </ol>
  *
@@ -51,7 +48,6 @@ import org.apache.commons.codec.binary.Base32;
  */
 public class TimeBasedOneTimePasswordUtil {
 
-	private static final int RECOVER_CODE_CHUNK_DEFAULT_LENGTH = 4;
 	private static final String HMAC_SHA1 = "HmacSHA1";
 	protected static final int DEFAULT_PRIVATE_KEY_LENGTH = 20;
 	/** default time-step which is part of the spec, 30 seconds is default */
@@ -64,13 +60,18 @@ public class TimeBasedOneTimePasswordUtil {
 	private static final int MAX_NUM_DIGITS_OUTPUT = 100;
 
 	private static final String BLOCK_OF_ZEROS;
-	private static final Base32 BASE32 = new Base32();
+	/** per-thread buffer which secrets are decoded into on the validation path */
+	private static final ThreadLocal<byte[]> KEY_BUFFER = ThreadLocal.withInitial(() -> new byte[64]);
 	//	Default server for generating images, might be also something like: "image-charts.com";
 	private static final String SERVER_URI = "quickchart.io";
 
 	/** Default number of milliseconds that they are allowed to be off and still match. (10 seconds) */
-	private static final long DEFAULT_VALIDATION_WINDOW_MILLIS = 10_000;
+	static final long DEFAULT_VALIDATION_WINDOW_MILLIS = 10_000;
+	/** returned by {@link #matchingValue(Mac, int, long, long, int, int)} when no time-step in the window matched */
+	static final long NO_MATCH = Long.MIN_VALUE;
 
+	private static volatile MetricsListener metricsListener = MetricsListener.NOOP;
+	private static volatile AuditSink auditSink = AuditSink.NOOP;
 
 	static {
 		char[] chars = new char[MAX_NUM_DIGITS_OUTPUT];
@@ -99,17 +100,7 @@ public class TimeBasedOneTimePasswordUtil {
 	 * @return generated String
 	 */
 	public static String generateBase32Secret(int numberOfDigits) {
-		StringBuilder sb = new StringBuilder(numberOfDigits);
-		Random random = new SecureRandom();
-		for (int i = 0; i < numberOfDigits; i++) {
-			int val = random.nextInt(32);
-			if (val < 26) {
-				sb.append((char) ('A' + val));
-			} else {
-				sb.append((char) ('2' + (val - 26)));
-			}
-		}
-		return sb.toString();
+		return SecretGenerator.generateBase32Secret(numberOfDigits);
 	}
 
 	/**
@@ -155,6 +146,61 @@ public class TimeBasedOneTimePasswordUtil {
 		return qrImageUrl(keyId, secret, numDigits, DEFAULT_QR_DIMENSION);
 	}
 
+	/**
+	 * Return the QR image rendered in process as PNG <code>data:</code> URI, which can be used as the source of an image
+	 * tag. Unlike {@link #qrImageUrl(String, String)} the browser does not fetch the image from a third party and the
+	 * secret never leaves the server. See {@link QrCode} for PNG and SVG streaming.
+	 *
+	 * @param keyId Name of the key that you want to show up in the users authentication application. Should already be URL
+	 * encoded.
+	 * @param secret Secret string that will be used when generating the current number.
+	 * @return image data URI
+	 */
+	public static String qrImageDataUri(String keyId, String secret) {
+		return qrImageDataUri(keyId, secret, DEFAULT_OTP_LENGTH, DEFAULT_QR_DIMENSION);
+	}
+
+	/**
+	 * Same as {@link #qrImageDataUri(String, String)} with the number of digits.
+	 *
+	 * @param keyId Name of the key that you want to show up in the users authentication application. Should already be URL
+	 * encoded.
+	 * @param secret Secret string that will be used when generating the current number.
+	 * @param numDigits The number of digits of the OTP.
+	 * @return image data URI
+	 */
+	public static String qrImageDataUri(String keyId, String secret, int numDigits) {
+		return qrImageDataUri(keyId, secret, numDigits, DEFAULT_QR_DIMENSION);
+	}
+
+	/**
+	 * Return the <code>otpauth://</code> URI which authenticator applications read from QR codes, not URL encoded as
+	 * {@link #generateOtpAuthUrl(String, String, int)} is.
+	 * {@link ProvisioningWriter#otpAuthUri(String, String, String, String, int, int)} adds the issuer and every other
+	 * parameter and encodes the account name.
+	 *
+	 * @param keyId Name of the key that you want to show up in the users authentication application. Should already be URL
+	 * encoded.
+	 * @param secret Secret string that will be used when generating the current number.
+	 * @return the URI
+	 */
+	public static String generateOtpAuthUri(String keyId, String secret) {
+		return generateOtpAuthUri(keyId, secret, DEFAULT_OTP_LENGTH);
+	}
+
+	/**
+	 * Same as {@link #generateOtpAuthUri(String, String)} with the number of digits.
+	 *
+	 * @param keyId Name of the key that you want to show up in the users authentication application. Should already be URL
+	 * encoded.
+	 * @param secret Secret string that will be used when generating the current number.
+	 * @param numDigits The number of digits of the OTP.
+	 * @return the URI
+	 */
+	public static String generateOtpAuthUri(String keyId, String secret, int numDigits) {
+		return "otpauth://totp/" + keyId + "?secret=" + secret + "&digits=" + numDigits;
+	}
+
 	/**
 	 * Validate a given secret-number using the secret base-32 string. Uses default 10 second window to account for people
 	 * being close to the end of the time-step.
@@ -192,6 +238,180 @@ public class TimeBasedOneTimePasswordUtil {
 		return validateCurrentNumber(base32Secret, authNumber, windowMillis, System.currentTimeMillis(), DEFAULT_TIME_STEP_SECONDS, DEFAULT_OTP_LENGTH);
 	}
 
+	/**
+	 * Same as {@link #validateCurrentNumber(String, int)} for the code as typed by the user. The code must have exactly 6
+	 * digits, leading zeros included, and is compared digit by digit against every time-step in the window, so the time
+	 * does not depend on whether or where it matched. Nothing is allocated.
+	 *
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @param authCode Time based code provided by the user from their authenticator application.
+	 * @return True if the authCode matched the calculated code within the default window.
+	 */
+	public static boolean validateCurrentNumber(String base32Secret, CharSequence authCode) {
+		return validateCurrentNumber(base32Secret, authCode, DEFAULT_VALIDATION_WINDOW_MILLIS);
+	}
+
+	/**
+	 * Same as {@link #validateCurrentNumber(String, int, long)} for the code as typed by the user, see
+	 * {@link #validateCurrentNumber(String, CharSequence)}.
+	 *
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @param authCode Time based code provided by the user from their authenticator application.
+	 * @param windowMillis Number of milliseconds that they are allowed to be off and still match. Set to 0 for no window.
+	 * @return True if the authCode matched the calculated code within the specified window.
+	 */
+	public static boolean validateCurrentNumber(String base32Secret, CharSequence authCode, long windowMillis) {
+		return validateCurrentNumber(base32Secret, authCode, windowMillis, System.currentTimeMillis(), DEFAULT_TIME_STEP_SECONDS, DEFAULT_OTP_LENGTH);
+	}
+
+	/**
+	 * Same as {@link #validateCurrentNumber(String, CharSequence, long)} for a range of a char array.
+	 *
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @param authCode Buffer holding the code provided by the user.
+	 * @param offset Index of the first character of the code.
+	 * @param length Number of characters of the code.
+	 * @param windowMillis Number of milliseconds that they are allowed to be off and still match. Set to 0 for no window.
+	 * @return True if the authCode matched the calculated code within the specified window.
+	 */
+	public static boolean validateCurrentNumber(String base32Secret, char[] authCode, int offset, int length, long windowMillis) {
+		return validateCurrentCode(base32Secret, CodeDigits.parse(authCode, offset, length, DEFAULT_OTP_LENGTH), windowMillis, System.currentTimeMillis(),
+				DEFAULT_TIME_STEP_SECONDS, DEFAULT_OTP_LENGTH);
+	}
+
+	/**
+	 * Same as {@link #validateCurrentNumber(String, CharSequence, long)} for a range of ASCII bytes, so request bytes can be
+	 * passed straight through.
+	 *
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @param authCode Buffer holding the code provided by the user.
+	 * @param offset Index of the first byte of the code.
+	 * @param length Number of bytes of the code.
+	 * @param windowMillis Number of milliseconds that they are allowed to be off and still match. Set to 0 for no window.
+	 * @return True if the authCode matched the calculated code within the specified window.
+	 */
+	public static boolean validateCurrentNumber(String base32Secret, byte[] authCode, int offset, int length, long windowMillis) {
+		return validateCurrentCode(base32Secret, CodeDigits.parse(authCode, offset, length, DEFAULT_OTP_LENGTH), windowMillis, System.currentTimeMillis(),
+				DEFAULT_TIME_STEP_SECONDS, DEFAULT_OTP_LENGTH);
+	}
+
+	/**
+	 * Same as {@link #generateCurrentNumberString(String)} but writes the digits into the buffer instead of allocating a
+	 * string.
+	 *
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @param buffer Buffer for the digits.
+	 * @param offset Where the first digit is written.
+	 * @return number of digits written
+	 */
+	public static int generateCurrentNumber(String base32Secret, char[] buffer, int offset) {
+		return CodeDigits.write(generateCurrentCode(base32Secret, System.currentTimeMillis(), DEFAULT_TIME_STEP_SECONDS, DEFAULT_OTP_LENGTH),
+				DEFAULT_OTP_LENGTH, buffer, offset);
+	}
+
+	/**
+	 * Same as {@link #generateCurrentNumber(String, char[], int)} with ASCII digits into a byte buffer.
+	 *
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @param buffer Buffer for the digits.
+	 * @param offset Where the first digit is written.
+	 * @return number of digits written
+	 */
+	public static int generateCurrentNumber(String base32Secret, byte[] buffer, int offset) {
+		return CodeDigits.write(generateCurrentCode(base32Secret, System.currentTimeMillis(), DEFAULT_TIME_STEP_SECONDS, DEFAULT_OTP_LENGTH),
+				DEFAULT_OTP_LENGTH, buffer, offset);
+	}
+
+	/**
+	 * Same as {@link #generateCurrentNumberString(String)} but reuses the prepared HMAC state of the secret from the given
+	 * cache.
+	 *
+	 * @param hmacCache Cache of keyed HMAC state shared between calls.
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @return A number as a string with possible leading zeros which should match the user's authenticator application
+	 * output.
+	 */
+	public static String generateCurrentNumberString(HmacCache hmacCache, String base32Secret) {
+		MetricsListener listener = metricsListener;
+		long startNanos = listener == MetricsListener.NOOP ? 0 : System.nanoTime();
+		Mac mac = newMac(hmacCache, base32Secret);
+		long value = generateValue(System.currentTimeMillis(), DEFAULT_TIME_STEP_SECONDS);
+		int number = generateNumberFromMac(mac, value, DEFAULT_OTP_LENGTH);
+		if (listener != MetricsListener.NOOP) {
+			listener.generated(System.nanoTime() - startNanos);
+		}
+		return zeroPrepend(number, DEFAULT_OTP_LENGTH);
+	}
+
+	/**
+	 * Same as {@link #validateCurrentNumber(String, int)} but reuses the prepared HMAC state of the secret from the given
+	 * cache, so repeated validations for the same user skip the provider lookup and key setup.
+	 *
+	 * @param hmacCache Cache of keyed HMAC state shared between calls.
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @param authNumber Time based number provided by the user from their authenticator application.
+	 * @return True if the authNumber matched the calculated number within the default window.
+	 */
+	public static boolean validateCurrentNumber(HmacCache hmacCache, String base32Secret, int authNumber) {
+		return validateCurrentNumber(hmacCache, base32Secret, authNumber, DEFAULT_VALIDATION_WINDOW_MILLIS);
+	}
+
+	/**
+	 * Same as {@link #validateCurrentNumber(String, int, long)} but reuses the prepared HMAC state of the secret from the
+	 * given cache, so repeated validations for the same user skip the provider lookup and key setup.
+	 *
+	 * @param hmacCache Cache of keyed HMAC state shared between calls.
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @param authNumber Time based number provided by the user from their authenticator application.
+	 * @param windowMillis Number of milliseconds that they are allowed to be off and still match. Set to 0 for no window.
+	 * @return True if the authNumber matched the calculated number within the specified window.
+	 */
+	public static boolean validateCurrentNumber(HmacCache hmacCache, String base32Secret, int authNumber, long windowMillis) {
+		return validateCurrentNumber(hmacCache, base32Secret, authNumber, windowMillis, System.currentTimeMillis(), DEFAULT_TIME_STEP_SECONDS,
+				DEFAULT_OTP_LENGTH);
+	}
+
+	/**
+	 * Same as {@link #validateCurrentNumber(String, int)} but records the accepted time-step in the registry, so the same
+	 * number is rejected for the account afterwards by every validation sharing the registry.
+	 *
+	 * @param registry Registry of used numbers, see {@link UsedCodeRegistry}.
+	 * @param accountId Id of the account the secret belongs to.
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @param authNumber Time based number provided by the user from their authenticator application.
+	 * @return True if the authNumber matched within the default window and was not used before.
+	 */
+	public static boolean validateCurrentNumber(UsedCodeRegistry registry, long accountId, String base32Secret, int authNumber) {
+		return validateCurrentNumber(registry, accountId, base32Secret, authNumber, DEFAULT_VALIDATION_WINDOW_MILLIS);
+	}
+
+	/**
+	 * Same as {@link #validateCurrentNumber(UsedCodeRegistry, long, String, int)} with a window in milliseconds.
+	 *
+	 * @param registry Registry of used numbers, see {@link UsedCodeRegistry}.
+	 * @param accountId Id of the account the secret belongs to.
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @param authNumber Time based number provided by the user from their authenticator application.
+	 * @param windowMillis Number of milliseconds that they are allowed to be off and still match. Must not be larger than
+	 * the window the registry keeps.
+	 * @return True if the authNumber matched within the window and was not used before.
+	 */
+	public static boolean validateCurrentNumber(UsedCodeRegistry registry, long accountId, String base32Secret, int authNumber, long windowMillis) {
+		return validateCurrentNumber(registry, accountId, base32Secret, authNumber, windowMillis, System.currentTimeMillis(), DEFAULT_TIME_STEP_SECONDS,
+				DEFAULT_OTP_LENGTH);
+	}
+
 	/**
 	 * Generate formatted recovery code containing 20 base32 characters grouped in five (5) chunks of four (4) digits and
 	 * separated by dash.
@@ -199,17 +419,27 @@ public class TimeBasedOneTimePasswordUtil {
 	 * @return the string
 	 */
 	public static String generateFormattedRecoveryCode() {
-		StringBuilder builder = new StringBuilder();
-		builder.append(generateBase32Secret(RECOVER_CODE_CHUNK_DEFAULT_LENGTH));
-		builder.append('-');
-		builder.append(generateBase32Secret(RECOVER_CODE_CHUNK_DEFAULT_LENGTH));
-		builder.append('-');
-		builder.append(generateBase32Secret(RECOVER_CODE_CHUNK_DEFAULT_LENGTH));
-		builder.append('-');
-		builder.append(generateBase32Secret(RECOVER_CODE_CHUNK_DEFAULT_LENGTH));
-		builder.append('-');
-		builder.append(generateBase32Secret(RECOVER_CODE_CHUNK_DEFAULT_LENGTH));
-		return builder.toString();
+		return SecretGenerator.generateFormattedRecoveryCode();
+	}
+
+	/**
+	 * Register the listener which is told about every generation and validation, see {@link MetricsRecorder}. Pass
+	 * <code>null</code> or {@link MetricsListener#NOOP} to stop reporting.
+	 *
+	 * @param listener Listener called on the validating thread, must be thread safe and fast.
+	 */
+	public static void setMetricsListener(MetricsListener listener) {
+		metricsListener = listener == null ? MetricsListener.NOOP : listener;
+	}
+
+	/**
+	 * Register the sink which is told the outcome of every validation of an account, see {@link AuditLog}. Pass
+	 * <code>null</code> or {@link AuditSink#NOOP} to stop auditing.
+	 *
+	 * @param sink Sink called on the validating thread, must be thread safe and must not block.
+	 */
+	public static void setAuditSink(AuditSink sink) {
+		auditSink = sink == null ? AuditSink.NOOP : sink;
 	}
 
 	/**
@@ -227,21 +457,79 @@ public class TimeBasedOneTimePasswordUtil {
 	 * @return A number which should match the user's authenticator application output.
 	 */
 	protected static int generateNumber(String base32Secret, long timeMillis, int timeStepSeconds, int numDigits) {
+		MetricsListener listener = metricsListener;
+		long startNanos = listener == MetricsListener.NOOP ? 0 : System.nanoTime();
 		long value = generateValue(timeMillis, timeStepSeconds);
-		byte[] key = BASE32.decode(base32Secret);
-		return generateNumberFromKeyValue(key, value, numDigits);
+		int number = generateNumberFromMac(newMac(null, base32Secret), value, numDigits);
+		if (listener != MetricsListener.NOOP) {
+			listener.generated(System.nanoTime() - startNanos);
+		}
+		return number;
 	}
 
 	protected static int generateNumberFromKeyValue(byte[] key, long value, int numDigits) {
-		try {
-			byte[] data = new byte[8];
-			for (int i = 7; value > 0; i--) {
-				data[i] = (byte) (value & 0xFF);
-				value >>= 8;
-			}
+		return generateNumberFromMac(newMac(key), value, numDigits);
+	}
+
+	/**
+	 * Same as {@link #generateNumberFromKeyValue(byte[], long, int)} but uses an already keyed {@link Mac}. The mac is
+	 * reset by <code>doFinal</code> so it can be used again for the next value.
+	 */
+	static int generateNumberFromMac(Mac mac, long value, int numDigits) {
+		byte[] data = new byte[8];
+		for (int i = 7; value > 0; i--) {
+			data[i] = (byte) (value & 0xFF);
+			value >>= 8;
+		}
+		byte[] hash = mac.doFinal(data);
+		return truncate(hash, numDigits);
+	}
+
+	/**
+	 * Dynamic truncation of the HMAC as described in RFC 4226, section 5.3.
+	 */
+	static int truncate(byte[] hash, int numDigits) {
+		/* take the 4 least significant bits from the encrypted string as an offset */
+		int offset = hash[hash.length - 1] & 0xF;
+
+		long truncatedHash = 0;
+		for (int i = offset; i < offset + 4; ++i) {
+			truncatedHash <<= 8;
+			// get the 4 bytes at the offset
+			truncatedHash |= (hash[i] & 0xFF);
+		}
+		// cut off the top bit
+		truncatedHash &= 0x7FFFFFFF;
+
+		// the token is then the last <length> digits in the number
+		long mask = 1;
+		for (int i = 0; i < numDigits; i++) {
+			mask *= 10;
+		}
+		truncatedHash %= mask;
+		return (int) truncatedHash;
+	}
+
+	/**
+	 * Return a new HMAC-SHA1 {@link Mac} initialized with the given key.
+	 */
+	static Mac newMac(byte[] key) {
+		/* will throw IllegalArgumentException if key is invalid (null or empty) */
+		return initMac(new SecretKeySpec(key, HMAC_SHA1));
+	}
+
+	/**
+	 * Return a new HMAC-SHA1 {@link Mac} initialized with the key in the given range of the buffer.
+	 */
+	static Mac newMac(byte[] key, int offset, int length) {
+		if (length <= 0) {
+			throw new IllegalArgumentException("Empty key");
+		}
+		return initMac(new SecretKeySpec(key, offset, length, HMAC_SHA1));
+	}
 
-			/* Encrypt the data with the key and return the SHA1 of it in hex */
-			SecretKeySpec signKey = new SecretKeySpec(key, HMAC_SHA1);
+	private static Mac initMac(SecretKeySpec signKey) {
+		try {
 
 			/*
 			 * This will never throw. Every implementation of the Java platform is required to support at least: HmacMD5, HmacSHA1,
@@ -249,26 +537,7 @@ public class TimeBasedOneTimePasswordUtil {
 			 */
 			Mac mac = Mac.getInstance(HMAC_SHA1);
 			mac.init(signKey);
-			byte[] hash = mac.doFinal(data);
-			/* take the 4 least significant bits from the encrypted string as an offset */
-			int offset = hash[hash.length - 1] & 0xF;
-
-			long truncatedHash = 0;
-			for (int i = offset; i < offset + 4; ++i) {
-				truncatedHash <<= 8;
-				// get the 4 bytes at the offset
-				truncatedHash |= (hash[i] & 0xFF);
-			}
-			// cut off the top bit
-			truncatedHash &= 0x7FFFFFFF;
-
-			// the token is then the last <length> digits in the number
-			long mask = 1;
-			for (int i = 0; i < numDigits; i++) {
-				mask *= 10;
-			}
-			truncatedHash %= mask;
-			return (int) truncatedHash;
+			return mac;
 		} catch (GeneralSecurityException e) {
 			/**
 			 * <code>Mac.getInstance(HMAC_SHA1);</code> This will never throw. Every implementation of the Java platform is required to support
@@ -337,6 +606,22 @@ public class TimeBasedOneTimePasswordUtil {
 		return sb.toString();
 	}
 
+	/**
+	 * Return the QR image rendered in process as PNG data URI.
+	 *
+	 * @param keyId Name of the key that you want to show up in the users authentication application. Should already be URL
+	 * encoded.
+	 * @param secret Secret string that will be used when generating the current number.
+	 * @param numDigits The number of digits of the OTP. Can be set to {@link #DEFAULT_OTP_LENGTH}.
+	 * @param imageDimension The largest dimension of the image, width and height. Can be set to
+	 * {@link #DEFAULT_QR_DIMENSION}. Modules are whole pixels so the image may be somewhat smaller.
+	 */
+	protected static String qrImageDataUri(String keyId, String secret, int numDigits, int imageDimension) {
+		QrCode qrCode = QrCode.encode(generateOtpAuthUri(keyId, secret, numDigits));
+		int scale = Math.max(1, imageDimension / (qrCode.getSize() + 2 * QrCode.DEFAULT_BORDER));
+		return qrCode.toPngDataUri(scale, QrCode.DEFAULT_BORDER);
+	}
+
 	/**
 	 * Similar to {@link #validateCurrentNumber(String, int, long)} except exposes other parameters. Mostly for testing.
 	 */
@@ -348,14 +633,165 @@ public class TimeBasedOneTimePasswordUtil {
 	 * Similar to {@link #validateCurrentNumber(String, int, long)} except exposes other parameters. Mostly for testing.
 	 */
 	protected static boolean validateCurrentNumber(String base32Secret, int authNumber, long windowMillis, long timeMillis, int timeStepSeconds, int numDigits) {
-		byte[] key = BASE32.decode(base32Secret);
-		return validateCurrentNumber(key, authNumber, windowMillis, timeMillis, timeStepSeconds, numDigits);
+		return validateCurrentNumber((HmacCache) null, base32Secret, authNumber, windowMillis, timeMillis, timeStepSeconds, numDigits);
+	}
+
+	/**
+	 * Similar to {@link #validateCurrentNumber(HmacCache, String, int, long)} except exposes other parameters. Mostly for
+	 * testing.
+	 */
+	protected static boolean validateCurrentNumber(HmacCache hmacCache, String base32Secret, int authNumber, long windowMillis, long timeMillis,
+			int timeStepSeconds, int numDigits) {
+		return validatedValue(hmacCache, base32Secret, authNumber, windowMillis, timeMillis, timeStepSeconds, numDigits) != NO_MATCH;
+	}
+
+	/**
+	 * Similar to {@link #validateCurrentNumber(UsedCodeRegistry, long, String, int, long)} except exposes other
+	 * parameters. Mostly for testing.
+	 */
+	protected static boolean validateCurrentNumber(UsedCodeRegistry registry, long accountId, String base32Secret, int authNumber, long windowMillis,
+			long timeMillis, int timeStepSeconds, int numDigits) {
+		if (registry == null) {
+			throw new IllegalArgumentException("No used code registry");
+		}
+		MetricsListener listener = metricsListener;
+		AuditSink sink = auditSink;
+		long startNanos = listener == MetricsListener.NOOP ? 0 : System.nanoTime();
+		Mac mac;
+		try {
+			mac = newMac(null, base32Secret);
+		} catch (IllegalArgumentException e) {
+			if (listener != MetricsListener.NOOP) {
+				listener.rejected(MetricsListener.RejectReason.INVALID_SECRET, 0, System.nanoTime() - startNanos);
+			}
+			if (sink != AuditSink.NOOP) {
+				sink.rejected(accountId, timeMillis, MetricsListener.RejectReason.INVALID_SECRET);
+			}
+			throw e;
+		}
+		long value = matchingValue(mac, authNumber, windowMillis, timeMillis, timeStepSeconds, numDigits);
+		// only a match costs the registry its fence or round trip
+		boolean accepted = value != NO_MATCH && registry.markUsed(accountId, value);
+		if (listener != MetricsListener.NOOP) {
+			reportValidation(listener, startNanos, value, accepted, windowMillis, timeMillis, timeStepSeconds);
+		}
+		if (sink != AuditSink.NOOP) {
+			reportAudit(sink, accountId, value, accepted, timeMillis, timeStepSeconds);
+		}
+		return accepted;
+	}
+
+	/**
+	 * Validate through {@link #newMac(HmacCache, String)} and tell the metrics listener.
+	 *
+	 * @return The time-step counter value the authNumber matched or {@link #NO_MATCH}.
+	 */
+	static long validatedValue(HmacCache hmacCache, String base32Secret, int authNumber, long windowMillis, long timeMillis, int timeStepSeconds,
+			int numDigits) {
+		MetricsListener listener = metricsListener;
+		if (listener == MetricsListener.NOOP) {
+			Mac mac = newMac(hmacCache, base32Secret);
+			return matchingValue(mac, authNumber, windowMillis, timeMillis, timeStepSeconds, numDigits);
+		}
+		long startNanos = System.nanoTime();
+		Mac mac;
+		try {
+			mac = newMac(hmacCache, base32Secret);
+		} catch (IllegalArgumentException e) {
+			listener.rejected(MetricsListener.RejectReason.INVALID_SECRET, 0, System.nanoTime() - startNanos);
+			throw e;
+		}
+		long value = matchingValue(mac, authNumber, windowMillis, timeMillis, timeStepSeconds, numDigits);
+		reportValidation(listener, startNanos, value, true, windowMillis, timeMillis, timeStepSeconds);
+		return value;
+	}
+
+	/**
+	 * Similar to {@link #validateCurrentNumber(String, CharSequence, long)} except exposes other parameters. Mostly for
+	 * testing.
+	 */
+	protected static boolean validateCurrentNumber(String base32Secret, CharSequence authCode, long windowMillis, long timeMillis, int timeStepSeconds,
+			int numDigits) {
+		return validateCurrentCode(base32Secret, CodeDigits.parse(authCode, numDigits), windowMillis, timeMillis, timeStepSeconds, numDigits);
+	}
+
+	/**
+	 * Validate a code parsed by {@link CodeDigits}. Every time-step of the window is generated and compared without
+	 * stopping at a match, so the time only depends on the size of the window.
+	 */
+	private static boolean validateCurrentCode(String base32Secret, long authCode, long windowMillis, long timeMillis, int timeStepSeconds,
+			int numDigits) {
+		MetricsListener listener = metricsListener;
+		long startNanos = listener == MetricsListener.NOOP ? 0 : System.nanoTime();
+		ThreadKeyState state;
+		try {
+			state = ThreadKeyState.keyed(base32Secret);
+		} catch (IllegalArgumentException e) {
+			if (listener != MetricsListener.NOOP) {
+				listener.rejected(MetricsListener.RejectReason.INVALID_SECRET, 0, System.nanoTime() - startNanos);
+			}
+			throw e;
+		}
+		if (windowMillis < 0) {
+			windowMillis = 0;
+		}
+		long startValue = generateValue(timeMillis - windowMillis, timeStepSeconds);
+		long endValue = generateValue(timeMillis + windowMillis, timeStepSeconds);
+		long value = NO_MATCH;
+		try {
+			for (long candidate = startValue; candidate <= endValue; candidate++) {
+				// all ones if the code matched, an invalid code is negative and never does
+				long equal = -CodeDigits.equal(state.generateNumber(candidate, numDigits), authCode);
+				value = (equal & candidate) | (~equal & value);
+			}
+		} finally {
+			state.clear();
+		}
+		if (listener != MetricsListener.NOOP) {
+			long elapsedNanos = System.nanoTime() - startNanos;
+			if (value == NO_MATCH) {
+				listener.rejected(MetricsListener.RejectReason.MISMATCH, endValue - startValue + 1, elapsedNanos);
+			} else {
+				listener.validated(endValue - startValue + 1, (int) (value - generateValue(timeMillis, timeStepSeconds)), elapsedNanos);
+			}
+		}
+		return value != NO_MATCH;
+	}
+
+	/**
+	 * Generate the number through the per-thread {@link HmacSha1} state, which does not allocate.
+	 */
+	static int generateCurrentCode(String base32Secret, long timeMillis, int timeStepSeconds, int numDigits) {
+		MetricsListener listener = metricsListener;
+		long startNanos = listener == MetricsListener.NOOP ? 0 : System.nanoTime();
+		ThreadKeyState state = ThreadKeyState.keyed(base32Secret);
+		int number;
+		try {
+			number = state.generateNumber(generateValue(timeMillis, timeStepSeconds), numDigits);
+		} finally {
+			state.clear();
+		}
+		if (listener != MetricsListener.NOOP) {
+			listener.generated(System.nanoTime() - startNanos);
+		}
+		return number;
 	}
 
 	/**
 	 * Return the string prepended with 0s. Tested as 10x faster than String.format("%06d", ...); Exposed for testing.
 	 */
 	protected static String zeroPrepend(int num, int digits) {
+		if (num >= 0 && digits > 0 && digits <= CodeDigits.MAX_DIGITS) {
+			char[] chars = new char[digits];
+			int rest = num;
+			for (int i = digits - 1; i >= 0; i--) {
+				chars[i] = (char) ('0' + rest % 10);
+				rest /= 10;
+			}
+			if (rest == 0) {
+				return new String(chars);
+			}
+		}
 		String numStr = Integer.toString(num);
 		if (numStr.length() >= digits) {
 			return numStr;
@@ -371,27 +807,106 @@ public class TimeBasedOneTimePasswordUtil {
 		sb.append("otpauth://totp/").append(keyId).append("%3Fsecret%3D").append(secret).append("%26digits%3D").append(numDigits);
 	}
 
-	private static long generateValue(long timeMillis, int timeStepSeconds) {
+	static byte[] decodeBase32(String base32Secret) {
+		return base32Secret == null ? null : Base32Codec.decode(base32Secret);
+	}
+
+	/**
+	 * Return a keyed mac for the secret, from the cache if one is given. The secret is decoded into a per-thread buffer
+	 * which is cleared again afterwards, so nothing is allocated for the decoding.
+	 */
+	static Mac newMac(HmacCache hmacCache, String base32Secret) {
+		if (base32Secret == null) {
+			// reported as an invalid key
+			return newMac((byte[]) null);
+		}
+		byte[] buffer = KEY_BUFFER.get();
+		if (buffer.length < base32Secret.length()) {
+			// a secret never decodes to more bytes than it has characters
+			buffer = new byte[base32Secret.length()];
+			KEY_BUFFER.set(buffer);
+		}
+		int length = Base32Codec.decode(base32Secret, buffer, 0);
+		try {
+			return hmacCache == null ? newMac(buffer, 0, length) : hmacCache.getMac(buffer, 0, length);
+		} finally {
+			Arrays.fill(buffer, 0, length, (byte) 0);
+		}
+	}
+
+	static long generateValue(long timeMillis, int timeStepSeconds) {
 		return timeMillis / 1000 / timeStepSeconds;
 	}
 
-	private static boolean validateCurrentNumber(byte[] key, int authNumber, long windowMillis, long timeMillis, int timeStepSeconds, int numDigits) {
+	/**
+	 * Return the registered listener, {@link MetricsListener#NOOP} if there is none.
+	 */
+	static MetricsListener metricsListener() {
+		return metricsListener;
+	}
+
+	/**
+	 * Return the registered audit sink, {@link AuditSink#NOOP} if there is none.
+	 */
+	static AuditSink auditSink() {
+		return auditSink;
+	}
+
+	/**
+	 * Tell the audit sink about a validation of the account which ended with the result of
+	 * {@link #matchingValue(Mac, int, long, long, int, int)}. A matched value which was not accepted is reported as
+	 * replayed.
+	 */
+	static void reportAudit(AuditSink sink, long accountId, long value, boolean accepted, long timeMillis, int timeStepSeconds) {
+		if (value == NO_MATCH) {
+			sink.rejected(accountId, timeMillis, MetricsListener.RejectReason.MISMATCH);
+		} else if (accepted) {
+			sink.accepted(accountId, timeMillis, (int) (value - generateValue(timeMillis, timeStepSeconds)));
+		} else {
+			sink.rejected(accountId, timeMillis, MetricsListener.RejectReason.REPLAYED);
+		}
+	}
+
+	/**
+	 * Tell the listener about a validation which ended with the result of
+	 * {@link #matchingValue(Mac, int, long, long, int, int)}. A matched value which was not accepted is reported as
+	 * replayed. The number of HMACs follows from where the value lies in the window, matchingValue stops at the match.
+	 */
+	static void reportValidation(MetricsListener listener, long startNanos, long value, boolean accepted, long windowMillis, long timeMillis,
+			int timeStepSeconds) {
+		long elapsedNanos = System.nanoTime() - startNanos;
+		long currentValue = generateValue(timeMillis, timeStepSeconds);
+		long startValue = windowMillis <= 0 ? currentValue : generateValue(timeMillis - windowMillis, timeStepSeconds);
+		if (value == NO_MATCH) {
+			long endValue = windowMillis <= 0 ? currentValue : generateValue(timeMillis + windowMillis, timeStepSeconds);
+			listener.rejected(MetricsListener.RejectReason.MISMATCH, endValue - startValue + 1, elapsedNanos);
+		} else if (accepted) {
+			listener.validated(value - startValue + 1, (int) (value - currentValue), elapsedNanos);
+		} else {
+			listener.rejected(MetricsListener.RejectReason.REPLAYED, value - startValue + 1, elapsedNanos);
+		}
+	}
+
+	/**
+	 * Return the time-step counter value within the window which generates the authNumber or {@link #NO_MATCH}.
+	 */
+	static long matchingValue(Mac mac, int authNumber, long windowMillis, long timeMillis, int timeStepSeconds, int numDigits) {
 		if (windowMillis <= 0) {
 			// just test the current time
 			long value = generateValue(timeMillis, timeStepSeconds);
-			long generatedNumber = generateNumberFromKeyValue(key, value, numDigits);
-			return (generatedNumber == authNumber);
+			long generatedNumber = generateNumberFromMac(mac, value, numDigits);
+			return (generatedNumber == authNumber) ? value : NO_MATCH;
 		}
 		// maybe check multiple values
 		long startValue = generateValue(timeMillis - windowMillis, timeStepSeconds);
 		long endValue = generateValue(timeMillis + windowMillis, timeStepSeconds);
 		for (long value = startValue; value <= endValue; value++) {
-			long generatedNumber = generateNumberFromKeyValue(key, value, numDigits);
+			long generatedNumber = generateNumberFromMac(mac, value, numDigits);
 			if (generatedNumber == authNumber) {
-				return true;
+				return value;
 			}
 		}
-		return false;
+		return NO_MATCH;
 	}
 
 }
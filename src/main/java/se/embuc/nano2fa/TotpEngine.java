@@ -0,0 +1,464 @@
+package se.embuc.nano2fa;
+
+import java.security.GeneralSecurityException;
+import java.time.Clock;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Immutable time based one-time password engine for one policy: HMAC algorithm, number of digits, time-step, validation
+ * window and clock. Build one per policy and share it between threads:
+ *
+ * <pre>
+ * TotpEngine engine = TotpEngine.builder().setAlgorithm(TotpEngine.Algorithm.SHA256).setDigits(8).build();
+ * boolean valid = engine.validateCurrentNumber(base32Secret, authNumber);
+ * </pre>
+ *
+ * <p>
+ * Everything which only depends on the policy is worked out when the engine is built: the time-step in milliseconds,
+ * the modulus of the digits and the window. The per-call work is decoding and keying the secret and the HMACs of the
+ * window. SHA1 goes through the allocation free {@link HmacSha1}, SHA256 and SHA512 through one JCA {@link Mac} per
+ * thread and algorithm, which is looked up once and only re-keyed per call. Engines with different policies share that
+ * state, so many tenants can each have their own engine in one JVM. That state is wiped after every call, the
+ * {@link Mac} is keyed with a placeholder so no tenant's key stays in it until the thread's next call, which costs SHA256
+ * and SHA512 a second key setup per call.
+ * </p>
+ * <p>
+ * Unlike SHA1, SHA256 and SHA512 leave a copy of the key on the heap per call: the JCA can only be keyed with a
+ * {@link SecretKeySpec}, which copies the key into an array that is never wiped, so the secret stays in memory until
+ * that array is garbage collected. Use SHA1 where secrets must not outlive the call.
+ * </p>
+ * <p>
+ * Every time-step of the window is generated and compared without stopping at a match, so the time only depends on the
+ * size of the window. Generation and validation are reported to the registered {@link MetricsListener}.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public final class TotpEngine {
+
+	/**
+	 * HMAC algorithm of the engine.
+	 */
+	public enum Algorithm {
+		/** HMAC-SHA1, what most authenticator applications use */
+		SHA1("HmacSHA1"),
+		/** HMAC-SHA256 */
+		SHA256("HmacSHA256"),
+		/** HMAC-SHA512 */
+		SHA512("HmacSHA512");
+
+		private final ThreadLocal<MacState> macState;
+
+		Algorithm(String macAlgorithm) {
+			this.macState = ThreadLocal.withInitial(() -> new MacState(macAlgorithm));
+		}
+	}
+
+	private final Algorithm algorithm;
+	private final int digits;
+	private final int timeStepSeconds;
+	private final long windowMillis;
+	private final Clock clock;
+	private final long timeStepMillis;
+	/** 10^digits, larger than any truncated hash for 10 digits */
+	private final long modulus;
+
+	private TotpEngine(Builder builder) {
+		this.algorithm = builder.algorithm;
+		this.digits = builder.digits;
+		this.timeStepSeconds = builder.timeStepSeconds;
+		this.windowMillis = builder.windowMillis;
+		this.clock = builder.clock;
+		this.timeStepMillis = timeStepSeconds * 1000L;
+		long power = 1;
+		for (int i = 0; i < digits; i++) {
+			power *= 10;
+		}
+		this.modulus = power;
+	}
+
+	/**
+	 * @return a builder with the defaults of {@link TimeBasedOneTimePasswordUtil}: SHA1, 6 digits, 30 second time-steps,
+	 * a window of 10 seconds and the system clock
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @return the time-step counter value of the clock's current time
+	 */
+	public long timeStep() {
+		return timeStep(clock.millis());
+	}
+
+	/**
+	 * @param timeMillis Time in milliseconds.
+	 * @return the time-step counter value of the time
+	 */
+	public long timeStep(long timeMillis) {
+		return timeMillis / timeStepMillis;
+	}
+
+	/**
+	 * Generate the number of the secret for the clock's current time.
+	 *
+	 * @param base32Secret Secret string encoded using base-32.
+	 * @return the number
+	 */
+	public int generateCurrentNumber(String base32Secret) {
+		return generateNumber(base32Secret, clock.millis());
+	}
+
+	/**
+	 * Same as {@link #generateCurrentNumber(String)} with leading zeros.
+	 *
+	 * @param base32Secret Secret string encoded using base-32.
+	 * @return the number as digits
+	 */
+	public String generateCurrentNumberString(String base32Secret) {
+		return TimeBasedOneTimePasswordUtil.zeroPrepend(generateCurrentNumber(base32Secret), digits);
+	}
+
+	/**
+	 * Generate the number of the secret for the given time.
+	 *
+	 * @param base32Secret Secret string encoded using base-32.
+	 * @param timeMillis Time in milliseconds.
+	 * @return the number
+	 */
+	public int generateNumber(String base32Secret, long timeMillis) {
+		MetricsListener listener = TimeBasedOneTimePasswordUtil.metricsListener();
+		long startNanos = listener == MetricsListener.NOOP ? 0 : System.nanoTime();
+		long value = timeStep(timeMillis);
+		int number;
+		if (algorithm == Algorithm.SHA1) {
+			ThreadKeyState state = ThreadKeyState.keyed(base32Secret);
+			try {
+				number = state.generateNumber(value, digits);
+			} finally {
+				state.clear();
+			}
+		} else {
+			MacState state = keyedMac(base32Secret);
+			try {
+				number = state.generateNumber(value, modulus);
+			} finally {
+				state.clear();
+			}
+		}
+		if (listener != MetricsListener.NOOP) {
+			listener.generated(System.nanoTime() - startNanos);
+		}
+		return number;
+	}
+
+	/**
+	 * Validate the number against the clock's current time within the window of the engine.
+	 *
+	 * @param base32Secret Secret string encoded using base-32.
+	 * @param authNumber Number provided by the user from their authenticator application.
+	 * @return True if the authNumber matched a number within the window.
+	 */
+	public boolean validateCurrentNumber(String base32Secret, int authNumber) {
+		return validateCode(base32Secret, authNumber, clock.millis());
+	}
+
+	/**
+	 * Same as {@link #validateCurrentNumber(String, int)} for the code as typed, which must have exactly the number of
+	 * digits of the engine, see {@link CodeDigits#parse(CharSequence, int)}.
+	 *
+	 * @param base32Secret Secret string encoded using base-32.
+	 * @param authCode Code provided by the user from their authenticator application.
+	 * @return True if the authCode matched a number within the window.
+	 */
+	public boolean validateCurrentNumber(String base32Secret, CharSequence authCode) {
+		return validateCode(base32Secret, CodeDigits.parse(authCode, digits), clock.millis());
+	}
+
+	/**
+	 * Same as {@link #validateCurrentNumber(String, int)} against the given time instead of the clock.
+	 *
+	 * @param base32Secret Secret string encoded using base-32.
+	 * @param authNumber Number provided by the user from their authenticator application.
+	 * @param timeMillis Time in milliseconds to validate against.
+	 * @return True if the authNumber matched a number within the window.
+	 */
+	public boolean validateNumber(String base32Secret, int authNumber, long timeMillis) {
+		return validateCode(base32Secret, authNumber, timeMillis);
+	}
+
+	/**
+	 * Return the <code>otpauth://totp/</code> URI of the account with the algorithm, digits and period of the engine,
+	 * see {@link ProvisioningWriter#otpAuthUri(String, String, String, String, int, int)}.
+	 *
+	 * @param issuer Provider or service the account belongs to. May be null.
+	 * @param accountName Name of the account shown by authenticator applications.
+	 * @param base32Secret Secret string encoded using base-32.
+	 * @return the URI
+	 */
+	public String otpAuthUri(String issuer, String accountName, String base32Secret) {
+		return ProvisioningWriter.otpAuthUri(issuer, accountName, base32Secret, algorithm.name(), digits, timeStepSeconds);
+	}
+
+	/**
+	 * @return the HMAC algorithm
+	 */
+	public Algorithm getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * @return the number of digits of the numbers
+	 */
+	public int getDigits() {
+		return digits;
+	}
+
+	/**
+	 * @return the time-step in seconds
+	 */
+	public int getTimeStepSeconds() {
+		return timeStepSeconds;
+	}
+
+	/**
+	 * @return the number of milliseconds the user is allowed to be off
+	 */
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	/**
+	 * @return the clock numbers are generated and validated against
+	 */
+	public Clock getClock() {
+		return clock;
+	}
+
+	private boolean validateCode(String base32Secret, long authCode, long timeMillis) {
+		MetricsListener listener = TimeBasedOneTimePasswordUtil.metricsListener();
+		long startNanos = listener == MetricsListener.NOOP ? 0 : System.nanoTime();
+		ThreadKeyState sha1 = null;
+		MacState mac = null;
+		try {
+			if (algorithm == Algorithm.SHA1) {
+				sha1 = ThreadKeyState.keyed(base32Secret);
+			} else {
+				mac = keyedMac(base32Secret);
+			}
+		} catch (IllegalArgumentException e) {
+			if (listener != MetricsListener.NOOP) {
+				listener.rejected(MetricsListener.RejectReason.INVALID_SECRET, 0, System.nanoTime() - startNanos);
+			}
+			throw e;
+		}
+		long startValue = timeStep(timeMillis - windowMillis);
+		long endValue = timeStep(timeMillis + windowMillis);
+		long value = TimeBasedOneTimePasswordUtil.NO_MATCH;
+		try {
+			for (long candidate = startValue; candidate <= endValue; candidate++) {
+				int number = sha1 != null ? sha1.generateNumber(candidate, digits) : mac.generateNumber(candidate, modulus);
+				// all ones if the code matched, an invalid code is negative and never does
+				long equal = -CodeDigits.equal(number, authCode);
+				value = (equal & candidate) | (~equal & value);
+			}
+		} finally {
+			if (sha1 != null) {
+				sha1.clear();
+			} else {
+				mac.clear();
+			}
+		}
+		if (listener != MetricsListener.NOOP) {
+			long elapsedNanos = System.nanoTime() - startNanos;
+			if (value == TimeBasedOneTimePasswordUtil.NO_MATCH) {
+				listener.rejected(MetricsListener.RejectReason.MISMATCH, endValue - startValue + 1, elapsedNanos);
+			} else {
+				listener.validated(endValue - startValue + 1, (int) (value - timeStep(timeMillis)), elapsedNanos);
+			}
+		}
+		return value != TimeBasedOneTimePasswordUtil.NO_MATCH;
+	}
+
+	private MacState keyedMac(String base32Secret) {
+		if (base32Secret == null) {
+			throw new IllegalArgumentException("Empty key");
+		}
+		MacState state = algorithm.macState.get();
+		state.init(base32Secret);
+		return state;
+	}
+
+	/**
+	 * Per-thread JCA {@link Mac} of one algorithm with buffers for the key, the counter and the hash. The decoded key is
+	 * wiped and the mac re-keyed with a placeholder after every call, but {@link Mac#init(java.security.Key)} only takes a
+	 * {@link SecretKeySpec}, which copies the key into an array of its own that cannot be wiped and stays on the heap until
+	 * it is garbage collected.
+	 */
+	private static final class MacState {
+
+		private final Mac mac;
+		private final String macAlgorithm;
+		private final byte[] data = new byte[8];
+		private final byte[] hash;
+		private final SecretKeySpec placeholderKey;
+		private byte[] key = new byte[64];
+
+		MacState(String macAlgorithm) {
+			try {
+				this.mac = Mac.getInstance(macAlgorithm);
+			} catch (GeneralSecurityException e) {
+				// every implementation of the Java platform is required to support HmacSHA1 and HmacSHA256
+				throw new IllegalArgumentException(e);
+			}
+			this.macAlgorithm = macAlgorithm;
+			this.hash = new byte[mac.getMacLength()];
+			this.placeholderKey = new SecretKeySpec(new byte[1], macAlgorithm);
+		}
+
+		void init(String base32Secret) {
+			if (key.length < base32Secret.length()) {
+				// a secret never decodes to more bytes than it has characters
+				key = new byte[base32Secret.length()];
+			}
+			int length = Base32Codec.decode(base32Secret, key, 0);
+			boolean keyed = false;
+			try {
+				if (length <= 0) {
+					throw new IllegalArgumentException("Empty key");
+				}
+				mac.init(new SecretKeySpec(key, 0, length, macAlgorithm));
+				keyed = true;
+			} catch (GeneralSecurityException e) {
+				throw new IllegalArgumentException(e);
+			} finally {
+				Arrays.fill(key, 0, length, (byte) 0);
+				if (!keyed) {
+					clear();
+				}
+			}
+		}
+
+		/**
+		 * Drop the key of this thread's last call by keying the mac with a placeholder, so no tenant's key stays in the
+		 * per-thread state between calls. Called after every use and after a failed {@link #init(String)}.
+		 */
+		void clear() {
+			Arrays.fill(hash, (byte) 0);
+			mac.reset();
+			try {
+				mac.init(placeholderKey);
+			} catch (GeneralSecurityException e) {
+				// the placeholder is a valid key of the algorithm
+				throw new IllegalStateException(e);
+			}
+		}
+
+		int generateNumber(long value, long modulus) {
+			for (int i = 7; i >= 0; i--) {
+				data[i] = (byte) value;
+				value >>= 8;
+			}
+			mac.update(data);
+			try {
+				// leaves the mac keyed for the next value
+				mac.doFinal(hash, 0);
+			} catch (ShortBufferException e) {
+				// the buffer has the length of the mac
+				throw new IllegalStateException(e);
+			}
+			// dynamic truncation as described in RFC 4226, section 5.3
+			int offset = hash[hash.length - 1] & 0xF;
+			int truncatedHash = (hash[offset] & 0x7F) << 24 | (hash[offset + 1] & 0xFF) << 16 | (hash[offset + 2] & 0xFF) << 8 | (hash[offset + 3] & 0xFF);
+			return (int) (truncatedHash % modulus);
+		}
+	}
+
+	/**
+	 * Collects the policy of a {@link TotpEngine}. Builders are not thread safe, the engines they build are.
+	 */
+	public static final class Builder {
+
+		private Algorithm algorithm = Algorithm.SHA1;
+		private int digits = TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH;
+		private int timeStepSeconds = TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS;
+		private long windowMillis = TimeBasedOneTimePasswordUtil.DEFAULT_VALIDATION_WINDOW_MILLIS;
+		private Clock clock = Clock.systemUTC();
+
+		private Builder() {
+		}
+
+		/**
+		 * @param algorithm HMAC algorithm.
+		 * @return this builder
+		 */
+		public Builder setAlgorithm(Algorithm algorithm) {
+			if (algorithm == null) {
+				throw new IllegalArgumentException("No algorithm");
+			}
+			this.algorithm = algorithm;
+			return this;
+		}
+
+		/**
+		 * @param digits Number of digits of the numbers, at most {@link CodeDigits#MAX_DIGITS}.
+		 * @return this builder
+		 */
+		public Builder setDigits(int digits) {
+			if (digits <= 0 || digits > CodeDigits.MAX_DIGITS) {
+				throw new IllegalArgumentException("Invalid digits: " + digits);
+			}
+			this.digits = digits;
+			return this;
+		}
+
+		/**
+		 * @param timeStepSeconds Time-step in seconds.
+		 * @return this builder
+		 */
+		public Builder setTimeStepSeconds(int timeStepSeconds) {
+			if (timeStepSeconds <= 0) {
+				throw new IllegalArgumentException("Invalid time-step: " + timeStepSeconds);
+			}
+			this.timeStepSeconds = timeStepSeconds;
+			return this;
+		}
+
+		/**
+		 * @param windowMillis Number of milliseconds that the user is allowed to be off and still match. 0 for no window.
+		 * @return this builder
+		 */
+		public Builder setWindowMillis(long windowMillis) {
+			if (windowMillis < 0) {
+				throw new IllegalArgumentException("Invalid window: " + windowMillis);
+			}
+			this.windowMillis = windowMillis;
+			return this;
+		}
+
+		/**
+		 * @param clock Clock numbers are generated and validated against, for example a fixed clock in tests.
+		 * @return this builder
+		 */
+		public Builder setClock(Clock clock) {
+			if (clock == null) {
+				throw new IllegalArgumentException("No clock");
+			}
+			this.clock = clock;
+			return this;
+		}
+
+		/**
+		 * @return a new engine with the policy of this builder
+		 */
+		public TotpEngine build() {
+			return new TotpEngine(this);
+		}
+	}
+}
@@ -0,0 +1,419 @@
+package se.embuc.nano2fa;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link UsedCodeRegistry} of a node which asks a {@link UsedCodeServer}, so a number accepted on one node is rejected on
+ * all of them:
+ *
+ * <pre>
+ * try (UsedCodeClient registry = new UsedCodeClient(new InetSocketAddress("2fa-registry", 7219))) {
+ * 	boolean valid = TimeBasedOneTimePasswordUtil.validateCurrentNumber(registry, accountId, base32Secret, authNumber);
+ * 	...
+ * }
+ * </pre>
+ *
+ * <p>
+ * All threads of the node share one connection. A thread appends its request to the send buffer and whichever thread
+ * holds the write lock sends everything buffered with one write, so the requests of concurrent validations travel
+ * together. The answers come back in order and a reader thread hands them to the waiting threads, which costs every
+ * validation that matched a single round trip however many run at once.
+ * </p>
+ * <p>
+ * The client fails closed: when the server does not take the request or answer within the timeout or the connection is
+ * broken the number is reported as used and counted in {@link #getFailures()}. A timeout breaks the connection, so the
+ * requests waiting on a stalled server fail with it. A broken connection is opened again by the next request, at most
+ * once per timeout.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public class UsedCodeClient implements UsedCodeRegistry, Closeable {
+
+	/** default time to wait for the server to answer or to accept the connection */
+	public static final long DEFAULT_TIMEOUT_MILLIS = 1000;
+
+	private static final int BUFFER_BYTES = 64 * 1024;
+
+	private final InetSocketAddress address;
+	private final long timeoutNanos;
+	private final LongAdder failures = new LongAdder();
+	private final Object connectLock = new Object();
+	private volatile Connection connection;
+	private long lastConnectNanos;
+	private volatile boolean closed;
+
+	/**
+	 * Connect with {@link #DEFAULT_TIMEOUT_MILLIS}.
+	 *
+	 * @param address Address of the server.
+	 * @throws IOException if the server cannot be reached
+	 */
+	public UsedCodeClient(InetSocketAddress address) throws IOException {
+		this(address, DEFAULT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * @param address Address of the server.
+	 * @param timeoutMillis Time to wait for the server to answer or to accept the connection.
+	 * @throws IOException if the server cannot be reached
+	 */
+	public UsedCodeClient(InetSocketAddress address, long timeoutMillis) throws IOException {
+		if (address == null) {
+			throw new IllegalArgumentException("No address");
+		}
+		if (timeoutMillis <= 0 || timeoutMillis > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("timeoutMillis must be between 1 and 2^31-1: " + timeoutMillis);
+		}
+		this.address = address;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		this.lastConnectNanos = System.nanoTime();
+		this.connection = new Connection(connect());
+	}
+
+	/**
+	 * Record that the number of the time-step was accepted for the account, with one round trip to the server. For
+	 * callers which validate on their own.
+	 *
+	 * @param accountId Id of the account.
+	 * @param value Time-step counter value the number matched.
+	 * @return True if the pair was recorded now, false if it was used before, cannot be recorded or the server did not
+	 * answer.
+	 */
+	@Override
+	public boolean markUsed(long accountId, long value) {
+		Connection current = connection();
+		Pending pending = new Pending(Thread.currentThread());
+		long deadline = System.nanoTime() + timeoutNanos;
+		if (current == null || !current.send(pending, accountId, value, deadline)) {
+			failures.increment();
+			return false;
+		}
+		int state;
+		while ((state = pending.state) == Pending.WAITING) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				// the server stalled, give up on the connection and everything waiting on it
+				current.fail();
+				failures.increment();
+				return false;
+			}
+			LockSupport.parkNanos(this, remaining);
+		}
+		if (state == Pending.FAILED) {
+			failures.increment();
+			return false;
+		}
+		return state == Pending.MARKED;
+	}
+
+	/**
+	 * @return number of requests which were reported as used because the server could not be asked
+	 */
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	/**
+	 * Close the connection, waiting requests fail and later ones are reported as used.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (connectLock) {
+			closed = true;
+			Connection current = connection;
+			if (current != null) {
+				current.fail();
+			}
+		}
+	}
+
+	/**
+	 * Return the open connection, or open a new one if the last broke and the timeout has passed since.
+	 */
+	private Connection connection() {
+		Connection current = connection;
+		if (current != null && !current.dead) {
+			return current;
+		}
+		synchronized (connectLock) {
+			current = connection;
+			if (current != null && !current.dead) {
+				return current;
+			}
+			long now = System.nanoTime();
+			if (closed || now - lastConnectNanos < timeoutNanos) {
+				return null;
+			}
+			lastConnectNanos = now;
+			try {
+				connection = current = new Connection(connect());
+				return current;
+			} catch (IOException e) {
+				return null;
+			}
+		}
+	}
+
+	private SocketChannel connect() throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.socket().connect(address, (int) TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+			ByteBuffer handshake = ByteBuffer.allocate(UsedCodeServer.HANDSHAKE_BYTES);
+			handshake.putInt(UsedCodeServer.MAGIC).putInt(UsedCodeServer.PROTOCOL_VERSION).flip();
+			while (handshake.hasRemaining()) {
+				channel.write(handshake);
+			}
+			return channel;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * A request waiting for its answer.
+	 */
+	private static final class Pending {
+
+		static final int WAITING = 0;
+		static final int MARKED = 1;
+		static final int USED = 2;
+		static final int FAILED = 3;
+
+		final Thread waiter;
+		volatile int state;
+
+		Pending(Thread waiter) {
+			this.waiter = waiter;
+		}
+
+		void complete(int newState) {
+			state = newState;
+			LockSupport.unpark(waiter);
+		}
+	}
+
+	/**
+	 * One connection to the server with its send buffer, its waiting requests in send order and its reader thread. The
+	 * channel does not block, so a server which stops reading cannot hold the sending thread past its deadline.
+	 */
+	private final class Connection {
+
+		private final SocketChannel channel;
+		private final Selector readSelector;
+		private final Selector writeSelector;
+		/** held by the thread sending, the others only buffer */
+		private final ReentrantLock writeLock = new ReentrantLock();
+		// guarded by this
+		private final ArrayDeque<Pending> waiting = new ArrayDeque<>();
+		private ByteBuffer buffered = ByteBuffer.allocateDirect(BUFFER_BYTES);
+		// owned by the thread holding the write lock
+		private ByteBuffer sending = ByteBuffer.allocateDirect(BUFFER_BYTES);
+		volatile boolean dead;
+
+		Connection(SocketChannel channel) throws IOException {
+			this.channel = channel;
+			this.readSelector = Selector.open();
+			this.writeSelector = Selector.open();
+			try {
+				channel.configureBlocking(false);
+				channel.register(readSelector, SelectionKey.OP_READ);
+				channel.register(writeSelector, SelectionKey.OP_WRITE);
+			} catch (IOException e) {
+				closeQuietly();
+				throw e;
+			}
+			Thread reader = new Thread(this::read, "nano2fa-used-code-client");
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		/**
+		 * Queue the request and send it, unless another thread is sending and will take it along.
+		 *
+		 * @param deadline {@link System#nanoTime()} by which the request must be sent.
+		 * @return False if the connection is broken or the request could not be buffered in time.
+		 */
+		boolean send(Pending pending, long accountId, long value, long deadline) {
+			while (true) {
+				synchronized (this) {
+					if (dead) {
+						return false;
+					}
+					if (buffered.remaining() >= UsedCodeServer.REQUEST_BYTES) {
+						waiting.add(pending);
+						buffered.putLong(accountId).putLong(value);
+						break;
+					}
+				}
+				// the buffer is full, wait for the sending thread to swap it
+				if (!flush(true, deadline)) {
+					return false;
+				}
+			}
+			// once queued the request fails with the connection if it cannot be sent
+			flush(false, deadline);
+			return true;
+		}
+
+		/**
+		 * Send the buffered requests until there are none left.
+		 *
+		 * @param wait Wait for the thread which is sending instead of leaving the requests to it.
+		 * @param deadline {@link System#nanoTime()} after which waiting for the lock or for the server to read fails.
+		 * @return False if the lock was not taken in time, the connection is broken then or will be by its holder.
+		 */
+		private boolean flush(boolean wait, long deadline) {
+			while (true) {
+				if (wait) {
+					try {
+						if (!writeLock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+							return false;
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				} else if (!writeLock.tryLock()) {
+					return true;
+				}
+				try {
+					while (true) {
+						synchronized (this) {
+							if (buffered.position() == 0 || dead) {
+								break;
+							}
+							ByteBuffer swap = buffered;
+							buffered = sending;
+							sending = swap;
+						}
+						sending.flip();
+						while (sending.hasRemaining()) {
+							if (channel.write(sending) == 0) {
+								awaitWritable(deadline);
+							}
+						}
+						sending.clear();
+					}
+				} catch (IOException | ClosedSelectorException e) {
+					fail();
+					return true;
+				} finally {
+					writeLock.unlock();
+				}
+				// a request buffered after the last check but before the unlock would otherwise wait for the next one
+				synchronized (this) {
+					if (buffered.position() == 0 || dead) {
+						return true;
+					}
+				}
+				wait = false;
+			}
+		}
+
+		/**
+		 * Wait until the server reads some of the requests.
+		 *
+		 * @throws IOException if it did not by the deadline
+		 */
+		private void awaitWritable(long deadline) throws IOException {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				throw new IOException("Server does not read the requests");
+			}
+			// at least a millisecond, none would wait forever
+			writeSelector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+			writeSelector.selectedKeys().clear();
+		}
+
+		/**
+		 * Loop of the reader thread.
+		 */
+		private void read() {
+			ByteBuffer answers = ByteBuffer.allocateDirect(BUFFER_BYTES / UsedCodeServer.REQUEST_BYTES);
+			try {
+				while (!dead) {
+					int read = channel.read(answers);
+					if (read < 0) {
+						throw new EOFException("Connection closed by the server");
+					}
+					if (read == 0) {
+						readSelector.select();
+						readSelector.selectedKeys().clear();
+						continue;
+					}
+					answers.flip();
+					while (answers.hasRemaining()) {
+						byte answer = answers.get();
+						Pending pending;
+						synchronized (this) {
+							pending = waiting.poll();
+						}
+						if (pending == null) {
+							throw new IOException("Answer without a request");
+						}
+						pending.complete(answer == UsedCodeServer.MARKED ? Pending.MARKED : Pending.USED);
+					}
+					answers.clear();
+				}
+			} catch (IOException | ClosedSelectorException e) {
+				fail();
+			} finally {
+				closeQuietly();
+			}
+		}
+
+		/**
+		 * Mark the connection as broken, close it and fail the waiting requests.
+		 */
+		void fail() {
+			synchronized (this) {
+				if (dead) {
+					return;
+				}
+				dead = true;
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// it is gone either way
+			}
+			// the reader thread closes the selectors on its way out
+			readSelector.wakeup();
+			writeSelector.wakeup();
+			synchronized (this) {
+				Pending pending;
+				while ((pending = waiting.poll()) != null) {
+					pending.complete(Pending.FAILED);
+				}
+			}
+		}
+
+		private void closeQuietly() {
+			for (Closeable closeable : new Closeable[] { channel, readSelector, writeSelector }) {
+				try {
+					closeable.close();
+				} catch (IOException e) {
+					// nothing left to release
+				}
+			}
+		}
+	}
+}
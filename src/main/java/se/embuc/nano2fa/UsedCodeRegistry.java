@@ -0,0 +1,31 @@
+package se.embuc.nano2fa;
+
+/**
+ * Record of the (account, time-step) pairs whose numbers were accepted, so that a number is accepted only once. Pass
+ * one to {@link TimeBasedOneTimePasswordUtil#validateCurrentNumber(UsedCodeRegistry, long, String, int)}:
+ *
+ * <ul>
+ * <li>{@link ReplayGuard} keeps the pairs in the heap of one JVM</li>
+ * <li>{@link MappedUsedCodeRegistry} shares them between the processes of one host through a memory-mapped file</li>
+ * <li>{@link UsedCodeClient} shares them between nodes through a {@link UsedCodeServer}</li>
+ * </ul>
+ *
+ * <p>
+ * The registry is only asked once a number matched, so rejected numbers never reach it. Implementations must be thread
+ * safe and fail closed: a pair which cannot be recorded is reported as used.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public interface UsedCodeRegistry {
+
+	/**
+	 * Record that the number of the time-step was accepted for the account.
+	 *
+	 * @param accountId Id of the account.
+	 * @param value Time-step counter value the number matched.
+	 * @return True if the pair was recorded now, false if it was used before or cannot be recorded.
+	 */
+	boolean markUsed(long accountId, long value);
+}
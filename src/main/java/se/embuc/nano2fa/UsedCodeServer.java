@@ -0,0 +1,202 @@
+package se.embuc.nano2fa;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Serves a {@link UsedCodeRegistry} to the {@link UsedCodeClient}s of several nodes, so a number accepted on one node is
+ * rejected on all of them:
+ *
+ * <pre>
+ * UsedCodeServer server = new UsedCodeServer(new InetSocketAddress(7219), new ReplayGuard());
+ * </pre>
+ *
+ * <p>
+ * It is a small stand-in for a shared store, with a {@link ReplayGuard} behind it the pairs live in the memory of the
+ * server and are lost when it stops. The protocol is binary over TCP: after a handshake of the magic
+ * <code>N2FU</code> and the protocol version as two ints, the client sends requests of two longs, the account id and the
+ * time-step value, and the server answers every request with one byte in the same order, 1 if the pair was recorded
+ * and 0 if it was used before or cannot be recorded. Requests are pipelined, the server reads all that arrived, asks the
+ * registry and writes the answers back with one write.
+ * </p>
+ * <p>
+ * Every connection has its own thread, the clients keep a single connection per node.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public class UsedCodeServer implements Closeable {
+
+	/** "N2FU" */
+	static final int MAGIC = 0x4E324655;
+	static final int PROTOCOL_VERSION = 1;
+	static final int HANDSHAKE_BYTES = 2 * Integer.BYTES;
+	/** account id and time-step value */
+	static final int REQUEST_BYTES = 2 * Long.BYTES;
+	static final byte MARKED = 1;
+	static final byte USED = 0;
+
+	private static final int BUFFER_BYTES = 64 * 1024;
+	private static final long ACCEPT_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final UsedCodeRegistry registry;
+	private final ServerSocketChannel serverChannel;
+	private final Thread acceptor;
+	private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+	private volatile boolean closed;
+
+	/**
+	 * Serve a new {@link ReplayGuard} with its defaults on the loopback interface.
+	 *
+	 * @param port Port to listen on, 0 for any free one, see {@link #getAddress()}.
+	 * @throws IOException if the port cannot be bound
+	 */
+	public UsedCodeServer(int port) throws IOException {
+		this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), new ReplayGuard());
+	}
+
+	/**
+	 * @param address Address to listen on.
+	 * @param registry Registry the requests are answered from.
+	 * @throws IOException if the address cannot be bound
+	 */
+	public UsedCodeServer(InetSocketAddress address, UsedCodeRegistry registry) throws IOException {
+		if (registry == null) {
+			throw new IllegalArgumentException("No used code registry");
+		}
+		this.registry = registry;
+		this.serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.bind(address);
+		} catch (IOException e) {
+			serverChannel.close();
+			throw e;
+		}
+		this.acceptor = new Thread(this::accept, "nano2fa-used-code-server");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * @return address the server listens on
+	 * @throws IOException if the server is closed
+	 */
+	public InetSocketAddress getAddress() throws IOException {
+		return (InetSocketAddress) serverChannel.getLocalAddress();
+	}
+
+	/**
+	 * Stop listening and close every connection. The registry is not closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		serverChannel.close();
+		for (SocketChannel connection : connections) {
+			connection.close();
+		}
+		boolean interrupted = false;
+		while (acceptor.isAlive()) {
+			try {
+				acceptor.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Loop of the acceptor thread.
+	 */
+	private void accept() {
+		int count = 0;
+		while (!closed) {
+			SocketChannel connection;
+			try {
+				connection = serverChannel.accept();
+			} catch (IOException e) {
+				if (!serverChannel.isOpen()) {
+					break;
+				}
+				// out of file descriptors for a moment
+				LockSupport.parkNanos(this, ACCEPT_RETRY_NANOS);
+				continue;
+			}
+			connections.add(connection);
+			if (closed) {
+				close(connection);
+				break;
+			}
+			Thread thread = new Thread(() -> serve(connection), "nano2fa-used-code-connection-" + ++count);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Loop of a connection thread.
+	 */
+	private void serve(SocketChannel connection) {
+		try {
+			connection.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			ByteBuffer requests = ByteBuffer.allocateDirect(BUFFER_BYTES);
+			ByteBuffer answers = ByteBuffer.allocateDirect(BUFFER_BYTES / REQUEST_BYTES);
+			requests.limit(HANDSHAKE_BYTES);
+			readFully(connection, requests);
+			if (requests.getInt(0) != MAGIC || requests.getInt(Integer.BYTES) != PROTOCOL_VERSION) {
+				return;
+			}
+			requests.clear();
+			while (connection.read(requests) >= 0) {
+				requests.flip();
+				while (requests.remaining() >= REQUEST_BYTES) {
+					long accountId = requests.getLong();
+					long value = requests.getLong();
+					answers.put(registry.markUsed(accountId, value) ? MARKED : USED);
+				}
+				requests.compact();
+				answers.flip();
+				while (answers.hasRemaining()) {
+					connection.write(answers);
+				}
+				answers.clear();
+			}
+		} catch (IOException e) {
+			// the client went away or the server is closing
+		} finally {
+			close(connection);
+		}
+	}
+
+	private void close(SocketChannel connection) {
+		connections.remove(connection);
+		try {
+			connection.close();
+		} catch (IOException e) {
+			// nothing more to do with it
+		}
+	}
+
+	static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException("Connection closed");
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package se.embuc.nano2fa;
+
+/**
+ * Moves the one-time costs of the first logins after a start to startup: JCA provider lookup and the first keying of
+ * every HMAC algorithm, seeding of the {@link java.security.SecureRandom} behind {@link SecretGenerator}, class loading
+ * and static tables of the codecs, and compilation of the hot paths by the JIT. Call it before the instance is put into
+ * service, for example from a readiness check:
+ *
+ * <pre>
+ * long nanos = WarmUp.warmUp();
+ * log.info("2FA warmed up in {} ms", nanos / 1_000_000);
+ * </pre>
+ *
+ * <p>
+ * The warm-up only uses secrets it generates itself and leaves no state behind except what the library keeps per
+ * thread anyway. Its generations and validations are reported to the registered {@link MetricsListener} like any other,
+ * so warm up before registering one.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public final class WarmUp {
+
+	/** default number of calls of every hot path, enough for the JIT to compile them */
+	public static final int DEFAULT_ITERATIONS = 20_000;
+
+	/** a time which is the same on every run, so the warm-up does the same work */
+	private static final long TIME_MILLIS = 1_700_000_000_000L;
+
+	private WarmUp() {
+		/** This is an utility class and it is not supposed to be instantiated. */
+	}
+
+	/**
+	 * Warm up with {@link #DEFAULT_ITERATIONS}.
+	 *
+	 * @return nanoseconds the warm-up took
+	 */
+	public static long warmUp() {
+		return warmUp(DEFAULT_ITERATIONS);
+	}
+
+	/**
+	 * Initialize providers, entropy and tables, then call every hot path the given number of times.
+	 *
+	 * @param iterations Calls of every hot path, 0 to only initialize.
+	 * @return nanoseconds the warm-up took
+	 */
+	public static long warmUp(int iterations) {
+		if (iterations < 0) {
+			throw new IllegalArgumentException("Invalid iterations: " + iterations);
+		}
+		long startNanos = System.nanoTime();
+		// seeds the SecureRandom and loads the Base32 tables
+		String secret = TimeBasedOneTimePasswordUtil.generateBase32Secret();
+		TimeBasedOneTimePasswordUtil.generateFormattedRecoveryCode();
+		TotpEngine[] engines = new TotpEngine[TotpEngine.Algorithm.values().length];
+		for (TotpEngine.Algorithm algorithm : TotpEngine.Algorithm.values()) {
+			// looks up and keys the JCA Mac of every algorithm
+			engines[algorithm.ordinal()] = TotpEngine.builder().setAlgorithm(algorithm).build();
+			engines[algorithm.ordinal()].generateNumber(secret, TIME_MILLIS);
+		}
+		HmacCache hmacCache = new HmacCache();
+		long windowMillis = TimeBasedOneTimePasswordUtil.DEFAULT_VALIDATION_WINDOW_MILLIS;
+		int timeStepSeconds = TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS;
+		int numDigits = TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH;
+		int number = TimeBasedOneTimePasswordUtil.generateNumber(secret, TIME_MILLIS, timeStepSeconds, numDigits);
+		String code = TimeBasedOneTimePasswordUtil.zeroPrepend(number, numDigits);
+		TotpEngine engine = engines[TotpEngine.Algorithm.SHA1.ordinal()];
+		for (int i = 0; i < iterations; i++) {
+			// mostly numbers which do not match, they scan the whole window
+			boolean match = (i & 7) == 0;
+			int authNumber = match ? number : (number + 1 + i % 1000) % 1_000_000;
+			long timeMillis = TIME_MILLIS + (i & 1) * 1000L;
+			TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, authNumber, windowMillis, timeMillis, timeStepSeconds, numDigits);
+			TimeBasedOneTimePasswordUtil.validateCurrentNumber(hmacCache, secret, authNumber, windowMillis, timeMillis, timeStepSeconds, numDigits);
+			TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, match ? code : "000000", windowMillis, timeMillis, timeStepSeconds, numDigits);
+			engine.validateNumber(secret, authNumber, timeMillis);
+			TimeBasedOneTimePasswordUtil.generateCurrentCode(secret, timeMillis, timeStepSeconds, numDigits);
+		}
+		return System.nanoTime() - startNanos;
+	}
+}
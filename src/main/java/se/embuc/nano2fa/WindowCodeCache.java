@@ -0,0 +1,216 @@
+package se.embuc.nano2fa;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Opt-in cache of the numbers in the validation window of each active secret. Users mistype and retry within the same
+ * time-step and scripted clients retry a lot, with this cache a retry costs a few int comparisons instead of up to three
+ * HMAC computations:
+ *
+ * <pre>
+ * WindowCodeCache cache = new WindowCodeCache();
+ * boolean valid = cache.validateCurrentNumber(base32Secret, authNumber);
+ * </pre>
+ *
+ * <p>
+ * The numbers are kept as an <code>int[]</code> per secret together with the time-step counter they were computed for.
+ * As soon as a validation sees a newer time-step all entries are dropped, so the cache only ever holds the secrets used
+ * during the current time-step. Use one cache per time-step size. Once {@link #DEFAULT_MAXIMUM_SIZE} secrets (or the
+ * configured maximum) are cached further secrets are validated without caching until the next time-step.
+ * </p>
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+public class WindowCodeCache {
+
+	/** default maximum number of secrets cached per time-step */
+	public static final int DEFAULT_MAXIMUM_SIZE = 100_000;
+
+	private final ConcurrentHashMap<Object, WindowCodes> codesBySecret = new ConcurrentHashMap<>();
+	private final AtomicLong currentValue = new AtomicLong(Long.MIN_VALUE);
+	private final int maximumSize;
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+
+	/**
+	 * Create a cache which holds at most {@link #DEFAULT_MAXIMUM_SIZE} secrets.
+	 */
+	public WindowCodeCache() {
+		this(DEFAULT_MAXIMUM_SIZE);
+	}
+
+	/**
+	 * @param maximumSize Maximum number of secrets cached per time-step.
+	 */
+	public WindowCodeCache(int maximumSize) {
+		if (maximumSize <= 0) {
+			throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+		}
+		this.maximumSize = maximumSize;
+	}
+
+	/**
+	 * Same as {@link TimeBasedOneTimePasswordUtil#validateCurrentNumber(String, int)} but answers retries within the same
+	 * time-step from the cache.
+	 *
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @param authNumber Time based number provided by the user from their authenticator application.
+	 * @return True if the authNumber matched the calculated number within the default window.
+	 */
+	public boolean validateCurrentNumber(String base32Secret, int authNumber) {
+		return validateCurrentNumber(base32Secret, authNumber, TimeBasedOneTimePasswordUtil.DEFAULT_VALIDATION_WINDOW_MILLIS);
+	}
+
+	/**
+	 * Same as {@link TimeBasedOneTimePasswordUtil#validateCurrentNumber(String, int, long)} but answers retries within the
+	 * same time-step from the cache.
+	 *
+	 * @param base32Secret Secret string encoded using base-32 that was used to generate the QR code or shared with the
+	 * user.
+	 * @param authNumber Time based number provided by the user from their authenticator application.
+	 * @param windowMillis Number of milliseconds that they are allowed to be off and still match. Set to 0 for no window.
+	 * @return True if the authNumber matched the calculated number within the specified window.
+	 */
+	public boolean validateCurrentNumber(String base32Secret, int authNumber, long windowMillis) {
+		return validateCurrentNumber(base32Secret, authNumber, windowMillis, System.currentTimeMillis(),
+				TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH);
+	}
+
+	/**
+	 * Similar to {@link #validateCurrentNumber(String, int, long)} except exposes other parameters. Mostly for testing.
+	 */
+	protected boolean validateCurrentNumber(String base32Secret, int authNumber, long windowMillis, long timeMillis, int timeStepSeconds,
+			int numDigits) {
+		// the string itself is the cache key so a hit does not even decode the secret
+		return validate(base32Secret, null, base32Secret, authNumber, windowMillis, timeMillis, timeStepSeconds, numDigits);
+	}
+
+	/**
+	 * Same as {@link #validateCurrentNumber(String, int, long)} for a decoded secret.
+	 */
+	protected boolean validateCurrentNumber(byte[] key, int authNumber, long windowMillis, long timeMillis, int timeStepSeconds, int numDigits) {
+		return validate(key == null ? null : ByteBuffer.wrap(key), key, null, authNumber, windowMillis, timeMillis, timeStepSeconds, numDigits);
+	}
+
+	/**
+	 * @return number of validations answered from the cache
+	 */
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	/**
+	 * @return number of validations which had to compute the window
+	 */
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	/**
+	 * @return number of secrets cached for the current time-step
+	 */
+	public int size() {
+		return codesBySecret.size();
+	}
+
+	/**
+	 * Drop all cached numbers.
+	 */
+	public void clear() {
+		codesBySecret.clear();
+	}
+
+	private boolean validate(Object cacheKey, byte[] key, String base32Secret, int authNumber, long windowMillis, long timeMillis,
+			int timeStepSeconds, int numDigits) {
+		if (windowMillis < 0) {
+			windowMillis = 0;
+		}
+		long value = TimeBasedOneTimePasswordUtil.generateValue(timeMillis, timeStepSeconds);
+		long startValue = TimeBasedOneTimePasswordUtil.generateValue(timeMillis - windowMillis, timeStepSeconds);
+		long endValue = TimeBasedOneTimePasswordUtil.generateValue(timeMillis + windowMillis, timeStepSeconds);
+
+		boolean cacheable = cacheKey != null && rollOver(value);
+		WindowCodes codes = cacheable ? codesBySecret.get(cacheKey) : null;
+		if (codes != null && codes.covers(value, startValue, endValue, timeStepSeconds, numDigits)) {
+			hitCount.increment();
+		} else {
+			missCount.increment();
+			if (key == null) {
+				key = TimeBasedOneTimePasswordUtil.decodeBase32(base32Secret);
+			}
+			// the window of any time within this time-step fits into value +- the window in whole time-steps
+			long stepMillis = timeStepSeconds * 1000L;
+			long windowSteps = (windowMillis + stepMillis - 1) / stepMillis;
+			codes = new WindowCodes(key, value, windowSteps, timeStepSeconds, numDigits);
+			if (cacheable && (codesBySecret.size() < maximumSize || codesBySecret.containsKey(cacheKey))) {
+				codesBySecret.put(cacheKey instanceof ByteBuffer ? ByteBuffer.wrap(key.clone()) : cacheKey, codes);
+			}
+		}
+		return codes.contains(authNumber, startValue, endValue);
+	}
+
+	/**
+	 * Track the newest time-step and drop everything computed for older ones.
+	 *
+	 * @return false if the value is older than the newest time-step seen and should not be cached
+	 */
+	private boolean rollOver(long value) {
+		while (true) {
+			long current = currentValue.get();
+			if (value == current) {
+				return true;
+			}
+			if (value < current) {
+				return false;
+			}
+			if (currentValue.compareAndSet(current, value)) {
+				codesBySecret.clear();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Numbers for the time-steps <code>firstValue .. firstValue + numbers.length - 1</code>.
+	 */
+	private static final class WindowCodes {
+		private final long value;
+		private final long firstValue;
+		private final int[] numbers;
+		private final int timeStepSeconds;
+		private final int numDigits;
+
+		WindowCodes(byte[] key, long value, long windowSteps, int timeStepSeconds, int numDigits) {
+			this.value = value;
+			this.firstValue = value - windowSteps;
+			this.numbers = new int[(int) (2 * windowSteps + 1)];
+			this.timeStepSeconds = timeStepSeconds;
+			this.numDigits = numDigits;
+			HmacSha1.Scratch scratch = new HmacSha1.Scratch();
+			int[] keyState = new int[10];
+			HmacSha1.initKeyState(key, 0, key.length, keyState, scratch);
+			for (int i = 0; i < numbers.length; i++) {
+				numbers[i] = HmacSha1.generateNumber(keyState, firstValue + i, numDigits, scratch);
+			}
+		}
+
+		boolean covers(long value, long startValue, long endValue, int timeStepSeconds, int numDigits) {
+			return this.value == value && this.timeStepSeconds == timeStepSeconds && this.numDigits == numDigits && startValue >= firstValue
+					&& endValue < firstValue + numbers.length;
+		}
+
+		boolean contains(int authNumber, long startValue, long endValue) {
+			for (long v = startValue; v <= endValue; v++) {
+				if (numbers[(int) (v - firstValue)] == authNumber) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
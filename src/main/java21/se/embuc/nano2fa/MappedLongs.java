@@ -0,0 +1,57 @@
+package se.embuc.nano2fa;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Atomic access to the longs of a memory-mapped file shared between processes, for {@link MappedUsedCodeRegistry}. This
+ * is the Java 21 version of the multi-release jar: reads are volatile and a compare-and-set is a single locked
+ * instruction on the shared page, which is atomic for every process mapping the file.
+ *
+ * @author Emir Bucalovic
+ * @since 1.12
+ */
+final class MappedLongs {
+
+	/** the longs are changed under file locks */
+	static final int LOCKING = 1;
+	/** the longs are changed with compare-and-set instructions */
+	static final int LOCK_FREE = 2;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private final MappedByteBuffer buffer;
+
+	MappedLongs(FileChannel channel, MappedByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Return how this version changes the longs, every process sharing a file must do it the same way. A method and not a
+	 * constant, which would be compiled into the callers from the Java 8 version.
+	 */
+	static int mode() {
+		return LOCK_FREE;
+	}
+
+	/**
+	 * Read the long at the offset, which must be a multiple of 8.
+	 */
+	long get(int offset) {
+		return (long) LONGS.getVolatile(buffer, offset);
+	}
+
+	/**
+	 * Set the long at the offset, which must be a multiple of 8, to the value if it is the expected one.
+	 *
+	 * @return True if the value was set.
+	 * @throws IOException never, the Java 8 version locks the file
+	 */
+	boolean compareAndSet(int offset, long expected, long value) throws IOException {
+		return LONGS.compareAndSet(buffer, offset, expected, value);
+	}
+}
@@ -0,0 +1,97 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * TestAsyncValidator.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestAsyncValidator {
+
+	@Test
+	public void shouldValidateAndGenerate() throws Exception {
+		try (AsyncValidator asyncValidator = new AsyncValidator()) {
+			String secret = TimeBasedOneTimePasswordUtil.generateBase32Secret();
+			String number = asyncValidator.generateCurrentNumberString(secret).get(10, TimeUnit.SECONDS);
+			assertTrue(asyncValidator.validateCurrentNumber(secret, Integer.parseInt(number)).get(10, TimeUnit.SECONDS));
+			assertTrue(asyncValidator.validateCurrentNumber(secret, Integer.parseInt(number), 60_000).get(10, TimeUnit.SECONDS));
+			assertFalse(asyncValidator.validateCurrentNumber(secret, -1).get(10, TimeUnit.SECONDS));
+			ExecutionException e = assertThrows(ExecutionException.class, () -> asyncValidator.validateCurrentNumber(null, 1).get(10, TimeUnit.SECONDS));
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+			assertEquals(0, asyncValidator.getPending());
+		}
+	}
+
+	@Test
+	public void shouldRejectBeyondMaxPending() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try (AsyncValidator asyncValidator = new AsyncValidator(executor, 2)) {
+			CountDownLatch release = new CountDownLatch(1);
+			CompletableFuture<Boolean> first = asyncValidator.submit(() -> await(release));
+			CompletableFuture<Boolean> second = asyncValidator.submit(() -> await(release));
+			assertEquals(2, asyncValidator.getPending());
+			CompletableFuture<Boolean> third = asyncValidator.submit(() -> true);
+			assertTrue(third.isCompletedExceptionally());
+			ExecutionException e = assertThrows(ExecutionException.class, third::get);
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+			release.countDown();
+			assertTrue(first.get(10, TimeUnit.SECONDS));
+			assertTrue(second.get(10, TimeUnit.SECONDS));
+			// permits are returned before the futures complete
+			assertEquals(0, asyncValidator.getPending());
+			assertTrue(asyncValidator.submit(() -> true).get(10, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdown();
+		}
+		// a given executor is not shut down by the validator
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void shouldReleasePermitWhenExecutorRejects() {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.shutdown();
+		try (AsyncValidator asyncValidator = new AsyncValidator(executor, 1)) {
+			assertTrue(asyncValidator.submit(() -> true).isCompletedExceptionally());
+			assertEquals(0, asyncValidator.getPending());
+		}
+	}
+
+	@Test
+	public void shouldReuseDefaultThreads() throws Exception {
+		Set<Thread> threads = ConcurrentHashMap.newKeySet();
+		try (AsyncValidator asyncValidator = new AsyncValidator()) {
+			for (int i = 0; i < 100; i++) {
+				asyncValidator.submit(() -> threads.add(Thread.currentThread())).get(10, TimeUnit.SECONDS);
+			}
+		}
+		// a pool of platform threads keeps the per-thread state of the validations
+		assertTrue(threads.size() <= Runtime.getRuntime().availableProcessors(), "threads: " + threads.size());
+		for (Thread thread : threads) {
+			assertTrue(thread.isDaemon());
+			assertTrue(thread.getName().startsWith("nano2fa-async-"), thread.getName());
+		}
+	}
+
+	private static boolean await(CountDownLatch latch) {
+		try {
+			return latch.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import se.embuc.nano2fa.MetricsListener.RejectReason;
+
+/**
+ * TestAttemptLimiter.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestAttemptLimiter {
+
+	private static final String SECRET = "NY4A5CPJZ46LXZCP";
+
+	@AfterEach
+	public void removeListener() {
+		TimeBasedOneTimePasswordUtil.setMetricsListener(null);
+	}
+
+	@Test
+	public void shouldLockAfterMaxAttempts() {
+		AtomicLong clock = new AtomicLong(1_000_000);
+		AttemptLimiter limiter = new AttemptLimiter(16, 3, 10_000, 60_000, clock::get);
+		assertFalse(limiter.recordFailure(1));
+		assertFalse(limiter.recordFailure(1));
+		assertFalse(limiter.isBlocked(1));
+		assertTrue(limiter.recordFailure(1));
+		assertTrue(limiter.isBlocked(1));
+		assertFalse(limiter.isBlocked(2));
+		clock.addAndGet(59_999);
+		assertTrue(limiter.isBlocked(1));
+		clock.addAndGet(1);
+		assertFalse(limiter.isBlocked(1));
+		assertEquals(2, limiter.getThrottled());
+	}
+
+	@Test
+	public void shouldDecayFailures() {
+		AtomicLong clock = new AtomicLong(0);
+		AttemptLimiter limiter = new AttemptLimiter(16, 3, 10_000, 60_000, clock::get);
+		limiter.recordFailure(1);
+		limiter.recordFailure(1);
+		// one failure is forgotten, the remainder of the interval keeps counting
+		clock.addAndGet(15_000);
+		assertFalse(limiter.recordFailure(1));
+		clock.addAndGet(5_000);
+		assertFalse(limiter.recordFailure(1));
+		assertTrue(limiter.recordFailure(1));
+	}
+
+	@Test
+	public void shouldResetOnSuccess() {
+		AtomicLong clock = new AtomicLong(0);
+		AttemptLimiter limiter = new AttemptLimiter(16, 3, 10_000, 60_000, clock::get);
+		limiter.recordFailure(1);
+		limiter.recordFailure(1);
+		limiter.recordSuccess(1);
+		assertFalse(limiter.recordFailure(1));
+		assertFalse(limiter.recordFailure(1));
+		assertTrue(limiter.recordFailure(1));
+	}
+
+	@Test
+	public void shouldRejectBeforeValidating() {
+		MetricsRecorder recorder = new MetricsRecorder();
+		TimeBasedOneTimePasswordUtil.setMetricsListener(recorder);
+		AttemptLimiter limiter = new AttemptLimiter(16, 2, 60_000, 60_000);
+		assertFalse(limiter.validateCurrentNumber(5, SECRET, 111111, 0, 7455000, 30, 6));
+		assertFalse(limiter.validateCurrentNumber(5, SECRET, 111111, 0, 7455000, 30, 6));
+		// the right number is rejected as well while locked
+		assertFalse(limiter.validateCurrentNumber(5, SECRET, 325893, 0, 7455000, 30, 6));
+		assertTrue(limiter.validateCurrentNumber(6, SECRET, 325893, 0, 7455000, 30, 6));
+		MetricsSnapshot snapshot = recorder.snapshot();
+		assertEquals(2, snapshot.getRejected(RejectReason.MISMATCH));
+		assertEquals(1, snapshot.getRejected(RejectReason.THROTTLED));
+		assertEquals(1, snapshot.getValidated());
+		// the throttled attempt computed no HMAC
+		assertEquals(3, snapshot.getHmacCount());
+	}
+
+	@Test
+	public void shouldReuseStaleSlots() {
+		AtomicLong clock = new AtomicLong(0);
+		AttemptLimiter limiter = new AttemptLimiter(1, 2, 1_000, 1_000, clock::get);
+		// the table has two slots
+		limiter.recordFailure(1);
+		limiter.recordFailure(2);
+		// nothing can count the failures of a third account, so it is locked
+		assertTrue(limiter.recordFailure(3));
+		assertTrue(limiter.isBlocked(3));
+		assertEquals(2, limiter.getUntracked());
+		clock.addAndGet(1_000);
+		assertFalse(limiter.isBlocked(3));
+		assertFalse(limiter.recordFailure(3));
+		assertTrue(limiter.recordFailure(3));
+		assertTrue(limiter.isBlocked(3));
+	}
+
+	@Test
+	public void shouldFailClosedWhenFull() {
+		MetricsRecorder recorder = new MetricsRecorder();
+		TimeBasedOneTimePasswordUtil.setMetricsListener(recorder);
+		AtomicLong clock = new AtomicLong(7455000);
+		AttemptLimiter limiter = new AttemptLimiter(1, 2, 60_000, 60_000, clock::get);
+		// both slots locked, their lockout keeps them from being reused
+		limiter.recordFailure(1);
+		limiter.recordFailure(1);
+		limiter.recordFailure(2);
+		limiter.recordFailure(2);
+		// the right number of an account without a slot is rejected before validating
+		assertFalse(limiter.validateCurrentNumber(3, SECRET, 325893, 0, 7455000, 30, 6));
+		assertEquals(1, recorder.snapshot().getRejected(RejectReason.THROTTLED));
+		assertEquals(0, recorder.snapshot().getHmacCount());
+		clock.addAndGet(60_000);
+		assertTrue(limiter.validateCurrentNumber(3, SECRET, 325893, 0, 7455000, 30, 6));
+	}
+
+	@Test
+	public void shouldCountEveryFailureUnderContention() throws Exception {
+		AtomicLong clock = new AtomicLong(0);
+		int threadCount = 8;
+		int failuresPerThread = 1000;
+		AttemptLimiter limiter = new AttemptLimiter(1024, threadCount * failuresPerThread, 60_000, 60_000, clock::get);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < threadCount; t++) {
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				for (int i = 0; i < failuresPerThread; i++) {
+					limiter.recordFailure(42);
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		// the last of all failures locked the account, not one earlier
+		assertTrue(limiter.isBlocked(42));
+		assertTrue(limiter.recordFailure(42));
+	}
+
+	@Test
+	public void shouldRejectReservedAccountId() {
+		AttemptLimiter limiter = new AttemptLimiter();
+		assertThrows(IllegalArgumentException.class, () -> limiter.recordFailure(Long.MIN_VALUE));
+	}
+}
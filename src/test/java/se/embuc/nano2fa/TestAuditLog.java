@@ -0,0 +1,182 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * TestAuditLog.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestAuditLog {
+
+	private static final String SECRET = "NY4A5CPJZ46LXZCP";
+
+	@TempDir
+	Path dir;
+
+	@AfterEach
+	public void removeSink() {
+		TimeBasedOneTimePasswordUtil.setAuditSink(null);
+	}
+
+	@Test
+	public void shouldRecordValidations() throws IOException {
+		Path file = dir.resolve("audit.log");
+		long timeMillis = 1_700_000_012_345L;
+		int current = TimeBasedOneTimePasswordUtil.generateNumber(SECRET, timeMillis, 30, 6);
+		int previous = TimeBasedOneTimePasswordUtil.generateNumber(SECRET, timeMillis - 30_000, 30, 6);
+		byte[] key = TimeBasedOneTimePasswordUtil.decodeBase32(SECRET);
+		ReplayGuard guard = new ReplayGuard(16, 1);
+		AttemptLimiter limiter = new AttemptLimiter(16, 1, 10_000, 60_000, () -> timeMillis);
+		DriftTracker tracker = new DriftTracker(16);
+		try (AuditLog auditLog = new AuditLog(file)) {
+			TimeBasedOneTimePasswordUtil.setAuditSink(auditLog);
+			assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(guard, 7, SECRET, current, 0, timeMillis, 30, 6));
+			assertFalse(guard.validateCurrentNumber(7, key, current, 0, timeMillis, 30, 6));
+			assertFalse(limiter.validateCurrentNumber(8, SECRET, previous, 0, timeMillis, 30, 6));
+			assertFalse(limiter.validateCurrentNumber(8, SECRET, current, 0, timeMillis, 30, 6));
+			assertTrue(tracker.validateCurrentNumber(9, SECRET, previous, 30_000, timeMillis, 30, 6));
+			assertThrows(IllegalArgumentException.class, () -> tracker.validateCurrentNumber(10, "", 123456, 0, timeMillis, 30, 6));
+			// not an account validation
+			assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(SECRET, current, 0, timeMillis, 30, 6));
+			assertTrue(auditLog.recordRejected(Long.MIN_VALUE, -1, MetricsListener.RejectReason.THROTTLED));
+			assertTrue(auditLog.recordAccepted(Long.MAX_VALUE, 0, 2));
+		}
+		List<String> lines = Files.readAllLines(file, StandardCharsets.US_ASCII);
+		assertEquals(8, lines.size());
+		assertEquals(timeMillis + ",7,ACCEPTED,0", lines.get(0));
+		assertEquals(timeMillis + ",7,REPLAYED,", lines.get(1));
+		assertEquals(timeMillis + ",8,MISMATCH,", lines.get(2));
+		assertEquals(timeMillis + ",8,THROTTLED,", lines.get(3));
+		assertEquals(timeMillis + ",9,ACCEPTED,-1", lines.get(4));
+		assertEquals(timeMillis + ",10,INVALID_SECRET,", lines.get(5));
+		assertEquals("-1," + Long.MIN_VALUE + ",THROTTLED,", lines.get(6));
+		assertEquals("0," + Long.MAX_VALUE + ",ACCEPTED,2", lines.get(7));
+	}
+
+	@Test
+	public void shouldRecordVaultValidations() throws IOException {
+		Path file = dir.resolve("audit.log");
+		try (SecretVault vault = new SecretVault(dir.resolve("vault"), 16); AuditLog auditLog = new AuditLog(file)) {
+			vault.put(7, SECRET);
+			TimeBasedOneTimePasswordUtil.setAuditSink(auditLog);
+			assertTrue(vault.validateCurrentNumber(7, 948323, 15000, 7455000, 30, 6));
+			assertFalse(vault.validateCurrentNumber(7, 111111, 0, 7455000, 30, 6));
+			assertFalse(vault.validateCurrentNumber(8, 325893, 0, 7455000, 30, 6));
+		}
+		List<String> lines = Files.readAllLines(file, StandardCharsets.US_ASCII);
+		assertEquals(3, lines.size());
+		assertEquals("7455000,7,ACCEPTED,1", lines.get(0));
+		assertEquals("7455000,7,MISMATCH,", lines.get(1));
+		assertEquals("7455000,8,INVALID_SECRET,", lines.get(2));
+	}
+
+	@Test
+	public void shouldWakeIdleWriter() throws Exception {
+		Path file = dir.resolve("audit.log");
+		try (AuditLog auditLog = new AuditLog(file)) {
+			// the writer has gone to sleep by now
+			Thread.sleep(300);
+			long start = System.nanoTime();
+			auditLog.recordAccepted(1, 1, 0);
+			while (auditLog.getWritten() == 0) {
+				Thread.sleep(1);
+			}
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 90);
+		}
+	}
+
+	@Test
+	public void shouldBlockUntilWritten() throws Exception {
+		Path file = dir.resolve("audit.log");
+		int perThread = 20_000;
+		AuditLog auditLog = new AuditLog(file, 16, AuditLog.OverflowPolicy.BLOCK, 0, AuditLog.DEFAULT_MAX_FILE_BYTES);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			long accountBase = t * 1_000_000L;
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < perThread; i++) {
+					assertTrue(auditLog.recordAccepted(accountBase + i, i, 0));
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		auditLog.close();
+		assertEquals(4 * perThread, auditLog.getWritten());
+		assertEquals(0, auditLog.getDropped());
+		List<String> lines = Files.readAllLines(file, StandardCharsets.US_ASCII);
+		assertEquals(4 * perThread, lines.size());
+		// the events of one thread keep their order
+		long next = 0;
+		for (String line : lines) {
+			long account = Long.parseLong(line.split(",")[1]);
+			if (account < 1_000_000) {
+				assertEquals(next++, account);
+			}
+		}
+		assertEquals(perThread, next);
+	}
+
+	@Test
+	public void shouldDropWhenFull() throws IOException {
+		Path file = dir.resolve("audit.log");
+		AuditLog auditLog = new AuditLog(file, 4, AuditLog.OverflowPolicy.DROP, 1000, AuditLog.DEFAULT_MAX_FILE_BYTES);
+		int recorded = 0;
+		for (int i = 0; i < 100_000; i++) {
+			recorded += auditLog.recordRejected(i, i, MetricsListener.RejectReason.MISMATCH) ? 1 : 0;
+		}
+		auditLog.close();
+		assertEquals(100_000, recorded + auditLog.getDropped());
+		assertEquals(recorded, auditLog.getWritten());
+		assertEquals(recorded, Files.readAllLines(file, StandardCharsets.US_ASCII).size());
+		// closed logs drop
+		assertFalse(auditLog.recordAccepted(1, 1, 0));
+	}
+
+	@Test
+	public void shouldRotate() throws IOException {
+		Path file = dir.resolve("audit.log");
+		try (AuditLog auditLog = new AuditLog(file, 1024, AuditLog.OverflowPolicy.BLOCK, 0, 1000)) {
+			for (int i = 0; i < 5000; i++) {
+				auditLog.recordAccepted(i, 1_700_000_000_000L, 0);
+			}
+		}
+		long lineCount = 0;
+		int fileCount = 0;
+		try (Stream<Path> files = Files.list(dir)) {
+			for (Path path : (Iterable<Path>) files::iterator) {
+				assertTrue(path.getFileName().toString().startsWith("audit.log"));
+				lineCount += Files.readAllLines(path, StandardCharsets.US_ASCII).size();
+				fileCount++;
+			}
+		}
+		assertEquals(5000, lineCount);
+		assertTrue(fileCount > 1, "files: " + fileCount);
+	}
+
+	@Test
+	public void shouldRejectInvalidSettings() {
+		Path file = dir.resolve("audit.log");
+		assertThrows(IllegalArgumentException.class, () -> new AuditLog(file, 0, AuditLog.OverflowPolicy.DROP, 0, AuditLog.DEFAULT_MAX_FILE_BYTES));
+		assertThrows(IllegalArgumentException.class, () -> new AuditLog(file, 16, null, 0, AuditLog.DEFAULT_MAX_FILE_BYTES));
+		assertThrows(IllegalArgumentException.class, () -> new AuditLog(file, 16, AuditLog.OverflowPolicy.DROP, -1, AuditLog.DEFAULT_MAX_FILE_BYTES));
+		assertThrows(IllegalArgumentException.class, () -> new AuditLog(file, 16, AuditLog.OverflowPolicy.DROP, 0, 10));
+	}
+}
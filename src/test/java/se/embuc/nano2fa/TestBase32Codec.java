@@ -0,0 +1,74 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Base32;
+import org.junit.jupiter.api.Test;
+
+/**
+ * TestBase32Codec.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestBase32Codec {
+
+	private static final String CHARACTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567abcdefghijklmnopqrstuvwxyz -=01890å";
+
+	@Test
+	public void shouldDecodeRfc4648Vectors() {
+		assertArrayEquals("".getBytes(), Base32Codec.decode(""));
+		assertArrayEquals("f".getBytes(), Base32Codec.decode("MY======"));
+		assertArrayEquals("fo".getBytes(), Base32Codec.decode("MZXQ===="));
+		assertArrayEquals("foo".getBytes(), Base32Codec.decode("MZXW6==="));
+		assertArrayEquals("foob".getBytes(), Base32Codec.decode("MZXW6YQ="));
+		assertArrayEquals("fooba".getBytes(), Base32Codec.decode("MZXW6YTB"));
+		assertArrayEquals("foobar".getBytes(), Base32Codec.decode("MZXW6YTBOI======"));
+		assertArrayEquals("foobar".getBytes(), Base32Codec.decode("mzxw6ytboi"));
+	}
+
+	@Test
+	public void shouldDecodeLikeCommonsCodec() {
+		Base32 base32 = new Base32();
+		Random random = new Random(11);
+		for (int i = 0; i < 10_000; i++) {
+			char[] chars = new char[random.nextInt(70)];
+			for (int j = 0; j < chars.length; j++) {
+				// mostly alphabet characters with the odd lower case, separator, padding or invalid one
+				chars[j] = CHARACTERS.charAt(random.nextInt(10) > 0 ? random.nextInt(32) : random.nextInt(CHARACTERS.length()));
+			}
+			String secret = new String(chars);
+			byte[] expected = base32.decode(secret);
+			assertArrayEquals(expected, Base32Codec.decode(secret), secret);
+			assertEquals(expected.length, Base32Codec.decodedLength(chars, 0, chars.length), secret);
+
+			byte[] buffer = new byte[expected.length + 3];
+			assertEquals(expected.length, Base32Codec.decode(chars, 0, chars.length, buffer, 2));
+			assertArrayEquals(expected, Arrays.copyOfRange(buffer, 2, 2 + expected.length));
+		}
+	}
+
+	@Test
+	public void shouldEncodeLikeCommonsCodec() {
+		Base32 base32 = new Base32();
+		Random random = new Random(13);
+		for (int i = 0; i < 1000; i++) {
+			byte[] bytes = new byte[random.nextInt(45)];
+			random.nextBytes(bytes);
+			String expected = base32.encodeAsString(bytes).replace("=", "");
+			char[] chars = new char[Base32Codec.encodedLength(bytes.length) + 1];
+			assertEquals(expected.length(), Base32Codec.encode(bytes, 0, bytes.length, chars, 1));
+			assertEquals(expected, new String(chars, 1, expected.length()));
+			assertArrayEquals(bytes, Base32Codec.decode(expected));
+		}
+		assertThrows(IllegalArgumentException.class, () -> Base32Codec.encode(new byte[10], 0, 10, new char[15], 0));
+	}
+
+	@Test
+	public void shouldThrowForTooSmallBuffer() {
+		assertThrows(IllegalArgumentException.class, () -> Base32Codec.decode("NY4A5CPJZ46LXZCP", new byte[9], 0));
+		assertEquals(10, Base32Codec.decode("NY4A5CPJZ46LXZCP", new byte[10], 0));
+	}
+}
@@ -0,0 +1,72 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * TestBatchValidator.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestBatchValidator {
+
+	@Test
+	public void shouldValidateKnownCodes() {
+		String secret = "NY4A5CPJZ46LXZCP";
+		String[] secrets = { secret, secret, secret, secret };
+		int[] numbers = { 325893, 948323, 287511, 162123 };
+		BitSet valid = BatchValidator.validateCurrentNumbers(secrets, numbers, 15000, 7455000);
+		assertEquals(BitSet.valueOf(new long[] { 0b0011 }), valid);
+		valid = BatchValidator.validateCurrentNumbers(Arrays.asList(secrets), numbers, 15001, 7455000);
+		assertEquals(BitSet.valueOf(new long[] { 0b1011 }), valid);
+	}
+
+	@Test
+	public void shouldMatchSinglePairValidationInParallel() {
+		Random random = new Random(7);
+		int count = 5000;
+		String[] secrets = new String[count];
+		int[] numbers = new int[count];
+		long now = 1_700_000_000_000L;
+		BitSet expected = new BitSet();
+		for (int i = 0; i < count; i++) {
+			secrets[i] = TimeBasedOneTimePasswordUtil.generateBase32Secret(16);
+			long offset = random.nextInt(80_000) - 40_000;
+			numbers[i] = TimeBasedOneTimePasswordUtil.generateNumber(secrets[i], now + offset, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS);
+			if (TimeBasedOneTimePasswordUtil.validateCurrentNumber(secrets[i], numbers[i], 10_000, now, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS)) {
+				expected.set(i);
+			}
+		}
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			assertEquals(expected, BatchValidator.validateCurrentNumbers(secrets, numbers, 10_000, now));
+			byte[][] keys = new byte[count][];
+			for (int i = 0; i < count; i++) {
+				keys[i] = TimeBasedOneTimePasswordUtil.decodeBase32(secrets[i]);
+			}
+			assertEquals(expected, BatchValidator.validateCurrentNumbers(keys, numbers, 10_000, now, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS,
+					TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH, pool));
+		} finally {
+			pool.shutdown();
+		}
+		assertTrue(expected.cardinality() > count / 3);
+	}
+
+	@Test
+	public void shouldClearBitForInvalidSecret() {
+		String secret = "NY4A5CPJZ46LXZCP";
+		BitSet valid = BatchValidator.validateCurrentNumbers(new String[] { null, "", secret }, new int[] { 325893, 325893, 325893 }, 0, 7455000);
+		assertEquals(BitSet.valueOf(new long[] { 0b100 }), valid);
+	}
+
+	@Test
+	public void shouldRejectMismatchedLengths() {
+		assertThrows(IllegalArgumentException.class, () -> BatchValidator.validateCurrentNumbers(new String[1], new int[2]));
+	}
+}
@@ -0,0 +1,62 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * TestCodeDigits.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestCodeDigits {
+
+	@Test
+	public void shouldWriteLeadingZeros() {
+		char[] chars = new char[8];
+		assertEquals(6, CodeDigits.write(743, 6, chars, 1));
+		assertEquals("000743", new String(chars, 1, 6));
+		byte[] bytes = new byte[10];
+		assertEquals(10, CodeDigits.write(Integer.MAX_VALUE, 10, bytes, 0));
+		assertEquals("2147483647", new String(bytes, StandardCharsets.US_ASCII));
+	}
+
+	@Test
+	public void shouldParseExactLength() {
+		assertEquals(743, CodeDigits.parse("000743", 6));
+		assertEquals(0, CodeDigits.parse("000000", 6));
+		assertEquals(9999999999L, CodeDigits.parse("9999999999", 10));
+		assertEquals(CodeDigits.INVALID, CodeDigits.parse("00743", 6));
+		assertEquals(CodeDigits.INVALID, CodeDigits.parse("0007430", 6));
+		assertEquals(CodeDigits.INVALID, CodeDigits.parse(null, 6));
+		assertEquals(CodeDigits.INVALID, CodeDigits.parse("12345678901", 11));
+	}
+
+	@Test
+	public void shouldRejectNonDigits() {
+		for (char c = 0; c < 256; c++) {
+			long expected = c >= '0' && c <= '9' ? 100 + c - '0' : CodeDigits.INVALID;
+			assertEquals(expected, CodeDigits.parse("10" + c, 3), "char " + (int) c);
+			assertEquals(expected, CodeDigits.parse(new char[] { '1', '0', c }, 0, 3, 3));
+			assertEquals(expected, CodeDigits.parse(new byte[] { '1', '0', (byte) c }, 0, 3, 3));
+		}
+		assertEquals(CodeDigits.INVALID, CodeDigits.parse("12٣456", 6));
+	}
+
+	@Test
+	public void shouldParseRanges() {
+		assertEquals(123456, CodeDigits.parse("x=123456&".toCharArray(), 2, 6, 6));
+		assertEquals(123456, CodeDigits.parse("x=123456&".getBytes(StandardCharsets.US_ASCII), 2, 6, 6));
+		assertEquals(CodeDigits.INVALID, CodeDigits.parse("x=123456&".getBytes(StandardCharsets.US_ASCII), 1, 6, 6));
+	}
+
+	@Test
+	public void shouldCompareWithoutBranching() {
+		assertEquals(1, CodeDigits.equal(123456, 123456));
+		assertEquals(0, CodeDigits.equal(123456, 123457));
+		assertEquals(0, CodeDigits.equal(0, CodeDigits.INVALID));
+		assertEquals(1, CodeDigits.equal(Long.MIN_VALUE, Long.MIN_VALUE));
+	}
+}
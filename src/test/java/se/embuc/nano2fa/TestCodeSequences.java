@@ -0,0 +1,91 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * TestCodeSequences.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestCodeSequences {
+
+	private static final String SECRET = "NY4A5CPJZ46LXZCP";
+
+	@Test
+	public void shouldMatchSingleGeneration() {
+		long start = CodeSequences.timeStep(7451000L, 30);
+		int[] numbers = CodeSequences.generateNumbers(SECRET, start, start + 100, 6);
+		assertEquals(100, numbers.length);
+		assertEquals(325893, numbers[0]);
+		for (int i = 0; i < numbers.length; i++) {
+			assertEquals(TimeBasedOneTimePasswordUtil.generateNumber(SECRET, (start + i) * 30_000, 30, 6), numbers[i]);
+		}
+		assertEquals(0, CodeSequences.generateNumbers(SECRET, start, start, 6).length);
+	}
+
+	@Test
+	public void shouldAllowSinkToReenter() {
+		String other = TimeBasedOneTimePasswordUtil.generateBase32Secret(32);
+		int[] expected = CodeSequences.generateNumbers(SECRET, 1000, 1010, 6);
+		int[] expectedOther = CodeSequences.generateNumbers(other, 1000, 1010, 6);
+		List<Integer> sunk = new ArrayList<>();
+		CodeSequences.generateNumbers(SECRET, 1000, 1010, 6, (value, number) -> {
+			sunk.add(number);
+			// keys and wipes the state of this thread with another secret
+			assertArrayEquals(expectedOther, CodeSequences.generateNumbers(other, 1000, 1010, 6));
+		});
+		assertEquals(10, sunk.size());
+		for (int i = 0; i < 10; i++) {
+			assertEquals(expected[i], sunk.get(i).intValue());
+		}
+	}
+
+	@Test
+	public void shouldFillBufferAndSink() {
+		int[] numbers = new int[12];
+		CodeSequences.generateNumbers(SECRET, 1000, 1010, 8, numbers, 2);
+		List<Long> values = new ArrayList<>();
+		List<Integer> sunk = new ArrayList<>();
+		CodeSequences.generateNumbers(SECRET, 1000, 1010, 8, (value, number) -> {
+			values.add(value);
+			sunk.add(number);
+		});
+		assertEquals(10, sunk.size());
+		for (int i = 0; i < 10; i++) {
+			assertEquals(1000 + i, values.get(i).longValue());
+			assertEquals(numbers[2 + i], sunk.get(i).intValue());
+		}
+		assertThrows(IllegalArgumentException.class, () -> CodeSequences.generateNumbers(SECRET, 1000, 1011, 8, numbers, 2));
+		assertThrows(IllegalArgumentException.class, () -> CodeSequences.generateNumbers(SECRET, 1000, 999, 6));
+	}
+
+	@Test
+	public void shouldGenerateManySecretsInParallel() {
+		String[] secrets = new String[500];
+		for (int s = 0; s < secrets.length; s++) {
+			secrets[s] = TimeBasedOneTimePasswordUtil.generateBase32Secret();
+		}
+		long start = 56_000_000;
+		int length = 40;
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			int[] numbers = CodeSequences.generateNumbers(secrets, start, start + length, 6, pool);
+			assertEquals(secrets.length * length, numbers.length);
+			for (int s = 0; s < secrets.length; s += 7) {
+				assertArrayEquals(CodeSequences.generateNumbers(secrets[s], start, start + length, 6),
+						Arrays.copyOfRange(numbers, s * length, (s + 1) * length));
+			}
+		} finally {
+			pool.shutdown();
+		}
+		// below the threshold on the calling thread
+		assertEquals(20, CodeSequences.generateNumbers(new String[] { SECRET, SECRET }, 0, 10, 6).length);
+	}
+}
@@ -0,0 +1,90 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * TestCounterBasedOneTimePasswordUtil.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestCounterBasedOneTimePasswordUtil {
+
+	/** "12345678901234567890" from RFC 4226 appendix D */
+	private static final String RFC_SECRET = "GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ";
+	private static final int[] RFC_NUMBERS = { 755224, 287082, 359152, 969429, 338314, 254676, 287922, 162583, 399871, 520489 };
+
+	@AfterEach
+	public void removeListener() {
+		TimeBasedOneTimePasswordUtil.setMetricsListener(null);
+	}
+
+	@Test
+	public void shouldGenerateRfcNumbers() {
+		for (int counter = 0; counter < RFC_NUMBERS.length; counter++) {
+			assertEquals(RFC_NUMBERS[counter], CounterBasedOneTimePasswordUtil.generateNumber(RFC_SECRET, counter));
+		}
+		assertEquals("755224", CounterBasedOneTimePasswordUtil.generateNumberString(RFC_SECRET, 0, 6));
+	}
+
+	@Test
+	public void shouldMatchTimeBasedGeneration() {
+		String secret = "NY4A5CPJZ46LXZCP";
+		byte[] key = TimeBasedOneTimePasswordUtil.decodeBase32(secret);
+		for (long counter = 0; counter < 100; counter++) {
+			assertEquals(TimeBasedOneTimePasswordUtil.generateNumberFromKeyValue(key, counter, 8),
+					CounterBasedOneTimePasswordUtil.generateNumber(secret, counter, 8));
+		}
+	}
+
+	@Test
+	public void shouldValidateWithinLookAhead() {
+		assertEquals(1, CounterBasedOneTimePasswordUtil.validateNumber(RFC_SECRET, 0, RFC_NUMBERS[0]));
+		assertEquals(10, CounterBasedOneTimePasswordUtil.validateNumber(RFC_SECRET, 0, RFC_NUMBERS[9]));
+		assertEquals(CounterBasedOneTimePasswordUtil.NO_MATCH, CounterBasedOneTimePasswordUtil.validateNumber(RFC_SECRET, 0, RFC_NUMBERS[9], 8, 6));
+		// numbers before the counter were used already
+		assertEquals(CounterBasedOneTimePasswordUtil.NO_MATCH, CounterBasedOneTimePasswordUtil.validateNumber(RFC_SECRET, 5, RFC_NUMBERS[4]));
+		assertEquals(6, CounterBasedOneTimePasswordUtil.validateNumber(RFC_SECRET, 5, RFC_NUMBERS[5], 0, 6));
+		byte[] key = "12345678901234567890".getBytes();
+		assertEquals(4, CounterBasedOneTimePasswordUtil.validateNumber(key, 2, RFC_NUMBERS[3], 1, 6));
+	}
+
+	@Test
+	public void shouldResynchronize() {
+		String secret = "NY4A5CPJZ46LXZCP";
+		int first = CounterBasedOneTimePasswordUtil.generateNumber(secret, 73);
+		int second = CounterBasedOneTimePasswordUtil.generateNumber(secret, 74);
+		assertEquals(CounterBasedOneTimePasswordUtil.NO_MATCH, CounterBasedOneTimePasswordUtil.validateNumber(secret, 0, first));
+		assertEquals(75, CounterBasedOneTimePasswordUtil.resynchronize(secret, 0, first, second));
+		// the first number is at the end of the look-ahead, the second right after it
+		assertEquals(75, CounterBasedOneTimePasswordUtil.resynchronize(secret, 0, first, second, 73, 6));
+		assertEquals(CounterBasedOneTimePasswordUtil.NO_MATCH, CounterBasedOneTimePasswordUtil.resynchronize(secret, 0, first, second, 72, 6));
+		// not consecutive
+		assertEquals(CounterBasedOneTimePasswordUtil.NO_MATCH, CounterBasedOneTimePasswordUtil.resynchronize(secret, 0, second, first));
+	}
+
+	@Test
+	public void shouldReportMetrics() {
+		MetricsRecorder recorder = new MetricsRecorder();
+		TimeBasedOneTimePasswordUtil.setMetricsListener(recorder);
+		CounterBasedOneTimePasswordUtil.validateNumber(RFC_SECRET, 0, RFC_NUMBERS[3]);
+		CounterBasedOneTimePasswordUtil.validateNumber(RFC_SECRET, 0, -1, 4, 6);
+		assertThrows(IllegalArgumentException.class, () -> CounterBasedOneTimePasswordUtil.validateNumber("", 0, 1));
+		MetricsSnapshot snapshot = recorder.snapshot();
+		assertEquals(1, snapshot.getValidated());
+		assertEquals(1, snapshot.getRejected(MetricsListener.RejectReason.MISMATCH));
+		assertEquals(1, snapshot.getRejected(MetricsListener.RejectReason.INVALID_SECRET));
+		assertEquals(4 + 5, snapshot.getHmacCount());
+		assertEquals(1, snapshot.getMatchedOffset(3));
+	}
+
+	@Test
+	public void shouldRejectInvalidArguments() {
+		assertThrows(IllegalArgumentException.class, () -> CounterBasedOneTimePasswordUtil.validateNumber(RFC_SECRET, -1, 0));
+		assertThrows(IllegalArgumentException.class, () -> CounterBasedOneTimePasswordUtil.validateNumber(RFC_SECRET, 0, 0, -1, 6));
+		assertThrows(IllegalArgumentException.class, () -> CounterBasedOneTimePasswordUtil.validateNumber(RFC_SECRET, Long.MAX_VALUE, 0));
+		assertThrows(IllegalArgumentException.class, () -> CounterBasedOneTimePasswordUtil.generateNumber(null, 0));
+	}
+}
@@ -0,0 +1,83 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * TestDriftTracker.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestDriftTracker {
+
+	private static final String SECRET = "NY4A5CPJZ46LXZCP";
+
+	@AfterEach
+	public void removeListener() {
+		TimeBasedOneTimePasswordUtil.setMetricsListener(null);
+	}
+
+	@Test
+	public void shouldLearnOffset() {
+		DriftTracker tracker = new DriftTracker(16);
+		assertEquals(0, tracker.getOffset(1));
+		// 948323 is the number of the next time-step
+		assertTrue(tracker.validateCurrentNumber(1, SECRET, 948323, 15000, 7455000, 30, 6));
+		assertEquals(1, tracker.getOffset(1));
+		// 162123 is the number of the previous time-step
+		assertTrue(tracker.validateCurrentNumber(1, SECRET, 162123, 15001, 7455000, 30, 6));
+		assertEquals(-1, tracker.getOffset(1));
+		assertFalse(tracker.validateCurrentNumber(1, SECRET, 111111, 15001, 7455000, 30, 6));
+		assertEquals(-1, tracker.getOffset(1));
+		tracker.reset(1);
+		assertEquals(0, tracker.getOffset(1));
+	}
+
+	@Test
+	public void shouldNeverLookOutsideTheWindow() {
+		DriftTracker tracker = new DriftTracker(16);
+		assertTrue(tracker.validateCurrentNumber(1, SECRET, 948323, 15000, 7455000, 30, 6));
+		// the learned offset points to the next time-step but the window is closed
+		assertFalse(tracker.validateCurrentNumber(1, SECRET, 948323, 0, 7455000, 30, 6));
+		assertTrue(tracker.validateCurrentNumber(1, SECRET, 325893, 0, 7455000, 30, 6));
+	}
+
+	@Test
+	public void shouldAcceptSameNumbersAsUtil() {
+		Random random = new Random(7);
+		DriftTracker tracker = new DriftTracker(4);
+		for (int i = 0; i < 2000; i++) {
+			long timeMillis = random.nextInt(Integer.MAX_VALUE) * 1000L;
+			long windowMillis = random.nextInt(4) * 15000L;
+			long skewMillis = (random.nextInt(5) - 2) * 30000L;
+			int authNumber = random.nextBoolean() ? random.nextInt(1_000_000)
+					: TimeBasedOneTimePasswordUtil.generateNumber(SECRET, timeMillis + skewMillis, 30);
+			assertEquals(TimeBasedOneTimePasswordUtil.validateCurrentNumber(SECRET, authNumber, windowMillis, timeMillis, 30),
+					tracker.validateCurrentNumber(random.nextInt(8), SECRET, authNumber, windowMillis, timeMillis, 30, 6));
+		}
+	}
+
+	@Test
+	public void shouldNeedOneHmacOnceLearned() {
+		MetricsRecorder recorder = new MetricsRecorder();
+		DriftTracker tracker = new DriftTracker();
+		long timeMillis = 7455000;
+		// the phone runs 30 seconds late
+		for (int login = 0; login < 100; login++) {
+			int authNumber = TimeBasedOneTimePasswordUtil.generateNumber(SECRET, timeMillis - 30000, 30);
+			assertTrue(tracker.validateCurrentNumber(3, SECRET, authNumber, 30000, timeMillis, 30, 6));
+			if (login == 0) {
+				TimeBasedOneTimePasswordUtil.setMetricsListener(recorder);
+			}
+			timeMillis += 60000;
+		}
+		MetricsSnapshot snapshot = recorder.snapshot();
+		assertEquals(99, snapshot.getValidated());
+		assertEquals(99, snapshot.getHmacCount());
+		assertEquals(99, snapshot.getMatchedOffset(-1));
+	}
+}
@@ -0,0 +1,88 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * TestHmacCache.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestHmacCache {
+
+	private static final String SECRET = "NY4A5CPJZ46LXZCP";
+
+	@Test
+	public void shouldMatchUncachedPath() {
+		HmacCache cache = new HmacCache();
+		for (long timeMillis : new long[] { 1000L, 7451000L, 15451000L, 348402049542546145L }) {
+			int expected = TimeBasedOneTimePasswordUtil.generateNumber(SECRET, timeMillis, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS);
+			assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(cache, SECRET, expected, 0, timeMillis,
+					TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH));
+		}
+		assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(cache, SECRET, 162123, 15001, 7455000,
+				TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH));
+		assertFalse(TimeBasedOneTimePasswordUtil.validateCurrentNumber(cache, SECRET, 287511, 15000, 7455000,
+				TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH));
+		assertEquals(6, cache.getMissCount() + cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void shouldValidateCurrentNumber() {
+		HmacCache cache = new HmacCache();
+		String secret = TimeBasedOneTimePasswordUtil.generateBase32Secret();
+		String numberString = TimeBasedOneTimePasswordUtil.generateCurrentNumberString(cache, secret);
+		assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(cache, secret, Integer.parseInt(numberString)));
+		assertEquals(1, cache.getHitCount());
+	}
+
+	@Test
+	public void shouldEvictLeastRecentlyUsed() {
+		HmacCache cache = new HmacCache(1, 0);
+		byte[] first = { 1, 2, 3 };
+		byte[] second = { 4, 5, 6 };
+		cache.getMac(first);
+		cache.getMac(second);
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		cache.getMac(second);
+		assertEquals(1, cache.getHitCount());
+	}
+
+	@Test
+	public void shouldExpireAfterAccess() {
+		AtomicLong ticker = new AtomicLong();
+		HmacCache cache = new HmacCache(10, 1000, ticker::get);
+		byte[] key = { 1, 2, 3 };
+		cache.getMac(key);
+		ticker.addAndGet(999_000_000L);
+		cache.getMac(key);
+		assertEquals(1, cache.getHitCount());
+		ticker.addAndGet(1_000_000_000L);
+		cache.getMac(key);
+		assertEquals(2, cache.getMissCount());
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	@Test
+	public void shouldNotShareStateWithCallerKey() {
+		HmacCache cache = new HmacCache();
+		byte[] key = { 1, 2, 3 };
+		int expected = TimeBasedOneTimePasswordUtil.generateNumberFromMac(cache.getMac(key), 42, 6);
+		key[0] = 9;
+		assertEquals(expected, TimeBasedOneTimePasswordUtil.generateNumberFromMac(cache.getMac(new byte[] { 1, 2, 3 }), 42, 6));
+		assertEquals(1, cache.getHitCount());
+	}
+
+	@Test
+	public void shouldThrowForInvalidKey() {
+		HmacCache cache = new HmacCache();
+		assertThrows(IllegalArgumentException.class, () -> cache.getMac(null));
+		assertThrows(IllegalArgumentException.class, () -> cache.getMac(new byte[0]));
+	}
+}
@@ -0,0 +1,118 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import javax.crypto.Mac;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * TestHmacSha1.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestHmacSha1 {
+
+	private static final String SECRET = "NY4A5CPJZ46LXZCP";
+
+	@Test
+	public void shouldMatchKnownSecretTimeCodes() {
+		HmacSha1 hmac = new HmacSha1(TimeBasedOneTimePasswordUtil.decodeBase32(SECRET));
+		long[] times = { 1000L, 7451000L, 15451000L, 5964551130L, 348402049542546145L, 2049455124374752571L, 1359002349304873750L,
+				6344447817348357059L, 2125701285964551130L };
+		for (long timeMillis : times) {
+			long value = TimeBasedOneTimePasswordUtil.generateValue(timeMillis, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS);
+			for (int numDigits = 1; numDigits <= 8; numDigits++) {
+				assertEquals(TimeBasedOneTimePasswordUtil.generateNumber(SECRET, timeMillis, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS,
+						numDigits), hmac.generateNumber(value, numDigits));
+			}
+		}
+		assertEquals(325893, hmac.generateNumber(7451000L / 1000 / 30, 6));
+		assertEquals(64088, hmac.generateNumber(15451000L / 1000 / 30, 6));
+	}
+
+	@Test
+	public void shouldMatchRfc4226Vectors() {
+		HmacSha1 hmac = new HmacSha1("12345678901234567890".getBytes(StandardCharsets.US_ASCII));
+		int[] expected = { 755224, 287082, 359152, 969429, 338314, 254676, 287922, 162583, 399871, 520489 };
+		HmacSha1.Scratch scratch = new HmacSha1.Scratch();
+		for (int counter = 0; counter < expected.length; counter++) {
+			assertEquals(expected[counter], hmac.generateNumber(counter, 6, scratch));
+		}
+	}
+
+	@Test
+	public void shouldMatchJcaForRandomKeysAndValues() throws Exception {
+		Random random = new Random(42);
+		HmacSha1.Scratch scratch = new HmacSha1.Scratch();
+		int[] keyState = new int[10];
+		for (int keyLength = 1; keyLength <= 200; keyLength++) {
+			byte[] key = new byte[keyLength];
+			random.nextBytes(key);
+			Mac mac = TimeBasedOneTimePasswordUtil.newMac(key);
+			HmacSha1.initKeyState(key, 0, keyLength, keyState, scratch);
+			for (int i = 0; i < 20; i++) {
+				long value = random.nextLong() >>> random.nextInt(64);
+				byte[] data = new byte[8];
+				for (int j = 0; j < 8; j++) {
+					data[j] = (byte) (value >>> (56 - 8 * j));
+				}
+				byte[] expected = mac.doFinal(data);
+				HmacSha1.hmac(keyState, value, scratch);
+				for (int j = 0; j < expected.length; j++) {
+					assertEquals(expected[j], (byte) (scratch.digest[j >>> 2] >>> (24 - ((j & 3) << 3))));
+				}
+				assertEquals(TimeBasedOneTimePasswordUtil.truncate(expected, 6), HmacSha1.truncate(scratch.digest, 6));
+			}
+		}
+	}
+
+	@Test
+	public void shouldValidateLikeUtil() {
+		HmacSha1 hmac = new HmacSha1(TimeBasedOneTimePasswordUtil.decodeBase32(SECRET));
+		assertTrue(hmac.validateCurrentNumber(325893, 0, 7455000, 30, 6));
+		assertFalse(hmac.validateCurrentNumber(948323, 0, 7455000, 30, 6));
+		assertFalse(hmac.validateCurrentNumber(948323, 14999, 7455000, 30, 6));
+		assertTrue(hmac.validateCurrentNumber(948323, 15000, 7455000, 30, 6));
+		assertFalse(hmac.validateCurrentNumber(287511, 15000, 7455000, 30, 6));
+		assertTrue(hmac.validateCurrentNumber(162123, 15001, 7455000, 30, 6));
+	}
+
+	@Test
+	public void shouldUseKeyRange() {
+		byte[] buffer = { 9, 9, 1, 2, 3, 9 };
+		assertEquals(new HmacSha1(new byte[] { 1, 2, 3 }).generateNumber(77, 8), new HmacSha1(buffer, 2, 3).generateNumber(77, 8));
+	}
+
+	@Test
+	public void shouldThrowForEmptyKey() {
+		assertThrows(IllegalArgumentException.class, () -> new HmacSha1(new byte[0]));
+		assertThrows(IllegalArgumentException.class, () -> new HmacSha1(null));
+	}
+
+	@Test
+	public void shouldNotAllocatePerCode() {
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+			return;
+		}
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		HmacSha1 hmac = new HmacSha1(TimeBasedOneTimePasswordUtil.decodeBase32(SECRET));
+		HmacSha1.Scratch scratch = new HmacSha1.Scratch();
+		int sink = 0;
+		for (int i = 0; i < 10_000; i++) {
+			sink += hmac.generateNumber(i, 6, scratch);
+		}
+		long threadId = Thread.currentThread().getId();
+		long before = threadBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < 100_000; i++) {
+			sink += hmac.generateNumber(i, 6, scratch);
+		}
+		long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+		// far less than a single byte per code, the measurement itself may allocate a little
+		assertTrue(allocated < 10_000, "allocated " + allocated + " bytes " + sink);
+	}
+}
@@ -0,0 +1,143 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * TestMappedUsedCodeRegistry.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestMappedUsedCodeRegistry {
+
+	private static final String SECRET = "NY4A5CPJZ46LXZCP";
+
+	@TempDir
+	Path dir;
+
+	@Test
+	public void shouldRejectReplayAcrossInstances() throws IOException {
+		Path file = dir.resolve("used-codes");
+		try (MappedUsedCodeRegistry registry = new MappedUsedCodeRegistry(file, 1024, 1)) {
+			assertTrue(registry.markUsed(7, 1000));
+			assertFalse(registry.markUsed(7, 1000));
+			assertTrue(registry.markUsed(8, 1000));
+			assertTrue(registry.markUsed(7, 1001));
+			assertTrue(registry.markUsed(0, 1000));
+			assertFalse(registry.markUsed(0, 1000));
+		}
+		// another process opening the file sees the same pairs
+		MappedUsedCodeRegistry registry = new MappedUsedCodeRegistry(file, 1024, 1);
+		assertFalse(registry.markUsed(7, 1000));
+		assertFalse(registry.markUsed(8, 1000));
+		assertTrue(registry.markUsed(9, 1000));
+		registry.close();
+		// closed registries fail closed
+		assertFalse(registry.markUsed(10, 1000));
+	}
+
+	@Test
+	public void shouldValidate() throws IOException {
+		long timeMillis = 1_700_000_012_345L;
+		int number = TimeBasedOneTimePasswordUtil.generateNumber(SECRET, timeMillis, 30, 6);
+		try (MappedUsedCodeRegistry registry = new MappedUsedCodeRegistry(dir.resolve("used-codes"), 1024, 1)) {
+			assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(registry, 7, SECRET, number, 0, timeMillis, 30, 6));
+			assertFalse(TimeBasedOneTimePasswordUtil.validateCurrentNumber(registry, 7, SECRET, number, 10_000, timeMillis + 5000, 30, 6));
+			assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(registry, 8, SECRET, number, 0, timeMillis, 30, 6));
+			assertFalse(TimeBasedOneTimePasswordUtil.validateCurrentNumber(registry, 9, SECRET, (number + 1) % 1_000_000, 0, timeMillis, 30, 6));
+		}
+	}
+
+	@Test
+	public void shouldEvictOldTimeSteps() throws IOException {
+		// one window step makes four tables, value 104 takes over the table of 100
+		try (MappedUsedCodeRegistry registry = new MappedUsedCodeRegistry(dir.resolve("used-codes"), 16, 1)) {
+			assertTrue(registry.markUsed(7, 100));
+			assertTrue(registry.markUsed(7, 104));
+			assertFalse(registry.markUsed(7, 104));
+			// evicted, fail closed
+			assertFalse(registry.markUsed(8, 100));
+			assertTrue(registry.markUsed(7, 101));
+			// the entries of 100 are free for a later time-step
+			for (int i = 0; i < 32; i++) {
+				assertTrue(registry.markUsed(1000 + i, 108));
+			}
+		}
+	}
+
+	@Test
+	public void shouldAcceptAfterTagWrapsAround() throws IOException {
+		// four tables, a table is reused every fourth time-step and entries 32768 and 65536 reuses old count as free
+		try (MappedUsedCodeRegistry registry = new MappedUsedCodeRegistry(dir.resolve("used-codes"), 16, 1)) {
+			assertTrue(registry.markUsed(1, 0));
+			assertTrue(registry.markUsed(1, 4L * 40_000));
+			assertFalse(registry.markUsed(1, 4L * 40_000));
+			assertTrue(registry.markUsed(1, 4L * 65_536));
+			assertTrue(registry.markUsed(1, 4L * (65_536 + 32_768)));
+			assertTrue(registry.markUsed(1, 4L * 2 * 65_536));
+			assertFalse(registry.markUsed(1, 4L * 2 * 65_536));
+			// the leftovers of the other tables are just as old
+			assertTrue(registry.markUsed(2, 1));
+			assertTrue(registry.markUsed(2, 1 + 4L * 65_536));
+			assertTrue(registry.markUsed(3, 1 + 4L * 65_536));
+			// the tags of the header hold values below 2^40
+			assertFalse(registry.markUsed(4, -1));
+			assertFalse(registry.markUsed(4, (1L << 40) - 1));
+			assertTrue(registry.markUsed(4, (1L << 40) - 2));
+		}
+	}
+
+	@Test
+	public void shouldFailClosedWhenFull() throws IOException {
+		try (MappedUsedCodeRegistry registry = new MappedUsedCodeRegistry(dir.resolve("used-codes"), 1, 0)) {
+			assertTrue(registry.markUsed(1, 100));
+			assertTrue(registry.markUsed(2, 100));
+			assertFalse(registry.markUsed(3, 100));
+			assertTrue(registry.markUsed(3, 101));
+		}
+	}
+
+	@Test
+	public void shouldRecordOncePerPair() throws Exception {
+		int accounts = 10_000;
+		AtomicInteger marked = new AtomicInteger();
+		try (MappedUsedCodeRegistry registry = new MappedUsedCodeRegistry(dir.resolve("used-codes"), accounts, 1)) {
+			List<Thread> threads = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				Thread thread = new Thread(() -> {
+					for (int i = 0; i < accounts; i++) {
+						if (registry.markUsed(i, 55_000_000)) {
+							marked.incrementAndGet();
+						}
+					}
+				});
+				threads.add(thread);
+				thread.start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		}
+		assertEquals(accounts, marked.get());
+	}
+
+	@Test
+	public void shouldRejectOtherSettings() throws IOException {
+		Path file = dir.resolve("used-codes");
+		new MappedUsedCodeRegistry(file, 16, 1).close();
+		IOException e = assertThrows(IOException.class, () -> new MappedUsedCodeRegistry(file, 64, 1));
+		assertTrue(e.getMessage().contains("4 tables of 32 entries, expected 4 of 128"), e.getMessage());
+		assertThrows(IOException.class, () -> new MappedUsedCodeRegistry(file, 16, 2));
+		assertThrows(IllegalArgumentException.class, () -> new MappedUsedCodeRegistry(file, 0, 1));
+		assertThrows(IllegalArgumentException.class, () -> new MappedUsedCodeRegistry(file, 16, -1));
+		assertThrows(IllegalArgumentException.class, () -> new MappedUsedCodeRegistry(file, 1 << 26, 3));
+	}
+}
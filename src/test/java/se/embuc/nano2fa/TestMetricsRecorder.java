@@ -0,0 +1,116 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import se.embuc.nano2fa.MetricsListener.RejectReason;
+
+/**
+ * TestMetricsRecorder.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestMetricsRecorder {
+
+	private static final String SECRET = "NY4A5CPJZ46LXZCP";
+
+	@AfterEach
+	public void removeListener() {
+		TimeBasedOneTimePasswordUtil.setMetricsListener(null);
+	}
+
+	@Test
+	public void shouldRecordValidations() {
+		MetricsRecorder recorder = new MetricsRecorder();
+		TimeBasedOneTimePasswordUtil.setMetricsListener(recorder);
+		// current time-step, the window stays within it
+		assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(SECRET, 325893, 10000, 7455000, 30));
+		// next time-step
+		assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(SECRET, 948323, 15000, 7455000, 30));
+		// previous time-step
+		assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(SECRET, 162123, 15001, 7455000, 30));
+		assertFalse(TimeBasedOneTimePasswordUtil.validateCurrentNumber(SECRET, 111111, 15000, 7455000, 30));
+		assertThrows(IllegalArgumentException.class, () -> TimeBasedOneTimePasswordUtil.validateCurrentNumber(null, 111111, 0, 7455000, 30));
+
+		MetricsSnapshot snapshot = recorder.snapshot();
+		assertEquals(3, snapshot.getValidated());
+		assertEquals(1, snapshot.getRejected(RejectReason.MISMATCH));
+		assertEquals(1, snapshot.getRejected(RejectReason.INVALID_SECRET));
+		assertEquals(2, snapshot.getRejected());
+		assertEquals(1, snapshot.getMatchedOffset(-1));
+		assertEquals(1, snapshot.getMatchedOffset(0));
+		assertEquals(1, snapshot.getMatchedOffset(1));
+		// 1 (current) + 2 (current, next) + 1 (previous) + 2 mismatched (current, next)
+		assertEquals(6, snapshot.getHmacCount());
+		assertTrue(snapshot.getValidationLatency(99) > 0);
+		assertEquals(0, snapshot.getGenerated());
+	}
+
+	@Test
+	public void shouldRecordGenerationsAndReplays() {
+		MetricsRecorder recorder = new MetricsRecorder();
+		TimeBasedOneTimePasswordUtil.setMetricsListener(recorder);
+		HmacCache hmacCache = new HmacCache();
+		TimeBasedOneTimePasswordUtil.generateCurrentNumberString(SECRET);
+		TimeBasedOneTimePasswordUtil.generateCurrentNumberString(hmacCache, SECRET);
+		ReplayGuard guard = new ReplayGuard();
+		byte[] key = TimeBasedOneTimePasswordUtil.decodeBase32(SECRET);
+		assertTrue(guard.validateCurrentNumber(1, key, 325893, 10000, 7455000, 30, 6));
+		assertFalse(guard.validateCurrentNumber(1, key, 325893, 10000, 7455000, 30, 6));
+
+		MetricsSnapshot snapshot = recorder.snapshot();
+		assertEquals(2, snapshot.getGenerated());
+		assertEquals(1, snapshot.getValidated());
+		assertEquals(1, snapshot.getRejected(RejectReason.REPLAYED));
+		assertTrue(snapshot.getGenerationLatency(50) > 0);
+	}
+
+	@Test
+	public void shouldNotReportWithoutListener() {
+		MetricsRecorder recorder = new MetricsRecorder();
+		TimeBasedOneTimePasswordUtil.setMetricsListener(recorder);
+		TimeBasedOneTimePasswordUtil.setMetricsListener(MetricsListener.NOOP);
+		assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(SECRET, 325893, 10000, 7455000, 30));
+		assertEquals(0, recorder.snapshot().getValidated());
+	}
+
+	@Test
+	public void shouldComputePercentiles() {
+		MetricsRecorder recorder = new MetricsRecorder();
+		for (long nanos = 1; nanos <= 100_000; nanos++) {
+			recorder.validated(1, 0, nanos * 1000);
+		}
+		MetricsSnapshot snapshot = recorder.snapshot();
+		assertWithin(50_000_000, snapshot.getValidationLatency(50));
+		assertWithin(99_000_000, snapshot.getValidationLatency(99));
+		assertWithin(100_000_000, snapshot.getValidationLatency(100));
+		assertWithin(1_000, snapshot.getValidationLatency(0));
+		assertEquals(1.0, snapshot.getHmacsPerValidation());
+
+		Map<String, Number> map = snapshot.asMap();
+		assertEquals(100_000L, map.get("validated"));
+		assertEquals(100_000L, map.get("offset.0"));
+		assertEquals(snapshot.getValidationLatency(99.9), map.get("validation.latency.p99.9"));
+	}
+
+	@Test
+	public void shouldMapValuesToBuckets() {
+		for (long value : new long[] { 0, 1, 15, 16, 17, 31, 32, 1000, 123_456_789, Long.MAX_VALUE }) {
+			int bucket = MetricsRecorder.bucketOf(value);
+			assertTrue(bucket < MetricsRecorder.BUCKET_COUNT);
+			assertTrue(MetricsRecorder.lowestValueOf(bucket) <= value);
+			if (bucket + 1 < MetricsRecorder.BUCKET_COUNT) {
+				assertTrue(MetricsRecorder.lowestValueOf(bucket + 1) > value);
+			}
+		}
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		// one bucket is 1/16 of its power of two wide
+		assertTrue(Math.abs(expected - actual) <= expected / 16, "expected about " + expected + " but was " + actual);
+	}
+}
@@ -0,0 +1,93 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.RGBLuminanceSource;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.QRCodeReader;
+
+/**
+ * TestProvisioningWriter.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestProvisioningWriter {
+
+	private static final String SECRET = "NY4A5CPJZ46LXZCP";
+
+	@Test
+	public void shouldBuildUriWithEveryParameter() {
+		assertEquals("otpauth://totp/Example%20Corp:alice%40example.com?secret=NY4A5CPJZ46LXZCP&issuer=Example%20Corp&algorithm=SHA1&digits=6&period=30",
+				ProvisioningWriter.otpAuthUri("Example Corp", "alice@example.com", SECRET, "SHA1", 6, 30));
+		assertEquals("otpauth://totp/bob?secret=NY4A5CPJZ46LXZCP&algorithm=SHA256&digits=8&period=60",
+				ProvisioningWriter.otpAuthUri(null, "bob", SECRET, "SHA256", 8, 60));
+	}
+
+	@Test
+	public void shouldPercentEncodeUtf8() throws Exception {
+		String text = "a b+c/d?e&f=g:h~i_j.k-l*m\u00e9\u20ac\ud83d\ude00%";
+		StringBuilder sb = new StringBuilder();
+		ProvisioningWriter.appendPercentEncoded(sb, text);
+		String expected = URLEncoder.encode(text, "UTF-8").replace("+", "%20").replace("*", "%2A").replace("%7E", "~");
+		assertEquals(expected, sb.toString());
+		sb.setLength(0);
+		ProvisioningWriter.appendPercentEncoded(sb, "x\ud83dy");
+		assertEquals("x%EF%BF%BDy", sb.toString());
+	}
+
+	@Test
+	public void shouldWriteCsv() throws Exception {
+		StringWriter out = new StringWriter();
+		try (ProvisioningWriter writer = new ProvisioningWriter(out, ProvisioningWriter.Format.CSV, "Corp")) {
+			writer.write("alice", SECRET);
+			writer.write("Smith, \"Bob\"", SECRET);
+			assertEquals(2, writer.getCount());
+		}
+		String[] lines = out.toString().split("\r\n");
+		assertEquals(3, lines.length);
+		assertEquals("account,secret,uri", lines[0]);
+		assertEquals("alice," + SECRET + "," + ProvisioningWriter.otpAuthUri("Corp", "alice", SECRET, "SHA1", 6, 30), lines[1]);
+		assertTrue(lines[2].startsWith("\"Smith, \"\"Bob\"\"\"," + SECRET + ",otpauth://totp/Corp:Smith%2C%20%22Bob%22?"), lines[2]);
+	}
+
+	@Test
+	public void shouldWriteJsonLinesWithQrCodes() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ProvisioningWriter writer = new ProvisioningWriter(out, ProvisioningWriter.Format.JSON_LINES, "Corp")) {
+			writer.setDigits(8).setPeriod(60).setAlgorithm("SHA512").setQrScale(3);
+			writer.write("\u00e5sa \"q\"\n", SECRET);
+		}
+		String json = new String(out.toByteArray(), StandardCharsets.UTF_8);
+		String uri = ProvisioningWriter.otpAuthUri("Corp", "\u00e5sa \"q\"\n", SECRET, "SHA512", 8, 60);
+		String prefix = "{\"account\":\"\u00e5sa \\\"q\\\"\\u000A\",\"secret\":\"" + SECRET + "\",\"uri\":\"" + uri + "\",\"qr\":\"data:image/png;base64,";
+		assertTrue(json.startsWith(prefix), json);
+		assertTrue(json.endsWith("\"}\n"));
+		String base64 = json.substring(prefix.length(), json.length() - 3);
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(Base64.getDecoder().decode(base64)));
+		int[] pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+		RGBLuminanceSource source = new RGBLuminanceSource(image.getWidth(), image.getHeight(), pixels);
+		assertEquals(uri, new QRCodeReader().decode(new BinaryBitmap(new HybridBinarizer(source))).getText());
+	}
+
+	@Test
+	public void shouldRejectInvalidSettings() {
+		ProvisioningWriter writer = new ProvisioningWriter(new StringWriter(), ProvisioningWriter.Format.CSV, null);
+		assertThrows(IllegalArgumentException.class, () -> writer.setAlgorithm("MD5"));
+		assertThrows(IllegalArgumentException.class, () -> writer.setDigits(0));
+		assertThrows(IllegalArgumentException.class, () -> writer.setPeriod(0));
+		assertThrows(IllegalArgumentException.class, () -> writer.setQrScale(-1));
+	}
+}
@@ -0,0 +1,114 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.RGBLuminanceSource;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.QRCodeReader;
+import com.google.zxing.qrcode.decoder.Decoder;
+
+/**
+ * TestQrCode.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestQrCode {
+
+	@Test
+	public void shouldDecodeEveryVersionAndLevel() throws Exception {
+		Random random = new Random(11);
+		for (QrCode.ErrorCorrection errorCorrection : QrCode.ErrorCorrection.values()) {
+			int lastVersion = 0;
+			for (int length = 0; length < 3000; length += 1 + random.nextInt(length / 40 + 1)) {
+				byte[] data = new byte[length];
+				for (int i = 0; i < length; i++) {
+					data[i] = (byte) ('!' + random.nextInt(90));
+				}
+				QrCode qrCode;
+				try {
+					qrCode = QrCode.encode(data, errorCorrection);
+				} catch (IllegalArgumentException e) {
+					break;
+				}
+				assertTrue(qrCode.getVersion() >= lastVersion);
+				lastVersion = qrCode.getVersion();
+				assertEquals(qrCode.getVersion() * 4 + 17, qrCode.getSize());
+				assertEquals(new String(data, StandardCharsets.US_ASCII), decode(qrCode));
+			}
+			assertEquals(40, lastVersion);
+		}
+	}
+
+	@Test
+	public void shouldPickSmallestVersion() {
+		// 14 bytes is the byte mode capacity of version 1 at level M
+		assertEquals(1, QrCode.encode(new byte[14], QrCode.ErrorCorrection.MEDIUM).getVersion());
+		assertEquals(2, QrCode.encode(new byte[15], QrCode.ErrorCorrection.MEDIUM).getVersion());
+		assertEquals(40, QrCode.encode(new byte[2953], QrCode.ErrorCorrection.LOW).getVersion());
+		assertThrows(IllegalArgumentException.class, () -> QrCode.encode(new byte[2954], QrCode.ErrorCorrection.LOW));
+	}
+
+	@Test
+	public void shouldReadPng() throws Exception {
+		String uri = TimeBasedOneTimePasswordUtil.generateOtpAuthUri("user%40example.com", "NY4A5CPJZ46LXZCP");
+		assertEquals("otpauth://totp/user%40example.com?secret=NY4A5CPJZ46LXZCP&digits=6", uri);
+		QrCode qrCode = QrCode.encode(uri);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		qrCode.writePng(out, 3, QrCode.DEFAULT_BORDER);
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals((qrCode.getSize() + 8) * 3, image.getWidth());
+		assertEquals(uri, read(image));
+
+		String dataUri = TimeBasedOneTimePasswordUtil.qrImageDataUri("user%40example.com", "NY4A5CPJZ46LXZCP");
+		assertTrue(dataUri.startsWith("data:image/png;base64,"));
+		byte[] png = Base64.getDecoder().decode(dataUri.substring(dataUri.indexOf(',') + 1));
+		image = ImageIO.read(new ByteArrayInputStream(png));
+		assertTrue(image.getWidth() <= TimeBasedOneTimePasswordUtil.DEFAULT_QR_DIMENSION);
+		assertEquals(uri, read(image));
+	}
+
+	@Test
+	public void shouldWriteSvg() throws Exception {
+		QrCode qrCode = QrCode.encode("otpauth://totp/x?secret=NY4A5CPJZ46LXZCP&digits=6");
+		String svg = qrCode.toSvg(QrCode.DEFAULT_BORDER);
+		assertTrue(svg.startsWith("<?xml"));
+		int dimension = qrCode.getSize() + 8;
+		assertTrue(svg.contains("viewBox=\"0 0 " + dimension + " " + dimension + "\""));
+		// the top left corner of the finder pattern is a run of seven dark modules
+		assertTrue(svg.contains("M4,4h7v1h-7z"));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		qrCode.writeSvg(out, QrCode.DEFAULT_BORDER);
+		assertEquals(svg, new String(out.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	private static String decode(QrCode qrCode) throws Exception {
+		BitMatrix matrix = new BitMatrix(qrCode.getSize());
+		for (int y = 0; y < qrCode.getSize(); y++) {
+			for (int x = 0; x < qrCode.getSize(); x++) {
+				if (qrCode.isDark(x, y)) {
+					matrix.set(x, y);
+				}
+			}
+		}
+		return new Decoder().decode(matrix).getText();
+	}
+
+	private static String read(BufferedImage image) throws Exception {
+		int[] pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+		RGBLuminanceSource source = new RGBLuminanceSource(image.getWidth(), image.getHeight(), pixels);
+		return new QRCodeReader().decode(new BinaryBitmap(new HybridBinarizer(source))).getText();
+	}
+}
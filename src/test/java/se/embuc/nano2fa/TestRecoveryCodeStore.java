@@ -0,0 +1,142 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * TestRecoveryCodeStore.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestRecoveryCodeStore {
+
+	private static final byte[] PEPPER = "0123456789abcdef0123456789abcdef".getBytes();
+
+	@Test
+	public void shouldConsumeEveryCodeOnce() {
+		RecoveryCodeStore store = new RecoveryCodeStore(PEPPER);
+		String[] codes = store.generate(1);
+		assertEquals(RecoveryCodeStore.DEFAULT_CODE_COUNT, codes.length);
+		for (String code : codes) {
+			assertTrue(code.matches("([A-Z2-7]{4}-){4}[A-Z2-7]{4}"), code);
+		}
+		for (int i = 0; i < codes.length; i++) {
+			assertEquals(codes.length - i, store.getRemaining(1));
+			assertTrue(store.consume(1, codes[i]));
+			assertFalse(store.consume(1, codes[i]));
+		}
+		assertEquals(0, store.getRemaining(1));
+	}
+
+	@Test
+	public void shouldRejectCodesOfOtherAccountsAndMalformedCodes() {
+		RecoveryCodeStore store = new RecoveryCodeStore(PEPPER, 3);
+		String[] codes = store.generate(1);
+		store.generate(2);
+		assertFalse(store.consume(2, codes[0]));
+		assertFalse(store.consume(3, codes[0]));
+		assertFalse(store.consume(1, null));
+		assertFalse(store.consume(1, ""));
+		assertFalse(store.consume(1, codes[0].replace('-', '!')));
+		assertFalse(store.consume(1, codes[0] + codes[0] + codes[0] + codes[0]));
+		assertEquals(3, store.getRemaining(1));
+	}
+
+	@Test
+	public void shouldNormalizeCodes() {
+		RecoveryCodeStore store = new RecoveryCodeStore(PEPPER, 2);
+		String[] codes = store.generate(1);
+		assertTrue(store.consume(1, codes[0].toLowerCase(Locale.ROOT)));
+		assertTrue(store.consume(1, " " + codes[1].replace("-", " ") + "\n"));
+	}
+
+	@Test
+	public void shouldReplacePreviousCodes() {
+		RecoveryCodeStore store = new RecoveryCodeStore(PEPPER, 2);
+		String[] first = store.generate(1);
+		String[] second = store.generate(1);
+		assertFalse(store.consume(1, first[0]));
+		assertTrue(store.consume(1, second[0]));
+		store.remove(1);
+		assertFalse(store.consume(1, second[1]));
+		assertEquals(0, store.getRemaining(1));
+	}
+
+	@Test
+	public void shouldLoadPersistedHashes() {
+		RecoveryCodeStore store = new RecoveryCodeStore(PEPPER, 2);
+		String[] codes = store.generate(7);
+		assertTrue(store.consume(7, codes[0]));
+		long[] hashes = store.getHashes(7);
+		assertEquals(RecoveryCodeStore.CONSUMED, hashes[0]);
+		assertNull(store.getHashes(8));
+
+		RecoveryCodeStore restarted = new RecoveryCodeStore(PEPPER, 2);
+		restarted.load(7, hashes);
+		assertFalse(restarted.consume(7, codes[0]));
+		assertTrue(restarted.consume(7, codes[1]));
+
+		RecoveryCodeStore otherPepper = new RecoveryCodeStore("fedcba9876543210fedcba9876543210".getBytes(), 2);
+		otherPepper.load(7, hashes);
+		assertFalse(otherPepper.consume(7, codes[1]));
+	}
+
+	@Test
+	public void shouldConsumeOnceUnderContention() throws Exception {
+		RecoveryCodeStore store = new RecoveryCodeStore(PEPPER, 1);
+		String code = store.generate(1)[0];
+		AtomicInteger consumed = new AtomicInteger();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				if (store.consume(1, code)) {
+					consumed.incrementAndGet();
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(1, consumed.get());
+	}
+
+	@Test
+	public void shouldGenerateInBulk() {
+		RecoveryCodeStore store = new RecoveryCodeStore(PEPPER, 2);
+		long[] accountIds = new long[5000];
+		for (int i = 0; i < accountIds.length; i++) {
+			accountIds[i] = i * 31L;
+		}
+		ConcurrentHashMap<Long, String[]> generated = new ConcurrentHashMap<>();
+		store.generate(accountIds, (codes, accountId) -> generated.put(accountId, codes));
+		assertEquals(accountIds.length, generated.size());
+		for (long accountId : accountIds) {
+			assertTrue(store.consume(accountId, generated.get(accountId)[1]));
+		}
+	}
+
+	@Test
+	public void shouldRejectShortPepper() {
+		assertThrows(IllegalArgumentException.class, () -> new RecoveryCodeStore(new byte[15]));
+		assertThrows(IllegalArgumentException.class, () -> new RecoveryCodeStore(null));
+		assertThrows(IllegalArgumentException.class, () -> new RecoveryCodeStore(PEPPER, 0));
+	}
+}
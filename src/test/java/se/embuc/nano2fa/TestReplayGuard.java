@@ -0,0 +1,107 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * TestReplayGuard.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestReplayGuard {
+
+	private static final String SECRET = "NY4A5CPJZ46LXZCP";
+	private static final int STEP = TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS;
+	private static final int DIGITS = TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH;
+
+	@Test
+	public void shouldRejectReusedNumber() {
+		ReplayGuard guard = new ReplayGuard();
+		byte[] key = TimeBasedOneTimePasswordUtil.decodeBase32(SECRET);
+		assertTrue(guard.validateCurrentNumber(1, key, 325893, 10000, 7455000, STEP, DIGITS));
+		assertFalse(guard.validateCurrentNumber(1, key, 325893, 10000, 7456000, STEP, DIGITS));
+		// other accounts and the next time-step are not affected
+		assertTrue(guard.validateCurrentNumber(2, key, 325893, 10000, 7455000, STEP, DIGITS));
+		assertTrue(guard.validateCurrentNumber(0, key, 325893, 10000, 7455000, STEP, DIGITS));
+		assertFalse(guard.validateCurrentNumber(0, key, 325893, 10000, 7455000, STEP, DIGITS));
+		assertTrue(guard.validateCurrentNumber(1, key, 948323, 15000, 7455000 + 15000, STEP, DIGITS));
+		assertFalse(guard.validateCurrentNumber(1, key, 111111, 10000, 7455000, STEP, DIGITS));
+	}
+
+	@Test
+	public void shouldValidateCurrentNumber() {
+		ReplayGuard guard = new ReplayGuard();
+		String secret = TimeBasedOneTimePasswordUtil.generateBase32Secret();
+		int number = Integer.parseInt(TimeBasedOneTimePasswordUtil.generateCurrentNumberString(secret));
+		assertTrue(guard.validateCurrentNumber(42, secret, number));
+		assertFalse(guard.validateCurrentNumber(42, secret, number));
+	}
+
+	@Test
+	public void shouldEvictStepsLeavingTheWindow() {
+		ReplayGuard guard = new ReplayGuard(16, 1);
+		assertTrue(guard.markUsed(7, 100));
+		assertFalse(guard.markUsed(7, 100));
+		assertTrue(guard.markUsed(7, 101));
+		// 104 takes the slot of 100, whose entries are dropped with it
+		assertTrue(guard.markUsed(7, 104));
+		// a time-step which was evicted can no longer be verified and is rejected
+		assertFalse(guard.markUsed(8, 100));
+		assertFalse(guard.markUsed(7, 101));
+	}
+
+	@Test
+	public void shouldFailClosedWhenFull() {
+		ReplayGuard guard = new ReplayGuard(2, 1);
+		assertTrue(guard.markUsed(1, 5));
+		assertTrue(guard.markUsed(2, 5));
+		assertTrue(guard.markUsed(3, 5));
+		assertTrue(guard.markUsed(4, 5));
+		assertFalse(guard.markUsed(5, 5));
+	}
+
+	@Test
+	public void shouldRejectWindowLargerThanGuard() {
+		ReplayGuard guard = new ReplayGuard(16, 1);
+		byte[] key = TimeBasedOneTimePasswordUtil.decodeBase32(SECRET);
+		assertThrows(IllegalArgumentException.class, () -> guard.validateCurrentNumber(1, key, 325893, 30001, 7455000, STEP, DIGITS));
+	}
+
+	@Test
+	public void shouldAcceptExactlyOnceUnderContention() throws Exception {
+		ReplayGuard guard = new ReplayGuard(100_000, 1);
+		int threadCount = 8;
+		int accounts = 20_000;
+		AtomicInteger accepted = new AtomicInteger();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < threadCount; t++) {
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				for (long account = 0; account < accounts; account++) {
+					if (guard.markUsed(account, 1000)) {
+						accepted.incrementAndGet();
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(accounts, accepted.get());
+	}
+}
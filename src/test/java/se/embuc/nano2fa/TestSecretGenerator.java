@@ -0,0 +1,58 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * TestSecretGenerator.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestSecretGenerator {
+
+	@Test
+	public void shouldGenerateBase32Secrets() {
+		List<String> secrets = new ArrayList<>();
+		SecretGenerator.generateBase32Secrets(1000, 32, secrets::add);
+		assertEquals(1000, secrets.size());
+		assertEquals(1000, new HashSet<>(secrets).size());
+		for (String secret : secrets) {
+			assertTrue(secret.matches("[A-Z2-7]{32}"), secret);
+			assertEquals(20, TimeBasedOneTimePasswordUtil.decodeBase32(secret).length);
+		}
+		assertEquals(7, SecretGenerator.generateBase32Secret(7).length());
+		assertEquals("", SecretGenerator.generateBase32Secret(0));
+	}
+
+	@Test
+	public void shouldUseWholeAlphabetEvenly() {
+		int[] counts = new int[32];
+		char[] chars = new char[320_000];
+		SecretGenerator.nextBase32(chars, 0, chars.length);
+		for (char c : chars) {
+			counts[new String(Base32Codec.ALPHABET).indexOf(c)]++;
+		}
+		for (int count : counts) {
+			// expected 10000 each, 10 sigma is about 1000
+			assertTrue(Math.abs(count - 10_000) < 1000, "count " + count);
+		}
+	}
+
+	@Test
+	public void shouldGenerateFormattedRecoveryCodes() {
+		Set<String> codes = new HashSet<>();
+		SecretGenerator.generateFormattedRecoveryCodes(100, codes::add);
+		codes.add(SecretGenerator.generateFormattedRecoveryCode());
+		codes.add(TimeBasedOneTimePasswordUtil.generateFormattedRecoveryCode());
+		assertEquals(102, codes.size());
+		for (String code : codes) {
+			assertTrue(code.matches("[A-Z2-7]{4}(-[A-Z2-7]{4}){4}"), code);
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * TestSecretMigration.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestSecretMigration {
+
+	@Test
+	public void shouldNormalizeAndReject() throws IOException {
+		String input = "id,secret\n"
+				+ "1,ny4a 5cpj-z46l xzcp\n"
+				+ "2,NY4A5CPJZ46LXZC0\n"
+				+ "3,GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQGEZA====\n"
+				+ "4,ABC\n"
+				+ "5,x,y,NY4A5CPJZ46LXZCP\n"
+				+ "NY4A5CPJZ46LXZCPNY4A\n"
+				+ "6,NY4A=5CPJZ46LXZCP\n";
+		StringWriter out = new StringWriter();
+		StringWriter rejects = new StringWriter();
+		SecretMigration.Result result = new SecretMigration(SecretMigration.NORMALIZE).migrate(new StringReader(input), out, rejects);
+		assertEquals(4, result.getMigrated());
+		assertEquals(4, result.getRejected());
+		assertEquals("1,NY4A5CPJZ46LXZCP\n"
+				+ "3,GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQGEZA\n"
+				+ "5,x,y,NY4A5CPJZ46LXZCP\n"
+				+ "NY4A5CPJZ46LXZCPNY4A\n", out.toString());
+		assertEquals("id,secret\n2,NY4A5CPJZ46LXZC0\n4,ABC\n6,NY4A=5CPJZ46LXZCP\n", rejects.toString());
+	}
+
+	@Test
+	public void shouldKeepOrderInParallel() throws IOException {
+		StringBuilder input = new StringBuilder();
+		String[] secrets = new String[20_000];
+		for (int i = 0; i < secrets.length; i++) {
+			secrets[i] = TimeBasedOneTimePasswordUtil.generateBase32Secret(i % 3 == 0 ? 16 : 32);
+			input.append(i).append(',').append(secrets[i]).append('\n');
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			SecretMigration migration = new SecretMigration((key, length, out) -> out.append(Base64.getEncoder().encodeToString(Arrays.copyOf(key, length))),
+					executor, 3, 100, SecretMigration.DEFAULT_MIN_KEY_BYTES);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			SecretMigration.Result result = migration.migrate(new ByteArrayInputStream(input.toString().getBytes(StandardCharsets.UTF_8)), out);
+			assertEquals(secrets.length, result.getMigrated());
+			assertEquals(0, result.getRejected());
+			BufferedReader reader = new BufferedReader(new StringReader(new String(out.toByteArray(), StandardCharsets.UTF_8)));
+			for (int i = 0; i < secrets.length; i++) {
+				String line = reader.readLine();
+				assertEquals(i + "," + Base64.getEncoder().encodeToString(Base32Codec.decode(secrets[i])), line);
+			}
+			assertNull(reader.readLine());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void shouldFailOnTransformError() {
+		StringBuilder input = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			input.append("NY4A5CPJZ46LXZCP\n");
+		}
+		int[] calls = new int[1];
+		SecretMigration migration = new SecretMigration((key, length, out) -> {
+			synchronized (calls) {
+				if (++calls[0] == 500) {
+					throw new GeneralSecurityException("key unavailable");
+				}
+			}
+			out.append('x');
+		}, Runnable::run, 2, 64, 10);
+		IOException e = assertThrows(IOException.class, () -> migration.migrate(new StringReader(input.toString()), new StringWriter(), null));
+		assertEquals("Transformation failed on line 500", e.getMessage());
+		assertEquals("key unavailable", e.getCause().getMessage());
+	}
+
+	@Test
+	public void shouldRejectInvalidSettings() {
+		assertThrows(IllegalArgumentException.class, () -> new SecretMigration(null));
+		assertThrows(IllegalArgumentException.class, () -> new SecretMigration(SecretMigration.NORMALIZE, Runnable::run, 0, 10, 10));
+		assertThrows(IllegalArgumentException.class, () -> new SecretMigration(SecretMigration.NORMALIZE, Runnable::run, 1, 0, 10));
+		assertThrows(IllegalArgumentException.class, () -> new SecretMigration(SecretMigration.NORMALIZE, Runnable::run, 1, 10, 0));
+	}
+}
@@ -0,0 +1,119 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * TestSecretVault.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestSecretVault {
+
+	private static final String SECRET = "NY4A5CPJZ46LXZCP";
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void shouldValidateStoredSecret() throws IOException {
+		try (SecretVault vault = new SecretVault(directory.resolve("vault"), 100)) {
+			assertFalse(vault.contains(7));
+			assertFalse(vault.validateCurrentNumber(7, 325893, 0, 7455000, 30, 6));
+			vault.put(7, SECRET);
+			assertTrue(vault.contains(7));
+			assertTrue(vault.validateCurrentNumber(7, 325893, 0, 7455000, 30, 6));
+			assertFalse(vault.validateCurrentNumber(7, 948323, 14999, 7455000, 30, 6));
+			assertTrue(vault.validateCurrentNumber(7, 948323, 15000, 7455000, 30, 6));
+			assertTrue(vault.validateCurrentNumber(7, 162123, 15001, 7455000, 30, 6));
+			assertFalse(vault.validateCurrentNumber(8, 325893, 0, 7455000, 30, 6));
+			vault.remove(7);
+			assertFalse(vault.validateCurrentNumber(7, 325893, 0, 7455000, 30, 6));
+		}
+	}
+
+	@Test
+	public void shouldMatchUtil() throws IOException {
+		try (SecretVault vault = new SecretVault(directory.resolve("vault"), 10)) {
+			for (int length = 1; length <= 96; length += 5) {
+				String secret = TimeBasedOneTimePasswordUtil.generateBase32Secret(length);
+				vault.put(3, secret);
+				int number = TimeBasedOneTimePasswordUtil.generateNumber(secret, 1_700_000_000_000L, 30, 6);
+				assertTrue(vault.validateCurrentNumber(3, number, 0, 1_700_000_000_000L, 30, 6), secret);
+			}
+		}
+	}
+
+	@Test
+	public void shouldPersistAcrossReopen() throws IOException {
+		Path file = directory.resolve("vault");
+		try (SecretVault vault = new SecretVault(file, 3 * SecretVault.SEGMENT_SLOTS)) {
+			vault.put(0, SECRET);
+			vault.put(3L * SecretVault.SEGMENT_SLOTS - 1, SECRET);
+		}
+		// the file is sparse, only written slots take space
+		try (SecretVault vault = new SecretVault(file, 10)) {
+			assertEquals(3L * SecretVault.SEGMENT_SLOTS, vault.getCapacity());
+			assertTrue(vault.validateCurrentNumber(0, 325893, 0, 7455000, 30, 6));
+			assertTrue(vault.validateCurrentNumber(3L * SecretVault.SEGMENT_SLOTS - 1, 325893, 0, 7455000, 30, 6));
+			assertFalse(vault.contains(1));
+		}
+		// growing keeps the slots
+		try (SecretVault vault = new SecretVault(file, 4 * SecretVault.SEGMENT_SLOTS)) {
+			assertEquals(4L * SecretVault.SEGMENT_SLOTS, vault.getCapacity());
+			assertTrue(vault.contains(0));
+			vault.put(4L * SecretVault.SEGMENT_SLOTS - 1, SECRET);
+		}
+	}
+
+	@Test
+	public void shouldRejectInvalidInput() throws IOException {
+		Path file = directory.resolve("vault");
+		try (SecretVault vault = new SecretVault(file, 10)) {
+			assertThrows(IllegalArgumentException.class, () -> vault.put(10, SECRET));
+			assertThrows(IllegalArgumentException.class, () -> vault.put(-1, SECRET));
+			assertThrows(IllegalArgumentException.class, () -> vault.put(1, new byte[0]));
+			assertThrows(IllegalArgumentException.class, () -> vault.put(1, new byte[SecretVault.MAX_KEY_LENGTH + 1]));
+		}
+		Path other = directory.resolve("other");
+		Files.write(other, new byte[100]);
+		assertThrows(IOException.class, () -> new SecretVault(other, 10));
+	}
+
+	@Test
+	public void shouldNeverSeeTornKeys() throws Exception {
+		byte[][] keys = { TimeBasedOneTimePasswordUtil.decodeBase32(TimeBasedOneTimePasswordUtil.generateBase32Secret(16)),
+				TimeBasedOneTimePasswordUtil.decodeBase32(TimeBasedOneTimePasswordUtil.generateBase32Secret(32)) };
+		try (SecretVault vault = new SecretVault(directory.resolve("vault"), 10)) {
+			vault.put(5, keys[0]);
+			AtomicBoolean running = new AtomicBoolean(true);
+			Thread writer = new Thread(() -> {
+				for (int i = 0; running.get(); i++) {
+					vault.put(5, keys[i & 1]);
+				}
+			});
+			writer.start();
+			List<String> failures = new ArrayList<>();
+			byte[] buffer = new byte[SecretVault.MAX_KEY_LENGTH];
+			for (int i = 0; i < 100_000; i++) {
+				byte[] key = Arrays.copyOf(buffer, vault.read(5, buffer));
+				if (!Arrays.equals(keys[0], key) && !Arrays.equals(keys[1], key)) {
+					failures.add(Arrays.toString(key));
+				}
+			}
+			running.set(false);
+			writer.join();
+			assertTrue(failures.isEmpty(), failures.toString());
+		}
+	}
+}
@@ -3,6 +3,7 @@ package se.embuc.nano2fa;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -100,6 +101,47 @@ public class TestTimeBasedOneTimePasswordUtil {
 		assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, 162123, 15001, 7455000, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS));
 	}
 
+	@Test
+	public void testValidateCode() {
+		String secret = "NY4A5CPJZ46LXZCP";
+		assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, "325893", 0, 7455000, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, 6));
+		assertFalse(TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, "948323", 0, 7455000, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, 6));
+		assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, "948323", 15000, 7455000, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, 6));
+		assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, "162123", 15001, 7455000, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, 6));
+		// the leading zero is part of the code
+		assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, "064088", 0, 15451000L, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, 6));
+		assertFalse(TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, "64088", 0, 15451000L, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, 6));
+		assertFalse(TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, "0064088", 0, 15451000L, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, 6));
+		assertFalse(TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, "+64088", 0, 15451000L, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, 6));
+		assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, "05993908", 0, 5964551130L, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, 8));
+		assertFalse(TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, (CharSequence) null, 0, 7455000, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, 6));
+		assertThrows(IllegalArgumentException.class,
+				() -> TimeBasedOneTimePasswordUtil.validateCurrentNumber(null, "325893", 0, 7455000, TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS, 6));
+	}
+
+	@Test
+	public void testGenerateIntoBuffers() {
+		String secret = TimeBasedOneTimePasswordUtil.generateBase32Secret();
+		char[] chars = new char[10];
+		assertEquals(6, TimeBasedOneTimePasswordUtil.generateCurrentNumber(secret, chars, 2));
+		assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, chars, 2, 6, 10_000));
+		assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, new String(chars, 2, 6)));
+		assertFalse(TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, chars, 2, 5, 10_000));
+
+		byte[] bytes = "code=??????&".getBytes(StandardCharsets.US_ASCII);
+		assertEquals(6, TimeBasedOneTimePasswordUtil.generateCurrentNumber(secret, bytes, 5));
+		assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, bytes, 5, 6, 10_000));
+		assertFalse(TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, bytes, 4, 6, 10_000));
+	}
+
+	@Test
+	public void testZeroPrependEdgeCases() {
+		assertEquals("1234567", TimeBasedOneTimePasswordUtil.zeroPrepend(1234567, 6));
+		assertEquals("2147483647", TimeBasedOneTimePasswordUtil.zeroPrepend(Integer.MAX_VALUE, 10));
+		assertEquals("00000000000000000012", TimeBasedOneTimePasswordUtil.zeroPrepend(12, 20));
+		assertEquals("12", TimeBasedOneTimePasswordUtil.zeroPrepend(12, 0));
+	}
+
 	@Test
 	public void testGenerateSecret() {
 		assertEquals(20, TimeBasedOneTimePasswordUtil.generateBase32Secret().length());
@@ -0,0 +1,148 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * TestTotpEngine.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestTotpEngine {
+
+	/** the seeds of RFC 6238 appendix B, "1234567890" repeated to 20, 32 and 64 bytes */
+	private static final String SHA1_SECRET = "GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ";
+	private static final String SHA256_SECRET = "GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQGEZA";
+	private static final String SHA512_SECRET = "GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQGEZDGNA";
+	private static final long[] RFC_TIMES = { 59L, 1111111109L, 1111111111L, 1234567890L, 2000000000L, 20000000000L };
+	private static final int[] RFC_SHA1 = { 94287082, 7081804, 14050471, 89005924, 69279037, 65353130 };
+	private static final int[] RFC_SHA256 = { 46119246, 68084774, 67062674, 91819424, 90698825, 77737706 };
+	private static final int[] RFC_SHA512 = { 90693936, 25091201, 99943326, 93441116, 38618901, 47863826 };
+
+	@AfterEach
+	public void removeListener() {
+		TimeBasedOneTimePasswordUtil.setMetricsListener(null);
+	}
+
+	@Test
+	public void shouldGenerateRfcNumbers() {
+		assertRfcNumbers(TotpEngine.Algorithm.SHA1, SHA1_SECRET, RFC_SHA1);
+		assertRfcNumbers(TotpEngine.Algorithm.SHA256, SHA256_SECRET, RFC_SHA256);
+		assertRfcNumbers(TotpEngine.Algorithm.SHA512, SHA512_SECRET, RFC_SHA512);
+	}
+
+	@Test
+	public void shouldMatchUtilWithDefaults() {
+		String secret = "NY4A5CPJZ46LXZCP";
+		long timeMillis = 1_700_000_012_345L;
+		TotpEngine engine = TotpEngine.builder().setClock(Clock.fixed(Instant.ofEpochMilli(timeMillis), ZoneOffset.UTC)).build();
+		assertEquals(TimeBasedOneTimePasswordUtil.generateNumberString(secret, timeMillis, 30, 6), engine.generateCurrentNumberString(secret));
+		assertEquals(TimeBasedOneTimePasswordUtil.generateValue(timeMillis, 30), engine.timeStep());
+		for (long offset = -40_000; offset <= 40_000; offset += 5_000) {
+			int number = TimeBasedOneTimePasswordUtil.generateNumber(secret, timeMillis + offset, 30, 6);
+			assertEquals(TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, number, 10_000, timeMillis, 30, 6),
+					engine.validateCurrentNumber(secret, number), "offset " + offset);
+			assertEquals(engine.validateCurrentNumber(secret, number), engine.validateCurrentNumber(secret, TimeBasedOneTimePasswordUtil.zeroPrepend(number, 6)));
+		}
+		assertFalse(engine.validateCurrentNumber(secret, -1));
+		assertFalse(engine.validateCurrentNumber(secret, "12345"));
+	}
+
+	@Test
+	public void shouldValidateWithPolicy() {
+		TotpEngine engine = TotpEngine.builder()
+				.setAlgorithm(TotpEngine.Algorithm.SHA256)
+				.setDigits(8)
+				.setTimeStepSeconds(60)
+				.setWindowMillis(0)
+				.setClock(Clock.fixed(Instant.ofEpochSecond(1234567890L), ZoneOffset.UTC))
+				.build();
+		int current = engine.generateCurrentNumber(SHA256_SECRET);
+		assertTrue(engine.validateCurrentNumber(SHA256_SECRET, current));
+		assertFalse(engine.validateNumber(SHA256_SECRET, current, 1234567890_000L + 60_000));
+		assertEquals(engine.generateNumber(SHA256_SECRET, 1234567890_000L - 60_000),
+				TotpEngine.builder().setAlgorithm(TotpEngine.Algorithm.SHA256).setDigits(8).setTimeStepSeconds(60).build()
+						.generateNumber(SHA256_SECRET, 1234567890_000L - 60_000));
+		assertEquals("otpauth://totp/Example%20Corp:alice?secret=" + SHA256_SECRET + "&issuer=Example%20Corp&algorithm=SHA256&digits=8&period=60",
+				engine.otpAuthUri("Example Corp", "alice", SHA256_SECRET));
+	}
+
+	@Test
+	public void shouldReportMetrics() {
+		MetricsRecorder recorder = new MetricsRecorder();
+		TimeBasedOneTimePasswordUtil.setMetricsListener(recorder);
+		TotpEngine engine = TotpEngine.builder().setAlgorithm(TotpEngine.Algorithm.SHA512).build();
+		assertTrue(engine.validateCurrentNumber(SHA512_SECRET, engine.generateCurrentNumber(SHA512_SECRET)));
+		assertThrows(IllegalArgumentException.class, () -> engine.validateCurrentNumber("", 123456));
+		assertThrows(IllegalArgumentException.class, () -> engine.validateCurrentNumber(null, 123456));
+		MetricsSnapshot snapshot = recorder.snapshot();
+		assertEquals(1, snapshot.getGenerated());
+		assertEquals(1, snapshot.getValidated());
+		assertEquals(2, snapshot.getRejected(MetricsListener.RejectReason.INVALID_SECRET));
+	}
+
+	@Test
+	public void shouldRekeyAfterInvalidSecret() {
+		TotpEngine engine = TotpEngine.builder().setAlgorithm(TotpEngine.Algorithm.SHA256).setDigits(8).setTimeStepSeconds(60).build();
+		int expected = engine.generateNumber(SHA256_SECRET, 1234567890_000L);
+		assertThrows(IllegalArgumentException.class, () -> engine.generateNumber("", 1234567890_000L));
+		assertEquals(expected, engine.generateNumber(SHA256_SECRET, 1234567890_000L));
+	}
+
+	@Test
+	public void shouldShareEngineBetweenThreads() throws Exception {
+		TotpEngine engine = TotpEngine.builder().setAlgorithm(TotpEngine.Algorithm.SHA256).build();
+		String[] secrets = new String[64];
+		for (int i = 0; i < secrets.length; i++) {
+			secrets[i] = TimeBasedOneTimePasswordUtil.generateBase32Secret(32);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int i = 0; i < 1000; i++) {
+				String secret = secrets[i % secrets.length];
+				results.add(executor.submit(() -> engine.validateCurrentNumber(secret, engine.generateCurrentNumber(secret))));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void shouldRejectInvalidPolicy() {
+		TotpEngine.Builder builder = TotpEngine.builder();
+		assertThrows(IllegalArgumentException.class, () -> builder.setAlgorithm(null));
+		assertThrows(IllegalArgumentException.class, () -> builder.setDigits(0));
+		assertThrows(IllegalArgumentException.class, () -> builder.setDigits(CodeDigits.MAX_DIGITS + 1));
+		assertThrows(IllegalArgumentException.class, () -> builder.setTimeStepSeconds(0));
+		assertThrows(IllegalArgumentException.class, () -> builder.setWindowMillis(-1));
+		assertThrows(IllegalArgumentException.class, () -> builder.setClock(null));
+		TotpEngine engine = builder.setDigits(CodeDigits.MAX_DIGITS).build();
+		assertEquals(CodeDigits.MAX_DIGITS, engine.getDigits());
+		assertEquals(TotpEngine.Algorithm.SHA1, engine.getAlgorithm());
+		assertEquals(30, engine.getTimeStepSeconds());
+		assertEquals(10_000, engine.getWindowMillis());
+	}
+
+	private static void assertRfcNumbers(TotpEngine.Algorithm algorithm, String secret, int[] numbers) {
+		TotpEngine engine = TotpEngine.builder().setAlgorithm(algorithm).setDigits(8).build();
+		for (int i = 0; i < RFC_TIMES.length; i++) {
+			assertEquals(numbers[i], engine.generateNumber(secret, RFC_TIMES[i] * 1000), algorithm + " at " + RFC_TIMES[i]);
+			assertTrue(engine.validateNumber(secret, numbers[i], RFC_TIMES[i] * 1000));
+		}
+	}
+}
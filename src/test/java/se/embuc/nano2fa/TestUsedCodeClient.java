@@ -0,0 +1,127 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * TestUsedCodeClient.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestUsedCodeClient {
+
+	private static final String SECRET = "NY4A5CPJZ46LXZCP";
+
+	@Test
+	public void shouldShareBetweenNodes() throws IOException {
+		try (UsedCodeServer server = new UsedCodeServer(0);
+				UsedCodeClient first = new UsedCodeClient(server.getAddress());
+				UsedCodeClient second = new UsedCodeClient(server.getAddress())) {
+			assertTrue(first.markUsed(7, 1000));
+			assertFalse(second.markUsed(7, 1000));
+			assertTrue(second.markUsed(8, 1000));
+			assertFalse(first.markUsed(8, 1000));
+			long timeMillis = 1_700_000_012_345L;
+			int number = TimeBasedOneTimePasswordUtil.generateNumber(SECRET, timeMillis, 30, 6);
+			assertTrue(TimeBasedOneTimePasswordUtil.validateCurrentNumber(first, 9, SECRET, number, 0, timeMillis, 30, 6));
+			assertFalse(TimeBasedOneTimePasswordUtil.validateCurrentNumber(second, 9, SECRET, number, 0, timeMillis, 30, 6));
+			assertEquals(0, first.getFailures() + second.getFailures());
+		}
+	}
+
+	@Test
+	public void shouldPipelineConcurrentRequests() throws Exception {
+		int perThread = 5000;
+		try (UsedCodeServer server = new UsedCodeServer(0); UsedCodeClient client = new UsedCodeClient(server.getAddress())) {
+			for (boolean expected : new boolean[] { true, false }) {
+				AtomicInteger answered = new AtomicInteger();
+				List<Thread> threads = new ArrayList<>();
+				for (int t = 0; t < 8; t++) {
+					long accountBase = t * 1_000_000L;
+					Thread thread = new Thread(() -> {
+						for (int i = 0; i < perThread; i++) {
+							if (client.markUsed(accountBase + i, 55_000_000) == expected) {
+								answered.incrementAndGet();
+							}
+						}
+					});
+					threads.add(thread);
+					thread.start();
+				}
+				for (Thread thread : threads) {
+					thread.join();
+				}
+				assertEquals(8 * perThread, answered.get());
+			}
+			assertEquals(0, client.getFailures());
+		}
+	}
+
+	@Test
+	public void shouldFailClosed() throws IOException {
+		UsedCodeRegistry slow = (accountId, value) -> {
+			try {
+				Thread.sleep(accountId);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return true;
+		};
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+		UsedCodeServer server = new UsedCodeServer(address, slow);
+		UsedCodeClient client = new UsedCodeClient(server.getAddress(), 100);
+		assertTrue(client.markUsed(1, 1000));
+		// no answer within the timeout
+		assertFalse(client.markUsed(500, 1000));
+		assertEquals(1, client.getFailures());
+		server.close();
+		assertFalse(client.markUsed(2, 1000));
+		assertEquals(2, client.getFailures());
+		client.close();
+		assertFalse(client.markUsed(3, 1000));
+		assertEquals(3, client.getFailures());
+	}
+
+	@Test
+	public void shouldDropStalledConnection() throws Exception {
+		// accepts the connection but never reads from it
+		try (ServerSocket stalled = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+				UsedCodeClient client = new UsedCodeClient((InetSocketAddress) stalled.getLocalSocketAddress(), 100)) {
+			List<Thread> threads = new ArrayList<>();
+			for (int t = 0; t < 8; t++) {
+				int account = t;
+				Thread thread = new Thread(() -> assertFalse(client.markUsed(account, 1000)));
+				threads.add(thread);
+				thread.start();
+			}
+			long start = System.nanoTime();
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+			assertEquals(8, client.getFailures());
+			// the connection was given up and is not opened again within the timeout
+			assertFalse(client.markUsed(8, 1000));
+			assertEquals(9, client.getFailures());
+		}
+	}
+
+	@Test
+	public void shouldRejectInvalidSettings() throws IOException {
+		try (UsedCodeServer server = new UsedCodeServer(0)) {
+			assertThrows(IllegalArgumentException.class, () -> new UsedCodeClient(null));
+			assertThrows(IllegalArgumentException.class, () -> new UsedCodeClient(server.getAddress(), 0));
+		}
+		assertThrows(IllegalArgumentException.class, () -> new UsedCodeServer(new InetSocketAddress(0), null));
+	}
+}
@@ -0,0 +1,36 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * TestWarmUp.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestWarmUp {
+
+	@AfterEach
+	public void removeListener() {
+		TimeBasedOneTimePasswordUtil.setMetricsListener(null);
+	}
+
+	@Test
+	public void shouldRunHotPaths() {
+		MetricsRecorder recorder = new MetricsRecorder();
+		TimeBasedOneTimePasswordUtil.setMetricsListener(recorder);
+		assertTrue(WarmUp.warmUp(100) > 0);
+		MetricsSnapshot snapshot = recorder.snapshot();
+		assertEquals(400, snapshot.getValidated() + snapshot.getRejected());
+		// every eighth attempt of each of the four validation paths matches
+		assertEquals(4 * 13, snapshot.getValidated(), 4);
+	}
+
+	@Test
+	public void shouldOnlyInitialize() {
+		assertTrue(WarmUp.warmUp(0) > 0);
+		assertThrows(IllegalArgumentException.class, () -> WarmUp.warmUp(-1));
+	}
+}
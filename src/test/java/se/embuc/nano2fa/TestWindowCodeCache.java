@@ -0,0 +1,84 @@
+package se.embuc.nano2fa;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * TestWindowCodeCache.
+ *
+ * @author Emir Bucalovic
+ */
+public class TestWindowCodeCache {
+
+	private static final String SECRET = "NY4A5CPJZ46LXZCP";
+	private static final int STEP = TimeBasedOneTimePasswordUtil.DEFAULT_TIME_STEP_SECONDS;
+	private static final int DIGITS = TimeBasedOneTimePasswordUtil.DEFAULT_OTP_LENGTH;
+
+	@Test
+	public void shouldValidateKnownCodes() {
+		WindowCodeCache cache = new WindowCodeCache();
+		assertTrue(cache.validateCurrentNumber(SECRET, 325893, 0, 7455000, STEP, DIGITS));
+		assertFalse(cache.validateCurrentNumber(SECRET, 948323, 0, 7455000, STEP, DIGITS));
+		assertTrue(cache.validateCurrentNumber(SECRET, 325893, 15000, 7455000, STEP, DIGITS));
+		assertFalse(cache.validateCurrentNumber(SECRET, 948323, 14999, 7455000, STEP, DIGITS));
+		assertTrue(cache.validateCurrentNumber(SECRET, 948323, 15000, 7455000, STEP, DIGITS));
+		assertFalse(cache.validateCurrentNumber(SECRET, 287511, 15000, 7455000, STEP, DIGITS));
+		assertTrue(cache.validateCurrentNumber(SECRET, 162123, 15001, 7455000, STEP, DIGITS));
+	}
+
+	@Test
+	public void shouldAnswerRetriesFromCache() {
+		WindowCodeCache cache = new WindowCodeCache();
+		assertFalse(cache.validateCurrentNumber(SECRET, 111111, 10000, 7455000, STEP, DIGITS));
+		assertFalse(cache.validateCurrentNumber(SECRET, 222222, 10000, 7456000, STEP, DIGITS));
+		assertTrue(cache.validateCurrentNumber(SECRET, 325893, 10000, 7459999, STEP, DIGITS));
+		assertEquals(1, cache.getMissCount());
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.size());
+
+		byte[] key = TimeBasedOneTimePasswordUtil.decodeBase32(SECRET);
+		assertTrue(cache.validateCurrentNumber(key, 325893, 10000, 7455000, STEP, DIGITS));
+		assertTrue(cache.validateCurrentNumber(key, 325893, 10000, 7455000, STEP, DIGITS));
+		assertEquals(2, cache.getMissCount());
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void shouldDropEntriesAtStepRollover() {
+		WindowCodeCache cache = new WindowCodeCache();
+		cache.validateCurrentNumber(SECRET, 325893, 10000, 7455000, STEP, DIGITS);
+		cache.validateCurrentNumber("JBSWY3DPEHPK3PXP", 325893, 10000, 7455000, STEP, DIGITS);
+		assertEquals(2, cache.size());
+		cache.validateCurrentNumber(SECRET, 325893, 10000, 7470000, STEP, DIGITS);
+		assertEquals(1, cache.size());
+		// an older time-step is validated but not cached
+		assertTrue(cache.validateCurrentNumber("JBSWY3DPEHPK3PXP",
+				TimeBasedOneTimePasswordUtil.generateNumber("JBSWY3DPEHPK3PXP", 7455000, STEP), 10000, 7455000, STEP, DIGITS));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void shouldMatchUtilForRandomTimes() {
+		WindowCodeCache cache = new WindowCodeCache(1);
+		String secret = TimeBasedOneTimePasswordUtil.generateBase32Secret();
+		Random random = new Random(3);
+		long now = 1_700_000_000_000L;
+		for (int i = 0; i < 2000; i++) {
+			now += random.nextInt(5000);
+			long window = random.nextInt(3) * 10000L;
+			int number = TimeBasedOneTimePasswordUtil.generateNumber(secret, now + random.nextInt(80_000) - 40_000, STEP);
+			assertEquals(TimeBasedOneTimePasswordUtil.validateCurrentNumber(secret, number, window, now, STEP),
+					cache.validateCurrentNumber(secret, number, window, now, STEP, DIGITS));
+		}
+		assertTrue(cache.getHitCount() > 0);
+	}
+
+	@Test
+	public void shouldThrowForEmptyKey() {
+		WindowCodeCache cache = new WindowCodeCache();
+		assertThrows(IllegalArgumentException.class, () -> cache.validateCurrentNumber(new byte[0], 1, 0, 7455000, STEP, DIGITS));
+	}
+}